@@ -13,12 +13,14 @@ package com.facebook.crypto.benchmarks;
 import javax.crypto.Mac;
 
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 import com.facebook.crypto.benchmarks.mac.HMAC;
 import com.facebook.crypto.benchmarks.mac.NativeMacHelper;
 import com.facebook.crypto.benchmarks.mac.streams.MacLayeredOutputStream;
 import com.facebook.crypto.cipher.NativeGCMCipher;
+import com.facebook.crypto.mac.NativeMac;
 
 import com.google.caliper.Param;
 import com.google.caliper.SimpleBenchmark;
@@ -27,6 +29,7 @@ import com.google.common.io.NullOutputStream;
 public class MacBenchmark extends SimpleBenchmark {
 
   private byte[] mData;
+  private ByteBuffer mDirectData;
 
   private HMAC mHMAC;
 
@@ -46,6 +49,8 @@ public class MacBenchmark extends SimpleBenchmark {
     Random random = new Random();
     mData = new byte[size];
     random.nextBytes(mData);
+    mDirectData = ByteBuffer.allocateDirect(size);
+    mDirectData.put(mData);
 
     mHMAC = HMAC.getInstance();
     mNativeMacHelper = NativeMacHelper.getInstance();
@@ -59,6 +64,16 @@ public class MacBenchmark extends SimpleBenchmark {
     }
   }
 
+  public void timeNativeMacDirect(int reps) throws Exception {
+    for (int i = 0; i < reps; ++i) {
+      NativeMac mac = mNativeMacHelper.getMac();
+      mDirectData.clear();
+      mac.update(mDirectData);
+      mac.doFinal();
+      mac.destroy();
+    }
+  }
+
   public void timeJavaHmac(int reps) throws Exception {
     for (int i = 0; i < reps; ++i) {
       Mac mac = mHMAC.getMac();
@@ -0,0 +1,105 @@
+package com.facebook.crypto;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.test.InstrumentationTestCase;
+import com.facebook.crypto.cipher.JavaGCMCipherEngine;
+import com.facebook.crypto.cipher.NativeChaCha20Poly1305CipherEngine;
+import com.facebook.crypto.cipher.NativeGCMCipherEngine;
+import com.facebook.crypto.keychain.KeyChain;
+import com.facebook.crypto.mac.JavaMacEngine;
+import com.facebook.crypto.mac.NativeMacEngine;
+import com.facebook.crypto.util.NativeCryptoLibrary;
+import com.facebook.crypto.util.SystemNativeCryptoLibrary;
+
+import java.io.*;
+import java.util.Arrays;
+
+@TargetApi(Build.VERSION_CODES.GINGERBREAD)
+public class ChaCha20Poly1305Test extends InstrumentationTestCase {
+
+  private KeyChain mKeyChain;
+  private NativeCryptoLibrary mNativeCryptoLibrary;
+  private Crypto mChaChaCrypto;
+  private Crypto mGCMCrypto;
+  private byte[] mData;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    mNativeCryptoLibrary = new SystemNativeCryptoLibrary();
+    mKeyChain = new FakeKeyChain();
+    mChaChaCrypto = new Crypto(
+        mKeyChain,
+        new NativeChaCha20Poly1305CipherEngine(mNativeCryptoLibrary),
+        new NativeMacEngine(mNativeCryptoLibrary),
+        new NativeGCMCipherEngine(mNativeCryptoLibrary));
+    mGCMCrypto = new Crypto(mKeyChain, mNativeCryptoLibrary);
+    mData = new byte[CryptoTestUtils.NUM_DATA_BYTES];
+    Arrays.fill(mData, (byte) 7);
+  }
+
+  public void testHeaderCarriesCipherId() throws Exception {
+    byte[] cipheredData = mChaChaCrypto.encrypt(mData, new Entity(CryptoTestUtils.ENTITY_NAME));
+    assertEquals(VersionCodes.CIPHER_SERALIZATION_VERSION, cipheredData[0]);
+    assertEquals(VersionCodes.CHACHA20_POLY1305_CIPHER_ID, cipheredData[1]);
+    assertEquals(
+        mData.length + mChaChaCrypto.getCipherMetaDataLength(),
+        cipheredData.length);
+  }
+
+  public void testStreamMatchesOneShot() throws Exception {
+    Entity entity = new Entity(CryptoTestUtils.ENTITY_NAME);
+    ByteArrayOutputStream cipherOutputStream = new ByteArrayOutputStream();
+    OutputStream outputStream = mChaChaCrypto.getCipherOutputStream(cipherOutputStream, entity);
+    outputStream.write(mData);
+    outputStream.close();
+
+    assertTrue(CryptoTestUtils.ENCRYPTED_DATA_DOES_NOT_MATCH,
+        Arrays.equals(mChaChaCrypto.encrypt(mData, entity), cipherOutputStream.toByteArray()));
+  }
+
+  public void testReadersDispatchOnCipherId() throws Exception {
+    Entity entity = new Entity(CryptoTestUtils.ENTITY_NAME);
+    byte[] cipheredData = mChaChaCrypto.encrypt(mData, entity);
+
+    assertTrue(CryptoTestUtils.DECRYPTED_DATA_IS_DIFFERENT,
+        Arrays.equals(mData, mGCMCrypto.decrypt(cipheredData, entity)));
+
+    InputStream inputStream =
+        mGCMCrypto.getCipherInputStream(new ByteArrayInputStream(cipheredData), entity);
+    byte[] decryptedData = new byte[mData.length];
+    int read = 0;
+    while (read < decryptedData.length) {
+      read += inputStream.read(decryptedData, read, decryptedData.length - read);
+    }
+    assertEquals(-1, inputStream.read(new byte[1]));
+    inputStream.close();
+    assertTrue(CryptoTestUtils.DECRYPTED_DATA_IS_DIFFERENT, Arrays.equals(mData, decryptedData));
+
+    assertTrue(CryptoTestUtils.DECRYPTED_DATA_IS_DIFFERENT,
+        Arrays.equals(mData, mChaChaCrypto.decrypt(mGCMCrypto.encrypt(mData, entity), entity)));
+  }
+
+  public void testDecryptionFailsOnIncorrectTag() throws Exception {
+    Entity entity = new Entity(CryptoTestUtils.ENTITY_NAME);
+    byte[] cipheredData = mChaChaCrypto.encrypt(mData, entity);
+    cipheredData[cipheredData.length - 1] ^= 1;
+    try {
+      mChaChaCrypto.decrypt(cipheredData, entity);
+    } catch (IOException e) {
+      return;
+    }
+    fail(CryptoTestUtils.EXCEPTION_EXPECTED);
+  }
+
+  public void testUnknownCipherIdIsRejected() throws Exception {
+    Entity entity = new Entity(CryptoTestUtils.ENTITY_NAME);
+    Crypto gcmOnlyCrypto = new Crypto(mKeyChain, new JavaGCMCipherEngine(), new JavaMacEngine());
+    try {
+      gcmOnlyCrypto.decrypt(mChaChaCrypto.encrypt(mData, entity), entity);
+    } catch (IOException e) {
+      return;
+    }
+    fail(CryptoTestUtils.EXCEPTION_EXPECTED);
+  }
+}
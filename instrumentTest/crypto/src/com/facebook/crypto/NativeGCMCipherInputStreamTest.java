@@ -217,4 +217,21 @@ public class NativeGCMCipherInputStreamTest extends InstrumentationTestCase {
     inputStream.close();
     assertTrue(CryptoTestUtils.DECRYPTED_DATA_IS_DIFFERENT, Arrays.equals(mData, decryptedData));
   }
+
+  public void testSecondCloseLeavesPooledCipherAlone() throws Exception {
+    InputStream first = mCrypto.getCipherInputStream(
+        new ByteArrayInputStream(mCipheredData),
+        new Entity(CryptoTestUtils.ENTITY_NAME));
+    ByteStreams.toByteArray(first);
+    first.close();
+
+    // The second stream may be handed the cipher the first one gave back to the pool.
+    InputStream second = mCrypto.getCipherInputStream(
+        mCipherInputStream,
+        new Entity(CryptoTestUtils.ENTITY_NAME));
+    first.close();
+    byte[] decryptedData = ByteStreams.toByteArray(second);
+    second.close();
+    assertTrue(CryptoTestUtils.DECRYPTED_DATA_IS_DIFFERENT, Arrays.equals(mData, decryptedData));
+  }
 }
@@ -136,4 +136,37 @@ public class NativeGCMCipherOutputStreamTest extends InstrumentationTestCase {
       expectedEncryptedString,
       encryptedString);
   }
+
+  public void testMatchesWhenEncryptingThroughLargeBuffer() throws Exception {
+    byte[] expectedCipherText = mCrypto.encrypt(mData, new Entity(CryptoTestUtils.ENTITY_NAME));
+    OutputStream outputStream = mCrypto.getCipherOutputStream(
+        mCipherOutputStream,
+        new Entity(CryptoTestUtils.ENTITY_NAME),
+        new byte[64 * 1024]);
+    outputStream.write(mData);
+    outputStream.close();
+
+    assertTrue(CryptoTestUtils.ENCRYPTED_DATA_IS_DIFFERENT,
+        Arrays.equals(expectedCipherText, mCipherOutputStream.toByteArray()));
+  }
+
+  public void testSecondCloseLeavesPooledCipherAlone() throws Exception {
+    byte[] expectedCipherText = mCrypto.encrypt(mData, new Entity(CryptoTestUtils.ENTITY_NAME));
+    OutputStream first = mCrypto.getCipherOutputStream(
+        new ByteArrayOutputStream(),
+        new Entity(CryptoTestUtils.ENTITY_NAME));
+    first.write(mData);
+    first.close();
+
+    // The second stream may be handed the cipher the first one gave back to the pool.
+    OutputStream second = mCrypto.getCipherOutputStream(
+        mCipherOutputStream,
+        new Entity(CryptoTestUtils.ENTITY_NAME));
+    first.close();
+    second.write(mData);
+    second.close();
+
+    assertTrue(CryptoTestUtils.ENCRYPTED_DATA_IS_DIFFERENT,
+        Arrays.equals(expectedCipherText, mCipherOutputStream.toByteArray()));
+  }
 }
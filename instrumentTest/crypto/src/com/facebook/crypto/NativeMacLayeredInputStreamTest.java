@@ -23,7 +23,10 @@ import java.util.Random;
 
 import android.test.InstrumentationTestCase;
 
+import com.facebook.crypto.cipher.NativeGCMCipherEngine;
 import com.facebook.crypto.keychain.KeyChain;
+import com.facebook.crypto.mac.MacEngine;
+import com.facebook.crypto.mac.NativeMacEngine;
 import com.facebook.crypto.util.NativeCryptoLibrary;
 import com.facebook.crypto.util.SystemNativeCryptoLibrary;
 
@@ -149,4 +152,31 @@ public class NativeMacLayeredInputStreamTest extends InstrumentationTestCase {
         mEntity);
     ByteStreams.toByteArray(macStream);
   }
+
+  public void testHmacSha256CompatibleWithJavaMac() throws Exception {
+    Crypto crypto = new Crypto(
+        mKeyChain,
+        new NativeGCMCipherEngine(mNativeCryptoLibrary),
+        new NativeMacEngine(mNativeCryptoLibrary, MacEngine.HMAC_SHA256_MAC_ID));
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    OutputStream outputStream = crypto.getMacOutputStream(bout, mEntity);
+    outputStream.write(mData);
+    outputStream.close();
+    byte[] dataWithMac = bout.toByteArray();
+    assertEquals(VersionCodes.HMAC_SHA256_MAC_ID, dataWithMac[1]);
+
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(mKeyChain.getMacKey(), "HmacSHA256"));
+    mac.update(CryptoSerializerHelper.computeBytesToAuthenticate(mEntity.getBytes(),
+        VersionCodes.MAC_SERIALIZATION_VERSION,
+        VersionCodes.HMAC_SHA256_MAC_ID));
+    byte[] macBytes = mac.doFinal(mData);
+    assertTrue(Arrays.equals(macBytes, CryptoSerializerHelper.getMacTag(dataWithMac, 32)));
+
+    // Engines writing HMAC-SHA1 still read it.
+    InputStream macStream = mCrypto.getMacInputStream(
+        new ByteArrayInputStream(dataWithMac),
+        mEntity);
+    assertTrue(Arrays.equals(mData, ByteStreams.toByteArray(macStream)));
+  }
 }
@@ -0,0 +1,211 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.test.InstrumentationTestCase;
+
+import com.facebook.crypto.mac.NativeMac;
+import com.facebook.crypto.util.NativeCryptoLibrary;
+import com.facebook.crypto.util.SystemNativeCryptoLibrary;
+
+public class NativeMacTest extends InstrumentationTestCase {
+
+  private NativeCryptoLibrary mNativeCryptoLibrary;
+  private byte[] mKey;
+  private byte[] mData;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    mNativeCryptoLibrary = new SystemNativeCryptoLibrary();
+    mKey = new FakeKeyChain().getMacKey();
+    mData = new byte[CryptoTestUtils.NUM_DATA_BYTES];
+    new Random(7).nextBytes(mData);
+  }
+
+  public void testDoFinalAtOffsetMatchesDoFinal() throws Exception {
+    byte[] expected = mac(mData);
+
+    NativeMac mac = newMac();
+    mac.update(mData, 0, mData.length);
+    byte[] output = new byte[expected.length + 10];
+    mac.doFinal(output, 7);
+    mac.destroy();
+
+    assertTrue(Arrays.equals(expected, Arrays.copyOfRange(output, 7, 7 + expected.length)));
+    assertEquals(0, output[6]);
+    assertEquals(0, output[7 + expected.length]);
+  }
+
+  public void testVerifyAcceptsMatchingMac() throws Exception {
+    byte[] expected = mac(mData);
+    byte[] buffer = new byte[expected.length + 3];
+    System.arraycopy(expected, 0, buffer, 3, expected.length);
+
+    NativeMac mac = newMac();
+    mac.update(mData, 0, mData.length);
+    assertTrue(mac.verify(buffer, 3));
+    mac.destroy();
+  }
+
+  public void testVerifyRejectsFlippedBit() throws Exception {
+    byte[] expected = mac(mData);
+    expected[expected.length - 1] ^= 1;
+
+    NativeMac mac = newMac();
+    mac.update(mData, 0, mData.length);
+    assertFalse(mac.verify(expected, 0));
+    mac.destroy();
+  }
+
+  public void testDoFinalRejectsOutOfRangeOffset() throws Exception {
+    NativeMac mac = newMac();
+    mac.update(mData, 0, mData.length);
+    byte[] output = new byte[mac.getMacLength()];
+    try {
+      mac.doFinal(output, 1);
+      fail("Expected the mac not to fit");
+    } catch (ArrayIndexOutOfBoundsException e) {
+      // expected
+    }
+    try {
+      mac.verify(output, -1);
+      fail("Expected a negative offset to be rejected");
+    } catch (ArrayIndexOutOfBoundsException e) {
+      // expected
+    }
+
+    // The mac is still unfinished and can be completed.
+    assertTrue(Arrays.equals(mac(mData), mac.doFinal()));
+    mac.destroy();
+  }
+
+  public void testDirectBufferUpdateMatchesArrayUpdate() throws Exception {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(mData.length + 13);
+    buffer.position(13);
+    buffer.put(mData);
+    buffer.position(13);
+
+    NativeMac mac = newMac();
+    mac.update(buffer);
+    byte[] result = mac.doFinal();
+    mac.destroy();
+
+    assertEquals(buffer.limit(), buffer.position());
+    assertTrue(Arrays.equals(mac(mData), result));
+  }
+
+  public void testHeapBufferUpdateMatchesArrayUpdate() throws Exception {
+    byte[] backing = new byte[mData.length + 20];
+    System.arraycopy(mData, 0, backing, 11, mData.length);
+    // The slice has a non-zero array offset, and its position moves past it.
+    ByteBuffer buffer = ByteBuffer.wrap(backing, 5, backing.length - 5).slice();
+    buffer.position(6);
+    buffer.limit(6 + mData.length);
+
+    NativeMac mac = newMac();
+    mac.update(buffer);
+    byte[] result = mac.doFinal();
+    mac.destroy();
+
+    assertEquals(5, buffer.arrayOffset());
+    assertEquals(buffer.limit(), buffer.position());
+    assertTrue(Arrays.equals(mac(mData), result));
+  }
+
+  public void testLargeUpdateMatchesJavaMac() throws Exception {
+    byte[] data = new byte[4 * 1024 * 1024 + 3];
+    new Random(11).nextBytes(data);
+    Mac javaMac = Mac.getInstance("HmacSHA1");
+    javaMac.init(new SecretKeySpec(mKey, "HmacSHA1"));
+    byte[] expected = javaMac.doFinal(data);
+
+    assertTrue(Arrays.equals(expected, mac(data)));
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+    buffer.put(data);
+    buffer.flip();
+    NativeMac mac = newMac();
+    mac.update(buffer);
+    byte[] result = mac.doFinal();
+    mac.destroy();
+    assertTrue(Arrays.equals(expected, result));
+  }
+
+  public void testHmacSha256LongKeyMatchesJavaMac() throws Exception {
+    // Keys longer than the 64 byte block are hashed first.
+    byte[] key = new byte[100];
+    new Random(3).nextBytes(key);
+    NativeMac mac = new NativeMac(mNativeCryptoLibrary);
+    mac.init(key, key.length, NativeMac.HMAC_SHA256);
+    mac.update(mData, 0, mData.length);
+    byte[] result = mac.doFinal();
+    mac.destroy();
+
+    assertTrue(Arrays.equals(javaHmacSha256(key, mData), result));
+  }
+
+  public void testHmacSha256EmptyMessageMatchesJavaMac() throws Exception {
+    NativeMac mac = new NativeMac(mNativeCryptoLibrary);
+    mac.init(mKey, mKey.length, NativeMac.HMAC_SHA256);
+    byte[] result = mac.doFinal();
+    mac.destroy();
+
+    assertEquals(32, result.length);
+    assertTrue(Arrays.equals(javaHmacSha256(mKey, new byte[0]), result));
+  }
+
+  public void testHmacSha256UpdatesAcrossBlocksMatchJavaMac() throws Exception {
+    byte[] data = Arrays.copyOf(mData, 300);
+    byte[] expected = javaHmacSha256(mKey, data);
+    // Splits which end just before, on and just after block boundaries.
+    int[][] splits = {{63, 2}, {64, 64}, {1, 127, 1}, {65, 63, 64}, {7, 57, 0, 64, 65}};
+    for (int[] split : splits) {
+      NativeMac mac = new NativeMac(mNativeCryptoLibrary);
+      mac.init(mKey, mKey.length, NativeMac.HMAC_SHA256);
+      int offset = 0;
+      for (int length : split) {
+        mac.update(data, offset, length);
+        offset += length;
+      }
+      mac.update(data, offset, data.length - offset);
+      byte[] result = mac.doFinal();
+      mac.destroy();
+      assertTrue(Arrays.toString(split), Arrays.equals(expected, result));
+    }
+  }
+
+  private NativeMac newMac() throws Exception {
+    NativeMac mac = new NativeMac(mNativeCryptoLibrary);
+    mac.init(mKey, mKey.length);
+    return mac;
+  }
+
+  private byte[] mac(byte[] data) throws Exception {
+    NativeMac mac = newMac();
+    mac.update(data, 0, data.length);
+    byte[] result = mac.doFinal();
+    mac.destroy();
+    return result;
+  }
+
+  private static byte[] javaHmacSha256(byte[] key, byte[] data) throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(key, "HmacSHA256"));
+    return mac.doFinal(data);
+  }
+}
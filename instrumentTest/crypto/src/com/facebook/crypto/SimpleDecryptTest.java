@@ -9,6 +9,7 @@ import com.facebook.crypto.util.NativeCryptoLibrary;
 import com.facebook.crypto.util.SystemNativeCryptoLibrary;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 @TargetApi(Build.VERSION_CODES.GINGERBREAD)
@@ -105,4 +106,17 @@ public class SimpleDecryptTest extends InstrumentationTestCase {
     byte[] decryptedData = mCrypto.decrypt(cipheredData, new Entity(CryptoTestUtils.ENTITY_NAME));
     assertTrue(CryptoTestUtils.DECRYPTED_DATA_IS_DIFFERENT, Arrays.equals(mData, decryptedData));
   }
+
+  public void testDecryptValidDataInDirectByteBuffer() throws Exception {
+    ByteBuffer cipherTextBuffer = ByteBuffer.allocateDirect(mCipheredData.length);
+    cipherTextBuffer.put(mCipheredData);
+    cipherTextBuffer.flip();
+    ByteBuffer plainTextBuffer = ByteBuffer.allocateDirect(mData.length);
+    mCrypto.decrypt(cipherTextBuffer, plainTextBuffer, new Entity(CryptoTestUtils.ENTITY_NAME));
+
+    byte[] plainText = new byte[mData.length];
+    plainTextBuffer.flip();
+    plainTextBuffer.get(plainText);
+    assertTrue(CryptoTestUtils.DECRYPTED_DATA_IS_DIFFERENT, Arrays.equals(mData, plainText));
+  }
 }
@@ -3,6 +3,8 @@ package com.facebook.crypto;
 import android.annotation.TargetApi;
 import android.os.Build;
 import android.test.InstrumentationTestCase;
+import com.facebook.crypto.cipher.KeyHandle;
+import com.facebook.crypto.cipher.NativeGCMCipher;
 import com.facebook.crypto.exception.CryptoInitializationException;
 import com.facebook.crypto.exception.KeyChainException;
 import com.facebook.crypto.keychain.KeyChain;
@@ -12,6 +14,7 @@ import com.facebook.crypto.util.SystemNativeCryptoLibrary;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 @TargetApi(Build.VERSION_CODES.GINGERBREAD)
@@ -66,6 +69,23 @@ public class SimpleEncryptTest extends InstrumentationTestCase {
     assertFalse(CryptoTestUtils.DATA_IS_NOT_ENCRYPTED, Arrays.equals(mData, encryptedData));
   }
 
+  public void testKeyHandleMatchesRawKey() throws Exception {
+    byte[] aad = new Entity(CryptoTestUtils.ENTITY_NAME).getBytes();
+    byte[] withKey = new byte[mData.length + NativeGCMCipher.TAG_LENGTH];
+    byte[] withHandle = new byte[mData.length + NativeGCMCipher.TAG_LENGTH];
+
+    NativeGCMCipher cipher = new NativeGCMCipher(mNativeCryptoLibrary);
+    KeyHandle keyHandle = new KeyHandle(mNativeCryptoLibrary, mKey);
+    try {
+      cipher.encrypt(mKey, mIV, aad, mData, 0, mData.length, withKey, 0);
+      cipher.encrypt(keyHandle, mIV, aad, mData, 0, mData.length, withHandle, 0);
+    } finally {
+      keyHandle.release();
+      cipher.destroy();
+    }
+    assertTrue(CryptoTestUtils.ENCRYPTED_DATA_IS_DIFFERENT, Arrays.equals(withKey, withHandle));
+  }
+
   public void testMatchesWithStreamingAPI() throws KeyChainException, CryptoInitializationException, IOException {
     byte[] cipherText = mCrypto.encrypt(mData, new Entity(CryptoTestUtils.ENTITY_NAME));
     ByteArrayOutputStream cipherStream = new ByteArrayOutputStream();
@@ -76,4 +96,20 @@ public class SimpleEncryptTest extends InstrumentationTestCase {
     outputStream.close();
     assertTrue(CryptoTestUtils.ENCRYPTED_DATA_IS_DIFFERENT, Arrays.equals(cipherStream.toByteArray(), cipherText));
   }
+
+  public void testDirectByteBufferMatchesByteArrayAPI() throws Exception {
+    Entity entity = new Entity(CryptoTestUtils.ENTITY_NAME);
+    byte[] cipherText = mCrypto.encrypt(mData, entity);
+
+    ByteBuffer plainTextBuffer = ByteBuffer.allocateDirect(mData.length);
+    plainTextBuffer.put(mData);
+    plainTextBuffer.flip();
+    ByteBuffer cipherTextBuffer = ByteBuffer.allocateDirect(cipherText.length);
+    mCrypto.encrypt(plainTextBuffer, cipherTextBuffer, entity);
+
+    byte[] bufferCipherText = new byte[cipherText.length];
+    cipherTextBuffer.flip();
+    cipherTextBuffer.get(bufferCipherText);
+    assertTrue(CryptoTestUtils.ENCRYPTED_DATA_IS_DIFFERENT, Arrays.equals(cipherText, bufferCipherText));
+  }
 }
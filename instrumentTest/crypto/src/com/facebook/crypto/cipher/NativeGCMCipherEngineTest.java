@@ -0,0 +1,79 @@
+package com.facebook.crypto.cipher;
+
+import java.util.Arrays;
+
+import android.test.InstrumentationTestCase;
+import com.facebook.crypto.util.NativeCryptoLibrary;
+import com.facebook.crypto.util.SystemNativeCryptoLibrary;
+
+public class NativeGCMCipherEngineTest extends InstrumentationTestCase {
+
+  private NativeGCMCipherPool mPool;
+  private NativeGCMCipherEngine mEngine;
+  private byte[] mKey;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    NativeCryptoLibrary nativeCryptoLibrary = new SystemNativeCryptoLibrary();
+    mPool = new NativeGCMCipherPool(nativeCryptoLibrary, 2);
+    mEngine = new NativeGCMCipherEngine(nativeCryptoLibrary, mPool);
+    mKey = new byte[NativeGCMCipher.KEY_LENGTH];
+  }
+
+  public void testCipherReturnsToPoolWhenEncryptInitFails() throws Exception {
+    try {
+      mEngine.newEncryptCipher(mKey, new byte[NativeGCMCipher.IV_LENGTH - 1]);
+      fail("Expected an invalid iv length");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(1, mPool.size());
+  }
+
+  public void testCipherReturnsToPoolWhenDecryptInitFails() throws Exception {
+    try {
+      mEngine.newDecryptCipher(mKey, new byte[NativeGCMCipher.IV_LENGTH + 1]);
+      fail("Expected an invalid iv length");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(1, mPool.size());
+
+    // The returned cipher is still usable.
+    AuthenticatedCipher cipher = mEngine.newEncryptCipher(mKey, new byte[NativeGCMCipher.IV_LENGTH]);
+    assertEquals(0, mPool.size());
+    byte[] tag = new byte[NativeGCMCipher.TAG_LENGTH];
+    cipher.encryptFinal(tag, tag.length);
+    cipher.destroy();
+    assertEquals(1, mPool.size());
+  }
+
+  public void testKeyChangedInPlaceIsPickedUp() throws Exception {
+    byte[] iv = new byte[NativeGCMCipher.IV_LENGTH];
+    byte[] aad = new byte[3];
+    byte[] data = new byte[100];
+    JavaGCMCipherEngine javaEngine = new JavaGCMCipherEngine();
+
+    // The key array is reused, as key chains do when they destroy and regenerate their keys.
+    for (int i = 0; i < 3; i++) {
+      Arrays.fill(mKey, (byte) i);
+      byte[] expected = new byte[data.length + NativeGCMCipher.TAG_LENGTH];
+      javaEngine.encrypt(mKey, iv, aad, data, 0, data.length, expected, 0);
+      // Twice, so that the second call goes through a handle imported for the new key.
+      for (int j = 0; j < 2; j++) {
+        byte[] output = new byte[expected.length];
+        mEngine.encrypt(mKey, iv, aad, data, 0, data.length, output, 0);
+        assertTrue(Arrays.equals(expected, output));
+
+        AuthenticatedCipher cipher = mEngine.newEncryptCipher(mKey, iv);
+        cipher.updateAad(aad, aad.length);
+        int written = cipher.update(data, 0, data.length, output, 0);
+        byte[] tag = new byte[NativeGCMCipher.TAG_LENGTH];
+        cipher.encryptFinal(tag, tag.length);
+        cipher.destroy();
+        System.arraycopy(tag, 0, output, written, tag.length);
+        assertTrue(Arrays.equals(expected, output));
+      }
+    }
+  }
+}
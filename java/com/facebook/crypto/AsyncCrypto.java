@@ -0,0 +1,222 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the one shot and file operations of a {@link Crypto} on a bounded executor, so that the
+ * calling thread never blocks on encrypting or decrypting large payloads. Each operation returns
+ * a {@link Future} and optionally reports its result to a {@link Callback}, which is called on
+ * the crypto thread.
+ * </p>
+ * The executor has a fixed number of threads and a queue of fixed capacity. When both are full
+ * the executor is saturated and further operations are rejected with a
+ * {@link RejectedExecutionException} on the calling thread, rather than queueing without bound;
+ * callers can check {@link #getQueueDepth()} and {@link #getRemainingCapacity()} to shed load
+ * before that. Another saturation policy can be set on the executor returned by
+ * {@link #getExecutor()}, e.g. {@link ThreadPoolExecutor.CallerRunsPolicy}.
+ * </p>
+ * This class is thread safe if the key chain of the crypto object is.
+ */
+public class AsyncCrypto {
+
+  /**
+   * Receives the result of an asynchronous operation.
+   */
+  public interface Callback<T> {
+
+    public void onSuccess(T result);
+
+    /**
+     * @param e The exception thrown by the operation, e.g. an IOException if the data could not
+     *     be authenticated.
+     */
+    public void onFailure(Exception e);
+  }
+
+  private final Crypto mCrypto;
+  private final ThreadPoolExecutor mExecutor;
+
+  /**
+   * Creates a crypto executor with one thread per core and a queue of queueCapacity operations.
+   */
+  public AsyncCrypto(Crypto crypto, int queueCapacity) {
+    this(crypto, newCryptoExecutor(Runtime.getRuntime().availableProcessors(), queueCapacity));
+  }
+
+  /**
+   * @param executor The executor to run operations on. It should have a bounded queue, see
+   *     {@link #newCryptoExecutor(int, int)}.
+   */
+  public AsyncCrypto(Crypto crypto, ThreadPoolExecutor executor) {
+    mCrypto = crypto;
+    mExecutor = executor;
+  }
+
+  /**
+   * Creates an executor with a fixed number of daemon threads and a bounded queue, which rejects
+   * operations when it is saturated.
+   */
+  public static ThreadPoolExecutor newCryptoExecutor(int threads, int queueCapacity) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        threads,
+        threads,
+        30,
+        TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueCapacity),
+        new CryptoThreadFactory(),
+        new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * See {@link Crypto#encrypt(byte[], Entity)}.
+   *
+   * @param callback Called with the result, or null.
+   * @throws RejectedExecutionException if the executor is saturated.
+   */
+  public Future<byte[]> encryptAsync(
+      final byte[] plainText,
+      final Entity entity,
+      Callback<byte[]> callback) {
+    return submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        return mCrypto.encrypt(plainText, entity);
+      }
+    }, callback);
+  }
+
+  /**
+   * See {@link Crypto#decrypt(byte[], Entity)}.
+   *
+   * @param callback Called with the result, or null.
+   * @throws RejectedExecutionException if the executor is saturated.
+   */
+  public Future<byte[]> decryptAsync(
+      final byte[] cipherText,
+      final Entity entity,
+      Callback<byte[]> callback) {
+    return submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        return mCrypto.decrypt(cipherText, entity);
+      }
+    }, callback);
+  }
+
+  /**
+   * See {@link Crypto#encryptFile(File, File, Entity)}.
+   *
+   * @param callback Called once the file has been written, or null.
+   * @throws RejectedExecutionException if the executor is saturated.
+   */
+  public Future<Void> encryptFileAsync(
+      final File plainFile,
+      final File cipherFile,
+      final Entity entity,
+      Callback<Void> callback) {
+    return submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        mCrypto.encryptFile(plainFile, cipherFile, entity);
+        return null;
+      }
+    }, callback);
+  }
+
+  /**
+   * See {@link Crypto#decryptFile(File, File, Entity)}.
+   *
+   * @param callback Called once the file has been written and authenticated, or null.
+   * @throws RejectedExecutionException if the executor is saturated.
+   */
+  public Future<Void> decryptFileAsync(
+      final File cipherFile,
+      final File plainFile,
+      final Entity entity,
+      Callback<Void> callback) {
+    return submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        mCrypto.decryptFile(cipherFile, plainFile, entity);
+        return null;
+      }
+    }, callback);
+  }
+
+  /**
+   * @return the number of operations waiting for a thread.
+   */
+  public int getQueueDepth() {
+    return mExecutor.getQueue().size();
+  }
+
+  /**
+   * @return the number of operations that can be queued before operations are rejected.
+   */
+  public int getRemainingCapacity() {
+    return mExecutor.getQueue().remainingCapacity();
+  }
+
+  /**
+   * @return the number of operations that are running.
+   */
+  public int getActiveCount() {
+    return mExecutor.getActiveCount();
+  }
+
+  public ThreadPoolExecutor getExecutor() {
+    return mExecutor;
+  }
+
+  private <T> Future<T> submit(final Callable<T> operation, final Callback<T> callback) {
+    if (callback == null) {
+      return mExecutor.submit(operation);
+    }
+    return mExecutor.submit(new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        T result;
+        try {
+          result = operation.call();
+        } catch (Exception e) {
+          callback.onFailure(e);
+          throw e;
+        }
+        callback.onSuccess(result);
+        return result;
+      }
+    });
+  }
+
+  private static class CryptoThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "Crypto #" + mCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
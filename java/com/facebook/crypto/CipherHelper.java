@@ -1,74 +1,774 @@
 package com.facebook.crypto;
 
-import com.facebook.crypto.cipher.NativeGCMCipher;
-import com.facebook.crypto.cipher.NativeGCMCipherException;
+import com.facebook.crypto.cipher.AuthenticatedCipher;
+import com.facebook.crypto.cipher.CipherEngine;
 import com.facebook.crypto.exception.CryptoInitializationException;
 import com.facebook.crypto.exception.KeyChainException;
 import com.facebook.crypto.keychain.KeyChain;
+import com.facebook.crypto.streams.CipherDecryptProcessor;
+import com.facebook.crypto.streams.CipherEncryptProcessor;
+import com.facebook.crypto.streams.CipherReadableChannel;
+import com.facebook.crypto.streams.CipherWritableChannel;
+import com.facebook.crypto.streams.CompressingCipherOutputStream;
+import com.facebook.crypto.streams.DecompressingCipherInputStream;
+import com.facebook.crypto.streams.Flow;
 import com.facebook.crypto.streams.NativeGCMCipherInputStream;
 import com.facebook.crypto.streams.NativeGCMCipherOutputStream;
+import com.facebook.crypto.streams.SeekableCipherInputStream;
+import com.facebook.crypto.streams.SegmentedCipherInputStream;
+import com.facebook.crypto.streams.SegmentedCipherOutputStream;
 import com.facebook.crypto.util.Assertions;
-import com.facebook.crypto.util.NativeCryptoLibrary;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
 
 /**
  * A helper class with common functionality required for cipher operations in {@link Crypto}.
  */
 /* package */ class CipherHelper {
 
+  // Files up to this length are memory mapped. Mappings are only released when they are garbage
+  // collected, so longer files go through reused buffers instead.
+  /* package */ static final int MAX_MAPPED_LENGTH = 16 * 1024 * 1024;
+  private static final int TRANSFER_BUFFER_LENGTH = 256 * 1024;
+
   private final KeyChain mKeyChain;
-  private final NativeCryptoLibrary mNativeCryptoLibrary;
+  private final CipherEngine mWriteEngine;
+  private final CipherEngine[] mReadEngines;
 
-  public CipherHelper(KeyChain keyChain, NativeCryptoLibrary nativeCryptoLibrary) {
+  /**
+   * @param writeEngine The engine used to encrypt. It is also used to decrypt messages carrying
+   *     its cipher ID.
+   * @param readEngines Further engines to decrypt messages carrying their cipher IDs.
+   */
+  public CipherHelper(KeyChain keyChain, CipherEngine writeEngine, CipherEngine... readEngines) {
     mKeyChain = keyChain;
-    mNativeCryptoLibrary = nativeCryptoLibrary;
+    mWriteEngine = writeEngine;
+    mReadEngines = new CipherEngine[readEngines.length + 1];
+    mReadEngines[0] = writeEngine;
+    System.arraycopy(readEngines, 0, mReadEngines, 1, readEngines.length);
   }
 
   public OutputStream getCipherOutputStream(OutputStream cipherStream, Entity entity)
     throws KeyChainException, CryptoInitializationException, IOException {
+    return getCipherOutputStream(cipherStream, entity, null);
+  }
+
+  /**
+   * Returns a cipher stream which encrypts through the supplied buffer, or through a default
+   * sized buffer if encryptBuffer is null.
+   */
+  public OutputStream getCipherOutputStream(OutputStream cipherStream, Entity entity, byte[] encryptBuffer)
+    throws KeyChainException, CryptoInitializationException, IOException {
 
+    byte cipherID = mWriteEngine.getCipherId();
     cipherStream.write(VersionCodes.CIPHER_SERALIZATION_VERSION);
-    cipherStream.write(VersionCodes.CIPHER_ID);
+    cipherStream.write(cipherID);
 
     byte[] iv = mKeyChain.getNewIV();
-    NativeGCMCipher gcmCipher = new NativeGCMCipher(mNativeCryptoLibrary);
-    gcmCipher.encryptInit(mKeyChain.getCipherKey(), iv);
+    AuthenticatedCipher gcmCipher = mWriteEngine.newEncryptCipher(mKeyChain.getCipherKey(), iv);
     cipherStream.write(iv);
 
     byte[] entityBytes = entity.getBytes();
-    computeCipherAad(gcmCipher, VersionCodes.CIPHER_SERALIZATION_VERSION, VersionCodes.CIPHER_ID, entityBytes);
-    return new NativeGCMCipherOutputStream(cipherStream, gcmCipher);
+    computeCipherAad(gcmCipher, VersionCodes.CIPHER_SERALIZATION_VERSION, cipherID, entityBytes);
+    if (encryptBuffer == null) {
+      return new NativeGCMCipherOutputStream(cipherStream, gcmCipher);
+    }
+    return new NativeGCMCipherOutputStream(cipherStream, gcmCipher, encryptBuffer);
+  }
+
+  /**
+   * Returns a channel which encrypts into the same format as
+   * {@link #getCipherOutputStream(OutputStream, Entity)}.
+   */
+  public WritableByteChannel getCipherWritableChannel(WritableByteChannel cipherChannel, Entity entity)
+    throws KeyChainException, CryptoInitializationException, IOException {
+
+    byte cipherID = mWriteEngine.getCipherId();
+    byte[] iv = mKeyChain.getNewIV();
+    AuthenticatedCipher gcmCipher = mWriteEngine.newEncryptCipher(mKeyChain.getCipherKey(), iv);
+
+    ByteBuffer header = ByteBuffer.allocate(2 + iv.length);
+    header.put(VersionCodes.CIPHER_SERALIZATION_VERSION);
+    header.put(cipherID);
+    header.put(iv);
+    header.flip();
+    while (header.hasRemaining()) {
+      cipherChannel.write(header);
+    }
+
+    byte[] entityBytes = entity.getBytes();
+    computeCipherAad(gcmCipher, VersionCodes.CIPHER_SERALIZATION_VERSION, cipherID, entityBytes);
+    return new CipherWritableChannel(cipherChannel, gcmCipher);
+  }
+
+  /**
+   * Returns a channel which decrypts data written by
+   * {@link #getCipherWritableChannel(WritableByteChannel, Entity)} or
+   * {@link #getCipherOutputStream(OutputStream, Entity)}. The channel must be in blocking mode:
+   * the header is read before this returns, and segmented and compressed data are read through
+   * streams.
+   *
+   * @throws IllegalBlockingModeException if the channel is a non-blocking
+   *     {@link SelectableChannel}.
+   */
+  public ReadableByteChannel getCipherReadableChannel(ReadableByteChannel cipherChannel, Entity entity)
+    throws KeyChainException, CryptoInitializationException, IOException {
+    if (cipherChannel instanceof SelectableChannel &&
+        !((SelectableChannel) cipherChannel).isBlocking()) {
+      // Reads would return 0 until data arrived, which would spin here or fail in the streams.
+      throw new IllegalBlockingModeException();
+    }
+    ByteBuffer version = ByteBuffer.allocate(2);
+    readFully(cipherChannel, version);
+    byte cryptoVersion = version.get(0);
+    byte cipherID = version.get(1);
+
+    if (cipherID == VersionCodes.SEGMENTED_CIPHER_ID) {
+      // Segments are decrypted whole, so channels gain nothing over the stream here.
+      return Channels.newChannel(getSegmentedCipherInputStream(
+          Channels.newInputStream(cipherChannel), entity, cryptoVersion, null));
+    }
+    if (cipherID == VersionCodes.COMPRESSED_CIPHER_ID) {
+      return Channels.newChannel(getCompressedCipherInputStream(
+          Channels.newInputStream(cipherChannel), entity, cryptoVersion));
+    }
+    CipherEngine engine = getReadEngine(cryptoVersion, cipherID);
+
+    byte[] iv = new byte[engine.getIvLength()];
+    readFully(cipherChannel, ByteBuffer.wrap(iv));
+
+    AuthenticatedCipher gcmCipher = engine.newDecryptCipher(mKeyChain.getCipherKey(), iv);
+
+    byte[] entityBytes = entity.getBytes();
+    computeCipherAad(gcmCipher, cryptoVersion, cipherID, entityBytes);
+    return new CipherReadableChannel(cipherChannel, gcmCipher);
+  }
+
+  private static void readFully(ReadableByteChannel channel, ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) == -1) {
+        throw new IOException("Not enough bytes for cipher meta data: " + buffer.position());
+      }
+    }
+  }
+
+  /**
+   * Returns a processor which encrypts into the same format as
+   * {@link #getCipherOutputStream(OutputStream, Entity)}.
+   */
+  public Flow.Processor<ByteBuffer, ByteBuffer> getEncryptProcessor(Entity entity)
+    throws KeyChainException, CryptoInitializationException, IOException {
+    byte cipherID = mWriteEngine.getCipherId();
+    byte[] iv = mKeyChain.getNewIV();
+    AuthenticatedCipher gcmCipher = mWriteEngine.newEncryptCipher(mKeyChain.getCipherKey(), iv);
+
+    byte[] header = new byte[2 + iv.length];
+    header[0] = VersionCodes.CIPHER_SERALIZATION_VERSION;
+    header[1] = cipherID;
+    System.arraycopy(iv, 0, header, 2, iv.length);
+
+    byte[] entityBytes = entity.getBytes();
+    computeCipherAad(gcmCipher, VersionCodes.CIPHER_SERALIZATION_VERSION, cipherID, entityBytes);
+    return new CipherEncryptProcessor(gcmCipher, header);
+  }
+
+  /**
+   * Returns a processor which decrypts data in the format of
+   * {@link #getCipherOutputStream(OutputStream, Entity)}. The cipher is created once the header
+   * has arrived; failures to create it are reported as IOExceptions to the subscriber.
+   */
+  public Flow.Processor<ByteBuffer, ByteBuffer> getDecryptProcessor(final Entity entity)
+    throws KeyChainException {
+    final byte[] key = mKeyChain.getCipherKey();
+    return new CipherDecryptProcessor(
+        2 + mWriteEngine.getIvLength(),
+        new CipherDecryptProcessor.CipherFactory() {
+          @Override
+          public AuthenticatedCipher newDecryptCipher(byte[] header) throws IOException {
+            byte cryptoVersion = header[0];
+            byte cipherID = header[1];
+            CipherEngine engine = getReadEngine(cryptoVersion, cipherID);
+            Assertions.checkArgumentForIO(engine.getIvLength() == header.length - 2,
+              "Unexpected iv length " + engine.getIvLength());
+            byte[] iv = new byte[engine.getIvLength()];
+            System.arraycopy(header, 2, iv, 0, iv.length);
+            try {
+              AuthenticatedCipher gcmCipher = engine.newDecryptCipher(key, iv);
+              computeCipherAad(gcmCipher, cryptoVersion, cipherID, entity.getBytes());
+              return gcmCipher;
+            } catch (CryptoInitializationException e) {
+              throw new IOException(e);
+            }
+          }
+        });
+  }
+
+  /**
+   * Returns a stream which encrypts in the segmented format, encrypting segments on the executor
+   * if it is not null.
+   */
+  public OutputStream getSegmentedCipherOutputStream(
+      OutputStream cipherStream,
+      Entity entity,
+      ExecutorService executor)
+    throws KeyChainException, CryptoInitializationException, IOException {
+    CipherEngine engine = getGcmEngine();
+    engine.ensureAvailable();
+
+    cipherStream.write(VersionCodes.CIPHER_SERALIZATION_VERSION);
+    cipherStream.write(VersionCodes.SEGMENTED_CIPHER_ID);
+
+    byte[] iv = mKeyChain.getNewIV();
+    cipherStream.write(iv);
+
+    byte[] aad = computeCipherAad(
+        VersionCodes.CIPHER_SERALIZATION_VERSION,
+        VersionCodes.SEGMENTED_CIPHER_ID,
+        entity.getBytes());
+    return new SegmentedCipherOutputStream(
+        cipherStream,
+        engine,
+        mKeyChain.getCipherKey(),
+        iv,
+        aad,
+        executor);
   }
 
   /**
-   * Returns a cipher stream for the crypto version and id.
+   * Returns a stream which compresses with deflate at the level and encrypts the compressed
+   * bytes with AES-GCM.
    */
+  public OutputStream getCompressedCipherOutputStream(
+      OutputStream cipherStream,
+      Entity entity,
+      int level)
+    throws KeyChainException, CryptoInitializationException, IOException {
+    CipherEngine engine = getGcmEngine();
+    engine.ensureAvailable();
+
+    cipherStream.write(VersionCodes.CIPHER_SERALIZATION_VERSION);
+    cipherStream.write(VersionCodes.COMPRESSED_CIPHER_ID);
+    cipherStream.write(VersionCodes.COMPRESSION_DEFLATE);
+
+    byte[] iv = mKeyChain.getNewIV();
+    AuthenticatedCipher gcmCipher = engine.newEncryptCipher(mKeyChain.getCipherKey(), iv);
+    cipherStream.write(iv);
+
+    byte[] aad = computeCompressedCipherAad(
+        VersionCodes.CIPHER_SERALIZATION_VERSION,
+        VersionCodes.COMPRESSION_DEFLATE,
+        entity.getBytes());
+    gcmCipher.updateAad(aad, aad.length);
+    return new CompressingCipherOutputStream(cipherStream, gcmCipher, level);
+  }
+
   public InputStream getCipherInputStream(InputStream cipherStream, Entity entity, byte cryptoVersion, byte cipherID)
     throws IOException, KeyChainException, CryptoInitializationException {
+    return getCipherInputStream(cipherStream, entity, cryptoVersion, cipherID, null);
+  }
 
-    Assertions.checkArgumentForIO(cryptoVersion == VersionCodes.CIPHER_SERALIZATION_VERSION,
-      "Unexpected crypto version " + cryptoVersion);
+  /**
+   * Returns a cipher stream for the crypto version and id, decrypting with the engine registered
+   * for the cipher id. Segmented streams are decrypted on the executor if it is not null.
+   */
+  public InputStream getCipherInputStream(
+      InputStream cipherStream,
+      Entity entity,
+      byte cryptoVersion,
+      byte cipherID,
+      ExecutorService executor)
+    throws IOException, KeyChainException, CryptoInitializationException {
 
-    Assertions.checkArgumentForIO(cipherID == VersionCodes.CIPHER_ID,
-      "Unexpected cipher ID " + cipherID);
+    if (cipherID == VersionCodes.SEGMENTED_CIPHER_ID) {
+      return getSegmentedCipherInputStream(cipherStream, entity, cryptoVersion, executor);
+    }
+    if (cipherID == VersionCodes.COMPRESSED_CIPHER_ID) {
+      return getCompressedCipherInputStream(cipherStream, entity, cryptoVersion);
+    }
+    CipherEngine engine = getReadEngine(cryptoVersion, cipherID);
 
-    byte[] iv = new byte[NativeGCMCipher.IV_LENGTH];
+    byte[] iv = new byte[engine.getIvLength()];
     int read = cipherStream.read(iv);
     if (read != iv.length) {
       throw new IOException("Not enough bytes for iv: " + read);
     }
 
-    NativeGCMCipher gcmCipher = new NativeGCMCipher(mNativeCryptoLibrary);
-    gcmCipher.decryptInit(mKeyChain.getCipherKey(), iv);
+    AuthenticatedCipher gcmCipher = engine.newDecryptCipher(mKeyChain.getCipherKey(), iv);
 
     byte[] entityBytes = entity.getBytes();
     computeCipherAad(gcmCipher, cryptoVersion, cipherID, entityBytes);
     return new NativeGCMCipherInputStream(cipherStream, gcmCipher);
   }
 
+  private InputStream getSegmentedCipherInputStream(
+      InputStream cipherStream,
+      Entity entity,
+      byte cryptoVersion,
+      ExecutorService executor)
+    throws IOException, KeyChainException, CryptoInitializationException {
+    Assertions.checkArgumentForIO(cryptoVersion == VersionCodes.CIPHER_SERALIZATION_VERSION,
+      "Unexpected crypto version " + cryptoVersion);
+    CipherEngine engine = getGcmEngine();
+    engine.ensureAvailable();
+
+    byte[] iv = new byte[engine.getIvLength()];
+    int read = cipherStream.read(iv);
+    if (read != iv.length) {
+      throw new IOException("Not enough bytes for iv: " + read);
+    }
+
+    byte[] aad = computeCipherAad(cryptoVersion, VersionCodes.SEGMENTED_CIPHER_ID, entity.getBytes());
+    return new SegmentedCipherInputStream(
+        cipherStream,
+        engine,
+        mKeyChain.getCipherKey(),
+        iv,
+        aad,
+        executor);
+  }
+
+  private InputStream getCompressedCipherInputStream(
+      InputStream cipherStream,
+      Entity entity,
+      byte cryptoVersion)
+    throws IOException, KeyChainException, CryptoInitializationException {
+    Assertions.checkArgumentForIO(cryptoVersion == VersionCodes.CIPHER_SERALIZATION_VERSION,
+      "Unexpected crypto version " + cryptoVersion);
+    byte codec = (byte) cipherStream.read();
+    Assertions.checkArgumentForIO(codec == VersionCodes.COMPRESSION_DEFLATE,
+      "Unexpected compression codec " + codec);
+    CipherEngine engine = getGcmEngine();
+    engine.ensureAvailable();
+
+    byte[] iv = new byte[engine.getIvLength()];
+    int read = cipherStream.read(iv);
+    if (read != iv.length) {
+      throw new IOException("Not enough bytes for iv: " + read);
+    }
+
+    AuthenticatedCipher gcmCipher = engine.newDecryptCipher(mKeyChain.getCipherKey(), iv);
+    byte[] aad = computeCompressedCipherAad(cryptoVersion, codec, entity.getBytes());
+    gcmCipher.updateAad(aad, aad.length);
+    return new DecompressingCipherInputStream(cipherStream, gcmCipher);
+  }
+
+  /**
+   * Returns a stream with random access to a file in the segmented format, which is read from
+   * the start of the channel.
+   */
+  public SeekableCipherInputStream getSeekableCipherInputStream(
+      FileChannel cipherChannel,
+      Entity entity)
+    throws IOException, KeyChainException, CryptoInitializationException {
+    CipherEngine engine = getGcmEngine();
+    engine.ensureAvailable();
+
+    ByteBuffer header = ByteBuffer.allocate(2 + engine.getIvLength());
+    while (header.hasRemaining()) {
+      if (cipherChannel.read(header, header.position()) == -1) {
+        throw new IOException("Not enough bytes for header: " + header.position());
+      }
+    }
+    byte cryptoVersion = header.get(0);
+    byte cipherID = header.get(1);
+    Assertions.checkArgumentForIO(cryptoVersion == VersionCodes.CIPHER_SERALIZATION_VERSION,
+      "Unexpected crypto version " + cryptoVersion);
+    Assertions.checkArgumentForIO(cipherID == VersionCodes.SEGMENTED_CIPHER_ID,
+      "Unexpected cipher ID " + cipherID);
+    byte[] iv = new byte[engine.getIvLength()];
+    header.position(2);
+    header.get(iv);
+
+    byte[] aad = computeCipherAad(cryptoVersion, cipherID, entity.getBytes());
+    return new SeekableCipherInputStream(
+        cipherChannel,
+        header.capacity(),
+        engine,
+        mKeyChain.getCipherKey(),
+        iv,
+        aad);
+  }
+
+  /**
+   * Encrypts the plain text with a single call into the native library, producing the same
+   * format as {@link #getCipherOutputStream(OutputStream, Entity)}.
+   */
+  public byte[] encrypt(byte[] plainText, Entity entity)
+    throws KeyChainException, CryptoInitializationException, IOException {
+    byte cipherID = mWriteEngine.getCipherId();
+    byte[] iv = mKeyChain.getNewIV();
+    byte[] aad = computeCipherAad(
+        VersionCodes.CIPHER_SERALIZATION_VERSION,
+        cipherID,
+        entity.getBytes());
+
+    byte[] cipherText = new byte[plainText.length + getCipherMetaDataLength()];
+    cipherText[0] = VersionCodes.CIPHER_SERALIZATION_VERSION;
+    cipherText[1] = cipherID;
+    System.arraycopy(iv, 0, cipherText, 2, iv.length);
+
+    mWriteEngine.encrypt(
+        mKeyChain.getCipherKey(),
+        iv,
+        aad,
+        plainText,
+        0,
+        plainText.length,
+        cipherText,
+        2 + iv.length);
+    return cipherText;
+  }
+
+  /**
+   * Decrypts cipher text produced by {@link #encrypt(byte[], Entity)} or the cipher streams with
+   * a single call into the native library.
+   */
+  public byte[] decrypt(byte[] cipherText, Entity entity)
+    throws KeyChainException, CryptoInitializationException, IOException {
+    Assertions.checkArgumentForIO(cipherText.length >= 2,
+      "Not enough bytes for cipher meta data: " + cipherText.length);
+
+    byte cryptoVersion = cipherText[0];
+    byte cipherID = cipherText[1];
+    if (cipherID == VersionCodes.SEGMENTED_CIPHER_ID ||
+        cipherID == VersionCodes.COMPRESSED_CIPHER_ID) {
+      InputStream cipherStream = new ByteArrayInputStream(cipherText, 2, cipherText.length - 2);
+      return toByteArray(getCipherInputStream(cipherStream, entity, cryptoVersion, cipherID));
+    }
+    CipherEngine engine = getReadEngine(cryptoVersion, cipherID);
+    int metaDataLength = getCipherMetaDataLength(engine);
+    Assertions.checkArgumentForIO(cipherText.length >= metaDataLength,
+      "Not enough bytes for cipher meta data: " + cipherText.length);
+
+    byte[] iv = new byte[engine.getIvLength()];
+    System.arraycopy(cipherText, 2, iv, 0, iv.length);
+    byte[] aad = computeCipherAad(cryptoVersion, cipherID, entity.getBytes());
+
+    byte[] plainText = new byte[cipherText.length - metaDataLength];
+    engine.decrypt(
+        mKeyChain.getCipherKey(),
+        iv,
+        aad,
+        cipherText,
+        2 + iv.length,
+        plainText.length,
+        plainText,
+        0);
+    return plainText;
+  }
+
+  private static byte[] toByteArray(InputStream plainStream) throws IOException {
+    ByteArrayOutputStream plainText = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = plainStream.read(buffer)) != -1) {
+      plainText.write(buffer, 0, read);
+    }
+    plainStream.close();
+    return plainText.toByteArray();
+  }
+
+  /**
+   * Encrypts the remaining bytes of the plain text buffer into the cipher text buffer using the
+   * same format as {@link #getCipherOutputStream(OutputStream, Entity)}. Both buffers must be
+   * direct.
+   */
+  public void encrypt(ByteBuffer plainText, ByteBuffer cipherText, Entity entity)
+    throws KeyChainException, CryptoInitializationException, IOException {
+    checkDirect(plainText, cipherText);
+    Assertions.checkArgument(
+        cipherText.remaining() >= plainText.remaining() + getCipherMetaDataLength(),
+        "Cipher text buffer is too small");
+
+    byte cipherID = mWriteEngine.getCipherId();
+    byte[] iv = mKeyChain.getNewIV();
+    AuthenticatedCipher gcmCipher = mWriteEngine.newEncryptCipher(mKeyChain.getCipherKey(), iv);
+    byte[] tag = new byte[mWriteEngine.getTagLength()];
+    try {
+      cipherText.put(VersionCodes.CIPHER_SERALIZATION_VERSION);
+      cipherText.put(cipherID);
+      cipherText.put(iv);
+
+      byte[] entityBytes = entity.getBytes();
+      computeCipherAad(gcmCipher, VersionCodes.CIPHER_SERALIZATION_VERSION, cipherID, entityBytes);
+      gcmCipher.update(plainText, cipherText);
+      gcmCipher.encryptFinal(tag, tag.length);
+    } finally {
+      gcmCipher.destroy();
+    }
+    cipherText.put(tag);
+  }
+
+  /**
+   * Decrypts the remaining bytes of the cipher text buffer into the plain text buffer. Both
+   * buffers must be direct.
+   */
+  public void decrypt(ByteBuffer cipherText, ByteBuffer plainText, Entity entity)
+    throws KeyChainException, CryptoInitializationException, IOException {
+    checkDirect(cipherText, plainText);
+    Assertions.checkArgumentForIO(cipherText.remaining() >= 2,
+      "Not enough bytes for cipher meta data: " + cipherText.remaining());
+
+    byte cryptoVersion = cipherText.get();
+    byte cipherID = cipherText.get();
+    CipherEngine engine = getReadEngine(cryptoVersion, cipherID);
+    Assertions.checkArgumentForIO(cipherText.remaining() >= getCipherMetaDataLength(engine) - 2,
+      "Not enough bytes for cipher meta data: " + (cipherText.remaining() + 2));
+
+    int cipherTextLength =
+        cipherText.remaining() - engine.getIvLength() - engine.getTagLength();
+    Assertions.checkArgument(plainText.remaining() >= cipherTextLength,
+        "Plain text buffer is too small");
+
+    byte[] iv = new byte[engine.getIvLength()];
+    cipherText.get(iv);
+
+    AuthenticatedCipher gcmCipher = engine.newDecryptCipher(mKeyChain.getCipherKey(), iv);
+    try {
+      byte[] entityBytes = entity.getBytes();
+      computeCipherAad(gcmCipher, cryptoVersion, cipherID, entityBytes);
+
+      ByteBuffer body = cipherText.slice();
+      body.limit(cipherTextLength);
+      gcmCipher.update(body, plainText);
+      cipherText.position(cipherText.position() + cipherTextLength);
+
+      byte[] tag = new byte[engine.getTagLength()];
+      cipherText.get(tag);
+      gcmCipher.decryptFinal(tag, tag.length);
+    } finally {
+      gcmCipher.destroy();
+    }
+  }
+
+  /**
+   * Encrypts a file into another file using the same format as
+   * {@link #getCipherOutputStream(OutputStream, Entity)}. Both files are memory mapped, so the
+   * data goes from the page cache through the cipher and back without copies on the heap. The
+   * destination is truncated or extended to its final length first.
+   */
+  public void encryptFile(File plainFile, File cipherFile, Entity entity)
+    throws KeyChainException, CryptoInitializationException, IOException {
+    RandomAccessFile plainText = new RandomAccessFile(plainFile, "r");
+    try {
+      RandomAccessFile cipherText = new RandomAccessFile(cipherFile, "rw");
+      try {
+        encryptFile(plainText.getChannel(), cipherText, entity);
+      } finally {
+        cipherText.close();
+      }
+    } finally {
+      plainText.close();
+    }
+  }
+
+  private void encryptFile(FileChannel plainText, RandomAccessFile cipherFile, Entity entity)
+    throws KeyChainException, CryptoInitializationException, IOException {
+    long plainTextLength = plainText.size();
+    cipherFile.setLength(plainTextLength + getCipherMetaDataLength());
+    FileChannel cipherText = cipherFile.getChannel();
+
+    byte cipherID = mWriteEngine.getCipherId();
+    byte[] iv = mKeyChain.getNewIV();
+    ByteBuffer header = ByteBuffer.allocate(2 + iv.length);
+    header.put(VersionCodes.CIPHER_SERALIZATION_VERSION);
+    header.put(cipherID);
+    header.put(iv);
+    header.flip();
+
+    AuthenticatedCipher gcmCipher = mWriteEngine.newEncryptCipher(mKeyChain.getCipherKey(), iv);
+    byte[] tag = new byte[mWriteEngine.getTagLength()];
+    try {
+      writeFully(cipherText, header, 0);
+      computeCipherAad(gcmCipher, VersionCodes.CIPHER_SERALIZATION_VERSION, cipherID, entity.getBytes());
+      transfer(gcmCipher, plainText, 0, cipherText, header.capacity(), plainTextLength);
+      gcmCipher.encryptFinal(tag, tag.length);
+    } finally {
+      gcmCipher.destroy();
+    }
+    writeFully(cipherText, ByteBuffer.wrap(tag), header.capacity() + plainTextLength);
+  }
+
+  /**
+   * Decrypts a file written by {@link #encryptFile(File, File, Entity)} or
+   * {@link #getCipherOutputStream(OutputStream, Entity)} into another file. The plain text is
+   * written to a temporary file next to the destination, which is renamed to the destination once
+   * the tag has been checked. If the cipher text fails to authenticate, the temporary file is
+   * deleted and the destination is left as it was.
+   */
+  public void decryptFile(File cipherFile, File plainFile, Entity entity)
+    throws KeyChainException, CryptoInitializationException, IOException {
+    File tempFile = File.createTempFile(
+        plainFile.getName(), ".tmp", plainFile.getAbsoluteFile().getParentFile());
+    boolean success = false;
+    try {
+      RandomAccessFile cipherText = new RandomAccessFile(cipherFile, "r");
+      try {
+        RandomAccessFile plainText = new RandomAccessFile(tempFile, "rw");
+        try {
+          decryptFile(cipherText.getChannel(), plainText, entity);
+        } finally {
+          plainText.close();
+        }
+      } finally {
+        cipherText.close();
+      }
+      if (!tempFile.renameTo(plainFile)) {
+        throw new IOException("Could not rename " + tempFile + " to " + plainFile);
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        tempFile.delete();
+      }
+    }
+  }
+
+  private void decryptFile(FileChannel cipherText, RandomAccessFile plainFile, Entity entity)
+    throws KeyChainException, CryptoInitializationException, IOException {
+    long cipherTextLength = cipherText.size();
+    Assertions.checkArgumentForIO(cipherTextLength >= 2,
+      "Not enough bytes for cipher meta data: " + cipherTextLength);
+    ByteBuffer version = ByteBuffer.allocate(2);
+    readFully(cipherText, version, 0);
+    byte cryptoVersion = version.get(0);
+    byte cipherID = version.get(1);
+    CipherEngine engine = getReadEngine(cryptoVersion, cipherID);
+    Assertions.checkArgumentForIO(cipherTextLength >= getCipherMetaDataLength(engine),
+      "Not enough bytes for cipher meta data: " + cipherTextLength);
+
+    byte[] iv = new byte[engine.getIvLength()];
+    readFully(cipherText, ByteBuffer.wrap(iv), 2);
+    long headerLength = 2 + iv.length;
+    long plainTextLength = cipherTextLength - getCipherMetaDataLength(engine);
+    byte[] tag = new byte[engine.getTagLength()];
+    readFully(cipherText, ByteBuffer.wrap(tag), headerLength + plainTextLength);
+
+    plainFile.setLength(plainTextLength);
+    AuthenticatedCipher gcmCipher = engine.newDecryptCipher(mKeyChain.getCipherKey(), iv);
+    try {
+      computeCipherAad(gcmCipher, cryptoVersion, cipherID, entity.getBytes());
+      transfer(gcmCipher, cipherText, headerLength, plainFile.getChannel(), 0, plainTextLength);
+      gcmCipher.decryptFinal(tag, tag.length);
+    } finally {
+      gcmCipher.destroy();
+    }
+  }
+
+  /**
+   * Opens or creates an {@link EncryptedRecordLog}. New logs are written with the write engine,
+   * existing ones with the engine of the cipher ID in their header.
+   */
+  public EncryptedRecordLog openRecordLog(File file, Entity entity)
+    throws KeyChainException, CryptoInitializationException, IOException {
+    RandomAccessFile logFile = new RandomAccessFile(file, "rw");
+    boolean success = false;
+    try {
+      byte cryptoVersion;
+      byte cipherID;
+      CipherEngine engine;
+      if (logFile.length() < EncryptedRecordLog.FILE_HEADER_LENGTH) {
+        engine = mWriteEngine;
+        cryptoVersion = VersionCodes.CIPHER_SERALIZATION_VERSION;
+        cipherID = engine.getCipherId();
+        logFile.setLength(0);
+        logFile.write(new byte[] {cryptoVersion, cipherID});
+        logFile.getChannel().force(false);
+      } else {
+        cryptoVersion = logFile.readByte();
+        cipherID = logFile.readByte();
+        engine = getReadEngine(cryptoVersion, cipherID);
+      }
+      engine.ensureAvailable();
+
+      EncryptedRecordLog log = new EncryptedRecordLog(
+          logFile,
+          engine,
+          cryptoVersion,
+          cipherID,
+          mKeyChain.getCipherKey(),
+          entity.getBytes(),
+          mKeyChain.getNewIV());
+      success = true;
+      return log;
+    } finally {
+      if (!success) {
+        logFile.close();
+      }
+    }
+  }
+
+  /**
+   * Runs length bytes of the input file through the cipher into the output file. Up to
+   * {@link #MAX_MAPPED_LENGTH} bytes, both files are mapped and the cipher works on the page cache
+   * directly. Longer files are read and written through a pair of direct buffers, so that a large
+   * file doesn't leave mappings behind until the next garbage collection. The output file must
+   * already be long enough.
+   */
+  private static void transfer(
+      AuthenticatedCipher cipher,
+      FileChannel input,
+      long inputOffset,
+      FileChannel output,
+      long outputOffset,
+      long length) throws IOException {
+    if (length == 0) {
+      return;
+    }
+    if (length <= MAX_MAPPED_LENGTH) {
+      ByteBuffer in = input.map(FileChannel.MapMode.READ_ONLY, inputOffset, length);
+      ByteBuffer out = output.map(FileChannel.MapMode.READ_WRITE, outputOffset, length);
+      cipher.update(in, out);
+      return;
+    }
+    ByteBuffer in = ByteBuffer.allocateDirect(TRANSFER_BUFFER_LENGTH);
+    ByteBuffer out = ByteBuffer.allocateDirect(TRANSFER_BUFFER_LENGTH);
+    long done = 0;
+    while (done < length) {
+      int count = (int) Math.min(TRANSFER_BUFFER_LENGTH, length - done);
+      in.clear();
+      in.limit(count);
+      readFully(input, in, inputOffset + done);
+      in.flip();
+      out.clear();
+      cipher.update(in, out);
+      out.flip();
+      writeFully(output, out, outputOffset + done);
+      done += count;
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) == -1) {
+        throw new IOException("Unexpected end of file at " + (position + buffer.position()));
+      }
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
+  }
+
   /**
    * Gets the length of the meta data for the version of the API being decrypted.
    * This should preserve the following invariant:
@@ -76,18 +776,77 @@ import java.io.OutputStream;
    * Ciphertext data size = Plaintext data + Cipher meta data.
    */
   public int getCipherMetaDataLength() {
-    return 2 + NativeGCMCipher.IV_LENGTH + NativeGCMCipher.TAG_LENGTH;
+    return getCipherMetaDataLength(mWriteEngine);
+  }
+
+  private static int getCipherMetaDataLength(CipherEngine engine) {
+    return 2 + engine.getIvLength() + engine.getTagLength();
+  }
+
+  /**
+   * Checks the header and returns the engine which decrypts messages with the cipher ID.
+   */
+  private CipherEngine getReadEngine(byte cryptoVersion, byte cipherID) throws IOException {
+    Assertions.checkArgumentForIO(cryptoVersion == VersionCodes.CIPHER_SERALIZATION_VERSION,
+      "Unexpected crypto version " + cryptoVersion);
+
+    for (CipherEngine engine : mReadEngines) {
+      if (engine.getCipherId() == cipherID) {
+        return engine;
+      }
+    }
+    throw new IOException("Unexpected cipher ID " + cipherID);
+  }
+
+  /**
+   * Segmented and compressed messages are encrypted with AES-GCM, using whichever engine
+   * handles it.
+   */
+  private CipherEngine getGcmEngine() throws IOException {
+    for (CipherEngine engine : mReadEngines) {
+      if (engine.getCipherId() == VersionCodes.CIPHER_ID) {
+        return engine;
+      }
+    }
+    throw new IOException("No AES-GCM engine");
+  }
+
+  private static void checkDirect(ByteBuffer input, ByteBuffer output) {
+    Assertions.checkArgument(input.isDirect() && output.isDirect(), "Buffers must be direct");
   }
 
   /**
    * Computes the Aad data for the cipher.
    */
-  public void computeCipherAad(NativeGCMCipher gcmCipher, byte cryptoVersion, byte cipherID, byte[] entityBytes)
-    throws NativeGCMCipherException {
+  public void computeCipherAad(AuthenticatedCipher gcmCipher, byte cryptoVersion, byte cipherID, byte[] entityBytes)
+    throws IOException {
     byte[] cryptoVersionBytes = { cryptoVersion };
     byte[] cipherIDBytes = { cipherID };
     gcmCipher.updateAad(cryptoVersionBytes, 1);
     gcmCipher.updateAad(cipherIDBytes, 1);
     gcmCipher.updateAad(entityBytes, entityBytes.length);
   }
+
+  /**
+   * Computes the Aad data for the cipher as a single array, for the one shot operations.
+   */
+  public static byte[] computeCipherAad(byte cryptoVersion, byte cipherID, byte[] entityBytes) {
+    byte[] aad = new byte[entityBytes.length + 2];
+    aad[0] = cryptoVersion;
+    aad[1] = cipherID;
+    System.arraycopy(entityBytes, 0, aad, 2, entityBytes.length);
+    return aad;
+  }
+
+  /**
+   * Computes the Aad data for compressed messages, which also covers the codec.
+   */
+  private static byte[] computeCompressedCipherAad(byte cryptoVersion, byte codec, byte[] entityBytes) {
+    byte[] aad = new byte[entityBytes.length + 3];
+    aad[0] = cryptoVersion;
+    aad[1] = VersionCodes.COMPRESSED_CIPHER_ID;
+    aad[2] = codec;
+    System.arraycopy(entityBytes, 0, aad, 3, entityBytes.length);
+    return aad;
+  }
 }
@@ -10,13 +10,25 @@
 
 package com.facebook.crypto;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
 
+import com.facebook.crypto.cipher.CipherEngine;
+import com.facebook.crypto.cipher.NativeChaCha20Poly1305CipherEngine;
+import com.facebook.crypto.cipher.NativeGCMCipherEngine;
 import com.facebook.crypto.exception.KeyChainException;
-import com.facebook.crypto.mac.NativeMac;
+import com.facebook.crypto.mac.KeyedMac;
+import com.facebook.crypto.mac.MacEngine;
+import com.facebook.crypto.mac.NativeMacEngine;
 import com.facebook.crypto.streams.*;
 import com.facebook.crypto.exception.CryptoInitializationException;
 import com.facebook.crypto.keychain.KeyChain;
@@ -25,23 +37,65 @@ import com.facebook.crypto.util.NativeCryptoLibrary;
 
 public class Crypto {
 
+  private static final byte[] SEARCH_TOKEN_KEY_LABEL = {
+      'c', 'o', 'n', 'c', 'e', 'a', 'l', ' ', 's', 'e', 'a', 'r', 'c', 'h'};
+
   private final KeyChain mKeyChain;
-  private final NativeCryptoLibrary mNativeCryptoLibrary;
+  private final CipherEngine mCipherEngine;
+  private final MacEngine mMacEngine;
   private final CipherHelper mCipherHelper;
 
+  /**
+   * Creates a crypto object backed by the native library. It encrypts with AES-GCM and decrypts
+   * both AES-GCM and ChaCha20-Poly1305.
+   */
   public Crypto(KeyChain keyChain, NativeCryptoLibrary nativeCryptoLibrary) {
+    this(
+        keyChain,
+        new NativeGCMCipherEngine(nativeCryptoLibrary),
+        new NativeMacEngine(nativeCryptoLibrary),
+        new NativeChaCha20Poly1305CipherEngine(nativeCryptoLibrary));
+  }
+
+  /**
+   * Creates a crypto object backed by the given engines, for example
+   * {@link com.facebook.crypto.cipher.JavaGCMCipherEngine} and
+   * {@link com.facebook.crypto.mac.JavaMacEngine} where the native library is not available.
+   * The serialized format is the same whichever engines are used.
+   */
+  public Crypto(KeyChain keyChain, CipherEngine cipherEngine, MacEngine macEngine) {
+    this(keyChain, cipherEngine, macEngine, new CipherEngine[0]);
+  }
+
+  /**
+   * Creates a crypto object which encrypts with writeEngine and decrypts messages encrypted by
+   * writeEngine or any of readEngines, picking the engine from the cipher ID in the header.
+   * For example, to encrypt with ChaCha20-Poly1305 on devices without AES instructions while
+   * still reading existing AES-GCM data:
+   * <pre>
+   *   new Crypto(keyChain, new NativeChaCha20Poly1305CipherEngine(library),
+   *       new NativeMacEngine(library), new NativeGCMCipherEngine(library));
+   * </pre>
+   */
+  public Crypto(
+      KeyChain keyChain,
+      CipherEngine writeEngine,
+      MacEngine macEngine,
+      CipherEngine... readEngines) {
     mKeyChain = keyChain;
-    mNativeCryptoLibrary = nativeCryptoLibrary;
-    mCipherHelper = new CipherHelper(mKeyChain, mNativeCryptoLibrary);
+    mCipherEngine = writeEngine;
+    mMacEngine = macEngine;
+    mCipherHelper = new CipherHelper(mKeyChain, mCipherEngine, readEngines);
   }
 
   /**
-   * Tells if crypto native library and this class can be used.
+   * Tells if the crypto engines and this class can be used.
    * @return true if and only if libraries could be loaded successfully.
    */
   public boolean isAvailable() {
     try {
-      mNativeCryptoLibrary.ensureCryptoLoaded();
+      mCipherEngine.ensureAvailable();
+      mMacEngine.ensureAvailable();
       return true;
     } catch (Throwable t) {
       return false;
@@ -62,6 +116,88 @@ public class Crypto {
     return mCipherHelper.getCipherOutputStream(cipherStream, entity);
   }
 
+  /**
+   * Gives you an output stream wrapper that encrypts the text written, using the supplied buffer
+   * to stage encrypted bytes. Each chunk of up to encryptBuffer.length bytes is encrypted in a
+   * single native call, so a large buffer, e.g. 64 KiB, makes large writes considerably cheaper.
+   *
+   * @param cipherStream The stream that the encrypted data will be written to.
+   * @param entity A unique object identifying what is being written.
+   * @param encryptBuffer The buffer to encrypt through. It can be reused once the returned
+   *     stream has been closed.
+   *
+   * @return A ciphered output stream to write to.
+   * @throws IOException
+   */
+  public OutputStream getCipherOutputStream(OutputStream cipherStream, Entity entity, byte[] encryptBuffer)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    return mCipherHelper.getCipherOutputStream(cipherStream, entity, encryptBuffer);
+  }
+
+  /**
+   * Gives you an output stream wrapper that encrypts the text written in the segmented format.
+   * The data is split into 64 KiB segments which are authenticated separately, so a reader only
+   * ever returns authenticated bytes and detects truncation. Segments are independent, which lets
+   * them be encrypted and decrypted on several cores, see
+   * {@link #getSegmentedCipherOutputStream(OutputStream, Entity, ExecutorService)}.
+   * {@link #getCipherInputStream(InputStream, Entity)} reads either format.
+   *
+   * @param cipherStream The stream that the encrypted data will be written to.
+   * @param entity A unique object identifying what is being written.
+   *
+   * @return A ciphered output stream to write to.
+   * @throws IOException
+   */
+  public OutputStream getSegmentedCipherOutputStream(OutputStream cipherStream, Entity entity)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    return mCipherHelper.getSegmentedCipherOutputStream(cipherStream, entity, null);
+  }
+
+  /**
+   * Same as {@link #getSegmentedCipherOutputStream(OutputStream, Entity)}, but encrypts the
+   * segments on the executor, e.g. a fixed thread pool with one thread per core, while the
+   * caller keeps writing. This is worthwhile for data of several megabytes.
+   *
+   * @param executor The executor to encrypt segments on. It is not shut down by the stream.
+   */
+  public OutputStream getSegmentedCipherOutputStream(
+      OutputStream cipherStream,
+      Entity entity,
+      ExecutorService executor)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    return mCipherHelper.getSegmentedCipherOutputStream(cipherStream, entity, executor);
+  }
+
+  /**
+   * Gives you an output stream wrapper that compresses the data with deflate and encrypts it,
+   * in one stage without an extra stream or buffer in between. Data which compresses well, like
+   * JSON or logs, takes a fraction of the disk space and I/O. Cipher text can't be compressed,
+   * so this is the only point where it can be done.
+   * {@link #getCipherInputStream(InputStream, Entity)} decompresses it again.
+   *
+   * @param cipherStream The stream that the encrypted data will be written to.
+   * @param entity A unique object identifying what is being written.
+   *
+   * @return A ciphered output stream to write to.
+   * @throws IOException
+   */
+  public OutputStream getCompressedCipherOutputStream(OutputStream cipherStream, Entity entity)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    return getCompressedCipherOutputStream(cipherStream, entity, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * Same as {@link #getCompressedCipherOutputStream(OutputStream, Entity)} with a deflate level
+   * from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}.
+   */
+  public OutputStream getCompressedCipherOutputStream(
+      OutputStream cipherStream,
+      Entity entity,
+      int level)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    return mCipherHelper.getCompressedCipherOutputStream(cipherStream, entity, level);
+  }
+
   /**
    * Gives you an input stream wrapper that decrypts another stream.
    * You must read the whole stream to completion, i.e. till -1. Failure
@@ -77,15 +213,192 @@ public class Crypto {
    */
   public InputStream getCipherInputStream(InputStream cipherStream, Entity entity)
       throws IOException, CryptoInitializationException, KeyChainException {
+    return getCipherInputStream(cipherStream, entity, null);
+  }
+
+  /**
+   * Gives you a channel that encrypts the buffers written to it into another channel, producing
+   * the same format as {@link #getCipherOutputStream(OutputStream, Entity)}. Direct buffers are
+   * encrypted without being copied, and {@link java.nio.channels.GatheringByteChannel} writes are
+   * supported. You must close the channel to write the tag.
+   *
+   * @param cipherChannel The channel that the encrypted data will be written to. It must be in
+   *     blocking mode.
+   * @param entity A unique object identifying what is being written.
+   *
+   * @return A channel to write the plain text to.
+   * @throws IOException
+   * @throws CryptoInitializationException Thrown if the crypto libraries could not be initialized.
+   * @throws KeyChainException Thrown if there is trouble managing keys.
+   */
+  public WritableByteChannel getCipherWritableChannel(WritableByteChannel cipherChannel, Entity entity)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    return mCipherHelper.getCipherWritableChannel(cipherChannel, entity);
+  }
+
+  /**
+   * Gives you a channel that decrypts another channel. Direct buffers are decrypted into without
+   * copies, and {@link java.nio.channels.ScatteringByteChannel} reads are supported. As with
+   * {@link #getCipherInputStream(InputStream, Entity)}, you must read the channel to completion,
+   * i.e. till -1, which is when the data is authenticated.
+   * </p>
+   * The channel must be in blocking mode. Non-blocking
+   * {@link java.nio.channels.SelectableChannel}s are rejected with an
+   * {@link java.nio.channels.IllegalBlockingModeException}.
+   *
+   * @param cipherChannel The channel from which the encrypted data is read.
+   * @param entity A unique object identifying what is being read.
+   *
+   * @return A channel to read the plain text from.
+   * @throws IOException
+   * @throws CryptoInitializationException Thrown if the crypto libraries could not be initialized.
+   * @throws KeyChainException Thrown if there is trouble managing keys.
+   */
+  public ReadableByteChannel getCipherReadableChannel(ReadableByteChannel cipherChannel, Entity entity)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    return mCipherHelper.getCipherReadableChannel(cipherChannel, entity);
+  }
+
+  /**
+   * Gives you a processor that encrypts a publisher of plain text buffers, for reactive
+   * pipelines that should not spend a thread per transfer. The processor emits one cipher text
+   * buffer per plain text buffer, with the header in front of the first, and the tag as the final
+   * buffer. Together they are in the format of {@link #getCipherOutputStream(OutputStream, Entity)}.
+   * Demand from the subscriber is passed on to the publisher, so backpressure is preserved.
+   *
+   * @param entity A unique object identifying what is being written.
+   *
+   * @return A processor to subscribe to the plain text publisher.
+   * @throws IOException
+   * @throws CryptoInitializationException Thrown if the crypto libraries could not be initialized.
+   * @throws KeyChainException Thrown if there is trouble managing keys.
+   */
+  public Flow.Processor<ByteBuffer, ByteBuffer> getEncryptProcessor(Entity entity)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    return mCipherHelper.getEncryptProcessor(entity);
+  }
+
+  /**
+   * Gives you a processor that decrypts a publisher of cipher text buffers, which may be split
+   * anywhere. Plain text is emitted as it is decrypted, but it is only authentic once the
+   * subscriber receives onComplete. If the data was tampered with, it receives onError with an
+   * IOException instead.
+   *
+   * @param entity A unique object identifying what is being read.
+   *
+   * @return A processor to subscribe to the cipher text publisher.
+   * @throws KeyChainException Thrown if there is trouble managing keys.
+   */
+  public Flow.Processor<ByteBuffer, ByteBuffer> getDecryptProcessor(Entity entity)
+      throws KeyChainException {
+    return mCipherHelper.getDecryptProcessor(entity);
+  }
+
+  /**
+   * Encrypts a whole file into another file. The files are memory mapped, or read and written
+   * through direct buffers when they are large, and go through the native library in large
+   * blocks, avoiding the copies and small writes of
+   * {@link #getCipherOutputStream(OutputStream, Entity)} while producing the same format. The
+   * destination is created with its final length of the plain text plus
+   * {@link #getCipherMetaDataLength()} bytes.
+   *
+   * @param plainFile The file to encrypt.
+   * @param cipherFile The file to write the cipher text to. It is overwritten.
+   * @param entity A unique object identifying what is being written.
+   * @throws IOException
+   * @throws CryptoInitializationException Thrown if the crypto libraries could not be initialized.
+   * @throws KeyChainException Thrown if there is trouble managing keys.
+   */
+  public void encryptFile(File plainFile, File cipherFile, Entity entity)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    mCipherHelper.encryptFile(plainFile, cipherFile, entity);
+  }
+
+  /**
+   * Decrypts a file written by {@link #encryptFile(File, File, Entity)} or
+   * {@link #getCipherOutputStream(OutputStream, Entity)} into another file. The plain text goes to
+   * a temporary file in the destination's directory, which replaces the destination only once it
+   * has been authenticated. If the cipher text doesn't authenticate, an IOException is thrown and
+   * the destination is left as it was.
+   *
+   * @param cipherFile The file to decrypt.
+   * @param plainFile The file to write the plain text to. It is overwritten.
+   * @param entity A unique object identifying what is being read.
+   * @throws IOException
+   * @throws CryptoInitializationException Thrown if the crypto libraries could not be initialized.
+   * @throws KeyChainException Thrown if there is trouble managing keys.
+   */
+  public void decryptFile(File cipherFile, File plainFile, Entity entity)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    mCipherHelper.decryptFile(cipherFile, plainFile, entity);
+  }
+
+  /**
+   * Opens an append-only log of small records, creating the file if needed. Records are
+   * encrypted and authenticated independently with 21 bytes of overhead each, and appends from
+   * concurrent threads share one write and fsync. See {@link EncryptedRecordLog}.
+   *
+   * @param file The log file.
+   * @param entity A unique object identifying the log. Every record is bound to it.
+   *
+   * @return The log, which must be closed.
+   * @throws IOException
+   * @throws CryptoInitializationException Thrown if the crypto libraries could not be initialized.
+   * @throws KeyChainException Thrown if there is trouble managing keys.
+   */
+  public EncryptedRecordLog openRecordLog(File file, Entity entity)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    return mCipherHelper.openRecordLog(file, entity);
+  }
+
+  /**
+   * Gives you random access to a file written with
+   * {@link #getSegmentedCipherOutputStream(OutputStream, Entity)}. Seeking and skipping are free,
+   * and reads only decrypt and authenticate the 64 KiB segments they touch. Unlike
+   * {@link #getCipherInputStream(InputStream, Entity)}, the stream doesn't have to be read to the
+   * end, since the length of the file is authenticated when the stream is created.
+   *
+   * @param cipherChannel The file to read, e.g. from {@link java.io.RandomAccessFile#getChannel()}.
+   *     It is closed with the stream.
+   * @param entity A unique object identifying what is being read.
+   *
+   * @return A seekable stream to read the plain text from.
+   * @throws IOException Thrown if the file is not in the segmented format or was tampered with.
+   */
+  public SeekableCipherInputStream getSeekableCipherInputStream(
+      FileChannel cipherChannel,
+      Entity entity)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    return mCipherHelper.getSeekableCipherInputStream(cipherChannel, entity);
+  }
+
+  /**
+   * Same as {@link #getCipherInputStream(InputStream, Entity)}, but decrypts segmented streams
+   * ahead of the reader on the executor. Other streams are decrypted on the calling thread.
+   *
+   * @param executor The executor to decrypt segments on, or null. It is not shut down by the
+   *     stream.
+   */
+  public InputStream getCipherInputStream(
+      InputStream cipherStream,
+      Entity entity,
+      ExecutorService executor)
+      throws IOException, CryptoInitializationException, KeyChainException {
     byte cryptoVersion = (byte) cipherStream.read();
     byte cipherID = (byte) cipherStream.read();
 
-    return mCipherHelper.getCipherInputStream(cipherStream, entity, cryptoVersion, cipherID);
+    return mCipherHelper.getCipherInputStream(
+        cipherStream,
+        entity,
+        cryptoVersion,
+        cipherID,
+        executor);
   }
 
   /**
    * A convenience method to encrypt data if the data to be processed is small and can
-   * be held in memory.
+   * be held in memory. The whole message is encrypted with a single call into the cipher
+   * engine, which makes this the cheapest way to encrypt small records.
    * @param plainTextBytes Bytes of the plain text.
    * @param entity Entity to process.
    * @return cipherText.
@@ -97,12 +410,7 @@ public class Crypto {
    */
   public byte[] encrypt(byte[] plainTextBytes, Entity entity)
     throws KeyChainException, CryptoInitializationException, IOException {
-    int cipheredBytesLength = plainTextBytes.length + mCipherHelper.getCipherMetaDataLength();
-    FixedSizeByteArrayOutputStream outputStream = new FixedSizeByteArrayOutputStream(cipheredBytesLength);
-    OutputStream cipherStream = mCipherHelper.getCipherOutputStream(outputStream, entity);
-    cipherStream.write(plainTextBytes);
-    cipherStream.close();
-    return outputStream.getBytes();
+    return mCipherHelper.encrypt(plainTextBytes, entity);
   }
 
   /**
@@ -117,27 +425,59 @@ public class Crypto {
    */
   public byte[] decrypt(byte[] cipherTextBytes, Entity entity)
     throws KeyChainException, CryptoInitializationException, IOException {
-    byte cryptoVersion = cipherTextBytes[0];
-    byte cipherID = cipherTextBytes[1];
-
-    int cipherTextLength = cipherTextBytes.length;
-    ByteArrayInputStream cipheredStream = new ByteArrayInputStream(cipherTextBytes, 2, cipherTextLength);
-    InputStream plainTextStream = mCipherHelper.getCipherInputStream(cipheredStream, entity, cryptoVersion, cipherID);
-
-    int plainTextLength = cipherTextLength - mCipherHelper.getCipherMetaDataLength();
-    FixedSizeByteArrayOutputStream output = new FixedSizeByteArrayOutputStream(plainTextLength);
-    byte[] buffer = new byte[1024];
-    int read;
-    while ((read = plainTextStream.read(buffer)) != -1) {
-      output.write(buffer, 0, read);
-    }
-    plainTextStream.close();
-    return output.getBytes();
+    return mCipherHelper.decrypt(cipherTextBytes, entity);
+  }
+
+  /**
+   * Encrypts the remaining bytes of a direct buffer into another direct buffer. With the native
+   * engine the data is not copied through the java heap, so buffers filled
+   * by channel reads can be encrypted and written back out to a channel directly.
+   * </p>
+   * The position of the plain text buffer is advanced to its limit and the position of the
+   * cipher text buffer is advanced past the written cipher text.
+   *
+   * @param plainText Direct buffer holding the plain text.
+   * @param cipherText Direct buffer to write the cipher text to. It must have at least
+   *     {@link #getCipherMetaDataLength()} more bytes remaining than the plain text.
+   * @param entity Entity to process.
+   * @throws IOException
+   * @throws CryptoInitializationException Thrown if the crypto libraries could not be initialized.
+   * @throws KeyChainException Thrown if there is trouble managing keys.
+   */
+  public void encrypt(ByteBuffer plainText, ByteBuffer cipherText, Entity entity)
+    throws KeyChainException, CryptoInitializationException, IOException {
+    mCipherHelper.encrypt(plainText, cipherText, entity);
+  }
+
+  /**
+   * Decrypts the remaining bytes of a direct buffer into another direct buffer without
+   * copying the data through the java heap. Plain text is written to the output buffer before
+   * the tag is verified, so it must be discarded if this method throws.
+   *
+   * @param cipherText Direct buffer holding the cipher text.
+   * @param plainText Direct buffer to write the plain text to. It must have at least
+   *     {@link #getCipherMetaDataLength()} fewer bytes remaining than the cipher text.
+   * @param entity Entity to process.
+   * @throws IOException
+   * @throws CryptoInitializationException Thrown if the crypto libraries could not be initialized.
+   * @throws KeyChainException Thrown if there is trouble managing keys.
+   */
+  public void decrypt(ByteBuffer cipherText, ByteBuffer plainText, Entity entity)
+    throws KeyChainException, CryptoInitializationException, IOException {
+    mCipherHelper.decrypt(cipherText, plainText, entity);
+  }
+
+  /**
+   * Gets the number of bytes that encryption adds to the plain text.
+   */
+  public int getCipherMetaDataLength() {
+    return mCipherHelper.getCipherMetaDataLength();
   }
 
   /**
    * Gives you an output stream wrapper that adds some data to the stream which
-   * can be used to ensure its integrity.
+   * can be used to ensure its integrity. The mac is computed with the algorithm of the mac
+   * engine, which is recorded in the header, so streams read back with either mac ID.
    *
    * @param stream The stream to which the data will be written
    * @param entity A unique object identifying what is being written.
@@ -149,15 +489,14 @@ public class Crypto {
    */
   public OutputStream getMacOutputStream(OutputStream stream, Entity entity)
       throws IOException, KeyChainException, CryptoInitializationException {
+    byte macID = mMacEngine.getMacId();
     stream.write(VersionCodes.MAC_SERIALIZATION_VERSION);
-    stream.write(VersionCodes.MAC_ID);
+    stream.write(macID);
 
-    NativeMac nativeMac = new NativeMac(mNativeCryptoLibrary);
-    byte[] macKey = mKeyChain.getMacKey();
-    nativeMac.init(macKey, macKey.length);
+    KeyedMac mac = mMacEngine.newMac(macID, mKeyChain.getMacKey());
     byte[] entityBytes = entity.getBytes();
-    computeMacAad(nativeMac, VersionCodes.CIPHER_SERALIZATION_VERSION, VersionCodes.CIPHER_ID, entityBytes);
-    return new NativeMacLayeredOutputStream(nativeMac, stream);
+    computeMacAad(mac, VersionCodes.MAC_SERIALIZATION_VERSION, macID, entityBytes);
+    return new NativeMacLayeredOutputStream(mac, stream);
   }
 
   /**
@@ -180,22 +519,88 @@ public class Crypto {
         "Unexpected mac version " + macVersion);
 
     byte macID = (byte) stream.read();
-    Assertions.checkArgumentForIO(macID == VersionCodes.MAC_ID,
+    Assertions.checkArgumentForIO(
+        macID == VersionCodes.MAC_ID || macID == VersionCodes.HMAC_SHA256_MAC_ID,
         "Unexpected mac ID " + macID);
 
-    NativeMac nativeMac = new NativeMac(mNativeCryptoLibrary);
-    byte[] macKey = mKeyChain.getMacKey();
-    nativeMac.init(macKey, macKey.length);
+    KeyedMac mac = mMacEngine.newMac(macID, mKeyChain.getMacKey());
 
     byte[] entityBytes = entity.getBytes();
-    computeMacAad(nativeMac, macVersion, VersionCodes.MAC_ID, entityBytes);
-    return new NativeMacLayeredInputStream(nativeMac, stream);
+    computeMacAad(mac, macVersion, macID, entityBytes);
+    return new NativeMacLayeredInputStream(mac, stream);
+  }
+
+  /**
+   * Derives a deterministic token from a value, such as the key of a record, so that encrypted
+   * records can be indexed by token and found without decrypting them. Equal values of the same
+   * entity always have equal tokens; without the mac key nothing else can be learned from them.
+   * </p>
+   * The token is a mac under a key derived from the mac key, so it never equals a mac written by
+   * {@link #getMacOutputStream}, and values of other entities have unrelated tokens.
+   *
+   * @param value The value to derive the token from.
+   * @param entity A unique object identifying the index the token is used in.
+   * @return the token, an HMAC-SHA1 of 20 bytes.
+   * @throws IOException
+   * @throws CryptoInitializationException Thrown if the crypto libraries could not be initialized.
+   * @throws KeyChainException Thrown if there is trouble managing keys.
+   */
+  public byte[] getSearchToken(byte[] value, Entity entity)
+      throws IOException, KeyChainException, CryptoInitializationException {
+    // Tokens stay HMAC-SHA1 whichever mac the engine writes, so that existing indexes keep
+    // matching.
+    KeyedMac keyMac = mMacEngine.newMac(VersionCodes.MAC_ID, mKeyChain.getMacKey());
+    byte[] searchKey = doFinal(keyMac, SEARCH_TOKEN_KEY_LABEL);
+
+    KeyedMac mac;
+    try {
+      mac = mMacEngine.newMac(VersionCodes.MAC_ID, searchKey);
+    } finally {
+      Arrays.fill(searchKey, (byte) 0);
+    }
+    byte[] entityBytes = entity.getBytes();
+    // The entity is length prefixed, so that its end can't be moved into the value.
+    byte[] header = {
+        VersionCodes.MAC_SERIALIZATION_VERSION,
+        VersionCodes.SEARCH_TOKEN_ID,
+        (byte) (entityBytes.length >>> 24),
+        (byte) (entityBytes.length >>> 16),
+        (byte) (entityBytes.length >>> 8),
+        (byte) entityBytes.length};
+    return doFinal(mac, header, entityBytes, value);
+  }
+
+  /**
+   * Adds the parts to the mac and returns it. The mac is destroyed either way.
+   */
+  private static byte[] doFinal(KeyedMac mac, byte[]... parts) throws IOException {
+    boolean updated = false;
+    try {
+      for (byte[] part : parts) {
+        mac.update(part, 0, part.length);
+      }
+      updated = true;
+    } finally {
+      if (!updated) {
+        // The mac can only be destroyed once it has been finalized.
+        try {
+          mac.doFinal();
+        } finally {
+          mac.destroy();
+        }
+      }
+    }
+    try {
+      return mac.doFinal();
+    } finally {
+      mac.destroy();
+    }
   }
 
   /**
    * Computes the authenticated data for the mac.
    */
-  private static void computeMacAad(NativeMac mac, byte macVersion, byte macID, byte[] entityBytes) throws IOException {
+  private static void computeMacAad(KeyedMac mac, byte macVersion, byte macID, byte[] entityBytes) throws IOException {
     byte[] cryptoVersionBytes = { macVersion };
     byte[] macIDBytes = { macID };
     mac.update(cryptoVersionBytes, 0, 1);
@@ -0,0 +1,511 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+import com.facebook.crypto.cipher.AuthenticatedCipher;
+import com.facebook.crypto.cipher.CipherEngine;
+import com.facebook.crypto.cipher.HybridCipherEngine;
+import com.facebook.crypto.cipher.JavaGCMCipherEngine;
+import com.facebook.crypto.cipher.NativeChaCha20Poly1305CipherEngine;
+import com.facebook.crypto.cipher.NativeGCMCipherEngine;
+import com.facebook.crypto.keychain.KeyChain;
+import com.facebook.crypto.mac.JavaMacEngine;
+import com.facebook.crypto.mac.KeyedMac;
+import com.facebook.crypto.mac.MacEngine;
+import com.facebook.crypto.mac.NativeMacEngine;
+import com.facebook.crypto.util.NativeCryptoLibrary;
+
+/**
+ * Creates {@link Crypto} objects backed by whichever engines are fastest on this device.
+ * </p>
+ * The first time it is needed, the factory times the native and the javax.crypto engines on
+ * small messages and on bulk data separately, since a JNI call has a high fixed cost while
+ * intrinsified JVM code may be slower or faster per byte depending on the hardware. The engines
+ * are warmed up first, then timed in turns several times, and the one with the lower median
+ * wins. One shot operations on small messages then go to the engine that won on small messages,
+ * and streams and larger messages to the one that won on bulk data. The result is cached in a
+ * file and reused until the device or runtime changes.
+ * </p>
+ * The calibration runs in the background. Until it is done, {@link #create(KeyChain)} returns
+ * objects backed by the native engines, or by the javax.crypto ones if the native library is not
+ * available. Engines that are not available are never picked, and all engines produce the same
+ * format, so objects created before and after the calibration read each other's data.
+ * ChaCha20-Poly1305 is not a candidate since it writes another format, which only the native
+ * library reads, but the created objects decrypt it when the native library is available.
+ * </p>
+ * This class is thread safe.
+ */
+public class CryptoFactory {
+
+  /* package */ static final String ENGINE_NATIVE = "native";
+  /* package */ static final String ENGINE_JAVA = "java";
+
+  /* package */ static final String KEY_FINGERPRINT = "fingerprint";
+  /* package */ static final String KEY_SMALL_MESSAGE_CIPHER = "cipher.small";
+  /* package */ static final String KEY_BULK_CIPHER = "cipher.bulk";
+  /* package */ static final String KEY_MAC = "mac";
+
+  // Change this when the calibration changes, so that results cached by older versions are
+  // measured again.
+  private static final int CALIBRATION_VERSION = 2;
+
+  // One shot operations on messages up to this length go to the small message engine.
+  private static final int SMALL_MESSAGE_THRESHOLD = 4 * 1024;
+
+  private static final int SMALL_MESSAGE_LENGTH = 64;
+  private static final int SMALL_MESSAGE_ITERATIONS = 100;
+  private static final int BULK_LENGTH = 64 * 1024;
+  private static final int BULK_ITERATIONS = 2;
+
+  // Each candidate runs for at least this long before it is timed, so that the JIT has compiled
+  // the java engines, within a bounded number of runs.
+  private static final long WARM_UP_NANOS = 100 * 1000 * 1000;
+  private static final int MAX_WARM_UP_RUNS = 200;
+  private static final int SAMPLES = 9;
+
+  private final NativeCryptoLibrary mNativeCryptoLibrary;
+  private final File mCacheFile;
+  private final Executor mCalibrationExecutor;
+
+  // The following fields are guarded by this.
+  private Properties mSelection;
+  private boolean mCalibrating;
+
+  /**
+   * @param nativeCryptoLibrary The native library, which may fail to load.
+   * @param cacheFile The file to cache the calibration in, e.g. in the application's files
+   *     directory, or null to calibrate every time a factory is created.
+   */
+  public CryptoFactory(NativeCryptoLibrary nativeCryptoLibrary, File cacheFile) {
+    this(nativeCryptoLibrary, cacheFile, null);
+  }
+
+  /**
+   * @param calibrationExecutor The executor to calibrate on, or null to start a thread for it.
+   */
+  public CryptoFactory(
+      NativeCryptoLibrary nativeCryptoLibrary,
+      File cacheFile,
+      Executor calibrationExecutor) {
+    mNativeCryptoLibrary = nativeCryptoLibrary;
+    mCacheFile = cacheFile;
+    mCalibrationExecutor = calibrationExecutor;
+  }
+
+  /**
+   * Creates a crypto object using the fastest available engines. Unless a matching calibration
+   * is cached, the first call starts calibrating the engines in the background and, like the
+   * calls made until it is done, returns an object backed by the default engines.
+   */
+  public Crypto create(KeyChain keyChain) {
+    Properties selection = getSelectionOrCalibrate();
+    CipherEngine smallMessageEngine =
+        newCipherEngine(selection.getProperty(KEY_SMALL_MESSAGE_CIPHER));
+    CipherEngine bulkEngine = newCipherEngine(selection.getProperty(KEY_BULK_CIPHER));
+    CipherEngine cipherEngine = smallMessageEngine.getClass() == bulkEngine.getClass() ?
+        bulkEngine :
+        new HybridCipherEngine(smallMessageEngine, bulkEngine, SMALL_MESSAGE_THRESHOLD);
+    return new Crypto(
+        keyChain,
+        cipherEngine,
+        newMacEngine(selection.getProperty(KEY_MAC)),
+        new NativeChaCha20Poly1305CipherEngine(mNativeCryptoLibrary));
+  }
+
+  /**
+   * Measures the engines again on the calling thread, ignoring and replacing any cached result.
+   * This takes around a second, and objects can be created meanwhile.
+   */
+  public void recalibrate() {
+    Properties selection = calibrate();
+    synchronized (this) {
+      mSelection = selection;
+      writeCache(selection);
+    }
+  }
+
+  /**
+   * Returns the calibration, calibrating on the calling thread or waiting for the background
+   * calibration if needed.
+   */
+  /* package */ Properties getSelection() {
+    synchronized (this) {
+      while (mCalibrating && mSelection == null) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      if (mSelection == null) {
+        mSelection = readMatchingCache();
+      }
+      if (mSelection != null) {
+        return mSelection;
+      }
+    }
+    recalibrate();
+    synchronized (this) {
+      return mSelection;
+    }
+  }
+
+  /**
+   * Returns the calibration if there is one, and otherwise starts it in the background and
+   * returns the defaults.
+   */
+  private synchronized Properties getSelectionOrCalibrate() {
+    if (mSelection == null) {
+      mSelection = readMatchingCache();
+    }
+    if (mSelection != null) {
+      return mSelection;
+    }
+    if (!mCalibrating) {
+      mCalibrating = true;
+      Runnable calibration = new Runnable() {
+        @Override
+        public void run() {
+          try {
+            recalibrate();
+          } finally {
+            synchronized (CryptoFactory.this) {
+              mCalibrating = false;
+              CryptoFactory.this.notifyAll();
+            }
+          }
+        }
+      };
+      if (mCalibrationExecutor != null) {
+        mCalibrationExecutor.execute(calibration);
+      } else {
+        Thread thread = new Thread(calibration, "CryptoFactory calibration");
+        thread.setDaemon(true);
+        thread.start();
+      }
+    }
+    String engine = isNativeAvailable() ? ENGINE_NATIVE : ENGINE_JAVA;
+    Properties defaults = new Properties();
+    defaults.setProperty(KEY_SMALL_MESSAGE_CIPHER, engine);
+    defaults.setProperty(KEY_BULK_CIPHER, engine);
+    defaults.setProperty(KEY_MAC, engine);
+    return defaults;
+  }
+
+  private Properties readMatchingCache() {
+    Properties cached = readCache();
+    if (cached != null && getFingerprint().equals(cached.getProperty(KEY_FINGERPRINT))) {
+      return cached;
+    }
+    return null;
+  }
+
+  private Properties calibrate() {
+    Properties selection = new Properties();
+    selection.setProperty(KEY_FINGERPRINT, getFingerprint());
+
+    CipherEngine nativeCipher = new NativeGCMCipherEngine(mNativeCryptoLibrary);
+    CipherEngine javaCipher = new JavaGCMCipherEngine();
+    selection.setProperty(
+        KEY_SMALL_MESSAGE_CIPHER,
+        pick(new SmallMessageBenchmark(nativeCipher), new SmallMessageBenchmark(javaCipher)));
+    selection.setProperty(
+        KEY_BULK_CIPHER,
+        pick(new BulkBenchmark(nativeCipher), new BulkBenchmark(javaCipher)));
+    selection.setProperty(
+        KEY_MAC,
+        pick(
+            new MacBenchmark(new NativeMacEngine(mNativeCryptoLibrary)),
+            new MacBenchmark(new JavaMacEngine())));
+    return selection;
+  }
+
+  private static String pick(Benchmark nativeBenchmark, Benchmark javaBenchmark) {
+    return pickFastest(nativeBenchmark, javaBenchmark) == 1 ? ENGINE_JAVA : ENGINE_NATIVE;
+  }
+
+  /**
+   * Warms the candidates up, then times each of them {@link #SAMPLES} times, taking turns in
+   * which one runs first so that none is always timed with the warmest caches.
+   *
+   * @return the index of the candidate with the lowest median time. Candidates which fail are
+   *     never picked. The first one is the default when all fail, so that errors surface as they
+   *     did before.
+   */
+  /* package */ static int pickFastest(Benchmark... candidates) {
+    int count = candidates.length;
+    boolean[] failed = new boolean[count];
+    long[] warmUpNanos = new long[count];
+    long[][] samples = new long[count][SAMPLES];
+
+    for (int run = 0; run < MAX_WARM_UP_RUNS; ++run) {
+      boolean warm = true;
+      for (int i = 0; i < count; ++i) {
+        if (!failed[i] && warmUpNanos[i] < WARM_UP_NANOS) {
+          warm = false;
+          try {
+            warmUpNanos[i] += candidates[i].run();
+          } catch (Throwable t) {
+            failed[i] = true;
+          }
+        }
+      }
+      if (warm) {
+        break;
+      }
+    }
+
+    for (int sample = 0; sample < SAMPLES; ++sample) {
+      for (int turn = 0; turn < count; ++turn) {
+        int i = (sample + turn) % count;
+        if (failed[i]) {
+          continue;
+        }
+        try {
+          samples[i][sample] = candidates[i].run();
+        } catch (Throwable t) {
+          failed[i] = true;
+        }
+      }
+    }
+
+    int fastest = 0;
+    long fastestMedian = Long.MAX_VALUE;
+    for (int i = 0; i < count; ++i) {
+      if (failed[i]) {
+        continue;
+      }
+      Arrays.sort(samples[i]);
+      long median = samples[i][SAMPLES / 2];
+      if (median < fastestMedian) {
+        fastest = i;
+        fastestMedian = median;
+      }
+    }
+    return fastest;
+  }
+
+  private CipherEngine newCipherEngine(String name) {
+    if (ENGINE_JAVA.equals(name)) {
+      return new JavaGCMCipherEngine();
+    }
+    return new NativeGCMCipherEngine(mNativeCryptoLibrary);
+  }
+
+  private MacEngine newMacEngine(String name) {
+    if (ENGINE_JAVA.equals(name)) {
+      return new JavaMacEngine();
+    }
+    return new NativeMacEngine(mNativeCryptoLibrary);
+  }
+
+  /**
+   * The calibration only holds for the same hardware, runtime and native library availability.
+   */
+  private String getFingerprint() {
+    return CALIBRATION_VERSION +
+        "/" + System.getProperty("os.arch") +
+        "/" + System.getProperty("java.vm.name") +
+        "/" + System.getProperty("java.vm.version") +
+        "/" + Runtime.getRuntime().availableProcessors() +
+        "/" + isNativeAvailable();
+  }
+
+  private boolean isNativeAvailable() {
+    try {
+      mNativeCryptoLibrary.ensureCryptoLoaded();
+      return true;
+    } catch (Throwable t) {
+      return false;
+    }
+  }
+
+  /**
+   * One timed run of an operation on an engine.
+   */
+  /* package */ interface Benchmark {
+
+    /**
+     * @return the nanoseconds taken.
+     * @throws Exception if the engine is not available or fails.
+     */
+    public long run() throws Exception;
+  }
+
+  /**
+   * Encrypts many small messages in one shot.
+   */
+  private static class SmallMessageBenchmark implements Benchmark {
+
+    private final CipherEngine mEngine;
+    private final byte[] mKey;
+    private final byte[] mIv;
+    private final byte[] mAad = new byte[10];
+    private final byte[] mData = new byte[SMALL_MESSAGE_LENGTH];
+    private final byte[] mOutput;
+
+    private SmallMessageBenchmark(CipherEngine engine) {
+      mEngine = engine;
+      mKey = new byte[engine.getKeyLength()];
+      mIv = new byte[engine.getIvLength()];
+      mOutput = new byte[SMALL_MESSAGE_LENGTH + engine.getTagLength()];
+    }
+
+    @Override
+    public long run() throws Exception {
+      mEngine.ensureAvailable();
+      long start = System.nanoTime();
+      for (int i = 0; i < SMALL_MESSAGE_ITERATIONS; ++i) {
+        // Use a new iv every time, as a real caller would.
+        nextIv(mIv);
+        mEngine.encrypt(mKey, mIv, mAad, mData, 0, mData.length, mOutput, 0);
+      }
+      return System.nanoTime() - start;
+    }
+  }
+
+  /**
+   * Encrypts bulk data through streaming ciphers.
+   */
+  private static class BulkBenchmark implements Benchmark {
+
+    private final CipherEngine mEngine;
+    private final byte[] mKey;
+    private final byte[] mIv;
+    private final byte[] mData = new byte[BULK_LENGTH];
+    private final byte[] mTag;
+
+    private BulkBenchmark(CipherEngine engine) {
+      mEngine = engine;
+      mKey = new byte[engine.getKeyLength()];
+      mIv = new byte[engine.getIvLength()];
+      mTag = new byte[engine.getTagLength()];
+    }
+
+    @Override
+    public long run() throws Exception {
+      mEngine.ensureAvailable();
+      long start = System.nanoTime();
+      for (int i = 0; i < BULK_ITERATIONS; ++i) {
+        nextIv(mIv);
+        AuthenticatedCipher cipher = mEngine.newEncryptCipher(mKey, mIv);
+        try {
+          cipher.update(mData, 0, mData.length, mData, 0);
+          cipher.encryptFinal(mTag, mTag.length);
+        } finally {
+          cipher.destroy();
+        }
+      }
+      return System.nanoTime() - start;
+    }
+  }
+
+  /**
+   * Computes macs over bulk data.
+   */
+  private static class MacBenchmark implements Benchmark {
+
+    private final MacEngine mEngine;
+    private final byte[] mKey = new byte[64];
+    private final byte[] mData = new byte[BULK_LENGTH];
+
+    private MacBenchmark(MacEngine engine) {
+      mEngine = engine;
+    }
+
+    @Override
+    public long run() throws Exception {
+      mEngine.ensureAvailable();
+      long start = System.nanoTime();
+      for (int i = 0; i < BULK_ITERATIONS; ++i) {
+        KeyedMac mac = mEngine.newMac(mKey);
+        try {
+          mac.update(mData, 0, mData.length);
+          mac.doFinal();
+        } finally {
+          mac.destroy();
+        }
+      }
+      return System.nanoTime() - start;
+    }
+  }
+
+  private static void nextIv(byte[] iv) {
+    for (int i = iv.length - 1; i >= 0; --i) {
+      if (++iv[i] != 0) {
+        return;
+      }
+    }
+  }
+
+  private Properties readCache() {
+    if (mCacheFile == null || !mCacheFile.exists()) {
+      return null;
+    }
+    InputStream in = null;
+    try {
+      in = new FileInputStream(mCacheFile);
+      Properties properties = new Properties();
+      properties.load(in);
+      return properties;
+    } catch (IOException e) {
+      return null;
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  private void writeCache(Properties selection) {
+    if (mCacheFile == null) {
+      return;
+    }
+    // Write to a temporary file first, so that a crash never leaves a truncated cache behind.
+    File tempFile = new File(mCacheFile.getPath() + ".tmp");
+    OutputStream out = null;
+    try {
+      out = new FileOutputStream(tempFile);
+      selection.store(out, null);
+      out.close();
+      out = null;
+      if (!tempFile.renameTo(mCacheFile)) {
+        tempFile.delete();
+      }
+    } catch (IOException e) {
+      // The calibration is simply repeated next time.
+      tempFile.delete();
+    } finally {
+      closeQuietly(out);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Nothing left to do.
+    }
+  }
+}
@@ -0,0 +1,548 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.facebook.crypto.exception.CryptoInitializationException;
+import com.facebook.crypto.exception.KeyChainException;
+
+/**
+ * A disk cache of encrypted values which is bounded in size and evicts the least recently used
+ * entries first.
+ * </p>
+ * Each value is a file in the format of {@link Crypto#getCipherOutputStream}, with its key as
+ * entity, so a value can't be served for another key. Values are written to a temporary file and
+ * renamed into place, so readers see either the whole old value or the whole new one. The file
+ * names include a version which is new for every write; a reader keeps reading the value it
+ * opened even when the key is written or evicted meanwhile.
+ * </p>
+ * Keys are spread over {@link #STRIPE_COUNT} stripes, each with its own lock and its own least
+ * recently used order, so readers and writers of different keys rarely wait on each other. When
+ * the cache grows beyond its maximum size, the least recently used entries are evicted, found
+ * by comparing the eldest entry of each stripe. The entries are recorded in a journal, which is
+ * replayed when the cache is opened; their order of use is not recorded, so after a restart the
+ * least recently written entries are evicted first.
+ * </p>
+ * Keys are stored in file names and in the journal as they are, so they must match
+ * {@code [a-z0-9_-]{1,64}}; hash keys which are secret.
+ */
+public class EncryptedDiskCache implements Closeable {
+
+  /* package */ static final int STRIPE_COUNT = 16;
+
+  private static final String JOURNAL_FILE = "journal";
+  private static final String JOURNAL_FILE_TEMP = "journal.tmp";
+  private static final String JOURNAL_MAGIC = "com.facebook.crypto.EncryptedDiskCache";
+  private static final String JOURNAL_VERSION = "1";
+  private static final String CLEAN = "CLEAN";
+  private static final String REMOVE = "REMOVE";
+  private static final String TEMP_SUFFIX = ".tmp";
+  // The journal is rewritten once it has this many redundant lines.
+  private static final int JOURNAL_REBUILD_THRESHOLD = 2000;
+
+  private static final Pattern KEY_PATTERN = Pattern.compile("[a-z0-9_-]{1,64}");
+  private static final Pattern FILE_PATTERN = Pattern.compile("[a-z0-9_-]{1,64}\\.\\d+(\\.tmp)?");
+
+  private final Crypto mCrypto;
+  private final File mDirectory;
+  private final long mMaxSize;
+  private final Stripe[] mStripes = new Stripe[STRIPE_COUNT];
+  private final AtomicLong mSize = new AtomicLong();
+  private final AtomicLong mNextVersion = new AtomicLong();
+  // Orders the uses of entries across stripes.
+  private final AtomicLong mClock = new AtomicLong();
+  private final AtomicLong mHitCount = new AtomicLong();
+  private final AtomicLong mMissCount = new AtomicLong();
+  private final AtomicLong mPutCount = new AtomicLong();
+  private final AtomicLong mEvictionCount = new AtomicLong();
+
+  // Guarded by mJournalLock, which is taken after any stripe lock.
+  private final Object mJournalLock = new Object();
+  private FileOutputStream mJournalStream;
+  private Writer mJournalWriter;
+  private int mRedundantJournalLines;
+  private boolean mClosed;
+
+  /**
+   * Opens the cache in the directory, creating it if needed.
+   *
+   * @param maxSize The number of bytes of encrypted values to keep.
+   */
+  public EncryptedDiskCache(Crypto crypto, File directory, long maxSize) throws IOException {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize <= 0");
+    }
+    mCrypto = crypto;
+    mDirectory = directory;
+    mMaxSize = maxSize;
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      mStripes[i] = new Stripe();
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    readJournal();
+    deleteUnknownFiles();
+    synchronized (mJournalLock) {
+      rebuildJournal();
+    }
+    trimToSize();
+  }
+
+  /**
+   * Writes the value of the key, replacing any previous one once it is complete.
+   */
+  public void put(String key, InputStream value)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    checkKey(key);
+    long version = mNextVersion.getAndIncrement();
+    File file = getFile(key, version);
+    File temp = new File(mDirectory, file.getName() + TEMP_SUFFIX);
+
+    boolean success = false;
+    try {
+      OutputStream fileStream = new FileOutputStream(temp);
+      try {
+        OutputStream cipherStream = mCrypto.getCipherOutputStream(fileStream, new Entity(key));
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = value.read(buffer)) != -1) {
+          cipherStream.write(buffer, 0, read);
+        }
+        cipherStream.close();
+      } finally {
+        fileStream.close();
+      }
+      if (!temp.renameTo(file)) {
+        throw new IOException("Could not rename " + temp + " to " + file);
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        temp.delete();
+        file.delete();
+      }
+    }
+
+    Entry entry = new Entry(key, version, file.length());
+    Stripe stripe = mStripes[getStripeIndex(key)];
+    synchronized (stripe) {
+      ensureOpen();
+      entry.mLastUse = mClock.incrementAndGet();
+      Entry previous = stripe.mEntries.put(key, entry);
+      mSize.addAndGet(entry.mLength);
+      if (previous != null) {
+        removeFile(previous);
+      }
+      journal(CLEAN + ' ' + key + ' ' + version + ' ' + entry.mLength, previous != null);
+    }
+    mPutCount.incrementAndGet();
+    trimToSize();
+    maybeRebuildJournal();
+  }
+
+  public void put(String key, byte[] value)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    put(key, new ByteArrayInputStream(value));
+  }
+
+  /**
+   * Returns a stream of the value of the key, or null if it is not cached. The value is only
+   * authentic once the stream has been read to its end without an IOException.
+   */
+  public InputStream get(String key)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    checkKey(key);
+    Entry entry;
+    Stripe stripe = mStripes[getStripeIndex(key)];
+    synchronized (stripe) {
+      ensureOpen();
+      entry = stripe.mEntries.get(key);
+      if (entry != null) {
+        entry.mLastUse = mClock.incrementAndGet();
+      }
+    }
+    InputStream fileStream = null;
+    if (entry != null) {
+      try {
+        fileStream = new FileInputStream(getFile(key, entry.mVersion));
+      } catch (FileNotFoundException e) {
+        // The entry was replaced or evicted since it was looked up.
+      }
+    }
+    if (fileStream == null) {
+      mMissCount.incrementAndGet();
+      return null;
+    }
+    mHitCount.incrementAndGet();
+    try {
+      return mCrypto.getCipherInputStream(fileStream, new Entity(key));
+    } catch (IOException e) {
+      fileStream.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return the value of the key, or null if it is not cached.
+   * @throws IOException if the value was tampered with.
+   */
+  public byte[] getBytes(String key)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    InputStream cipherStream = get(key);
+    if (cipherStream == null) {
+      return null;
+    }
+    try {
+      ByteArrayOutputStream value = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = cipherStream.read(buffer)) != -1) {
+        value.write(buffer, 0, read);
+      }
+      return value.toByteArray();
+    } finally {
+      cipherStream.close();
+    }
+  }
+
+  /**
+   * @return whether the key was cached.
+   */
+  public boolean remove(String key) throws IOException {
+    checkKey(key);
+    Stripe stripe = mStripes[getStripeIndex(key)];
+    synchronized (stripe) {
+      ensureOpen();
+      Entry entry = stripe.mEntries.remove(key);
+      if (entry == null) {
+        return false;
+      }
+      removeFile(entry);
+      journal(REMOVE + ' ' + key, true);
+    }
+    maybeRebuildJournal();
+    return true;
+  }
+
+  /**
+   * @return the number of bytes of encrypted values in the cache.
+   */
+  public long size() {
+    return mSize.get();
+  }
+
+  public long getMaxSize() {
+    return mMaxSize;
+  }
+
+  public long getHitCount() {
+    return mHitCount.get();
+  }
+
+  public long getMissCount() {
+    return mMissCount.get();
+  }
+
+  public long getPutCount() {
+    return mPutCount.get();
+  }
+
+  public long getEvictionCount() {
+    return mEvictionCount.get();
+  }
+
+  /**
+   * Forces the journal to disk.
+   */
+  public void flush() throws IOException {
+    synchronized (mJournalLock) {
+      ensureJournalOpen();
+      mJournalWriter.flush();
+      mJournalStream.getFD().sync();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (mJournalLock) {
+      if (mClosed) {
+        return;
+      }
+      mClosed = true;
+      mJournalWriter.close();
+    }
+  }
+
+  /**
+   * Evicts the least recently used entry of all stripes until the cache fits. Only the eldest
+   * entry of each stripe needs to be compared, one stripe lock at a time.
+   */
+  private void trimToSize() throws IOException {
+    while (mSize.get() > mMaxSize) {
+      Stripe eldestStripe = null;
+      long eldestUse = Long.MAX_VALUE;
+      for (Stripe stripe : mStripes) {
+        synchronized (stripe) {
+          Iterator<Entry> entries = stripe.mEntries.values().iterator();
+          if (entries.hasNext()) {
+            Entry eldest = entries.next();
+            if (eldest.mLastUse < eldestUse) {
+              eldestStripe = stripe;
+              eldestUse = eldest.mLastUse;
+            }
+          }
+        }
+      }
+      if (eldestStripe == null) {
+        return;
+      }
+      synchronized (eldestStripe) {
+        Iterator<Entry> entries = eldestStripe.mEntries.values().iterator();
+        // The stripe may have changed since it was looked at, but its eldest entry is still old.
+        if (entries.hasNext()) {
+          Entry eldest = entries.next();
+          entries.remove();
+          removeFile(eldest);
+          journal(REMOVE + ' ' + eldest.mKey, true);
+          mEvictionCount.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  private void removeFile(Entry entry) throws IOException {
+    mSize.addAndGet(-entry.mLength);
+    File file = getFile(entry.mKey, entry.mVersion);
+    if (!file.delete() && file.exists()) {
+      throw new IOException("Could not delete " + file);
+    }
+  }
+
+  private void journal(String line, boolean redundant) throws IOException {
+    synchronized (mJournalLock) {
+      ensureJournalOpen();
+      mJournalWriter.write(line);
+      mJournalWriter.write('\n');
+      mJournalWriter.flush();
+      if (redundant) {
+        mRedundantJournalLines++;
+      }
+    }
+  }
+
+  private void maybeRebuildJournal() throws IOException {
+    synchronized (mJournalLock) {
+      if (mRedundantJournalLines < JOURNAL_REBUILD_THRESHOLD) {
+        return;
+      }
+    }
+    lockStripesAndRebuild(0);
+  }
+
+  // Takes the stripe locks in order, so that the journal sees no change while it is rewritten.
+  private void lockStripesAndRebuild(int stripe) throws IOException {
+    if (stripe == STRIPE_COUNT) {
+      synchronized (mJournalLock) {
+        if (!mClosed && mRedundantJournalLines >= JOURNAL_REBUILD_THRESHOLD) {
+          rebuildJournal();
+        }
+      }
+      return;
+    }
+    synchronized (mStripes[stripe]) {
+      lockStripesAndRebuild(stripe + 1);
+    }
+  }
+
+  /**
+   * Writes the current entries to a new journal and replaces the old one with it.
+   */
+  private void rebuildJournal() throws IOException {
+    if (mJournalWriter != null) {
+      mJournalWriter.close();
+    }
+    File temp = new File(mDirectory, JOURNAL_FILE_TEMP);
+    Writer writer = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(temp), "US-ASCII"));
+    try {
+      writer.write(JOURNAL_MAGIC + '\n' + JOURNAL_VERSION + '\n');
+      for (Stripe stripe : mStripes) {
+        for (Entry entry : stripe.mEntries.values()) {
+          writer.write(CLEAN + ' ' + entry.mKey + ' ' + entry.mVersion + ' ' + entry.mLength + '\n');
+        }
+      }
+    } finally {
+      writer.close();
+    }
+    File journal = new File(mDirectory, JOURNAL_FILE);
+    if (!temp.renameTo(journal)) {
+      throw new IOException("Could not rename " + temp + " to " + journal);
+    }
+    mJournalStream = new FileOutputStream(journal, true);
+    mJournalWriter = new BufferedWriter(new OutputStreamWriter(mJournalStream, "US-ASCII"));
+    mRedundantJournalLines = 0;
+  }
+
+  /**
+   * Replays the journal into the stripes. Entries whose files are missing or have the wrong
+   * length are dropped, which covers writes whose journal line was lost.
+   */
+  private void readJournal() throws IOException {
+    File journal = new File(mDirectory, JOURNAL_FILE);
+    if (!journal.exists()) {
+      return;
+    }
+    LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(journal), "US-ASCII"));
+    try {
+      if (!JOURNAL_MAGIC.equals(reader.readLine()) ||
+          !JOURNAL_VERSION.equals(reader.readLine())) {
+        // An unknown journal; its files are deleted as unknown files.
+        return;
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.split(" ");
+        try {
+          if (parts.length == 4 && CLEAN.equals(parts[0])) {
+            Entry entry = new Entry(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+            // Moves the key to the end of the order.
+            entries.remove(entry.mKey);
+            entries.put(entry.mKey, entry);
+          } else if (parts.length == 2 && REMOVE.equals(parts[0])) {
+            entries.remove(parts[1]);
+          }
+          // Anything else is a line torn by a crash.
+        } catch (NumberFormatException e) {
+          // A torn line.
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    long nextVersion = 0;
+    for (Entry entry : entries.values()) {
+      if (!KEY_PATTERN.matcher(entry.mKey).matches() ||
+          getFile(entry.mKey, entry.mVersion).length() != entry.mLength) {
+        continue;
+      }
+      Stripe stripe = mStripes[getStripeIndex(entry.mKey)];
+      entry.mLastUse = mClock.incrementAndGet();
+      stripe.mEntries.put(entry.mKey, entry);
+      mSize.addAndGet(entry.mLength);
+      nextVersion = Math.max(nextVersion, entry.mVersion + 1);
+    }
+    mNextVersion.set(nextVersion);
+  }
+
+  /**
+   * Deletes temporary files and files of entries which are not in the cache.
+   */
+  private void deleteUnknownFiles() {
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      if (!FILE_PATTERN.matcher(name).matches()) {
+        continue;
+      }
+      int dot = name.indexOf('.');
+      String key = name.substring(0, dot);
+      Entry entry = mStripes[getStripeIndex(key)].mEntries.get(key);
+      if (entry == null || !name.equals(getFile(key, entry.mVersion).getName())) {
+        file.delete();
+        // Keeps versions unique, so that a new file never replaces an old one being read.
+        String version = name.substring(dot + 1).replace(TEMP_SUFFIX, "");
+        try {
+          mNextVersion.set(Math.max(mNextVersion.get(), Long.parseLong(version) + 1));
+        } catch (NumberFormatException e) {
+          // Too long to be one of ours.
+        }
+      }
+    }
+  }
+
+  private File getFile(String key, long version) {
+    return new File(mDirectory, key + '.' + version);
+  }
+
+  private void ensureJournalOpen() throws IOException {
+    if (mClosed) {
+      throw new IOException("The cache is closed");
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    synchronized (mJournalLock) {
+      ensureJournalOpen();
+    }
+  }
+
+  /* package */ static int getStripeIndex(String key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+    return (hash & 0x7fffffff) % STRIPE_COUNT;
+  }
+
+  private static void checkKey(String key) {
+    if (!KEY_PATTERN.matcher(key).matches()) {
+      throw new IllegalArgumentException("Keys must match [a-z0-9_-]{1,64}: " + key);
+    }
+  }
+
+  /**
+   * The keys of a stripe in least recently used order. Guarded by the stripe itself.
+   */
+  private static class Stripe {
+
+    private final LinkedHashMap<String, Entry> mEntries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  }
+
+  private static class Entry {
+
+    private final String mKey;
+    private final long mVersion;
+    private final long mLength;
+    // Guarded by the entry's stripe.
+    private long mLastUse;
+
+    private Entry(String key, long version, long length) {
+      mKey = key;
+      mVersion = version;
+      mLength = length;
+    }
+  }
+}
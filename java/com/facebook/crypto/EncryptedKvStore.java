@@ -0,0 +1,636 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+
+import com.facebook.crypto.exception.CryptoInitializationException;
+import com.facebook.crypto.exception.KeyChainException;
+import com.facebook.crypto.util.Assertions;
+
+/**
+ * An embedded key value store which keeps many small encrypted values in a few append-only
+ * segment files, instead of one file per value.
+ * <pre>
+ * entry: [key length, 4 bytes][value length, 4 bytes][encrypted key][encrypted value]
+ * </pre>
+ * The encrypted key is a type byte (put or delete) followed by the UTF-8 key, encrypted with an
+ * entity named after the store. The value is encrypted with an entity made of the store name
+ * and the key, so a value only decrypts under its own key, and deletes have no value. Both are in
+ * the format of {@link Crypto#encrypt(byte[], Entity)}.
+ * </p>
+ * An in-memory hash index maps every key to the location of its latest value. It is rebuilt
+ * when the store is opened, by decrypting the keys of all entries. Once more than half of the
+ * bytes on disk belong to overwritten or deleted values, the oldest segments are compacted in
+ * the background: live entries are copied to the active segment as they are, without being
+ * decrypted, and the old segment is deleted. Reads and writes go on while the entries are copied.
+ * A failed background compaction is reported by the next {@link #sync()} or {@link #close()}.
+ * </p>
+ * Writes go to the file system when they are made; call {@link #sync()} to make them durable.
+ * An entry which was only partly written before a crash is truncated on open. This class is
+ * thread safe.
+ */
+public class EncryptedKvStore implements Closeable {
+
+  /**
+   * Receives the entries of a scan.
+   */
+  public interface ScanHandler {
+
+    public void onEntry(String key, byte[] value) throws IOException;
+  }
+
+  /* package */ static final long DEFAULT_SEGMENT_LENGTH = 4 * 1024 * 1024;
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".kv";
+  private static final byte TYPE_PUT = 1;
+  private static final byte TYPE_DELETE = 2;
+  private static final int ENTRY_HEADER_LENGTH = 8;
+  // Guards against lengths read from a damaged file.
+  private static final int MAX_ENTRY_LENGTH = 64 * 1024 * 1024;
+  // How much a compaction copies each time it takes the lock.
+  private static final int COMPACTION_BATCH_LENGTH = 64 * 1024;
+
+  private final Crypto mCrypto;
+  private final File mDirectory;
+  private final String mName;
+  private final Entity mKeyEntity;
+  private final Executor mCompactionExecutor;
+  private final long mSegmentLength;
+
+  // The following fields are guarded by this.
+  private final Map<String, Location> mIndex = new HashMap<String, Location>();
+  private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+  private Segment mActiveSegment;
+  private long mLiveLength;
+  private boolean mCompacting;
+  private boolean mClosed;
+  // The error of the last background compaction, until it is reported.
+  private IOException mCompactionFailure;
+
+  /**
+   * Opens the store in the directory, creating it if needed. Compactions run on a thread of
+   * their own.
+   *
+   * @param name A name identifying the store, which all its keys and values are bound to. It
+   *     must not contain a NUL character.
+   */
+  public EncryptedKvStore(Crypto crypto, File directory, String name)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    this(crypto, directory, name, null, DEFAULT_SEGMENT_LENGTH);
+  }
+
+  /**
+   * @param compactionExecutor The executor to compact segments on, or null to start a thread
+   *     for each compaction.
+   */
+  public EncryptedKvStore(
+      Crypto crypto,
+      File directory,
+      String name,
+      Executor compactionExecutor)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    this(crypto, directory, name, compactionExecutor, DEFAULT_SEGMENT_LENGTH);
+  }
+
+  /* package */ EncryptedKvStore(
+      Crypto crypto,
+      File directory,
+      String name,
+      Executor compactionExecutor,
+      long segmentLength)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    // Values are bound to the name and key joined by a NUL, see getValueEntity.
+    Assertions.checkArgument(name.indexOf('\u0000') < 0, "Store name must not contain NUL");
+    mCrypto = crypto;
+    mDirectory = directory;
+    mName = name;
+    mKeyEntity = new Entity(name);
+    mCompactionExecutor = compactionExecutor;
+    mSegmentLength = segmentLength;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    recover();
+  }
+
+  public void put(String key, byte[] value)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    byte[] keyCipherText = mCrypto.encrypt(encodeKey(TYPE_PUT, key), mKeyEntity);
+    byte[] valueCipherText = mCrypto.encrypt(value, getValueEntity(key));
+    synchronized (this) {
+      ensureOpen();
+      Location location = append(keyCipherText, valueCipherText);
+      Location previous = mIndex.put(key, location);
+      mLiveLength += location.mLength - (previous == null ? 0 : previous.mLength);
+      maybeCompact();
+    }
+  }
+
+  /**
+   * @return the value of the key, or null if it has none.
+   * @throws IOException if the value was tampered with.
+   */
+  public byte[] get(String key)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    byte[] valueCipherText;
+    synchronized (this) {
+      ensureOpen();
+      Location location = mIndex.get(key);
+      if (location == null) {
+        return null;
+      }
+      valueCipherText = new byte[location.mValueLength];
+      readFully(
+          location.mSegment.mChannel,
+          ByteBuffer.wrap(valueCipherText),
+          location.mOffset + location.mLength - location.mValueLength);
+    }
+    return mCrypto.decrypt(valueCipherText, getValueEntity(key));
+  }
+
+  /**
+   * @return whether the key had a value.
+   */
+  public boolean delete(String key)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    synchronized (this) {
+      ensureOpen();
+      if (!mIndex.containsKey(key)) {
+        return false;
+      }
+    }
+    byte[] keyCipherText = mCrypto.encrypt(encodeKey(TYPE_DELETE, key), mKeyEntity);
+    synchronized (this) {
+      ensureOpen();
+      append(keyCipherText, new byte[0]);
+      Location previous = mIndex.remove(key);
+      if (previous != null) {
+        mLiveLength -= previous.mLength;
+      }
+      maybeCompact();
+      return previous != null;
+    }
+  }
+
+  public synchronized boolean contains(String key) {
+    return mIndex.containsKey(key);
+  }
+
+  public synchronized int size() {
+    return mIndex.size();
+  }
+
+  /**
+   * Hands the entries whose keys start with the prefix to the handler, in key order. Entries
+   * changed during the scan may or may not be seen.
+   */
+  public void scan(String prefix, ScanHandler handler)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    TreeSet<String> keys;
+    synchronized (this) {
+      ensureOpen();
+      keys = new TreeSet<String>();
+      for (String key : mIndex.keySet()) {
+        if (key.startsWith(prefix)) {
+          keys.add(key);
+        }
+      }
+    }
+    for (String key : keys) {
+      byte[] value = get(key);
+      if (value != null) {
+        handler.onEntry(key, value);
+      }
+    }
+  }
+
+  /**
+   * Forces the writes made so far to disk.
+   *
+   * @throws IOException also if a background compaction failed since the last sync. The store
+   *     stays usable and its data intact, but the failure may keep the disk from being reclaimed.
+   */
+  public synchronized void sync() throws IOException {
+    ensureOpen();
+    mActiveSegment.mChannel.force(false);
+    reportCompactionFailure();
+  }
+
+  /**
+   * Compacts all segments but the active one, oldest first.
+   */
+  public void compact() throws IOException {
+    synchronized (this) {
+      while (mCompacting) {
+        waitForCompaction();
+      }
+      ensureOpen();
+      mCompacting = true;
+    }
+    try {
+      runCompaction();
+    } finally {
+      synchronized (this) {
+        mCompacting = false;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Waits for a compaction in progress and closes the segment files.
+   *
+   * @throws IOException also if a background compaction failed and was not reported by
+   *     {@link #sync()}.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+    while (mCompacting) {
+      waitForCompaction();
+    }
+    mClosed = true;
+    try {
+      mActiveSegment.mChannel.force(false);
+    } finally {
+      for (Segment segment : mSegments.values()) {
+        segment.mFile.close();
+      }
+    }
+    reportCompactionFailure();
+  }
+
+  /**
+   * @return the number of bytes in the segment files.
+   */
+  /* package */ synchronized long getDiskLength() {
+    long length = 0;
+    for (Segment segment : mSegments.values()) {
+      length += segment.mLength;
+    }
+    return length;
+  }
+
+  /* package */ synchronized int getSegmentCount() {
+    return mSegments.size();
+  }
+
+  private void runCompaction() throws IOException {
+    int end;
+    synchronized (this) {
+      end = mActiveSegment.mNumber;
+    }
+    // Segments filled by the copies are left for the next compaction.
+    while (true) {
+      Segment segment;
+      synchronized (this) {
+        if (mClosed || mSegments.firstKey() >= end) {
+          return;
+        }
+        segment = mSegments.firstEntry().getValue();
+      }
+      compactSegment(segment);
+    }
+  }
+
+  /**
+   * Moves the live entries of the oldest segment to the active segment and deletes it. Deletes
+   * are dropped, since no older segment is left whose values they could hide.
+   * </p>
+   * The segment is no longer written to, so its entries are read without holding the lock. The
+   * lock is only taken to append the copies of entries which have not changed meanwhile, and to
+   * retire the segment.
+   */
+  private void compactSegment(Segment segment) throws IOException {
+    List<String> keys = new ArrayList<String>();
+    List<Location> locations = new ArrayList<Location>();
+    synchronized (this) {
+      for (Map.Entry<String, Location> entry : mIndex.entrySet()) {
+        if (entry.getValue().mSegment == segment) {
+          keys.add(entry.getKey());
+          locations.add(entry.getValue());
+        }
+      }
+    }
+
+    int next = 0;
+    while (next < keys.size()) {
+      int first = next;
+      int batchLength = 0;
+      List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+      while (next < keys.size() && batchLength < COMPACTION_BATCH_LENGTH) {
+        Location location = locations.get(next++);
+        ByteBuffer bytes = ByteBuffer.allocate(location.mLength);
+        readFully(segment.mChannel, bytes, location.mOffset);
+        bytes.flip();
+        batch.add(bytes);
+        batchLength += location.mLength;
+      }
+      synchronized (this) {
+        for (int i = 0; i < batch.size(); i++) {
+          String key = keys.get(first + i);
+          Location location = locations.get(first + i);
+          // A key put or deleted since the snapshot already has a newer entry.
+          if (mIndex.get(key) == location) {
+            mIndex.put(key, appendEntry(batch.get(i), location.mValueLength));
+          }
+        }
+      }
+    }
+
+    // The copies must be durable before the originals are gone. Segments filled by them were
+    // forced when the next one was opened.
+    Segment activeSegment;
+    synchronized (this) {
+      activeSegment = mActiveSegment;
+    }
+    activeSegment.mChannel.force(false);
+
+    synchronized (this) {
+      segment.mFile.close();
+      File file = getSegmentFile(segment.mNumber);
+      // Until its file is gone the segment stays registered, so that the deletes in later
+      // segments are kept by their compactions and recovery.
+      if (!deleteSegmentFile(file) && file.exists()) {
+        throw new IOException("Could not delete segment " + segment.mNumber);
+      }
+      mSegments.remove(segment.mNumber);
+    }
+  }
+
+  /**
+   * Deletes the file of a compacted segment. Tests override this to simulate failures.
+   */
+  /* package */ boolean deleteSegmentFile(File file) {
+    return file.delete();
+  }
+
+  private void maybeCompact() {
+    long deadLength = getDiskLength() - mLiveLength;
+    if (mCompacting ||
+        mSegments.size() < 2 ||
+        deadLength <= mLiveLength ||
+        deadLength < mSegmentLength) {
+      return;
+    }
+    mCompacting = true;
+    Runnable compaction = new Runnable() {
+      @Override
+      public void run() {
+        IOException failure = null;
+        try {
+          runCompaction();
+        } catch (IOException e) {
+          failure = e;
+        } finally {
+          synchronized (EncryptedKvStore.this) {
+            // Reported by the next sync or close. Compaction is tried again after later writes.
+            if (failure != null) {
+              mCompactionFailure = failure;
+            }
+            mCompacting = false;
+            EncryptedKvStore.this.notifyAll();
+          }
+        }
+      }
+    };
+    if (mCompactionExecutor != null) {
+      mCompactionExecutor.execute(compaction);
+    } else {
+      Thread thread = new Thread(compaction, "EncryptedKvStore compaction");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  private Location append(byte[] keyCipherText, byte[] valueCipherText) throws IOException {
+    ByteBuffer entry = ByteBuffer.allocate(
+        ENTRY_HEADER_LENGTH + keyCipherText.length + valueCipherText.length);
+    entry.putInt(keyCipherText.length);
+    entry.putInt(valueCipherText.length);
+    entry.put(keyCipherText);
+    entry.put(valueCipherText);
+    entry.flip();
+    return appendEntry(entry, valueCipherText.length);
+  }
+
+  private Location appendEntry(ByteBuffer entry, int valueLength) throws IOException {
+    if (mActiveSegment.mLength >= mSegmentLength) {
+      mActiveSegment.mChannel.force(false);
+      mActiveSegment = openSegment(mActiveSegment.mNumber + 1);
+    }
+    Segment segment = mActiveSegment;
+    Location location = new Location(segment, segment.mLength, entry.remaining(), valueLength);
+    while (entry.hasRemaining()) {
+      segment.mChannel.write(entry, segment.mLength + entry.position());
+    }
+    segment.mLength += location.mLength;
+    return location;
+  }
+
+  /**
+   * Rebuilds the index from the segments, oldest first.
+   */
+  private void recover() throws IOException, CryptoInitializationException, KeyChainException {
+    TreeSet<Integer> numbers = new TreeSet<Integer>();
+    File[] files = mDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String fileName = file.getName();
+        if (fileName.startsWith(SEGMENT_PREFIX) && fileName.endsWith(SEGMENT_SUFFIX)) {
+          try {
+            numbers.add(Integer.parseInt(fileName.substring(
+                SEGMENT_PREFIX.length(),
+                fileName.length() - SEGMENT_SUFFIX.length())));
+          } catch (NumberFormatException e) {
+            // Not a segment.
+          }
+        }
+      }
+    }
+    if (numbers.isEmpty()) {
+      numbers.add(0);
+    }
+
+    boolean success = false;
+    try {
+      for (Iterator<Integer> i = numbers.iterator(); i.hasNext(); ) {
+        int number = i.next();
+        Segment segment = openSegment(number);
+        recoverSegment(segment, !i.hasNext());
+        mActiveSegment = segment;
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        for (Segment segment : mSegments.values()) {
+          segment.mFile.close();
+        }
+      }
+    }
+  }
+
+  private void recoverSegment(Segment segment, boolean last)
+      throws IOException, CryptoInitializationException, KeyChainException {
+    long size = segment.mChannel.size();
+    ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER_LENGTH);
+    long offset = 0;
+    while (offset < size) {
+      if (offset + ENTRY_HEADER_LENGTH > size) {
+        break;
+      }
+      header.clear();
+      readFully(segment.mChannel, header, offset);
+      int keyLength = header.getInt(0);
+      int valueLength = header.getInt(4);
+      if (keyLength <= 0 || keyLength > MAX_ENTRY_LENGTH ||
+          valueLength < 0 || valueLength > MAX_ENTRY_LENGTH) {
+        throw new IOException("Corrupt entry in segment " + segment.mNumber + " at " + offset);
+      }
+      int length = ENTRY_HEADER_LENGTH + keyLength + valueLength;
+      if (offset + length > size) {
+        break;
+      }
+      byte[] keyCipherText = new byte[keyLength];
+      readFully(segment.mChannel, ByteBuffer.wrap(keyCipherText), offset + ENTRY_HEADER_LENGTH);
+      byte[] encodedKey = mCrypto.decrypt(keyCipherText, mKeyEntity);
+      String key = new String(encodedKey, 1, encodedKey.length - 1, "UTF-8");
+
+      Location previous;
+      if (encodedKey[0] == TYPE_PUT) {
+        Location location = new Location(segment, offset, length, valueLength);
+        previous = mIndex.put(key, location);
+        mLiveLength += length;
+      } else if (encodedKey[0] == TYPE_DELETE) {
+        previous = mIndex.remove(key);
+      } else {
+        throw new IOException("Unexpected entry type " + encodedKey[0]);
+      }
+      if (previous != null) {
+        mLiveLength -= previous.mLength;
+      }
+      offset += length;
+    }
+
+    if (offset < size) {
+      if (!last) {
+        throw new IOException("Truncated segment " + segment.mNumber);
+      }
+      segment.mChannel.truncate(offset);
+    }
+    segment.mLength = offset;
+  }
+
+  private Segment openSegment(int number) throws IOException {
+    Segment segment = new Segment(number, new RandomAccessFile(getSegmentFile(number), "rw"));
+    mSegments.put(number, segment);
+    return segment;
+  }
+
+  private File getSegmentFile(int number) {
+    return new File(mDirectory, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+  }
+
+  private Entity getValueEntity(String key) {
+    // The name can't contain a NUL, so the key can't be confused with part of the name.
+    return new Entity(mName + '\u0000' + key);
+  }
+
+  private static byte[] encodeKey(byte type, String key) throws IOException {
+    byte[] keyBytes = key.getBytes("UTF-8");
+    byte[] encodedKey = new byte[keyBytes.length + 1];
+    encodedKey[0] = type;
+    System.arraycopy(keyBytes, 0, encodedKey, 1, keyBytes.length);
+    return encodedKey;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long offset)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) == -1) {
+        throw new IOException("Unexpected end of segment at " + (offset + buffer.position()));
+      }
+    }
+  }
+
+  private void waitForCompaction() throws IOException {
+    try {
+      wait();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for compaction");
+    }
+  }
+
+  private void reportCompactionFailure() throws IOException {
+    IOException failure = mCompactionFailure;
+    if (failure != null) {
+      mCompactionFailure = null;
+      throw new IOException("Compaction failed", failure);
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (mClosed) {
+      throw new IOException("The store is closed");
+    }
+  }
+
+  private static class Segment {
+
+    private final int mNumber;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private long mLength;
+
+    private Segment(int number, RandomAccessFile file) {
+      mNumber = number;
+      mFile = file;
+      mChannel = file.getChannel();
+    }
+  }
+
+  /**
+   * The location of an entry whose value is at its end.
+   */
+  private static class Location {
+
+    private final Segment mSegment;
+    private final long mOffset;
+    private final int mLength;
+    private final int mValueLength;
+
+    private Location(Segment segment, long offset, int length, int valueLength) {
+      mSegment = segment;
+      mOffset = offset;
+      mLength = length;
+      mValueLength = valueLength;
+    }
+  }
+}
@@ -0,0 +1,425 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import com.facebook.crypto.cipher.CipherEngine;
+import com.facebook.crypto.exception.CryptoInitializationException;
+
+/**
+ * An append-only file of small records which are encrypted and authenticated independently.
+ * <pre>
+ * file:    [crypto version][cipher ID] entry*
+ * entry:   [type][length, 4 bytes big endian][payload]
+ * session: type 0, payload is the iv of the records that follow
+ * record:  type 1, payload is the cipher text followed by the tag
+ * </pre>
+ * Each time the log is opened for writing a session entry with a new iv is written, and the
+ * nonce of a record is that iv with the index of the record in the log xored into its last 8
+ * bytes. The authenticated data of a record is that of {@link CipherHelper} followed by the
+ * index, so records can't be reordered or removed from the middle of the log. Trailing records
+ * can be removed without being detected, as with any log. A record costs 21 bytes over its
+ * length, and no iv.
+ * </p>
+ * Concurrent appends are committed in groups: records are encrypted on the calling threads, and
+ * whichever thread finds the log idle writes all records that are ready with one gathering write
+ * and one fsync, while the others wait for it. {@link #append(byte[])} returns once its record is
+ * durable.
+ * </p>
+ * When a log is opened, an entry which was only partly written before a crash is truncated.
+ * This class is thread safe.
+ */
+public class EncryptedRecordLog implements Closeable {
+
+  /**
+   * Receives the records of a replay in order.
+   */
+  public interface RecordHandler {
+
+    public void onRecord(long index, byte[] record) throws IOException;
+  }
+
+  /* package */ static final int FILE_HEADER_LENGTH = 2;
+  private static final byte ENTRY_SESSION = 0;
+  private static final byte ENTRY_RECORD = 1;
+  private static final int ENTRY_HEADER_LENGTH = 5;
+  // Guards against lengths read from a damaged file.
+  private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+  private static final int INDEX_LENGTH = 8;
+
+  private final RandomAccessFile mFile;
+  private final FileChannel mChannel;
+  private final CipherEngine mEngine;
+  private final byte[] mKey;
+  private final byte[] mAadPrefix;
+  private final byte[] mSessionIv;
+
+  private final Object mLock = new Object();
+  // The following fields are guarded by mLock.
+  // Encrypted records waiting to be written, by index.
+  private final TreeMap<Long, ByteBuffer> mPending = new TreeMap<Long, ByteBuffer>();
+  private long mNextIndex;
+  // The index of the next record to be written.
+  private long mWriteIndex;
+  // Records before this index are durable.
+  private long mCommittedIndex;
+  private long mCommittedLength;
+  private int mInFlight;
+  private boolean mCommitting;
+  private boolean mSessionWritten;
+  private IOException mFailure;
+  private boolean mClosed;
+
+  /**
+   * Opens a log whose file header has been written, and recovers its state.
+   */
+  /* package */ EncryptedRecordLog(
+      RandomAccessFile file,
+      CipherEngine engine,
+      byte cryptoVersion,
+      byte cipherID,
+      byte[] key,
+      byte[] entityBytes,
+      byte[] sessionIv) throws IOException {
+    mFile = file;
+    mChannel = file.getChannel();
+    mEngine = engine;
+    mKey = key;
+    mAadPrefix = CipherHelper.computeCipherAad(cryptoVersion, cipherID, entityBytes);
+    mSessionIv = sessionIv;
+    recover();
+  }
+
+  /**
+   * Encrypts and appends a record, and waits until it has been written and synced to disk,
+   * possibly together with records appended by other threads.
+   *
+   * @return the index of the record in the log.
+   */
+  public long append(byte[] record) throws IOException {
+    if (record.length > MAX_RECORD_LENGTH) {
+      throw new IOException("Record is too long: " + record.length);
+    }
+    long index;
+    synchronized (mLock) {
+      ensureUsable();
+      index = mNextIndex++;
+      mInFlight++;
+    }
+
+    try {
+      ByteBuffer entry;
+      try {
+        entry = encrypt(index, record);
+      } catch (IOException e) {
+        // The log can't skip an index, so later records could never be written.
+        synchronized (mLock) {
+          fail(e);
+        }
+        throw e;
+      }
+      synchronized (mLock) {
+        mPending.put(index, entry);
+        mLock.notifyAll();
+      }
+      awaitCommit(index);
+      return index;
+    } finally {
+      synchronized (mLock) {
+        mInFlight--;
+        mLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * @return the number of records in the log, including those not yet durable.
+   */
+  public long getRecordCount() {
+    synchronized (mLock) {
+      return mNextIndex;
+    }
+  }
+
+  public void replay(RecordHandler handler) throws IOException {
+    replay(0, handler);
+  }
+
+  /**
+   * Decrypts the durable records from the given index on and hands them to the handler. Earlier
+   * records are skipped without being decrypted.
+   *
+   * @throws IOException if a record fails to authenticate.
+   */
+  public void replay(long fromIndex, RecordHandler handler) throws IOException {
+    long end;
+    synchronized (mLock) {
+      ensureOpen();
+      end = mCommittedLength;
+    }
+
+    byte[] entryHeader = new byte[ENTRY_HEADER_LENGTH];
+    byte[] sessionIv = null;
+    long index = 0;
+    long offset = FILE_HEADER_LENGTH;
+    while (offset < end) {
+      readFully(entryHeader, offset);
+      byte type = entryHeader[0];
+      int length = checkEntryLength(type, ByteBuffer.wrap(entryHeader, 1, 4).getInt(), offset);
+      offset += ENTRY_HEADER_LENGTH;
+      if (type == ENTRY_SESSION) {
+        sessionIv = new byte[length];
+        readFully(sessionIv, offset);
+      } else {
+        if (index >= fromIndex) {
+          if (sessionIv == null) {
+            throw new IOException("Record without a session at offset " + offset);
+          }
+          byte[] payload = new byte[length];
+          readFully(payload, offset);
+          handler.onRecord(index, decrypt(index, sessionIv, payload));
+        }
+        index++;
+      }
+      offset += length;
+    }
+  }
+
+  /**
+   * Waits for appends in progress and closes the file.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (mLock) {
+      if (mClosed) {
+        return;
+      }
+      while (mInFlight > 0 && mFailure == null) {
+        try {
+          mLock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      mClosed = true;
+      mFile.close();
+    }
+  }
+
+  private void awaitCommit(long index) throws IOException {
+    while (true) {
+      List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+      long offset;
+      long batchEnd;
+      synchronized (mLock) {
+        if (mCommittedIndex > index) {
+          return;
+        }
+        if (mFailure != null) {
+          throw new IOException("The log failed", mFailure);
+        }
+        if (mCommitting || !mPending.containsKey(mWriteIndex)) {
+          try {
+            mLock.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the commit");
+          }
+          continue;
+        }
+        mCommitting = true;
+        if (!mSessionWritten) {
+          batch.add(newEntry(ENTRY_SESSION, mSessionIv.length).put(mSessionIv));
+        }
+        while (mPending.containsKey(mWriteIndex)) {
+          batch.add(mPending.remove(mWriteIndex++));
+        }
+        offset = mCommittedLength;
+        batchEnd = mWriteIndex;
+      }
+
+      long written = 0;
+      IOException failure = null;
+      try {
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        for (int i = 0; i < buffers.length; i++) {
+          buffers[i] = batch.get(i);
+          buffers[i].flip();
+          written += buffers[i].remaining();
+        }
+        mChannel.position(offset);
+        long remaining = written;
+        while (remaining > 0) {
+          remaining -= mChannel.write(buffers);
+        }
+        mChannel.force(false);
+      } catch (IOException e) {
+        failure = e;
+      }
+
+      synchronized (mLock) {
+        mCommitting = false;
+        if (failure != null) {
+          fail(failure);
+        } else {
+          mSessionWritten = true;
+          mCommittedLength = offset + written;
+          mCommittedIndex = batchEnd;
+        }
+        mLock.notifyAll();
+      }
+    }
+  }
+
+  private ByteBuffer encrypt(long index, byte[] record) throws IOException {
+    int tagLength = mEngine.getTagLength();
+    ByteBuffer entry = newEntry(ENTRY_RECORD, record.length + tagLength);
+    try {
+      mEngine.encrypt(
+          mKey,
+          getNonce(mSessionIv, index),
+          getAad(index),
+          record,
+          0,
+          record.length,
+          entry.array(),
+          ENTRY_HEADER_LENGTH);
+    } catch (CryptoInitializationException e) {
+      throw new IOException(e);
+    }
+    entry.position(entry.capacity());
+    return entry;
+  }
+
+  private byte[] decrypt(long index, byte[] sessionIv, byte[] payload) throws IOException {
+    byte[] record = new byte[payload.length - mEngine.getTagLength()];
+    try {
+      mEngine.decrypt(
+          mKey,
+          getNonce(sessionIv, index),
+          getAad(index),
+          payload,
+          0,
+          record.length,
+          record,
+          0);
+    } catch (CryptoInitializationException e) {
+      throw new IOException(e);
+    }
+    return record;
+  }
+
+  private byte[] getNonce(byte[] sessionIv, long index) {
+    byte[] nonce = sessionIv.clone();
+    for (int i = 0; i < INDEX_LENGTH; i++) {
+      nonce[nonce.length - 1 - i] ^= (byte) (index >>> (8 * i));
+    }
+    return nonce;
+  }
+
+  private byte[] getAad(long index) {
+    ByteBuffer aad = ByteBuffer.allocate(mAadPrefix.length + INDEX_LENGTH);
+    aad.put(mAadPrefix);
+    aad.putLong(index);
+    return aad.array();
+  }
+
+  private static ByteBuffer newEntry(byte type, int length) {
+    ByteBuffer entry = ByteBuffer.allocate(ENTRY_HEADER_LENGTH + length);
+    entry.put(type);
+    entry.putInt(length);
+    return entry;
+  }
+
+  /**
+   * Counts the records and truncates a partly written entry at the end of the file.
+   */
+  private void recover() throws IOException {
+    long size = mChannel.size();
+    byte[] entryHeader = new byte[ENTRY_HEADER_LENGTH];
+    long records = 0;
+    long offset = FILE_HEADER_LENGTH;
+    while (offset + ENTRY_HEADER_LENGTH <= size) {
+      readFully(entryHeader, offset);
+      byte type = entryHeader[0];
+      int length = checkEntryLength(type, ByteBuffer.wrap(entryHeader, 1, 4).getInt(), offset);
+      if (offset + ENTRY_HEADER_LENGTH + length > size) {
+        break;
+      }
+      if (type == ENTRY_RECORD) {
+        records++;
+      }
+      offset += ENTRY_HEADER_LENGTH + length;
+    }
+    if (offset < size) {
+      mChannel.truncate(offset);
+    }
+    mNextIndex = records;
+    mWriteIndex = records;
+    mCommittedIndex = records;
+    mCommittedLength = offset;
+  }
+
+  private int checkEntryLength(byte type, int length, long offset) throws IOException {
+    boolean valid;
+    if (type == ENTRY_SESSION) {
+      valid = length == mEngine.getIvLength();
+    } else if (type == ENTRY_RECORD) {
+      valid = length >= mEngine.getTagLength() &&
+          length <= MAX_RECORD_LENGTH + mEngine.getTagLength();
+    } else {
+      valid = false;
+    }
+    if (!valid) {
+      throw new IOException("Corrupt entry at offset " + offset);
+    }
+    return length;
+  }
+
+  private void readFully(byte[] buffer, long offset) throws IOException {
+    ByteBuffer target = ByteBuffer.wrap(buffer);
+    while (target.hasRemaining()) {
+      if (mChannel.read(target, offset + target.position()) == -1) {
+        throw new IOException("Unexpected end of log at " + (offset + target.position()));
+      }
+    }
+  }
+
+  private void fail(IOException e) {
+    if (mFailure == null) {
+      mFailure = e;
+    }
+    mLock.notifyAll();
+  }
+
+  private void ensureUsable() throws IOException {
+    ensureOpen();
+    if (mFailure != null) {
+      throw new IOException("The log failed", mFailure);
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (mClosed) {
+      throw new IOException("The log is closed");
+    }
+  }
+}
@@ -25,13 +25,44 @@ package com.facebook.crypto;
    */
   public static final byte CIPHER_ID = 1;
 
+  /**
+   * Identifier for ChaCha20-Poly1305 with the same framing as {@link #CIPHER_ID}.
+   */
+  public static final byte CHACHA20_POLY1305_CIPHER_ID = 2;
+
+  /**
+   * Identifier for AES-GCM applied to fixed size segments, each with its own nonce and tag.
+   */
+  public static final byte SEGMENTED_CIPHER_ID = 3;
+
+  /**
+   * Identifier for AES-GCM over compressed plain text. The header carries the compression
+   * codec after the cipher ID.
+   */
+  public static final byte COMPRESSED_CIPHER_ID = 4;
+
+  /**
+   * Identifier of the deflate codec, in the zlib format, for {@link #COMPRESSED_CIPHER_ID}.
+   */
+  public static final byte COMPRESSION_DEFLATE = 1;
+
   /**
    * Identifier for the mac serialization version.
    */
   public static final byte MAC_SERIALIZATION_VERSION = 1;
 
   /**
-   * Identifier for the mac algorithm and the framing method used.
+   * Identifier for the mac algorithm, HMAC-SHA1, and the framing method used.
    */
   public static final byte MAC_ID = 1;
+
+  /**
+   * Identifier for search tokens, macs of a value under a key derived from the mac key.
+   */
+  public static final byte SEARCH_TOKEN_ID = 2;
+
+  /**
+   * Identifier for HMAC-SHA256 with the same framing as {@link #MAC_ID}.
+   */
+  public static final byte HMAC_SHA256_MAC_ID = 3;
 }
@@ -0,0 +1,67 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.cipher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A cipher for one message that has been initialized with a key and iv by a {@link CipherEngine}.
+ * Additional authenticated data is supplied first, then the data is processed and the message is
+ * finalized by producing or checking the tag.
+ */
+public interface AuthenticatedCipher {
+
+  /**
+   * Adds dataLength bytes of data to the authenticated data. Must be called before any data is
+   * processed.
+   */
+  public void updateAad(byte[] data, int dataLength) throws IOException;
+
+  /**
+   * Processes dataLen bytes of data and writes exactly as many bytes to output starting at
+   * outputOffset. The output array may be the same array as the data array with the same offset
+   * to process the data in place.
+   *
+   * @return the number of bytes written to output.
+   */
+  public int update(byte[] data, int offset, int dataLen, byte[] output, int outputOffset)
+      throws IOException;
+
+  /**
+   * Processes the remaining bytes of the input buffer and writes the result to the output buffer,
+   * advancing the positions of both buffers.
+   *
+   * @return the number of bytes written to the output buffer.
+   */
+  public int update(ByteBuffer input, ByteBuffer output) throws IOException;
+
+  /**
+   * Finishes encrypting the message and writes the tag.
+   */
+  public void encryptFinal(byte[] tag, int tagLen) throws IOException;
+
+  /**
+   * Finishes decrypting the message and checks the tag.
+   * @throws IOException if the tag does not match.
+   */
+  public void decryptFinal(byte[] expectedTag, int tagLen) throws IOException;
+
+  /**
+   * Releases the cipher once the message has been finalized.
+   */
+  public void destroy() throws IOException;
+
+  /**
+   * The length of the tag written or checked when the message is finalized.
+   */
+  public int getTagLength();
+}
@@ -0,0 +1,86 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.cipher;
+
+import java.io.IOException;
+
+import com.facebook.crypto.exception.CryptoInitializationException;
+
+/**
+ * An implementation of an authenticated cipher suite. The engine creates initialized
+ * {@link AuthenticatedCipher}s for streaming messages and encrypts or decrypts whole messages in
+ * a single call. Engines producing the same serialization format are interchangeable: data
+ * encrypted by one can be decrypted by the other.
+ * </p>
+ * Implementations must be thread safe.
+ */
+public interface CipherEngine {
+
+  /**
+   * The cipher ID written into the header of messages encrypted by this engine.
+   */
+  public byte getCipherId();
+
+  public int getKeyLength();
+
+  public int getIvLength();
+
+  public int getTagLength();
+
+  /**
+   * Makes sure the engine can be used, loading native libraries if needed.
+   * @throws CryptoInitializationException if the engine is not usable on this device.
+   */
+  public void ensureAvailable() throws CryptoInitializationException;
+
+  /**
+   * Returns a cipher initialized to encrypt one message.
+   */
+  public AuthenticatedCipher newEncryptCipher(byte[] key, byte[] iv)
+      throws IOException, CryptoInitializationException;
+
+  /**
+   * Returns a cipher initialized to decrypt one message.
+   */
+  public AuthenticatedCipher newDecryptCipher(byte[] key, byte[] iv)
+      throws IOException, CryptoInitializationException;
+
+  /**
+   * Encrypts dataLen bytes of data and writes the cipher text followed by the tag to output
+   * starting at outputOffset.
+   */
+  public void encrypt(
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset)
+      throws IOException, CryptoInitializationException;
+
+  /**
+   * Decrypts dataLen bytes of cipher text, which must be followed by the tag in data, and writes
+   * the plain text to output starting at outputOffset. If the tag does not match, the output
+   * range is zeroed and an exception is thrown.
+   */
+  public void decrypt(
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset)
+      throws IOException, CryptoInitializationException;
+}
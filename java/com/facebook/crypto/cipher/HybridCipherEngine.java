@@ -0,0 +1,118 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.cipher;
+
+import java.io.IOException;
+
+import com.facebook.crypto.exception.CryptoInitializationException;
+import com.facebook.crypto.util.Assertions;
+
+/**
+ * A {@link CipherEngine} that sends one shot operations on small messages to one engine and
+ * everything else to another. The engines must produce the same format. Some engines have a
+ * high fixed cost per message but process bulk data quickly, while others are the reverse.
+ */
+public class HybridCipherEngine implements CipherEngine {
+
+  private final CipherEngine mSmallMessageEngine;
+  private final CipherEngine mBulkEngine;
+  private final int mSmallMessageThreshold;
+
+  /**
+   * @param smallMessageEngine The engine for one shot operations on up to smallMessageThreshold
+   *     bytes.
+   * @param bulkEngine The engine for streams and larger messages.
+   */
+  public HybridCipherEngine(
+      CipherEngine smallMessageEngine,
+      CipherEngine bulkEngine,
+      int smallMessageThreshold) {
+    Assertions.checkArgument(
+        smallMessageEngine.getCipherId() == bulkEngine.getCipherId() &&
+        smallMessageEngine.getKeyLength() == bulkEngine.getKeyLength() &&
+        smallMessageEngine.getIvLength() == bulkEngine.getIvLength() &&
+        smallMessageEngine.getTagLength() == bulkEngine.getTagLength(),
+        "Engines must use the same format");
+    mSmallMessageEngine = smallMessageEngine;
+    mBulkEngine = bulkEngine;
+    mSmallMessageThreshold = smallMessageThreshold;
+  }
+
+  @Override
+  public byte getCipherId() {
+    return mBulkEngine.getCipherId();
+  }
+
+  @Override
+  public int getKeyLength() {
+    return mBulkEngine.getKeyLength();
+  }
+
+  @Override
+  public int getIvLength() {
+    return mBulkEngine.getIvLength();
+  }
+
+  @Override
+  public int getTagLength() {
+    return mBulkEngine.getTagLength();
+  }
+
+  @Override
+  public void ensureAvailable() throws CryptoInitializationException {
+    mSmallMessageEngine.ensureAvailable();
+    mBulkEngine.ensureAvailable();
+  }
+
+  @Override
+  public AuthenticatedCipher newEncryptCipher(byte[] key, byte[] iv)
+      throws IOException, CryptoInitializationException {
+    return mBulkEngine.newEncryptCipher(key, iv);
+  }
+
+  @Override
+  public AuthenticatedCipher newDecryptCipher(byte[] key, byte[] iv)
+      throws IOException, CryptoInitializationException {
+    return mBulkEngine.newDecryptCipher(key, iv);
+  }
+
+  @Override
+  public void encrypt(
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset)
+      throws IOException, CryptoInitializationException {
+    getEngine(dataLen).encrypt(key, iv, aad, data, offset, dataLen, output, outputOffset);
+  }
+
+  @Override
+  public void decrypt(
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset)
+      throws IOException, CryptoInitializationException {
+    getEngine(dataLen).decrypt(key, iv, aad, data, offset, dataLen, output, outputOffset);
+  }
+
+  private CipherEngine getEngine(int dataLen) {
+    return dataLen <= mSmallMessageThreshold ? mSmallMessageEngine : mBulkEngine;
+  }
+}
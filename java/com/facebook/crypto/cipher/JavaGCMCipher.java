@@ -0,0 +1,156 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.cipher;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+import com.facebook.crypto.util.Assertions;
+
+/**
+ * An AES-GCM {@link AuthenticatedCipher} built on javax.crypto, created by
+ * {@link JavaGCMCipherEngine}.
+ * </p>
+ * JCA implementations of GCM hold back all plain text until the tag has been checked, and may
+ * hold back the end of the cipher text until the message is finalized, which does not work for
+ * streams. Instead the data is processed with AES-CTR starting from the same counter block GCM
+ * uses for data, which produces exactly the GCM cipher text. The plain text is also encrypted
+ * with AES-GCM on the side, only to compute the tag when the message is finalized.
+ */
+/* package */ class JavaGCMCipher implements AuthenticatedCipher {
+
+  private static final String CIPHER_FINALIZED = "Cipher has been finalized";
+
+  private final boolean mEncrypt;
+  private final Cipher mCtrCipher;
+  private final Cipher mTagCipher;
+
+  // The side cipher text is discarded, only the tag is kept.
+  private byte[] mDiscardBuffer = new byte[0];
+  private boolean mFinalized;
+
+  /* package */ JavaGCMCipher(boolean encrypt, Cipher ctrCipher, Cipher tagCipher) {
+    mEncrypt = encrypt;
+    mCtrCipher = ctrCipher;
+    mTagCipher = tagCipher;
+  }
+
+  @Override
+  public void updateAad(byte[] data, int dataLength) throws IOException {
+    Assertions.checkState(!mFinalized, CIPHER_FINALIZED);
+    mTagCipher.updateAAD(data, 0, dataLength);
+  }
+
+  @Override
+  public int update(byte[] data, int offset, int dataLen, byte[] output, int outputOffset)
+      throws IOException {
+    Assertions.checkState(!mFinalized, CIPHER_FINALIZED);
+    try {
+      if (mEncrypt) {
+        // The plain text must be read before it is overwritten when encrypting in place.
+        authenticate(data, offset, dataLen);
+        return mCtrCipher.update(data, offset, dataLen, output, outputOffset);
+      }
+      int written = mCtrCipher.update(data, offset, dataLen, output, outputOffset);
+      authenticate(output, outputOffset, written);
+      return written;
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public int update(ByteBuffer input, ByteBuffer output) throws IOException {
+    Assertions.checkState(!mFinalized, CIPHER_FINALIZED);
+    try {
+      if (mEncrypt) {
+        authenticate(input.duplicate());
+        return mCtrCipher.update(input, output);
+      }
+      ByteBuffer plainText = output.duplicate();
+      int written = mCtrCipher.update(input, output);
+      plainText.limit(plainText.position() + written);
+      authenticate(plainText);
+      return written;
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void encryptFinal(byte[] tag, int tagLen) throws IOException {
+    Assertions.checkState(mEncrypt, "Cipher was initialized for decryption");
+    System.arraycopy(computeTag(tagLen), 0, tag, 0, tagLen);
+  }
+
+  @Override
+  public void decryptFinal(byte[] expectedTag, int tagLen) throws IOException {
+    Assertions.checkState(!mEncrypt, "Cipher was initialized for encryption");
+    byte[] tag = computeTag(tagLen);
+
+    // Compare in constant time so that the check does not leak how much of the tag matched.
+    int diff = 0;
+    for (int i = 0; i < tagLen; ++i) {
+      diff |= tag[i] ^ expectedTag[i];
+    }
+    if (diff != 0) {
+      throw new IOException(
+        "The message could not be decrypted successfully." +
+        "It has either been tampered with or the wrong resource is being decrypted.");
+    }
+  }
+
+  @Override
+  public void destroy() throws IOException {
+    mFinalized = true;
+  }
+
+  @Override
+  public int getTagLength() {
+    return JavaGCMCipherEngine.TAG_LENGTH;
+  }
+
+  private void authenticate(byte[] plainText, int offset, int length)
+      throws GeneralSecurityException {
+    mTagCipher.update(plainText, offset, length, discardBuffer(length), 0);
+  }
+
+  private void authenticate(ByteBuffer plainText) throws GeneralSecurityException {
+    int length = plainText.remaining();
+    mTagCipher.update(plainText, ByteBuffer.wrap(discardBuffer(length)));
+  }
+
+  private byte[] discardBuffer(int length) {
+    int size = mTagCipher.getOutputSize(length);
+    if (mDiscardBuffer.length < size) {
+      mDiscardBuffer = new byte[size];
+    }
+    return mDiscardBuffer;
+  }
+
+  private byte[] computeTag(int tagLen) throws IOException {
+    Assertions.checkState(!mFinalized, CIPHER_FINALIZED);
+    Assertions.checkArgument(tagLen == JavaGCMCipherEngine.TAG_LENGTH, "Invalid tag length");
+    mFinalized = true;
+    try {
+      // The tag follows whatever cipher text the side cipher held back.
+      byte[] output = mTagCipher.doFinal();
+      byte[] tag = new byte[tagLen];
+      System.arraycopy(output, output.length - tagLen, tag, 0, tagLen);
+      return tag;
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
+}
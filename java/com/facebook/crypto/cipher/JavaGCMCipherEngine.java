@@ -0,0 +1,205 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.cipher;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.facebook.crypto.exception.CryptoInitializationException;
+import com.facebook.crypto.util.Assertions;
+
+/**
+ * A {@link CipherEngine} for AES-GCM built on javax.crypto. It produces the same format as
+ * {@link NativeGCMCipherEngine}, so either engine can decrypt what the other encrypted.
+ * </p>
+ * It needs no native library, and on JVMs where AES and GHASH are intrinsified it avoids
+ * crossing into native code. It requires a provider with AES/GCM/NoPadding and AES/CTR/NoPadding
+ * and GCMParameterSpec, which Android only has from API level 19.
+ */
+public class JavaGCMCipherEngine implements CipherEngine {
+
+  public static final int KEY_LENGTH = 16;
+  public static final int IV_LENGTH = 12;
+  public static final int TAG_LENGTH = 16;
+
+  private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+  private static final String CTR_TRANSFORMATION = "AES/CTR/NoPadding";
+  private static final String KEY_ALGORITHM = "AES";
+
+  // Getting a cipher instance is comparatively expensive, so one shot operations reuse one per
+  // thread.
+  private final ThreadLocal<Cipher> mOneShotCipher = new ThreadLocal<Cipher>();
+
+  @Override
+  public byte getCipherId() {
+    return NativeGCMCipherEngine.CIPHER_ID;
+  }
+
+  @Override
+  public int getKeyLength() {
+    return KEY_LENGTH;
+  }
+
+  @Override
+  public int getIvLength() {
+    return IV_LENGTH;
+  }
+
+  @Override
+  public int getTagLength() {
+    return TAG_LENGTH;
+  }
+
+  @Override
+  public void ensureAvailable() throws CryptoInitializationException {
+    try {
+      Class.forName("javax.crypto.spec.GCMParameterSpec");
+      Cipher.getInstance(GCM_TRANSFORMATION);
+      Cipher.getInstance(CTR_TRANSFORMATION);
+    } catch (Throwable t) {
+      throw new CryptoInitializationException(t);
+    }
+  }
+
+  @Override
+  public AuthenticatedCipher newEncryptCipher(byte[] key, byte[] iv)
+      throws IOException, CryptoInitializationException {
+    return newCipher(true, key, iv);
+  }
+
+  @Override
+  public AuthenticatedCipher newDecryptCipher(byte[] key, byte[] iv)
+      throws IOException, CryptoInitializationException {
+    return newCipher(false, key, iv);
+  }
+
+  @Override
+  public void encrypt(
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset)
+      throws IOException, CryptoInitializationException {
+    checkKeyAndIv(key, iv);
+    checkBounds(output.length, outputOffset, dataLen + TAG_LENGTH);
+    try {
+      Cipher cipher = getOneShotCipher();
+      try {
+        initGcm(cipher, Cipher.ENCRYPT_MODE, key, iv);
+      } catch (InvalidAlgorithmParameterException e) {
+        // Providers may refuse to encrypt twice with the same key and iv on one instance.
+        cipher = newInstance(GCM_TRANSFORMATION);
+        mOneShotCipher.set(cipher);
+        initGcm(cipher, Cipher.ENCRYPT_MODE, key, iv);
+      }
+      cipher.updateAAD(aad);
+      cipher.doFinal(data, offset, dataLen, output, outputOffset);
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void decrypt(
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset)
+      throws IOException, CryptoInitializationException {
+    checkKeyAndIv(key, iv);
+    checkBounds(output.length, outputOffset, dataLen);
+    try {
+      Cipher cipher = getOneShotCipher();
+      initGcm(cipher, Cipher.DECRYPT_MODE, key, iv);
+      cipher.updateAAD(aad);
+      cipher.doFinal(data, offset, dataLen + TAG_LENGTH, output, outputOffset);
+    } catch (GeneralSecurityException e) {
+      // Don't hand unauthenticated plain text back to the caller.
+      Arrays.fill(output, outputOffset, outputOffset + dataLen, (byte) 0);
+      throw new IOException(
+        "The message could not be decrypted successfully." +
+        "It has either been tampered with or the wrong resource is being decrypted.");
+    }
+  }
+
+  private AuthenticatedCipher newCipher(boolean encrypt, byte[] key, byte[] iv)
+      throws IOException, CryptoInitializationException {
+    checkKeyAndIv(key, iv);
+    Cipher ctrCipher = newInstance(CTR_TRANSFORMATION);
+    Cipher tagCipher = newInstance(GCM_TRANSFORMATION);
+    try {
+      int mode = encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
+      ctrCipher.init(mode, new SecretKeySpec(key, KEY_ALGORITHM), new IvParameterSpec(getCounterBlock(iv)));
+      initGcm(tagCipher, Cipher.ENCRYPT_MODE, key, iv);
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+    return new JavaGCMCipher(encrypt, ctrCipher, tagCipher);
+  }
+
+  /**
+   * GCM encrypts data with the counter block iv || 2, the block after the one used for the tag.
+   */
+  private static byte[] getCounterBlock(byte[] iv) {
+    byte[] counter = new byte[16];
+    System.arraycopy(iv, 0, counter, 0, IV_LENGTH);
+    counter[15] = 2;
+    return counter;
+  }
+
+  private static void initGcm(Cipher cipher, int mode, byte[] key, byte[] iv)
+      throws GeneralSecurityException {
+    cipher.init(mode, new SecretKeySpec(key, KEY_ALGORITHM), new GCMParameterSpec(TAG_LENGTH * 8, iv));
+  }
+
+  private Cipher getOneShotCipher() throws CryptoInitializationException {
+    Cipher cipher = mOneShotCipher.get();
+    if (cipher == null) {
+      cipher = newInstance(GCM_TRANSFORMATION);
+      mOneShotCipher.set(cipher);
+    }
+    return cipher;
+  }
+
+  private static Cipher newInstance(String transformation) throws CryptoInitializationException {
+    try {
+      return Cipher.getInstance(transformation);
+    } catch (GeneralSecurityException e) {
+      throw new CryptoInitializationException(e);
+    }
+  }
+
+  private static void checkKeyAndIv(byte[] key, byte[] iv) {
+    Assertions.checkArgument(key.length == KEY_LENGTH, "Invalid key length");
+    Assertions.checkArgument(iv.length == IV_LENGTH, "Invalid iv length");
+  }
+
+  private static void checkBounds(int arrayLength, int offset, int length) {
+    if (offset < 0 || length < 0 || arrayLength - offset < length) {
+      throw new ArrayIndexOutOfBoundsException(offset + length);
+    }
+  }
+}
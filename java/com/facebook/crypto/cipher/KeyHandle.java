@@ -0,0 +1,103 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.cipher;
+
+import com.facebook.crypto.exception.CryptoInitializationException;
+import com.facebook.crypto.util.Assertions;
+import com.facebook.crypto.util.NativeCryptoLibrary;
+import com.facebook.proguard.annotations.DoNotStrip;
+
+/**
+ * An opaque handle to a GCM key held in native memory. The key is copied in and expanded once
+ * when the handle is created. {@link NativeGCMCipher}s initialized with the handle copy the
+ * expanded key instead of receiving the key bytes and expanding them again for every message.
+ * </p>
+ * The handle is reference counted. Whoever creates it holds the first reference, and callers that
+ * may race with the owner releasing it should {@link #retain()} it while initializing ciphers.
+ * Ciphers do not need the handle once they have been initialized. The native memory is freed
+ * when the last reference is released.
+ * </p>
+ * This class is thread safe.
+ */
+@DoNotStrip
+public class KeyHandle {
+
+  private static final String HANDLE_RELEASED = "Key handle has been released";
+
+  private final NativeCryptoLibrary mNativeCryptoLibrary;
+  private int mRefCount;
+
+  /**
+   * Imports the key into native memory.
+   * @param key A key of {@link NativeGCMCipher#KEY_LENGTH} bytes.
+   */
+  public KeyHandle(NativeCryptoLibrary nativeCryptoLibrary, byte[] key)
+      throws NativeGCMCipherException, CryptoInitializationException {
+    Assertions.checkArgument(key.length == NativeGCMCipher.KEY_LENGTH, "Invalid key length");
+    mNativeCryptoLibrary = nativeCryptoLibrary;
+    mNativeCryptoLibrary.ensureCryptoLoaded();
+    if (nativeCreate(key) == nativeFailure()) {
+      throw new NativeGCMCipherException("createKeyHandle");
+    }
+    mRefCount = 1;
+  }
+
+  /**
+   * Whether this handle holds the given key. The comparison takes the same time wherever the keys
+   * differ.
+   */
+  public synchronized boolean matches(byte[] key) {
+    ensureNotReleased();
+    return key.length == NativeGCMCipher.KEY_LENGTH && nativeMatches(key);
+  }
+
+  /**
+   * Takes another reference to the handle.
+   * @return false if the handle has already been freed, in which case it must not be used.
+   */
+  public synchronized boolean retain() {
+    if (mRefCount == 0) {
+      return false;
+    }
+    ++mRefCount;
+    return true;
+  }
+
+  /**
+   * Drops a reference to the handle, freeing the native key when it was the last one.
+   */
+  public synchronized void release() throws NativeGCMCipherException {
+    ensureNotReleased();
+    if (--mRefCount > 0) {
+      return;
+    }
+    if (nativeDestroy() == nativeFailure()) {
+      throw new NativeGCMCipherException("destroyKeyHandle");
+    }
+  }
+
+  /* package */ synchronized void ensureNotReleased() {
+    Assertions.checkState(mRefCount > 0, HANDLE_RELEASED);
+  }
+
+  // Used to store the native key.
+  @DoNotStrip
+  private long mCtxPtr;
+
+  // The integer value representing failure in JNI world.
+  private static native int nativeFailure();
+
+  private native int nativeCreate(byte[] key);
+
+  private native boolean nativeMatches(byte[] key);
+
+  private native int nativeDestroy();
+}
@@ -0,0 +1,259 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+package com.facebook.crypto.cipher;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import com.facebook.crypto.exception.CryptoInitializationException;
+import com.facebook.crypto.util.Assertions;
+import com.facebook.crypto.util.NativeCryptoLibrary;
+import com.facebook.proguard.annotations.DoNotStrip;
+
+/**
+ * Native functions to encrypt/decrypt data using ChaCha20-Poly1305 (RFC 8439).
+ * </p>
+ * The 32 byte ChaCha20 key is derived in native code from the 16 byte cipher key supplied by the
+ * key chain, so the same key chains work with both cipher suites. The derived key is kept with
+ * the native context and only derived again when the key changes. Once a message has been
+ * finalized the cipher can be {@link #reset()} and initialized again. Call {@link #destroy()} to
+ * free the native context.
+ */
+@DoNotStrip
+public class NativeChaCha20Poly1305Cipher implements AuthenticatedCipher {
+
+  private static final String CIPHER_ALREADY_INIT = "Cipher has already been initialized";
+  private static final String CIPHER_NOT_INIT = "Cipher has not been initialized";
+  private static final String CIPHER_NOT_FINALIZED = "Cipher has not been finalized";
+  private static final String BUFFERS_NOT_DIRECT = "Buffers must be direct";
+  private static final String OUTPUT_BUFFER_TOO_SMALL = "Output buffer is too small";
+  private static final String INVALID_KEY_LENGTH = "Invalid key length";
+  private static final String INVALID_IV_LENGTH = "Invalid iv length";
+
+  public static final int TAG_LENGTH = 16;
+  public static final int KEY_LENGTH = 16;
+  public static final int IV_LENGTH = 12;
+
+  private STATE mCurrentState = STATE.UNINITIALIZED;
+
+  private final NativeCryptoLibrary mNativeCryptoLibrary;
+
+  private enum STATE {
+    UNINITIALIZED,
+    ENCRYPT_INITIALIZED,
+    DECRYPT_INITIALIZED,
+    ENCRYPT_FINALIZED,
+    DECRYPT_FINALIZED,
+  };
+
+  public NativeChaCha20Poly1305Cipher(NativeCryptoLibrary nativeCryptoLibrary) {
+    mNativeCryptoLibrary = nativeCryptoLibrary;
+  }
+
+  public void encryptInit(byte[] key, byte[] iv)
+      throws NativeChaCha20Poly1305CipherException, CryptoInitializationException {
+    Assertions.checkState(mCurrentState == STATE.UNINITIALIZED, CIPHER_ALREADY_INIT);
+    checkKeyAndIv(key, iv);
+    mNativeCryptoLibrary.ensureCryptoLoaded();
+    if (nativeEncryptInit(key, iv) == nativeFailure()) {
+      throw new NativeChaCha20Poly1305CipherException("encryptInit");
+    }
+    mCurrentState = STATE.ENCRYPT_INITIALIZED;
+  }
+
+  public void decryptInit(byte[] key, byte[] iv)
+      throws NativeChaCha20Poly1305CipherException, CryptoInitializationException {
+    Assertions.checkState(mCurrentState == STATE.UNINITIALIZED, CIPHER_ALREADY_INIT);
+    checkKeyAndIv(key, iv);
+    mNativeCryptoLibrary.ensureCryptoLoaded();
+    if (nativeDecryptInit(key, iv) == nativeFailure()) {
+      throw new NativeChaCha20Poly1305CipherException("decryptInit");
+    }
+    mCurrentState = STATE.DECRYPT_INITIALIZED;
+  }
+
+  /**
+   * Processes dataLen bytes of data in a single native call and writes the result to output
+   * starting at outputOffset. The output array may be the same array as the input array with the
+   * same offset to process data in place.
+   *
+   * @return the number of bytes written to output.
+   */
+  public int update(byte[] data, int offset, int dataLen, byte[] output, int outputOffset)
+      throws NativeChaCha20Poly1305CipherException {
+    ensureInInitalizedState();
+    checkBounds(data.length, offset, dataLen);
+    checkBounds(output.length, outputOffset, dataLen);
+    int bytesRead = nativeUpdate(data, offset, dataLen, output, outputOffset);
+    if (bytesRead < 0) {
+      throw new NativeChaCha20Poly1305CipherException(
+          formatStrLocaleSafe(
+              "update: Offset = %d; DataLen = %d; Result = %d",
+              offset,
+              dataLen,
+              bytesRead));
+    }
+    return bytesRead;
+  }
+
+  /**
+   * Processes the remaining bytes of the input buffer and writes the result to the output buffer.
+   * Both buffers must be direct. See {@link NativeGCMCipher#update(ByteBuffer, ByteBuffer)}.
+   *
+   * @return the number of bytes written to the output buffer.
+   */
+  public int update(ByteBuffer input, ByteBuffer output)
+      throws NativeChaCha20Poly1305CipherException {
+    ensureInInitalizedState();
+    Assertions.checkArgument(input.isDirect() && output.isDirect(), BUFFERS_NOT_DIRECT);
+
+    int inputPosition = input.position();
+    int outputPosition = output.position();
+    int dataLen = input.remaining();
+    Assertions.checkArgument(output.remaining() >= dataLen, OUTPUT_BUFFER_TOO_SMALL);
+
+    int bytesRead = nativeUpdateDirect(input, inputPosition, dataLen, output, outputPosition);
+    if (bytesRead < 0) {
+      throw new NativeChaCha20Poly1305CipherException(
+          formatStrLocaleSafe(
+              "update: Position = %d; DataLen = %d; Result = %d",
+              inputPosition,
+              dataLen,
+              bytesRead));
+    }
+    input.position(inputPosition + dataLen);
+    output.position(outputPosition + bytesRead);
+    return bytesRead;
+  }
+
+  public void updateAad(byte[] data, int dataLength)
+      throws NativeChaCha20Poly1305CipherException {
+    ensureInInitalizedState();
+    checkBounds(data.length, 0, dataLength);
+    if (nativeUpdateAad(data, dataLength) < 0) {
+      throw new NativeChaCha20Poly1305CipherException(
+          formatStrLocaleSafe("updateAAd: DataLen = %d", dataLength));
+    }
+  }
+
+  public void encryptFinal(byte[] tag, int tagLen)
+      throws NativeChaCha20Poly1305CipherException {
+    Assertions.checkState(mCurrentState == STATE.ENCRYPT_INITIALIZED, CIPHER_NOT_INIT);
+    mCurrentState = STATE.ENCRYPT_FINALIZED;
+    if (nativeEncryptFinal(tag, tagLen) == nativeFailure()) {
+      throw new NativeChaCha20Poly1305CipherException(
+          formatStrLocaleSafe("encryptFinal: %d", tagLen));
+    }
+  }
+
+  public void decryptFinal(byte[] expectedTag, int tagLen)
+      throws NativeChaCha20Poly1305CipherException {
+    Assertions.checkState(mCurrentState == STATE.DECRYPT_INITIALIZED, CIPHER_NOT_INIT);
+    mCurrentState = STATE.DECRYPT_FINALIZED;
+    if (nativeDecryptFinal(expectedTag, tagLen) == nativeFailure()) {
+      throw new NativeChaCha20Poly1305CipherException(
+        "The message could not be decrypted successfully." +
+        "It has either been tampered with or the wrong resource is being decrypted.");
+    }
+  }
+
+  /**
+   * Makes a finalized cipher ready to be initialized for the next message while keeping the
+   * native context and derived key.
+   */
+  public void reset() {
+    ensureInFinalizedState();
+    mCurrentState = STATE.UNINITIALIZED;
+  }
+
+  /**
+   * Frees the native context once the message has been finalized.
+   */
+  public void destroy() throws NativeChaCha20Poly1305CipherException {
+    ensureNotInInitializedState();
+    mCurrentState = STATE.UNINITIALIZED;
+    if (mCtxPtr == 0) {
+      return;
+    }
+    if (nativeDestroy() == nativeFailure()) {
+      throw new NativeChaCha20Poly1305CipherException("destroy");
+    }
+  }
+
+  public int getTagLength() {
+    return TAG_LENGTH;
+  }
+
+  private void ensureInInitalizedState() {
+    boolean initialized =
+        mCurrentState == STATE.DECRYPT_INITIALIZED ||
+        mCurrentState == STATE.ENCRYPT_INITIALIZED;
+    Assertions.checkState(initialized, CIPHER_NOT_INIT);
+  }
+
+  private void ensureNotInInitializedState() {
+    boolean initialized =
+        mCurrentState == STATE.DECRYPT_INITIALIZED ||
+        mCurrentState == STATE.ENCRYPT_INITIALIZED;
+    Assertions.checkState(!initialized, CIPHER_NOT_FINALIZED);
+  }
+
+  private void ensureInFinalizedState() {
+    boolean finalized =
+        mCurrentState == STATE.DECRYPT_FINALIZED ||
+        mCurrentState == STATE.ENCRYPT_FINALIZED;
+    Assertions.checkState(finalized, CIPHER_NOT_FINALIZED);
+  }
+
+  private static void checkKeyAndIv(byte[] key, byte[] iv) {
+    Assertions.checkArgument(key.length == KEY_LENGTH, INVALID_KEY_LENGTH);
+    Assertions.checkArgument(iv.length == IV_LENGTH, INVALID_IV_LENGTH);
+  }
+
+  private static void checkBounds(int arrayLength, int offset, int length) {
+    if (offset < 0 || length < 0 || arrayLength - offset < length) {
+      throw new ArrayIndexOutOfBoundsException(offset + length);
+    }
+  }
+
+  private String formatStrLocaleSafe(String format, Object... args) {
+    return String.format((Locale)null, format, args);
+  }
+
+  // Used to store the ChaCha20-Poly1305 cipher context.
+  @DoNotStrip
+  private long mCtxPtr;
+
+  // The integer value representing failure in JNI world.
+  private static native int nativeFailure();
+
+  private native int nativeEncryptInit(byte[] key, byte[] iv);
+  private native int nativeDecryptInit(byte[] key, byte[] iv);
+
+  private native int nativeUpdate(
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset);
+  private native int nativeUpdateDirect(
+      ByteBuffer data,
+      int offset,
+      int dataLen,
+      ByteBuffer output,
+      int outputOffset);
+
+  private native int nativeUpdateAad(byte[] data, int dataLength);
+
+  private native int nativeEncryptFinal(byte[] tag, int tagLen);
+  private native int nativeDecryptFinal(byte[] tag, int tagLength);
+
+  private native int nativeDestroy();
+}
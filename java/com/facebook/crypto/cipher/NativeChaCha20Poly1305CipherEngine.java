@@ -0,0 +1,151 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.cipher;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.facebook.crypto.exception.CryptoInitializationException;
+import com.facebook.crypto.util.Assertions;
+import com.facebook.crypto.util.NativeCryptoLibrary;
+
+/**
+ * A {@link CipherEngine} for ChaCha20-Poly1305 backed by {@link NativeChaCha20Poly1305Cipher}.
+ * </p>
+ * ChaCha20 only needs additions, rotations and xors, so on devices without AES instructions it is
+ * considerably faster than AES-GCM and does not depend on table lookups that leak timing.
+ * Messages carry {@link #CIPHER_ID}, so readers pick this engine from the header.
+ */
+public class NativeChaCha20Poly1305CipherEngine implements CipherEngine {
+
+  public static final byte CIPHER_ID = 2;
+
+  private static final String IN_PLACE_NOT_SUPPORTED = "Data and output must be different arrays";
+
+  private final NativeCryptoLibrary mNativeCryptoLibrary;
+
+  public NativeChaCha20Poly1305CipherEngine(NativeCryptoLibrary nativeCryptoLibrary) {
+    mNativeCryptoLibrary = nativeCryptoLibrary;
+  }
+
+  @Override
+  public byte getCipherId() {
+    return CIPHER_ID;
+  }
+
+  @Override
+  public int getKeyLength() {
+    return NativeChaCha20Poly1305Cipher.KEY_LENGTH;
+  }
+
+  @Override
+  public int getIvLength() {
+    return NativeChaCha20Poly1305Cipher.IV_LENGTH;
+  }
+
+  @Override
+  public int getTagLength() {
+    return NativeChaCha20Poly1305Cipher.TAG_LENGTH;
+  }
+
+  @Override
+  public void ensureAvailable() throws CryptoInitializationException {
+    mNativeCryptoLibrary.ensureCryptoLoaded();
+  }
+
+  @Override
+  public AuthenticatedCipher newEncryptCipher(byte[] key, byte[] iv)
+      throws IOException, CryptoInitializationException {
+    NativeChaCha20Poly1305Cipher cipher = new NativeChaCha20Poly1305Cipher(mNativeCryptoLibrary);
+    cipher.encryptInit(key, iv);
+    return cipher;
+  }
+
+  @Override
+  public AuthenticatedCipher newDecryptCipher(byte[] key, byte[] iv)
+      throws IOException, CryptoInitializationException {
+    NativeChaCha20Poly1305Cipher cipher = new NativeChaCha20Poly1305Cipher(mNativeCryptoLibrary);
+    cipher.decryptInit(key, iv);
+    return cipher;
+  }
+
+  @Override
+  public void encrypt(
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset)
+      throws IOException, CryptoInitializationException {
+    Assertions.checkArgument(data != output, IN_PLACE_NOT_SUPPORTED);
+    checkBounds(output.length, outputOffset, dataLen + getTagLength());
+    NativeChaCha20Poly1305Cipher cipher = new NativeChaCha20Poly1305Cipher(mNativeCryptoLibrary);
+    cipher.encryptInit(key, iv);
+    byte[] tag = new byte[getTagLength()];
+    try {
+      try {
+        cipher.updateAad(aad, aad.length);
+        cipher.update(data, offset, dataLen, output, outputOffset);
+      } finally {
+        // Always finalize, so that the cipher can be destroyed.
+        cipher.encryptFinal(tag, tag.length);
+      }
+    } finally {
+      cipher.destroy();
+    }
+    System.arraycopy(tag, 0, output, outputOffset + dataLen, tag.length);
+  }
+
+  @Override
+  public void decrypt(
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset)
+      throws IOException, CryptoInitializationException {
+    Assertions.checkArgument(data != output, IN_PLACE_NOT_SUPPORTED);
+    checkBounds(data.length, offset, dataLen + getTagLength());
+    checkBounds(output.length, outputOffset, dataLen);
+    NativeChaCha20Poly1305Cipher cipher = new NativeChaCha20Poly1305Cipher(mNativeCryptoLibrary);
+    cipher.decryptInit(key, iv);
+    byte[] tag = new byte[getTagLength()];
+    System.arraycopy(data, offset + dataLen, tag, 0, tag.length);
+    boolean verified = false;
+    try {
+      try {
+        cipher.updateAad(aad, aad.length);
+        cipher.update(data, offset, dataLen, output, outputOffset);
+      } finally {
+        cipher.decryptFinal(tag, tag.length);
+      }
+      verified = true;
+    } finally {
+      if (!verified) {
+        // Don't hand unauthenticated plain text back to the caller.
+        Arrays.fill(output, outputOffset, outputOffset + dataLen, (byte) 0);
+      }
+      cipher.destroy();
+    }
+  }
+
+  private static void checkBounds(int arrayLength, int offset, int length) {
+    if (offset < 0 || length < 0 || arrayLength - offset < length) {
+      throw new ArrayIndexOutOfBoundsException(offset + length);
+    }
+  }
+}
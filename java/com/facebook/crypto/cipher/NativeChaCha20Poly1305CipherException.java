@@ -0,0 +1,22 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.cipher;
+
+import java.io.IOException;
+
+/**
+ * Exception for ChaCha20-Poly1305 cipher operations
+ */
+public class NativeChaCha20Poly1305CipherException extends IOException {
+  public NativeChaCha20Poly1305CipherException(String message) {
+    super(message);
+  }
+}
@@ -9,6 +9,7 @@
  */
 package com.facebook.crypto.cipher;
 
+import java.nio.ByteBuffer;
 import java.util.Locale;
 
 import com.facebook.crypto.exception.CryptoInitializationException;
@@ -18,15 +19,26 @@ import com.facebook.proguard.annotations.DoNotStrip;
 
 /**
  * Various native functions to encrypt/decrypt data using GCM.
+ * </p>
+ * The native cipher context is kept between messages: once a message has been finalized the
+ * cipher can be {@link #reset()} and initialized again. If the key is unchanged, initialization
+ * only sets the new iv and the expanded key schedule is reused. Ciphers can also be initialized
+ * from a {@link KeyHandle}, which copies a key schedule expanded once in native memory. Call {@link #destroy()} to free
+ * the native context.
  */
 @DoNotStrip
-public class NativeGCMCipher {
+public class NativeGCMCipher implements AuthenticatedCipher {
 
   public static final String FAILURE = "Failure";
 
   private static final String CIPHER_ALREADY_INIT = "Cipher has already been initialized";
   private static final String CIPHER_NOT_INIT = "Cipher has not been initialized";
   private static final String CIPHER_NOT_FINALIZED = "Cipher has not been finalized";
+  private static final String BUFFERS_NOT_DIRECT = "Buffers must be direct";
+  private static final String OUTPUT_BUFFER_TOO_SMALL = "Output buffer is too small";
+  private static final String INVALID_KEY_LENGTH = "Invalid key length";
+  private static final String INVALID_IV_LENGTH = "Invalid iv length";
+  private static final String IN_PLACE_NOT_SUPPORTED = "Data and output must be different arrays";
 
   public static final int TAG_LENGTH = 16;
   public static final int KEY_LENGTH = 16;
@@ -35,6 +47,7 @@ public class NativeGCMCipher {
   private STATE mCurrentState = STATE.UNINITIALIZED;
 
   private final NativeCryptoLibrary mNativeCryptoLibrary;
+  private final NativeGCMCipherPool mPool;
 
   private enum STATE {
     UNINITIALIZED,
@@ -45,32 +58,102 @@ public class NativeGCMCipher {
   };
 
   public NativeGCMCipher(NativeCryptoLibrary nativeCryptoLibrary) {
+    this(nativeCryptoLibrary, null);
+  }
+
+  /* package */ NativeGCMCipher(NativeCryptoLibrary nativeCryptoLibrary, NativeGCMCipherPool pool) {
     mNativeCryptoLibrary = nativeCryptoLibrary;
+    mPool = pool;
   }
 
   public void encryptInit(byte[] key, byte[] iv)
       throws NativeGCMCipherException, CryptoInitializationException {
+    encryptInit(null, key, iv);
+  }
+
+  /**
+   * Initializes the cipher for encryption with a key that has already been imported into native
+   * memory, which avoids copying and expanding the key again. The handle must not be released
+   * before this returns, but is no longer needed afterwards.
+   */
+  public void encryptInit(KeyHandle keyHandle, byte[] iv)
+      throws NativeGCMCipherException, CryptoInitializationException {
+    keyHandle.ensureNotReleased();
+    encryptInit(keyHandle, null, iv);
+  }
+
+  public void decryptInit(byte[] key, byte[] iv)
+      throws NativeGCMCipherException, CryptoInitializationException {
+    decryptInit(null, key, iv);
+  }
+
+  /**
+   * Initializes the cipher for decryption with a key that has already been imported into native
+   * memory. See {@link #encryptInit(KeyHandle, byte[])}.
+   */
+  public void decryptInit(KeyHandle keyHandle, byte[] iv)
+      throws NativeGCMCipherException, CryptoInitializationException {
+    keyHandle.ensureNotReleased();
+    decryptInit(keyHandle, null, iv);
+  }
+
+  /**
+   * Initializes the cipher for encryption. If both a key handle and a key are given, the handle
+   * is used when it holds the key, which is checked in the same native call, and the key
+   * otherwise.
+   * @return true if the key handle was used.
+   */
+  /* package */ boolean encryptInit(KeyHandle keyHandle, byte[] key, byte[] iv)
+      throws NativeGCMCipherException, CryptoInitializationException {
     Assertions.checkState(mCurrentState == STATE.UNINITIALIZED, CIPHER_ALREADY_INIT);
+    checkKey(key);
+    checkIv(iv);
     mNativeCryptoLibrary.ensureCryptoLoaded();
-    if (nativeEncryptInit(key, iv) == nativeFailure()) {
+    int result = nativeEncryptInit(keyHandle, key, iv);
+    if (result == nativeFailure()) {
       throw new NativeGCMCipherException("encryptInit");
     }
     mCurrentState = STATE.ENCRYPT_INITIALIZED;
+    return keyHandle != null && result != nativeKeyHandleMismatch();
   }
-  public void decryptInit(byte[] key, byte[] iv)
+
+  /**
+   * Initializes the cipher for decryption. See
+   * {@link #encryptInit(KeyHandle, byte[], byte[])}.
+   */
+  /* package */ boolean decryptInit(KeyHandle keyHandle, byte[] key, byte[] iv)
       throws NativeGCMCipherException, CryptoInitializationException {
     Assertions.checkState(mCurrentState == STATE.UNINITIALIZED, CIPHER_ALREADY_INIT);
+    checkKey(key);
+    checkIv(iv);
     mNativeCryptoLibrary.ensureCryptoLoaded();
-    if (nativeDecryptInit(key, iv) == nativeFailure()) {
+    int result = nativeDecryptInit(keyHandle, key, iv);
+    if (result == nativeFailure()) {
       throw new NativeGCMCipherException("decryptInit");
     }
     mCurrentState = STATE.DECRYPT_INITIALIZED;
+    return keyHandle != null && result != nativeKeyHandleMismatch();
   }
 
   public int update(byte[] data, int offset, int dataLen, byte[] output)
       throws NativeGCMCipherException {
+    return update(data, offset, dataLen, output, 0);
+  }
+
+  /**
+   * Processes dataLen bytes of data and writes the result to output starting at outputOffset.
+   * The whole range is handed to the native library in a single call, so callers should pass
+   * chunks that are as large as they can afford. The output array may be the same array as the
+   * input array with the same offset to process data in place.
+   *
+   * @return the number of bytes written to output.
+   */
+  public int update(byte[] data, int offset, int dataLen, byte[] output, int outputOffset)
+      throws NativeGCMCipherException {
     ensureInInitalizedState();
-    int bytesRead = nativeUpdate(data, offset, dataLen, output);
+    checkBounds(data.length, offset, dataLen);
+    checkBounds(output.length, outputOffset, dataLen);
+    int bytesRead = nativeUpdate(data, offset, dataLen, output, outputOffset);
     if (bytesRead < 0) {
       throw new NativeGCMCipherException(
           formatStrLocaleSafe(
@@ -82,6 +165,176 @@ public class NativeGCMCipher {
     return bytesRead;
   }
 
+  /**
+   * Processes the remaining bytes of the input buffer and writes the result to the output buffer.
+   * Both buffers must be direct, which allows the native code to read and write them without
+   * staging the data through the java heap. The output buffer may be the same buffer as the input
+   * buffer to process data in place, but the buffers must not overlap otherwise.
+   * </p>
+   * On return the position of the input buffer is advanced to its limit and the position of the
+   * output buffer is advanced by the number of bytes written.
+   *
+   * @return the number of bytes written to the output buffer.
+   */
+  public int update(ByteBuffer input, ByteBuffer output)
+      throws NativeGCMCipherException {
+    ensureInInitalizedState();
+    Assertions.checkArgument(input.isDirect() && output.isDirect(), BUFFERS_NOT_DIRECT);
+
+    int inputPosition = input.position();
+    int outputPosition = output.position();
+    int dataLen = input.remaining();
+    Assertions.checkArgument(output.remaining() >= dataLen, OUTPUT_BUFFER_TOO_SMALL);
+
+    int bytesRead = nativeUpdateDirect(input, inputPosition, dataLen, output, outputPosition);
+    if (bytesRead < 0) {
+      throw new NativeGCMCipherException(
+          formatStrLocaleSafe(
+              "update: Position = %d; DataLen = %d; Result = %d",
+              inputPosition,
+              dataLen,
+              bytesRead));
+    }
+    input.position(inputPosition + dataLen);
+    output.position(outputPosition + bytesRead);
+    return bytesRead;
+  }
+
+  /**
+   * Encrypts dataLen bytes of data in a single native call. The key, iv and additional
+   * authenticated data are applied, the data is encrypted and the cipher text followed by the
+   * tag is written to output starting at outputOffset. output must have room for
+   * dataLen + {@link #TAG_LENGTH} bytes.
+   * </p>
+   * This is meant for small messages where the cost of initializing the cipher and crossing into
+   * native code several times dominates. The cipher must not be initialized and remains
+   * uninitialized afterwards, but keeps its native context for the next message.
+   */
+  public void encrypt(
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset)
+      throws NativeGCMCipherException, CryptoInitializationException {
+    encrypt(null, key, iv, aad, data, offset, dataLen, output, outputOffset);
+  }
+
+  /**
+   * Same as {@link #encrypt(byte[], byte[], byte[], byte[], int, int, byte[], int)} with a key
+   * that has already been imported into native memory.
+   */
+  public void encrypt(
+      KeyHandle keyHandle,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset)
+      throws NativeGCMCipherException, CryptoInitializationException {
+    keyHandle.ensureNotReleased();
+    encrypt(keyHandle, null, iv, aad, data, offset, dataLen, output, outputOffset);
+  }
+
+  /**
+   * Decrypts dataLen bytes of cipher text, which must be followed by the tag in data, in a single
+   * native call and writes the plain text to output starting at outputOffset. If the tag does
+   * not match, the output range is zeroed and an exception is thrown.
+   * </p>
+   * The cipher must not be initialized and remains uninitialized afterwards, but keeps its native
+   * context for the next message.
+   */
+  public void decrypt(
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset)
+      throws NativeGCMCipherException, CryptoInitializationException {
+    decrypt(null, key, iv, aad, data, offset, dataLen, output, outputOffset);
+  }
+
+  /**
+   * Same as {@link #decrypt(byte[], byte[], byte[], byte[], int, int, byte[], int)} with a key
+   * that has already been imported into native memory.
+   */
+  public void decrypt(
+      KeyHandle keyHandle,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset)
+      throws NativeGCMCipherException, CryptoInitializationException {
+    keyHandle.ensureNotReleased();
+    decrypt(keyHandle, null, iv, aad, data, offset, dataLen, output, outputOffset);
+  }
+
+  /**
+   * Encrypts in one native call. If both a key handle and a key are given, the handle is used
+   * when it holds the key and the key otherwise.
+   * @return true if the key handle was used.
+   */
+  /* package */ boolean encrypt(
+      KeyHandle keyHandle,
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset)
+      throws NativeGCMCipherException, CryptoInitializationException {
+    checkKey(key);
+    checkOneShotArguments(iv, aad, data, offset, dataLen, output);
+    checkBounds(output.length, outputOffset, dataLen + TAG_LENGTH);
+    int result = nativeEncrypt(keyHandle, key, iv, aad, data, offset, dataLen, output, outputOffset);
+    if (result == nativeFailure()) {
+      throw new NativeGCMCipherException(
+          formatStrLocaleSafe("encrypt: DataLen = %d", dataLen));
+    }
+    return keyHandle != null && result != nativeKeyHandleMismatch();
+  }
+
+  /**
+   * Decrypts in one native call. See
+   * {@link #encrypt(KeyHandle, byte[], byte[], byte[], byte[], int, int, byte[], int)}.
+   * @return true if the key handle was used.
+   */
+  /* package */ boolean decrypt(
+      KeyHandle keyHandle,
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset)
+      throws NativeGCMCipherException, CryptoInitializationException {
+    checkKey(key);
+    checkOneShotArguments(iv, aad, data, offset, dataLen + TAG_LENGTH, output);
+    checkBounds(output.length, outputOffset, dataLen);
+    int result = nativeDecrypt(keyHandle, key, iv, aad, data, offset, dataLen, output, outputOffset);
+    if (result == nativeFailure()) {
+      throw new NativeGCMCipherException(
+        "The message could not be decrypted successfully." +
+        "It has either been tampered with or the wrong resource is being decrypted.");
+    }
+    return keyHandle != null && result != nativeKeyHandleMismatch();
+  }
+
   public void updateAad(byte[] data, int dataLength)
       throws NativeGCMCipherException {
     ensureInInitalizedState();
@@ -111,12 +364,40 @@ public class NativeGCMCipher {
     }
   }
 
-  public void destroy() throws NativeGCMCipherException {
+  /**
+   * Makes a finalized cipher ready to be initialized for the next message while keeping the
+   * native context and key schedule.
+   */
+  public void reset() {
     ensureInFinalizedState();
+    mCurrentState = STATE.UNINITIALIZED;
+  }
+
+  /**
+   * Releases the cipher after a message has been finalized, or after one shot operations. If the
+   * cipher came from a {@link NativeGCMCipherPool} with room left, it is handed back to the pool
+   * with its native context intact. Otherwise the native context is freed.
+   */
+  public void destroy() throws NativeGCMCipherException {
+    ensureNotInInitializedState();
+    mCurrentState = STATE.UNINITIALIZED;
+    if (mPool != null && mPool.recycle(this)) {
+      return;
+    }
+    destroyNativeContext();
+  }
+
+  /* package */ void destroyNativeContext() throws NativeGCMCipherException {
+    if (mCtxPtr == 0) {
+      return;
+    }
     if (nativeDestroy() == nativeFailure()) {
       throw new NativeGCMCipherException("destroy");
     }
-    mCurrentState = STATE.UNINITIALIZED;
+  }
+
+  public int getTagLength() {
+    return TAG_LENGTH;
   }
 
   public int getCipherBlockSize() {
@@ -131,6 +412,13 @@ public class NativeGCMCipher {
     Assertions.checkState(initialized, CIPHER_NOT_INIT);
   }
 
+  private void ensureNotInInitializedState() {
+    boolean initialized =
+        mCurrentState == STATE.DECRYPT_INITIALIZED ||
+        mCurrentState == STATE.ENCRYPT_INITIALIZED;
+    Assertions.checkState(!initialized, CIPHER_NOT_FINALIZED);
+  }
+
   private void ensureInFinalizedState() {
     boolean finalized =
         mCurrentState == STATE.DECRYPT_FINALIZED ||
@@ -138,21 +426,88 @@ public class NativeGCMCipher {
     Assertions.checkState(finalized, CIPHER_NOT_FINALIZED);
   }
 
+  private void checkOneShotArguments(
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output)
+      throws CryptoInitializationException {
+    Assertions.checkState(mCurrentState == STATE.UNINITIALIZED, CIPHER_ALREADY_INIT);
+    checkIv(iv);
+    Assertions.checkArgument(aad != null, "Aad must not be null");
+    Assertions.checkArgument(data != output, IN_PLACE_NOT_SUPPORTED);
+    checkBounds(data.length, offset, dataLen);
+    mNativeCryptoLibrary.ensureCryptoLoaded();
+  }
+
+  private static void checkKey(byte[] key) {
+    // Callers passing only a key handle have no key to check.
+    Assertions.checkArgument(key == null || key.length == KEY_LENGTH, INVALID_KEY_LENGTH);
+  }
+
+  private static void checkIv(byte[] iv) {
+    Assertions.checkArgument(iv.length == IV_LENGTH, INVALID_IV_LENGTH);
+  }
+
+  private static void checkBounds(int arrayLength, int offset, int length) {
+    if (offset < 0 || length < 0 || arrayLength - offset < length) {
+      throw new ArrayIndexOutOfBoundsException(offset + length);
+    }
+  }
+
   private String formatStrLocaleSafe(String format, Object... args) {
     return String.format((Locale)null, format, args);
   }
 
   // Used to store the GCM cipher context.
   @DoNotStrip
-  private int mCtxPtr;
+  private long mCtxPtr;
 
   // The integer value representing failure in JNI world.
   private static native int nativeFailure();
 
-  private native int nativeEncryptInit(byte[] key, byte[] iv);
-  private native int nativeDecryptInit(byte[] key, byte[] iv);
+  // Returned instead of success when a key handle did not hold the key passed with it.
+  private static native int nativeKeyHandleMismatch();
+
+  // At least one of keyHandle and key is set.
+  private native int nativeEncryptInit(KeyHandle keyHandle, byte[] key, byte[] iv);
+  private native int nativeDecryptInit(KeyHandle keyHandle, byte[] key, byte[] iv);
+
+  private native int nativeUpdate(
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset);
+  private native int nativeUpdateDirect(
+      ByteBuffer data,
+      int offset,
+      int dataLen,
+      ByteBuffer output,
+      int outputOffset);
+  private native int nativeEncrypt(
+      KeyHandle keyHandle,
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset);
+  private native int nativeDecrypt(
+      KeyHandle keyHandle,
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset);
 
-  private native int nativeUpdate(byte[] data, int offset, int dataLen, byte[] output);
   private native int nativeUpdateAad(byte[] data, int dataLength);
 
   private native int nativeEncryptFinal(byte[] tag, int tagLen);
@@ -0,0 +1,216 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.cipher;
+
+import java.io.IOException;
+
+import com.facebook.crypto.exception.CryptoInitializationException;
+import com.facebook.crypto.util.NativeCryptoLibrary;
+
+/**
+ * A {@link CipherEngine} for AES-GCM backed by OpenSSL through {@link NativeGCMCipher}.
+ * </p>
+ * Ciphers are pooled so that their native contexts are reused, and the most recently used key is
+ * kept in a {@link KeyHandle} so that it is only expanded once.
+ */
+public class NativeGCMCipherEngine implements CipherEngine {
+
+  public static final byte CIPHER_ID = 1;
+
+  // Enough idle ciphers for a handful of threads encrypting concurrently.
+  private static final int MAX_POOLED_CIPHERS = 8;
+
+  private final NativeCryptoLibrary mNativeCryptoLibrary;
+  private final NativeGCMCipherPool mCipherPool;
+
+  // The last key imported into native memory. Only replaced while holding the engine lock.
+  private volatile KeyHandle mKeyHandle;
+
+  public NativeGCMCipherEngine(NativeCryptoLibrary nativeCryptoLibrary) {
+    this(
+        nativeCryptoLibrary,
+        new NativeGCMCipherPool(nativeCryptoLibrary, MAX_POOLED_CIPHERS));
+  }
+
+  /* package */ NativeGCMCipherEngine(
+      NativeCryptoLibrary nativeCryptoLibrary,
+      NativeGCMCipherPool cipherPool) {
+    mNativeCryptoLibrary = nativeCryptoLibrary;
+    mCipherPool = cipherPool;
+  }
+
+  @Override
+  public byte getCipherId() {
+    return CIPHER_ID;
+  }
+
+  @Override
+  public int getKeyLength() {
+    return NativeGCMCipher.KEY_LENGTH;
+  }
+
+  @Override
+  public int getIvLength() {
+    return NativeGCMCipher.IV_LENGTH;
+  }
+
+  @Override
+  public int getTagLength() {
+    return NativeGCMCipher.TAG_LENGTH;
+  }
+
+  @Override
+  public void ensureAvailable() throws CryptoInitializationException {
+    mNativeCryptoLibrary.ensureCryptoLoaded();
+  }
+
+  @Override
+  public AuthenticatedCipher newEncryptCipher(byte[] key, byte[] iv)
+      throws IOException, CryptoInitializationException {
+    return newCipher(key, iv, true);
+  }
+
+  @Override
+  public AuthenticatedCipher newDecryptCipher(byte[] key, byte[] iv)
+      throws IOException, CryptoInitializationException {
+    return newCipher(key, iv, false);
+  }
+
+  @Override
+  public void encrypt(
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset)
+      throws IOException, CryptoInitializationException {
+    KeyHandle keyHandle = retainKeyHandle(key);
+    NativeGCMCipher gcmCipher = mCipherPool.acquire();
+    boolean usedKeyHandle;
+    try {
+      usedKeyHandle =
+          gcmCipher.encrypt(keyHandle, key, iv, aad, data, offset, dataLen, output, outputOffset);
+    } finally {
+      keyHandle.release();
+      gcmCipher.destroy();
+    }
+    if (!usedKeyHandle) {
+      dropKeyHandle(keyHandle);
+    }
+  }
+
+  @Override
+  public void decrypt(
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      byte[] data,
+      int offset,
+      int dataLen,
+      byte[] output,
+      int outputOffset)
+      throws IOException, CryptoInitializationException {
+    KeyHandle keyHandle = retainKeyHandle(key);
+    NativeGCMCipher gcmCipher = mCipherPool.acquire();
+    boolean usedKeyHandle;
+    try {
+      usedKeyHandle =
+          gcmCipher.decrypt(keyHandle, key, iv, aad, data, offset, dataLen, output, outputOffset);
+    } finally {
+      keyHandle.release();
+      gcmCipher.destroy();
+    }
+    if (!usedKeyHandle) {
+      dropKeyHandle(keyHandle);
+    }
+  }
+
+  private NativeGCMCipher newCipher(byte[] key, byte[] iv, boolean encrypt)
+      throws IOException, CryptoInitializationException {
+    KeyHandle keyHandle = retainKeyHandle(key);
+    NativeGCMCipher gcmCipher = mCipherPool.acquire();
+    boolean initialized = false;
+    boolean usedKeyHandle;
+    try {
+      if (encrypt) {
+        usedKeyHandle = gcmCipher.encryptInit(keyHandle, key, iv);
+      } else {
+        usedKeyHandle = gcmCipher.decryptInit(keyHandle, key, iv);
+      }
+      initialized = true;
+    } finally {
+      try {
+        keyHandle.release();
+      } finally {
+        if (!initialized) {
+          // The cipher is still uninitialized, so it goes back to the pool with its context.
+          gcmCipher.destroy();
+        }
+      }
+    }
+    if (!usedKeyHandle) {
+      dropKeyHandle(keyHandle);
+    }
+    return gcmCipher;
+  }
+
+  /**
+   * Returns the handle of the last imported key with a reference taken for the caller, who must
+   * release it. A key is only imported when there is no handle. Whether the handle holds the
+   * caller's key is checked by the native call it is passed to, so the common case takes neither
+   * the engine lock nor a native call of its own.
+   */
+  private KeyHandle retainKeyHandle(byte[] key) throws IOException, CryptoInitializationException {
+    while (true) {
+      KeyHandle keyHandle = mKeyHandle;
+      if (keyHandle == null) {
+        keyHandle = importKeyHandle(key);
+      }
+      // The handle may have been dropped and freed since it was read.
+      if (keyHandle.retain()) {
+        return keyHandle;
+      }
+    }
+  }
+
+  private KeyHandle importKeyHandle(byte[] key)
+      throws IOException, CryptoInitializationException {
+    KeyHandle keyHandle = new KeyHandle(mNativeCryptoLibrary, key);
+    KeyHandle oldKeyHandle;
+    synchronized (this) {
+      oldKeyHandle = mKeyHandle;
+      mKeyHandle = keyHandle;
+    }
+    if (oldKeyHandle != null) {
+      oldKeyHandle.release();
+    }
+    return keyHandle;
+  }
+
+  /**
+   * Drops the handle once it no longer holds the key, for example after the key chain destroyed
+   * its keys, so that the next call imports the key again. Calls still using the handle hold
+   * their own reference.
+   */
+  private void dropKeyHandle(KeyHandle keyHandle) throws IOException {
+    synchronized (this) {
+      if (mKeyHandle != keyHandle) {
+        // Another call has already replaced it.
+        return;
+      }
+      mKeyHandle = null;
+    }
+    keyHandle.release();
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.cipher;
+
+import java.util.ArrayList;
+
+import com.facebook.crypto.util.NativeCryptoLibrary;
+
+/**
+ * A bounded pool of {@link NativeGCMCipher}s. Ciphers handed out by the pool return to it when
+ * they are destroyed, keeping their native context and key schedule, so that encrypting many
+ * messages does not allocate and free a native context and expand the key for each of them.
+ * </p>
+ * This class is thread safe.
+ */
+public class NativeGCMCipherPool {
+
+  private final NativeCryptoLibrary mNativeCryptoLibrary;
+  private final int mMaxSize;
+  private final ArrayList<NativeGCMCipher> mCiphers;
+
+  /**
+   * @param nativeCryptoLibrary The library used by the pooled ciphers.
+   * @param maxSize The maximum number of idle ciphers to keep around.
+   */
+  public NativeGCMCipherPool(NativeCryptoLibrary nativeCryptoLibrary, int maxSize) {
+    mNativeCryptoLibrary = nativeCryptoLibrary;
+    mMaxSize = maxSize;
+    mCiphers = new ArrayList<NativeGCMCipher>(maxSize);
+  }
+
+  /**
+   * Returns an uninitialized cipher, reusing an idle one if there is one.
+   */
+  public NativeGCMCipher acquire() {
+    synchronized (mCiphers) {
+      int size = mCiphers.size();
+      if (size > 0) {
+        return mCiphers.remove(size - 1);
+      }
+    }
+    return new NativeGCMCipher(mNativeCryptoLibrary, this);
+  }
+
+  /**
+   * Frees the native contexts of all idle ciphers.
+   */
+  public void clear() throws NativeGCMCipherException {
+    ArrayList<NativeGCMCipher> ciphers;
+    synchronized (mCiphers) {
+      ciphers = new ArrayList<NativeGCMCipher>(mCiphers);
+      mCiphers.clear();
+    }
+    for (NativeGCMCipher cipher : ciphers) {
+      cipher.destroyNativeContext();
+    }
+  }
+
+  /**
+   * The number of idle ciphers in the pool.
+   */
+  /* package */ int size() {
+    synchronized (mCiphers) {
+      return mCiphers.size();
+    }
+  }
+
+  /**
+   * Takes back a cipher that has been destroyed. A cipher destroyed again while it is idle is
+   * already in the pool, and its native context must be left alone.
+   * @return false if the pool is full, in which case the caller should free the cipher.
+   */
+  /* package */ boolean recycle(NativeGCMCipher cipher) {
+    synchronized (mCiphers) {
+      if (mCiphers.contains(cipher)) {
+        return true;
+      }
+      if (mCiphers.size() >= mMaxSize) {
+        return false;
+      }
+      mCiphers.add(cipher);
+      return true;
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.mac;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.facebook.crypto.exception.CryptoInitializationException;
+import com.facebook.crypto.util.Assertions;
+
+/**
+ * A {@link MacEngine} computing HMAC-SHA1 or HMAC-SHA256 with javax.crypto. It produces the same
+ * macs as {@link NativeMacEngine} and needs no native library.
+ */
+public class JavaMacEngine implements MacEngine {
+
+  private static final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
+  private static final String HMAC_SHA256_ALGORITHM = "HmacSHA256";
+
+  private final byte mMacId;
+
+  /**
+   * Creates an engine which computes HMAC-SHA1 macs.
+   */
+  public JavaMacEngine() {
+    this(HMAC_SHA1_MAC_ID);
+  }
+
+  /**
+   * Creates an engine which computes macs with the algorithm of macId, either
+   * {@link #HMAC_SHA1_MAC_ID} or {@link #HMAC_SHA256_MAC_ID}. Macs with the other ID can still be
+   * checked.
+   */
+  public JavaMacEngine(byte macId) {
+    Assertions.checkArgument(
+        macId == HMAC_SHA1_MAC_ID || macId == HMAC_SHA256_MAC_ID,
+        "Unsupported mac ID " + macId);
+    mMacId = macId;
+  }
+
+  @Override
+  public void ensureAvailable() throws CryptoInitializationException {
+    try {
+      Mac.getInstance(getAlgorithm(mMacId));
+    } catch (Throwable t) {
+      throw new CryptoInitializationException(t);
+    }
+  }
+
+  @Override
+  public byte getMacId() {
+    return mMacId;
+  }
+
+  @Override
+  public KeyedMac newMac(byte[] key) throws IOException, CryptoInitializationException {
+    return newMac(mMacId, key);
+  }
+
+  @Override
+  public KeyedMac newMac(byte macId, byte[] key)
+      throws IOException, CryptoInitializationException {
+    String algorithm = getAlgorithm(macId);
+    Mac mac;
+    try {
+      mac = Mac.getInstance(algorithm);
+    } catch (GeneralSecurityException e) {
+      throw new CryptoInitializationException(e);
+    }
+    try {
+      mac.init(new SecretKeySpec(key, algorithm));
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+    return new JavaMac(mac);
+  }
+
+  private static String getAlgorithm(byte macId) throws IOException {
+    switch (macId) {
+      case HMAC_SHA1_MAC_ID:
+        return HMAC_SHA1_ALGORITHM;
+      case HMAC_SHA256_MAC_ID:
+        return HMAC_SHA256_ALGORITHM;
+      default:
+        throw new IOException("Unsupported mac ID " + macId);
+    }
+  }
+
+  private static class JavaMac implements KeyedMac {
+
+    private final Mac mMac;
+
+    private JavaMac(Mac mac) {
+      mMac = mac;
+    }
+
+    @Override
+    public void update(byte read) {
+      mMac.update(read);
+    }
+
+    @Override
+    public void update(byte[] buffer, int offset, int len) {
+      mMac.update(buffer, offset, len);
+    }
+
+    @Override
+    public void update(ByteBuffer buffer) {
+      mMac.update(buffer);
+    }
+
+    @Override
+    public byte[] doFinal() {
+      return mMac.doFinal();
+    }
+
+    @Override
+    public void doFinal(byte[] output, int offset) throws IOException {
+      try {
+        mMac.doFinal(output, offset);
+      } catch (GeneralSecurityException e) {
+        throw new IOException(e);
+      }
+    }
+
+    @Override
+    public boolean verify(byte[] expected, int offset) {
+      byte[] mac = mMac.doFinal();
+      if (offset < 0 || expected.length - offset < mac.length) {
+        throw new ArrayIndexOutOfBoundsException(offset + mac.length);
+      }
+      int compare = 0;
+      for (int i = 0; i < mac.length; i++) {
+        compare |= mac[i] ^ expected[offset + i];
+      }
+      return compare == 0;
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    @Override
+    public int getMacLength() {
+      return mMac.getMacLength();
+    }
+  }
+}
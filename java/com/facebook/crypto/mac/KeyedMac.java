@@ -0,0 +1,54 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.mac;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A message authentication code that has been initialized with a key by a {@link MacEngine}.
+ */
+public interface KeyedMac {
+
+  public void update(byte read) throws IOException;
+
+  public void update(byte[] buffer, int offset, int len) throws IOException;
+
+  /**
+   * Adds the remaining bytes of the buffer and advances its position to its limit.
+   */
+  public void update(ByteBuffer buffer) throws IOException;
+
+  /**
+   * Finishes the computation and returns the mac.
+   */
+  public byte[] doFinal() throws IOException;
+
+  /**
+   * Finishes the computation and writes the mac to the output at the offset.
+   */
+  public void doFinal(byte[] output, int offset) throws IOException;
+
+  /**
+   * Finishes the computation and compares the mac with the one in expected at the offset, in
+   * constant time.
+   *
+   * @return whether the macs are equal.
+   */
+  public boolean verify(byte[] expected, int offset) throws IOException;
+
+  /**
+   * Releases the mac once it has been finalized.
+   */
+  public void destroy() throws IOException;
+
+  public int getMacLength();
+}
@@ -0,0 +1,57 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.mac;
+
+import java.io.IOException;
+
+import com.facebook.crypto.exception.CryptoInitializationException;
+
+/**
+ * An implementation of a message authentication code. Engines computing the same mac are
+ * interchangeable.
+ * </p>
+ * Implementations must be thread safe.
+ */
+public interface MacEngine {
+
+  /**
+   * Identifies HMAC-SHA1 in the mac header.
+   */
+  public static final byte HMAC_SHA1_MAC_ID = 1;
+
+  /**
+   * Identifies HMAC-SHA256 in the mac header.
+   */
+  public static final byte HMAC_SHA256_MAC_ID = 3;
+
+  /**
+   * Makes sure the engine can be used, loading native libraries if needed.
+   * @throws CryptoInitializationException if the engine is not usable on this device.
+   */
+  public void ensureAvailable() throws CryptoInitializationException;
+
+  /**
+   * The ID of the macs returned by {@link #newMac(byte[])}.
+   */
+  public byte getMacId();
+
+  /**
+   * Returns a mac initialized with the key.
+   */
+  public KeyedMac newMac(byte[] key) throws IOException, CryptoInitializationException;
+
+  /**
+   * Returns a mac of the algorithm with the given ID initialized with the key, so that macs
+   * written with another algorithm can still be checked.
+   * @throws IOException if the engine does not compute macs with this ID.
+   */
+  public KeyedMac newMac(byte macId, byte[] key) throws IOException, CryptoInitializationException;
+}
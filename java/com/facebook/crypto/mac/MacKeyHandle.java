@@ -0,0 +1,112 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.mac;
+
+import java.io.IOException;
+
+import com.facebook.crypto.exception.CryptoInitializationException;
+import com.facebook.crypto.util.Assertions;
+import com.facebook.crypto.util.NativeCryptoLibrary;
+import com.facebook.proguard.annotations.DoNotStrip;
+
+/**
+ * An opaque handle to an HMAC key held in native memory. The inner and outer digest states of
+ * the key are computed once when the handle is created. {@link NativeMac}s initialized with the
+ * handle start from a copy of them instead of hashing the padded key twice for every message.
+ * </p>
+ * The handle is reference counted in the same way as
+ * {@link com.facebook.crypto.cipher.KeyHandle}. Macs do not need the handle once they have been
+ * initialized.
+ * </p>
+ * This class is thread safe.
+ */
+@DoNotStrip
+public class MacKeyHandle {
+
+  private static final String HANDLE_RELEASED = "Mac key handle has been released";
+
+  private final NativeCryptoLibrary mNativeCryptoLibrary;
+  private final int mDigest;
+  private int mRefCount;
+
+  /**
+   * Imports the key into native memory.
+   * @param digest {@link NativeMac#HMAC_SHA1} or {@link NativeMac#HMAC_SHA256}.
+   */
+  public MacKeyHandle(NativeCryptoLibrary nativeCryptoLibrary, byte[] key, int digest)
+      throws IOException, CryptoInitializationException {
+    Assertions.checkArgument(
+        digest == NativeMac.HMAC_SHA1 || digest == NativeMac.HMAC_SHA256,
+        "Invalid digest");
+    mNativeCryptoLibrary = nativeCryptoLibrary;
+    mNativeCryptoLibrary.ensureCryptoLoaded();
+    if (nativeCreate(key, digest) == nativeFailure()) {
+      throw new IOException(NativeMac.FAILURE);
+    }
+    mDigest = digest;
+    mRefCount = 1;
+  }
+
+  public int getDigest() {
+    return mDigest;
+  }
+
+  /**
+   * Whether this handle holds the given key. The comparison takes the same time wherever keys of
+   * the same length differ.
+   */
+  public synchronized boolean matches(byte[] key) {
+    ensureNotReleased();
+    return nativeMatches(key);
+  }
+
+  /**
+   * Takes another reference to the handle.
+   * @return false if the handle has already been freed, in which case it must not be used.
+   */
+  public synchronized boolean retain() {
+    if (mRefCount == 0) {
+      return false;
+    }
+    ++mRefCount;
+    return true;
+  }
+
+  /**
+   * Drops a reference to the handle, freeing the native key when it was the last one.
+   */
+  public synchronized void release() throws IOException {
+    ensureNotReleased();
+    if (--mRefCount > 0) {
+      return;
+    }
+    if (nativeDestroy() == nativeFailure()) {
+      throw new IOException(NativeMac.FAILURE);
+    }
+  }
+
+  /* package */ synchronized void ensureNotReleased() {
+    Assertions.checkState(mRefCount > 0, HANDLE_RELEASED);
+  }
+
+  // Used to store the native key.
+  @DoNotStrip
+  private long mCtxPtr;
+
+  // The integer value representing failure in JNI world.
+  private static native int nativeFailure();
+
+  private native int nativeCreate(byte[] key, int digest);
+
+  private native boolean nativeMatches(byte[] key);
+
+  private native int nativeDestroy();
+}
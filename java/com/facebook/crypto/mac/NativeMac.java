@@ -11,6 +11,7 @@
 package com.facebook.crypto.mac;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import com.facebook.crypto.exception.CryptoInitializationException;
 import com.facebook.crypto.util.Assertions;
@@ -18,11 +19,17 @@ import com.facebook.crypto.util.NativeCryptoLibrary;
 import com.facebook.proguard.annotations.DoNotStrip;
 
 @DoNotStrip
-public class NativeMac {
+public class NativeMac implements KeyedMac {
 
   public static final String FAILURE = "Failure";
   public static final int KEY_LENGTH = 64;
 
+  /**
+   * The digests macs can be computed with.
+   */
+  public static final int HMAC_SHA1 = 1;
+  public static final int HMAC_SHA256 = 2;
+
   private static final String MAC_ALREADY_INIT = "Mac has already been initialized";
   private static final String MAC_NOT_INIT = "Mac has not been initialized";
   private static final String MAC_NOT_FINALIZED = "Mac has not been finalized";
@@ -42,9 +49,34 @@ public class NativeMac {
   }
 
   public void init(byte[] key, int len) throws CryptoInitializationException, IOException {
+    init(key, len, HMAC_SHA1);
+  }
+
+  /**
+   * Initializes the mac with the key for the given digest, {@link #HMAC_SHA1} or
+   * {@link #HMAC_SHA256}.
+   */
+  public void init(byte[] key, int len, int digest)
+      throws CryptoInitializationException, IOException {
+    Assertions.checkState(mCurrentState == STATE.UNINITIALIZED, MAC_ALREADY_INIT);
+    Assertions.checkArgument(digest == HMAC_SHA1 || digest == HMAC_SHA256, "Invalid digest");
+    mNativeCryptoLibrary.ensureCryptoLoaded();
+    if (nativeInit(key, len, digest) == nativeFailure()) {
+      throw new IOException(FAILURE);
+    }
+    mCurrentState = STATE.INITIALIZED;
+  }
+
+  /**
+   * Initializes the mac with a key that has already been imported into native memory, which
+   * copies its precomputed digest states instead of hashing the key again. The handle must not be
+   * released before this returns, but is no longer needed afterwards.
+   */
+  public void init(MacKeyHandle keyHandle) throws CryptoInitializationException, IOException {
     Assertions.checkState(mCurrentState == STATE.UNINITIALIZED, MAC_ALREADY_INIT);
+    keyHandle.ensureNotReleased();
     mNativeCryptoLibrary.ensureCryptoLoaded();
-    if (nativeInit(key, len) == nativeFailure()) {
+    if (nativeInitFromKeyHandle(keyHandle) == nativeFailure()) {
       throw new IOException(FAILURE);
     }
     mCurrentState = STATE.INITIALIZED;
@@ -59,11 +91,38 @@ public class NativeMac {
 
   public void update(byte[] buffer, int offset, int len) throws IOException {
     Assertions.checkState(mCurrentState == STATE.INITIALIZED, MAC_NOT_INIT);
+    // The native code reads the array in place, so the range must be checked here.
+    if (offset < 0 || len < 0 || buffer.length - offset < len) {
+      throw new ArrayIndexOutOfBoundsException(offset + len);
+    }
     if (nativeUpdate(buffer, offset, len) == nativeFailure()) {
       throw new IOException(FAILURE);
     }
   }
 
+  /**
+   * Adds the remaining bytes of the buffer. Direct buffers are read by the native code where
+   * they are, without a copy.
+   */
+  public void update(ByteBuffer buffer) throws IOException {
+    Assertions.checkState(mCurrentState == STATE.INITIALIZED, MAC_NOT_INIT);
+    int position = buffer.position();
+    int len = buffer.remaining();
+    if (buffer.isDirect()) {
+      if (nativeUpdateDirect(buffer, position, len) == nativeFailure()) {
+        throw new IOException(FAILURE);
+      }
+      buffer.position(position + len);
+    } else if (buffer.hasArray()) {
+      update(buffer.array(), buffer.arrayOffset() + position, len);
+      buffer.position(position + len);
+    } else {
+      byte[] bytes = new byte[len];
+      buffer.get(bytes);
+      update(bytes, 0, len);
+    }
+  }
+
   public byte[] doFinal() throws IOException {
     Assertions.checkState(mCurrentState == STATE.INITIALIZED, MAC_NOT_INIT);
     mCurrentState = STATE.FINALIZED;
@@ -75,6 +134,29 @@ public class NativeMac {
     return toReturn;
   }
 
+  /**
+   * Finishes the computation and writes the mac to output at offset, without allocating.
+   */
+  public void doFinal(byte[] output, int offset) throws IOException {
+    Assertions.checkState(mCurrentState == STATE.INITIALIZED, MAC_NOT_INIT);
+    checkMacBounds(output, offset);
+    mCurrentState = STATE.FINALIZED;
+    if (nativeDoFinalInto(output, offset) == nativeFailure()) {
+      throw new IOException(FAILURE);
+    }
+  }
+
+  /**
+   * Finishes the computation and compares the mac with the expected one at offset in constant
+   * time. The comparison happens in native code, so the mac is never copied into java.
+   */
+  public boolean verify(byte[] expected, int offset) throws IOException {
+    Assertions.checkState(mCurrentState == STATE.INITIALIZED, MAC_NOT_INIT);
+    checkMacBounds(expected, offset);
+    mCurrentState = STATE.FINALIZED;
+    return nativeVerify(expected, offset) != nativeFailure();
+  }
+
   public void destroy() throws IOException {
     Assertions.checkState(mCurrentState == STATE.FINALIZED, MAC_NOT_FINALIZED);
     if (nativeDestroy() == nativeFailure()) {
@@ -87,19 +169,30 @@ public class NativeMac {
     return nativeGetMacLength();
   }
 
+  private void checkMacBounds(byte[] buffer, int offset) {
+    int length = getMacLength();
+    if (offset < 0 || buffer.length - offset < length) {
+      throw new ArrayIndexOutOfBoundsException(offset + length);
+    }
+  }
+
   // Used to store the HMAC context.
   @DoNotStrip
-  private int mCtxPtr;
+  private long mCtxPtr;
 
   // The integer value representing failure in JNI world.
   private static native int nativeFailure();
 
-  private native int nativeInit(byte[] key, int len);
+  private native int nativeInit(byte[] key, int len, int digest);
+  private native int nativeInitFromKeyHandle(MacKeyHandle keyHandle);
 
   private native int nativeUpdate(byte read);
   private native int nativeUpdate(byte[] buffer, int offset, int len);
+  private native int nativeUpdateDirect(ByteBuffer buffer, int offset, int len);
 
   private native byte[] nativeDoFinal();
+  private native int nativeDoFinalInto(byte[] output, int offset);
+  private native int nativeVerify(byte[] expected, int offset);
 
   private native int nativeDestroy();
 
@@ -0,0 +1,124 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.mac;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.facebook.crypto.exception.CryptoInitializationException;
+import com.facebook.crypto.util.Assertions;
+import com.facebook.crypto.util.NativeCryptoLibrary;
+
+/**
+ * A {@link MacEngine} computing HMAC-SHA1 or HMAC-SHA256 natively through {@link NativeMac}.
+ * </p>
+ * The most recently used keys are kept in {@link MacKeyHandle}s, so that the keyed digest states
+ * are computed once per key rather than once per mac.
+ */
+public class NativeMacEngine implements MacEngine {
+
+  // Enough for the mac key and the search token key of each digest.
+  private static final int MAX_KEY_HANDLES = 4;
+
+  private final NativeCryptoLibrary mNativeCryptoLibrary;
+  private final byte mMacId;
+
+  // The keys last imported into native memory, the most recently used first.
+  private final List<MacKeyHandle> mKeyHandles = new ArrayList<MacKeyHandle>();
+
+  /**
+   * Creates an engine which computes HMAC-SHA1 macs.
+   */
+  public NativeMacEngine(NativeCryptoLibrary nativeCryptoLibrary) {
+    this(nativeCryptoLibrary, HMAC_SHA1_MAC_ID);
+  }
+
+  /**
+   * Creates an engine which computes macs with the algorithm of macId, either
+   * {@link #HMAC_SHA1_MAC_ID} or {@link #HMAC_SHA256_MAC_ID}. Macs with the other ID can still be
+   * checked.
+   */
+  public NativeMacEngine(NativeCryptoLibrary nativeCryptoLibrary, byte macId) {
+    Assertions.checkArgument(
+        macId == HMAC_SHA1_MAC_ID || macId == HMAC_SHA256_MAC_ID,
+        "Unsupported mac ID " + macId);
+    mNativeCryptoLibrary = nativeCryptoLibrary;
+    mMacId = macId;
+  }
+
+  @Override
+  public void ensureAvailable() throws CryptoInitializationException {
+    mNativeCryptoLibrary.ensureCryptoLoaded();
+  }
+
+  @Override
+  public byte getMacId() {
+    return mMacId;
+  }
+
+  @Override
+  public KeyedMac newMac(byte[] key) throws IOException, CryptoInitializationException {
+    return newMac(mMacId, key);
+  }
+
+  @Override
+  public KeyedMac newMac(byte macId, byte[] key)
+      throws IOException, CryptoInitializationException {
+    int digest = getDigest(macId);
+    MacKeyHandle keyHandle = acquireKeyHandle(key, digest);
+    NativeMac nativeMac = new NativeMac(mNativeCryptoLibrary);
+    try {
+      nativeMac.init(keyHandle);
+    } finally {
+      keyHandle.release();
+    }
+    return nativeMac;
+  }
+
+  /**
+   * Returns the handle for the key with a reference taken for the caller, who must release it.
+   * A key which is not among the last ones used, for example after the key chain destroyed its
+   * keys, is imported and replaces the least recently used handle.
+   */
+  private synchronized MacKeyHandle acquireKeyHandle(byte[] key, int digest)
+      throws IOException, CryptoInitializationException {
+    MacKeyHandle keyHandle = null;
+    for (int i = 0; i < mKeyHandles.size(); i++) {
+      MacKeyHandle candidate = mKeyHandles.get(i);
+      if (candidate.getDigest() == digest && candidate.matches(key)) {
+        keyHandle = mKeyHandles.remove(i);
+        break;
+      }
+    }
+    if (keyHandle == null) {
+      keyHandle = new MacKeyHandle(mNativeCryptoLibrary, key, digest);
+      if (mKeyHandles.size() == MAX_KEY_HANDLES) {
+        // Macs still being initialized with the old key hold their own reference.
+        mKeyHandles.remove(MAX_KEY_HANDLES - 1).release();
+      }
+    }
+    mKeyHandles.add(0, keyHandle);
+    keyHandle.retain();
+    return keyHandle;
+  }
+
+  private static int getDigest(byte macId) throws IOException {
+    switch (macId) {
+      case HMAC_SHA1_MAC_ID:
+        return NativeMac.HMAC_SHA1;
+      case HMAC_SHA256_MAC_ID:
+        return NativeMac.HMAC_SHA256;
+      default:
+        throw new IOException("Unsupported mac ID " + macId);
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.streams;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.facebook.crypto.cipher.AuthenticatedCipher;
+
+/**
+ * Decrypts a publisher of cipher text buffers, split anywhere, into plain text buffers without
+ * a thread of its own. The header is collected first and handed to a {@link CipherFactory}, and
+ * the last tag length bytes received are always held back, like {@link TailInputStream} does,
+ * so that the tag is never decrypted.
+ * </p>
+ * As with {@link NativeGCMCipherInputStream}, plain text is emitted before the tag has been
+ * checked. The data is only authentic once the subscriber receives onComplete; if the tag does
+ * not match it receives onError with an IOException instead.
+ */
+public class CipherDecryptProcessor extends CipherProcessor {
+
+  /**
+   * Creates the cipher once the header has been received.
+   */
+  public interface CipherFactory {
+
+    /**
+     * @return a cipher initialized for the message and its authenticated data.
+     * @throws IOException if the header is not supported.
+     */
+    public AuthenticatedCipher newDecryptCipher(byte[] header) throws IOException;
+  }
+
+  private final CipherFactory mCipherFactory;
+  private final byte[] mHeader;
+  private int mHeaderLength;
+  private AuthenticatedCipher mCipher;
+  private byte[] mTail = new byte[0];
+  private boolean mFinalized;
+
+  /**
+   * @param headerLength The number of bytes in front of the cipher text.
+   * @param cipherFactory Creates the cipher from the header.
+   */
+  public CipherDecryptProcessor(int headerLength, CipherFactory cipherFactory) {
+    mCipherFactory = cipherFactory;
+    mHeader = new byte[headerLength];
+  }
+
+  @Override
+  protected ByteBuffer process(ByteBuffer input) throws IOException {
+    input = input.duplicate();
+    if (mHeaderLength < mHeader.length) {
+      int count = Math.min(input.remaining(), mHeader.length - mHeaderLength);
+      input.get(mHeader, mHeaderLength, count);
+      mHeaderLength += count;
+      if (mHeaderLength < mHeader.length) {
+        return null;
+      }
+      mCipher = mCipherFactory.newDecryptCipher(mHeader);
+    }
+
+    // Decrypts all but the last tag length bytes of the held back bytes followed by the input.
+    int total = mTail.length + input.remaining();
+    int length = total - mCipher.getTagLength();
+    if (length <= 0) {
+      byte[] tail = new byte[total];
+      System.arraycopy(mTail, 0, tail, 0, mTail.length);
+      input.get(tail, mTail.length, input.remaining());
+      mTail = tail;
+      return null;
+    }
+    byte[] data = new byte[total];
+    System.arraycopy(mTail, 0, data, 0, mTail.length);
+    input.get(data, mTail.length, input.remaining());
+    mCipher.update(data, 0, length, data, 0);
+    mTail = new byte[total - length];
+    System.arraycopy(data, length, mTail, 0, mTail.length);
+    return ByteBuffer.wrap(data, 0, length).slice();
+  }
+
+  @Override
+  protected ByteBuffer finish() throws IOException {
+    if (mCipher == null) {
+      throw new IOException("Not enough bytes for the header: " + mHeaderLength);
+    }
+    mFinalized = true;
+    int tagLength = mCipher.getTagLength();
+    boolean complete = mTail.length == tagLength;
+    try {
+      // Finalizes the cipher even without a tag, so that it can be released.
+      mCipher.decryptFinal(complete ? mTail : new byte[tagLength], tagLength);
+    } catch (IOException e) {
+      if (complete) {
+        throw e;
+      }
+    } finally {
+      mCipher.destroy();
+    }
+    if (!complete) {
+      throw new IOException("Not enough bytes for the tag: " + mTail.length);
+    }
+    return null;
+  }
+
+  @Override
+  protected void abort() {
+    if (mCipher == null || mFinalized) {
+      return;
+    }
+    mFinalized = true;
+    try {
+      try {
+        mCipher.decryptFinal(new byte[mCipher.getTagLength()], mCipher.getTagLength());
+      } finally {
+        mCipher.destroy();
+      }
+    } catch (IOException e) {
+      // The message is abandoned anyway.
+    }
+  }
+}
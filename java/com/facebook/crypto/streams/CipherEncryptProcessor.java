@@ -0,0 +1,103 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.streams;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.facebook.crypto.cipher.AuthenticatedCipher;
+
+/**
+ * Encrypts a publisher of plain text buffers into cipher text buffers, without a thread of its
+ * own. Each plain text buffer becomes one cipher text buffer of the same length, with the header
+ * in front of the first one, and the tag is emitted as the final buffer. Concatenated, the
+ * buffers are in the same format as {@link NativeGCMCipherOutputStream} writes.
+ * </p>
+ * Direct buffers are encrypted into new direct buffers, other buffers into new heap buffers.
+ * Buffers received are not modified, and buffers emitted are not used again.
+ */
+public class CipherEncryptProcessor extends CipherProcessor {
+
+  private final AuthenticatedCipher mCipher;
+  private byte[] mHeader;
+  private boolean mFinalized;
+
+  /**
+   * @param cipher The cipher to encrypt with, initialized with the authenticated data.
+   * @param header The bytes to emit before the cipher text.
+   */
+  public CipherEncryptProcessor(AuthenticatedCipher cipher, byte[] header) {
+    mCipher = cipher;
+    mHeader = header;
+  }
+
+  @Override
+  protected ByteBuffer process(ByteBuffer input) throws IOException {
+    int headerLength = mHeader == null ? 0 : mHeader.length;
+    int length = input.remaining();
+    ByteBuffer output;
+    if (input.isDirect()) {
+      output = ByteBuffer.allocateDirect(headerLength + length);
+      putHeader(output);
+      mCipher.update(input.duplicate(), output);
+    } else {
+      byte[] data = new byte[headerLength + length];
+      input.duplicate().get(data, headerLength, length);
+      mCipher.update(data, headerLength, length, data, headerLength);
+      output = ByteBuffer.wrap(data);
+      putHeader(output);
+      output.position(data.length);
+    }
+    output.flip();
+    return output;
+  }
+
+  @Override
+  protected ByteBuffer finish() throws IOException {
+    byte[] tag = new byte[mCipher.getTagLength()];
+    mFinalized = true;
+    try {
+      mCipher.encryptFinal(tag, tag.length);
+    } finally {
+      mCipher.destroy();
+    }
+    ByteBuffer output = ByteBuffer.allocate((mHeader == null ? 0 : mHeader.length) + tag.length);
+    putHeader(output);
+    output.put(tag);
+    output.flip();
+    return output;
+  }
+
+  @Override
+  protected void abort() {
+    if (mFinalized) {
+      return;
+    }
+    mFinalized = true;
+    try {
+      try {
+        byte[] tag = new byte[mCipher.getTagLength()];
+        mCipher.encryptFinal(tag, tag.length);
+      } finally {
+        mCipher.destroy();
+      }
+    } catch (IOException e) {
+      // The message is abandoned anyway.
+    }
+  }
+
+  private void putHeader(ByteBuffer output) {
+    if (mHeader != null) {
+      output.put(mHeader);
+      mHeader = null;
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.streams;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The demand handling shared by {@link CipherEncryptProcessor} and
+ * {@link CipherDecryptProcessor}. Every buffer received from upstream is transformed into at most
+ * one buffer for the subscriber, so demand is forwarded upstream as it is requested. When a
+ * buffer produces no output, one more buffer is requested in its place. An optional last buffer
+ * is emitted once upstream completes and the subscriber has demand for it.
+ * </p>
+ * Signals are serialized with the lock of the processor, and may be delivered from the thread
+ * of either the publisher or the subscriber.
+ */
+/* package */ abstract class CipherProcessor implements Flow.Processor<ByteBuffer, ByteBuffer> {
+
+  private Flow.Subscriber<? super ByteBuffer> mSubscriber;
+  private Flow.Subscription mUpstream;
+
+  // Requested by the subscriber and not yet delivered.
+  private long mDemand;
+  // Requested by the subscriber before there was an upstream subscription.
+  private long mUnforwardedDemand;
+
+  private boolean mUpstreamDone;
+  private boolean mFinished;
+  private ByteBuffer mLastBuffer;
+  private Throwable mError;
+  private boolean mTerminated;
+
+  /**
+   * Transforms a buffer from upstream without modifying it.
+   * @return the buffer to emit, or null if there is nothing to emit yet.
+   */
+  protected abstract ByteBuffer process(ByteBuffer input) throws IOException;
+
+  /**
+   * Called when upstream completes.
+   * @return the last buffer to emit, or null.
+   */
+  protected abstract ByteBuffer finish() throws IOException;
+
+  /**
+   * Releases the cipher if the processor fails or is cancelled before it finishes.
+   */
+  protected abstract void abort();
+
+  @Override
+  public synchronized void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+    if (mSubscriber != null) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+      });
+      subscriber.onError(new IllegalStateException("The processor already has a subscriber"));
+      return;
+    }
+    mSubscriber = subscriber;
+    subscriber.onSubscribe(new DownstreamSubscription());
+    if (mError != null) {
+      fail(mError);
+    } else {
+      drain();
+    }
+  }
+
+  @Override
+  public synchronized void onSubscribe(Flow.Subscription subscription) {
+    if (mUpstream != null || mTerminated) {
+      subscription.cancel();
+      return;
+    }
+    mUpstream = subscription;
+    if (mUnforwardedDemand > 0) {
+      long n = mUnforwardedDemand;
+      mUnforwardedDemand = 0;
+      subscription.request(n);
+    }
+  }
+
+  @Override
+  public synchronized void onNext(ByteBuffer item) {
+    if (mTerminated || mUpstreamDone) {
+      return;
+    }
+    ByteBuffer output;
+    try {
+      output = process(item);
+    } catch (IOException e) {
+      mUpstreamDone = true;
+      mUpstream.cancel();
+      abort();
+      fail(e);
+      return;
+    }
+    if (output == null) {
+      mUpstream.request(1);
+      return;
+    }
+    mDemand--;
+    mSubscriber.onNext(output);
+  }
+
+  @Override
+  public synchronized void onError(Throwable throwable) {
+    if (mTerminated || mUpstreamDone) {
+      return;
+    }
+    mUpstreamDone = true;
+    abort();
+    fail(throwable);
+  }
+
+  @Override
+  public synchronized void onComplete() {
+    if (mTerminated || mUpstreamDone) {
+      return;
+    }
+    mUpstreamDone = true;
+    try {
+      mLastBuffer = finish();
+    } catch (IOException e) {
+      fail(e);
+      return;
+    }
+    mFinished = true;
+    drain();
+  }
+
+  private synchronized void request(long n) {
+    if (mTerminated) {
+      return;
+    }
+    if (n <= 0) {
+      cancel();
+      fail(new IllegalArgumentException("Non-positive request: " + n));
+      return;
+    }
+    mDemand = addCapped(mDemand, n);
+    if (mUpstream == null) {
+      mUnforwardedDemand = addCapped(mUnforwardedDemand, n);
+    } else if (!mUpstreamDone) {
+      mUpstream.request(n);
+    }
+    drain();
+  }
+
+  private synchronized void cancel() {
+    if (mTerminated) {
+      return;
+    }
+    mTerminated = true;
+    if (!mUpstreamDone) {
+      mUpstreamDone = true;
+      if (mUpstream != null) {
+        mUpstream.cancel();
+      }
+      abort();
+    }
+  }
+
+  /**
+   * Emits the last buffer and completes once upstream has completed.
+   */
+  private void drain() {
+    if (mTerminated || mSubscriber == null || !mFinished) {
+      return;
+    }
+    if (mLastBuffer != null) {
+      if (mDemand == 0) {
+        return;
+      }
+      mDemand--;
+      ByteBuffer lastBuffer = mLastBuffer;
+      mLastBuffer = null;
+      mSubscriber.onNext(lastBuffer);
+    }
+    mTerminated = true;
+    mSubscriber.onComplete();
+  }
+
+  private void fail(Throwable throwable) {
+    if (mSubscriber == null) {
+      // Delivered when the subscriber arrives.
+      mError = throwable;
+      return;
+    }
+    mTerminated = true;
+    mSubscriber.onError(throwable);
+  }
+
+  private static long addCapped(long a, long b) {
+    long sum = a + b;
+    return sum < 0 ? Long.MAX_VALUE : sum;
+  }
+
+  private class DownstreamSubscription implements Flow.Subscription {
+
+    @Override
+    public void request(long n) {
+      CipherProcessor.this.request(n);
+    }
+
+    @Override
+    public void cancel() {
+      CipherProcessor.this.cancel();
+    }
+  }
+}
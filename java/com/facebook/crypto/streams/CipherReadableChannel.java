@@ -0,0 +1,177 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.streams;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+
+import com.facebook.crypto.cipher.AuthenticatedCipher;
+
+/**
+ * The channel counterpart of {@link NativeGCMCipherInputStream}. Encrypted bytes are read from the
+ * delegate channel into a direct buffer which always holds back the last tag length bytes, like
+ * {@link TailInputStream} does for streams, so that the tag is never decrypted. Direct
+ * destination buffers are decrypted into as they are; heap buffers receive a copy.
+ * </p>
+ * As with the stream, the channel must be read to the end, i.e. till -1, which is when the tag is
+ * checked. Closing the channel early fails the check. Non-blocking delegates are supported, in
+ * which case reads may return 0.
+ */
+public class CipherReadableChannel implements ScatteringByteChannel {
+
+  private static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+  private final ReadableByteChannel mCipherDelegate;
+  private final AuthenticatedCipher mCipher;
+  private final int mTagLength;
+  // In write mode: the bytes read from the delegate which haven't been decrypted yet.
+  private final ByteBuffer mCipherBuffer;
+  private ByteBuffer mPlainBuffer;
+
+  private boolean mEndOfInput;
+  private boolean mTagChecked;
+  private boolean mClosed;
+
+  public CipherReadableChannel(ReadableByteChannel cipherDelegate, AuthenticatedCipher cipher) {
+    this(cipherDelegate, cipher, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param cipherDelegate The channel to read encrypted bytes from.
+   * @param cipher The cipher used to decrypt the bytes.
+   * @param bufferSize The maximum number of bytes decrypted per cipher call.
+   */
+  public CipherReadableChannel(
+      ReadableByteChannel cipherDelegate,
+      AuthenticatedCipher cipher,
+      int bufferSize) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("Buffer size must be positive");
+    }
+    mCipherDelegate = cipherDelegate;
+    mCipher = cipher;
+    mTagLength = cipher.getTagLength();
+    mCipherBuffer = ByteBuffer.allocateDirect(bufferSize + mTagLength);
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    ensureOpen();
+    if (mTagChecked) {
+      return -1;
+    }
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+
+    int pending;
+    while ((pending = mCipherBuffer.position() - mTagLength) <= 0) {
+      if (mEndOfInput) {
+        ensureTagValid();
+        return -1;
+      }
+      int read = mCipherDelegate.read(mCipherBuffer);
+      if (read == -1) {
+        mEndOfInput = true;
+      } else if (read == 0) {
+        return 0;
+      }
+    }
+
+    int count = Math.min(pending, dst.remaining());
+    mCipherBuffer.flip();
+    ByteBuffer input = mCipherBuffer.duplicate();
+    input.limit(count);
+    if (dst.isDirect()) {
+      mCipher.update(input, dst);
+    } else {
+      if (mPlainBuffer == null) {
+        mPlainBuffer = ByteBuffer.allocateDirect(mCipherBuffer.capacity() - mTagLength);
+      }
+      mPlainBuffer.clear();
+      mCipher.update(input, mPlainBuffer);
+      mPlainBuffer.flip();
+      dst.put(mPlainBuffer);
+    }
+    mCipherBuffer.position(count);
+    mCipherBuffer.compact();
+    return count;
+  }
+
+  @Override
+  public long read(ByteBuffer[] dsts) throws IOException {
+    return read(dsts, 0, dsts.length);
+  }
+
+  @Override
+  public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+    if (offset < 0 || length < 0 || dsts.length - offset < length) {
+      throw new IndexOutOfBoundsException();
+    }
+    long total = 0;
+    for (int i = offset; i < offset + length; i++) {
+      while (dsts[i].hasRemaining()) {
+        int read = read(dsts[i]);
+        if (read <= 0) {
+          return total == 0 && read == -1 ? -1 : total;
+        }
+        total += read;
+      }
+    }
+    return total;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !mClosed;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+    try {
+      ensureTagValid();
+    } finally {
+      mClosed = true;
+      mCipherDelegate.close();
+    }
+  }
+
+  private void ensureTagValid() throws IOException {
+    if (mTagChecked) {
+      return;
+    }
+
+    // The cipher is finalized and destroyed below, so this must not run again.
+    mTagChecked = true;
+    byte[] tag = new byte[mTagLength];
+    int tagBytes = mCipherBuffer.position();
+    mCipherBuffer.flip();
+    mCipherBuffer.position(Math.max(0, tagBytes - mTagLength));
+    mCipherBuffer.get(tag, 0, Math.min(tagBytes, mTagLength));
+    try {
+      mCipher.decryptFinal(tag, mTagLength);
+    } finally {
+      mCipher.destroy();
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (mClosed) {
+      throw new ClosedChannelException();
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.streams;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import com.facebook.crypto.cipher.AuthenticatedCipher;
+
+/**
+ * The channel counterpart of {@link NativeGCMCipherOutputStream}. Buffers written to it are
+ * encrypted into a direct buffer, one cipher call per chunk, and written to the delegate channel.
+ * Direct source buffers are handed to the cipher as they are; heap buffers are first copied into
+ * a direct buffer. The tag is written when the channel is closed.
+ * </p>
+ * The delegate must be in blocking mode.
+ */
+public class CipherWritableChannel implements GatheringByteChannel {
+
+  private static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+  private final WritableByteChannel mCipherDelegate;
+  private final AuthenticatedCipher mCipher;
+  private final ByteBuffer mCipherBuffer;
+  private ByteBuffer mPlainBuffer;
+  private boolean mClosed;
+
+  public CipherWritableChannel(WritableByteChannel cipherDelegate, AuthenticatedCipher cipher) {
+    this(cipherDelegate, cipher, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param cipherDelegate The channel to write encrypted bytes to.
+   * @param cipher The cipher used to encrypt the bytes.
+   * @param bufferSize The number of bytes encrypted per cipher call.
+   */
+  public CipherWritableChannel(
+      WritableByteChannel cipherDelegate,
+      AuthenticatedCipher cipher,
+      int bufferSize) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("Buffer size must be positive");
+    }
+    mCipherDelegate = cipherDelegate;
+    mCipher = cipher;
+    mCipherBuffer = ByteBuffer.allocateDirect(bufferSize);
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    ensureOpen();
+    int written = 0;
+    while (src.hasRemaining()) {
+      int chunk = Math.min(src.remaining(), mCipherBuffer.capacity());
+      ByteBuffer input = src.duplicate();
+      input.limit(input.position() + chunk);
+      if (!input.isDirect()) {
+        input = copyToPlainBuffer(input);
+      }
+      mCipherBuffer.clear();
+      mCipher.update(input, mCipherBuffer);
+      src.position(src.position() + chunk);
+      written += chunk;
+
+      mCipherBuffer.flip();
+      writeFully(mCipherDelegate, mCipherBuffer);
+    }
+    return written;
+  }
+
+  @Override
+  public long write(ByteBuffer[] srcs) throws IOException {
+    return write(srcs, 0, srcs.length);
+  }
+
+  @Override
+  public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+    if (offset < 0 || length < 0 || srcs.length - offset < length) {
+      throw new IndexOutOfBoundsException();
+    }
+    long written = 0;
+    for (int i = offset; i < offset + length; i++) {
+      written += write(srcs[i]);
+    }
+    return written;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !mClosed;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    try {
+      byte[] tag = new byte[mCipher.getTagLength()];
+      mCipher.encryptFinal(tag, tag.length);
+      writeFully(mCipherDelegate, ByteBuffer.wrap(tag));
+    } finally {
+      try {
+        mCipher.destroy();
+      } finally {
+        mCipherDelegate.close();
+      }
+    }
+  }
+
+  private ByteBuffer copyToPlainBuffer(ByteBuffer input) {
+    if (mPlainBuffer == null) {
+      mPlainBuffer = ByteBuffer.allocateDirect(mCipherBuffer.capacity());
+    }
+    mPlainBuffer.clear();
+    mPlainBuffer.put(input);
+    mPlainBuffer.flip();
+    return mPlainBuffer;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (mClosed) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  private static void writeFully(WritableByteChannel channel, ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+}
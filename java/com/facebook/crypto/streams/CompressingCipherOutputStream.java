@@ -0,0 +1,117 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.streams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import com.facebook.crypto.cipher.AuthenticatedCipher;
+
+/**
+ * Compresses with deflate and encrypts with an {@link AuthenticatedCipher} in one stage: the
+ * deflater writes into the encrypt buffer, which is encrypted in place and written out, so the
+ * compressed bytes are never copied between streams. The tag follows the cipher text, as with
+ * {@link NativeGCMCipherOutputStream}.
+ * </p>
+ * Deflate buffers its input, so {@link #flush()} only flushes the bytes it has already produced.
+ * The stream must be closed to write the rest of the data and the tag.
+ */
+public class CompressingCipherOutputStream extends OutputStream {
+
+  private static final int DEFAULT_ENCRYPT_BUFFER_SIZE = 8 * 1024;
+
+  private final OutputStream mCipherDelegate;
+  private final AuthenticatedCipher mCipher;
+  private final Deflater mDeflater;
+  private final byte[] mUpdateBuffer = new byte[DEFAULT_ENCRYPT_BUFFER_SIZE];
+  private final byte[] mSingleByte = new byte[1];
+  private boolean mClosed;
+
+  /**
+   * Creates a new output stream to write to.
+   *
+   * @param cipherDelegate The stream to write encrypted bytes to.
+   * @param cipher The cipher used to encrypt the compressed bytes.
+   * @param level The deflate level, from {@link Deflater#BEST_SPEED} to
+   *     {@link Deflater#BEST_COMPRESSION}.
+   */
+  public CompressingCipherOutputStream(
+      OutputStream cipherDelegate,
+      AuthenticatedCipher cipher,
+      int level) {
+    mCipherDelegate = cipherDelegate;
+    mCipher = cipher;
+    mDeflater = new Deflater(level);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    try {
+      mDeflater.finish();
+      while (!mDeflater.finished()) {
+        deflate();
+      }
+      byte[] tag = new byte[mCipher.getTagLength()];
+      mCipher.encryptFinal(tag, tag.length);
+      mCipherDelegate.write(tag);
+    } finally {
+      try {
+        mDeflater.end();
+        mCipher.destroy();
+      } finally {
+        mCipherDelegate.close();
+      }
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    mCipherDelegate.flush();
+  }
+
+  @Override
+  public void write(byte[] buffer) throws IOException {
+    write(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int count) throws IOException {
+    if (buffer.length < offset + count) {
+      throw new ArrayIndexOutOfBoundsException(offset + count);
+    }
+    if (count == 0) {
+      return;
+    }
+    mDeflater.setInput(buffer, offset, count);
+    while (!mDeflater.needsInput()) {
+      deflate();
+    }
+  }
+
+  @Override
+  public void write(int oneByte) throws IOException {
+    mSingleByte[0] = (byte) oneByte;
+    write(mSingleByte, 0, 1);
+  }
+
+  private void deflate() throws IOException {
+    int deflated = mDeflater.deflate(mUpdateBuffer, 0, mUpdateBuffer.length);
+    if (deflated > 0) {
+      int written = mCipher.update(mUpdateBuffer, 0, deflated, mUpdateBuffer, 0);
+      mCipherDelegate.write(mUpdateBuffer, 0, written);
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.streams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.facebook.crypto.cipher.AuthenticatedCipher;
+
+/**
+ * Reverses {@link CompressingCipherOutputStream} in one stage: cipher text is read into the
+ * decrypt buffer and decrypted in place, and the inflater reads from there straight into the
+ * caller's buffer.
+ * </p>
+ * As with {@link NativeGCMCipherInputStream}, you must read the stream till -1, which is only
+ * returned once the tag has been verified.
+ */
+public class DecompressingCipherInputStream extends InputStream {
+
+  private static final int DEFAULT_DECRYPT_BUFFER_SIZE = 8 * 1024;
+
+  private final TailInputStream mCipherDelegate;
+  private final AuthenticatedCipher mCipher;
+  private final Inflater mInflater = new Inflater();
+  private final byte[] mUpdateBuffer = new byte[DEFAULT_DECRYPT_BUFFER_SIZE];
+  private final byte[] mSingleByte = new byte[1];
+
+  private boolean mTagChecked = false;
+  private boolean mClosed = false;
+
+  /**
+   * Creates a new input stream to read from.
+   *
+   * @param cipherDelegate The stream to read encrypted bytes from.
+   * @param cipher The cipher used to decrypt the bytes.
+   */
+  public DecompressingCipherInputStream(InputStream cipherDelegate, AuthenticatedCipher cipher) {
+    mCipherDelegate = new TailInputStream(cipherDelegate, cipher.getTagLength());
+    mCipher = cipher;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return mInflater.finished() ? 0 : 1;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    try {
+      ensureTagValid();
+    } finally {
+      mInflater.end();
+      mCipherDelegate.close();
+    }
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int read;
+    do {
+      read = read(mSingleByte, 0, 1);
+    } while (read == 0);
+    return read == -1 ? -1 : mSingleByte[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] buffer) throws IOException {
+    return read(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (buffer.length < offset + length) {
+      throw new ArrayIndexOutOfBoundsException(offset + length);
+    }
+    if (length == 0) {
+      return 0;
+    }
+
+    while (true) {
+      int inflated;
+      try {
+        inflated = mInflater.inflate(buffer, offset, length);
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt compressed data", e);
+      }
+      if (inflated > 0) {
+        return inflated;
+      }
+      if (mInflater.finished()) {
+        ensureEnd();
+        return -1;
+      }
+      if (mInflater.needsDictionary()) {
+        throw new IOException("Compressed data needs a dictionary");
+      }
+
+      int read = mCipherDelegate.read(mUpdateBuffer, 0, mUpdateBuffer.length);
+      if (read == -1) {
+        ensureTagValid();
+        throw new IOException("Compressed data ends early");
+      }
+      int decrypted = mCipher.update(mUpdateBuffer, 0, read, mUpdateBuffer, 0);
+      mInflater.setInput(mUpdateBuffer, 0, decrypted);
+    }
+  }
+
+  /**
+   * Checks that the compressed data is followed by nothing but the tag.
+   */
+  private void ensureEnd() throws IOException {
+    if (mTagChecked) {
+      return;
+    }
+    boolean trailing = mInflater.getRemaining() > 0;
+    int read;
+    while ((read = mCipherDelegate.read(mUpdateBuffer, 0, mUpdateBuffer.length)) != -1) {
+      mCipher.update(mUpdateBuffer, 0, read, mUpdateBuffer, 0);
+      trailing |= read > 0;
+    }
+    ensureTagValid();
+    if (trailing) {
+      throw new IOException("Unexpected data after the compressed data");
+    }
+  }
+
+  private void ensureTagValid() throws IOException {
+    if (mTagChecked) {
+      return;
+    }
+
+    // The cipher is finalized and destroyed, so this must not run again.
+    mTagChecked = true;
+    try {
+      mCipher.decryptFinal(mCipherDelegate.getTail(), mCipher.getTagLength());
+    } finally {
+      mCipher.destroy();
+    }
+  }
+}
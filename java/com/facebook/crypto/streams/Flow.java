@@ -0,0 +1,51 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.streams;
+
+/**
+ * The interfaces of java.util.concurrent.Flow and Reactive Streams, which are not available on
+ * older Android releases. They have the same methods and contract, so adapting them to either
+ * takes a few lines.
+ */
+public final class Flow {
+
+  private Flow() {
+  }
+
+  public interface Publisher<T> {
+
+    public void subscribe(Subscriber<? super T> subscriber);
+  }
+
+  public interface Subscriber<T> {
+
+    public void onSubscribe(Subscription subscription);
+
+    public void onNext(T item);
+
+    public void onError(Throwable throwable);
+
+    public void onComplete();
+  }
+
+  public interface Subscription {
+
+    /**
+     * Allows n more items to be delivered to the subscriber.
+     */
+    public void request(long n);
+
+    public void cancel();
+  }
+
+  public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+  }
+}
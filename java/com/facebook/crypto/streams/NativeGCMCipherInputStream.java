@@ -13,22 +13,21 @@ package com.facebook.crypto.streams;
 import java.io.IOException;
 import java.io.InputStream;
 
-import com.facebook.crypto.cipher.NativeGCMCipher;
+import com.facebook.crypto.cipher.AuthenticatedCipher;
 
 /**
- * This class is used to encapsulate decryption using GCM. On reads, bytes are first read from the
- * delegate input stream and decrypted before being store in the read buffer.
+ * This class is used to encapsulate decryption using GCM, or any other
+ * {@link AuthenticatedCipher} that is followed by its tag. On reads, bytes are first read from the
+ * delegate input stream into the read buffer and then decrypted in place, so every read is
+ * handed to the cipher in a single call without an intermediate buffer.
  */
 public class NativeGCMCipherInputStream extends InputStream {
 
-  private static final int UPDATE_BUFFER_SIZE = 256;
-
   private final TailInputStream mCipherDelegate;
-  private final NativeGCMCipher mCipher;
-
-  private final byte[] mUpdateBuffer;
+  private final AuthenticatedCipher mCipher;
 
   private boolean mTagChecked = false;
+  private boolean mClosed;
 
   /**
    * Creates a new input stream to read from.
@@ -36,10 +35,9 @@ public class NativeGCMCipherInputStream extends InputStream {
    * @param cipherDelegate The stream to read encrypted bytes from.
    * @param cipher The cipher used to decrypt the bytes.
    */
-  public NativeGCMCipherInputStream(InputStream cipherDelegate, NativeGCMCipher cipher) {
-    mCipherDelegate = new TailInputStream(cipherDelegate, NativeGCMCipher.TAG_LENGTH);
+  public NativeGCMCipherInputStream(InputStream cipherDelegate, AuthenticatedCipher cipher) {
+    mCipherDelegate = new TailInputStream(cipherDelegate, cipher.getTagLength());
     mCipher = cipher;
-    mUpdateBuffer = new byte[UPDATE_BUFFER_SIZE + mCipher.getCipherBlockSize()];
   }
 
   @Override
@@ -49,9 +47,13 @@ public class NativeGCMCipherInputStream extends InputStream {
 
   @Override
   public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
     try {
       ensureTagValid();
     } finally {
+      mClosed = true;
       mCipherDelegate.close();
     }
   }
@@ -79,6 +81,9 @@ public class NativeGCMCipherInputStream extends InputStream {
   @Override
   public int read(byte[] buffer, int offset, int length)
       throws IOException {
+    if (mClosed) {
+      throw new IOException("Stream is closed");
+    }
     if (buffer.length < offset + length) {
       throw new ArrayIndexOutOfBoundsException(offset + length);
     }
@@ -92,26 +97,7 @@ public class NativeGCMCipherInputStream extends InputStream {
       return -1;
     }
 
-    int times = read / UPDATE_BUFFER_SIZE;
-    int remainder = read % UPDATE_BUFFER_SIZE;
-
-    int originalOffset = offset;
-    int currentReadOffset = offset;
-
-    for (int i = 0; i < times; ++i) {
-      int bytesDecrypted = mCipher.update(buffer, offset, UPDATE_BUFFER_SIZE, mUpdateBuffer);
-      System.arraycopy(mUpdateBuffer, 0, buffer, currentReadOffset, bytesDecrypted);
-      currentReadOffset += bytesDecrypted;
-      offset += UPDATE_BUFFER_SIZE;
-    }
-
-    if (remainder > 0) {
-      int bytesDecrypted = mCipher.update(buffer, offset, remainder, mUpdateBuffer);
-      System.arraycopy(mUpdateBuffer, 0, buffer, currentReadOffset, bytesDecrypted);
-      currentReadOffset += bytesDecrypted;
-    }
-
-    return currentReadOffset - originalOffset;
+    return mCipher.update(buffer, offset, read, buffer, offset);
   }
 
   private void ensureTagValid() throws IOException {
@@ -123,7 +109,7 @@ public class NativeGCMCipherInputStream extends InputStream {
     // state and destroy it, so we should not execute this again.
     mTagChecked = true;
     try {
-      mCipher.decryptFinal(mCipherDelegate.getTail(), NativeGCMCipher.TAG_LENGTH);
+      mCipher.decryptFinal(mCipherDelegate.getTail(), mCipher.getTagLength());
     } finally {
       mCipher.destroy();
     }
@@ -10,24 +10,31 @@
 
 package com.facebook.crypto.streams;
 
-import com.facebook.crypto.cipher.NativeGCMCipher;
+import com.facebook.crypto.cipher.AuthenticatedCipher;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.ArrayIndexOutOfBoundsException;
 
 /**
- * This class is used to encapsulate encryption using GCM. On writes, bytes are first encrypted
- * before actually being written out to the delegate stream.
+ * This class is used to encapsulate encryption using GCM, or any other
+ * {@link AuthenticatedCipher} whose tag follows the cipher text. On writes, bytes are first
+ * encrypted before actually being written out to the delegate stream.
+ * </p>
+ * Writes are encrypted in chunks the size of the encrypt buffer, with one native call per chunk.
+ * Supplying a larger buffer, e.g. 64 KiB, reduces the number of native calls for large writes.
  */
 public class NativeGCMCipherOutputStream extends OutputStream {
 
-  private static final int UPDATE_BUFFER_SIZE = 256;
+  private static final int DEFAULT_ENCRYPT_BUFFER_SIZE = 256;
 
   private final OutputStream mCipherDelegate;
-  private final NativeGCMCipher mCipher;
+  private final AuthenticatedCipher mCipher;
   private final byte[] mUpdateBuffer;
-  private final byte[] mTag = new byte[NativeGCMCipher.TAG_LENGTH];
+  private final byte[] mTag;
+  private final byte[] mSingleByte = new byte[1];
+
+  private boolean mClosed;
 
   /**
    * Creates a new output stream to write to.
@@ -36,14 +43,39 @@ public class NativeGCMCipherOutputStream extends OutputStream {
    * @param cipher The cipher used to encrypt the bytes.
    */
   public NativeGCMCipherOutputStream(OutputStream cipherDelegate,
-      NativeGCMCipher cipher) {
+      AuthenticatedCipher cipher) {
+    this(cipherDelegate, cipher, new byte[DEFAULT_ENCRYPT_BUFFER_SIZE]);
+  }
+
+  /**
+   * Creates a new output stream to write to.
+   *
+   * @param cipherDelegate The stream to write encrypted bytes to.
+   * @param cipher The cipher used to encrypt the bytes.
+   * @param encryptBuffer The buffer that encrypted bytes are staged in before they are written
+   *     to the delegate. Its length determines how many bytes are encrypted per native call.
+   *     The buffer can be reused once the stream has been closed.
+   */
+  public NativeGCMCipherOutputStream(OutputStream cipherDelegate,
+      AuthenticatedCipher cipher,
+      byte[] encryptBuffer) {
+    if (encryptBuffer.length == 0) {
+      throw new IllegalArgumentException("Encrypt buffer must not be empty");
+    }
     mCipherDelegate = cipherDelegate;
     mCipher = cipher;
-    mUpdateBuffer = new byte[UPDATE_BUFFER_SIZE + mCipher.getCipherBlockSize()];
+    mUpdateBuffer = encryptBuffer;
+    mTag = new byte[cipher.getTagLength()];
   }
 
   @Override
   public void close() throws IOException {
+    // The cipher goes back to its pool when it is destroyed, so it must not be finalized or
+    // destroyed a second time on behalf of whoever acquires it next.
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
     try {
       mCipher.encryptFinal(mTag, mTag.length);
       mCipherDelegate.write(mTag);
@@ -69,29 +101,25 @@ public class NativeGCMCipherOutputStream extends OutputStream {
   @Override
   public void write(byte[] buffer, int offset, int count)
       throws IOException {
+    if (mClosed) {
+      throw new IOException("Stream is closed");
+    }
     if (buffer.length < offset + count) {
       throw new ArrayIndexOutOfBoundsException(offset + count);
     }
 
-    int times = count / UPDATE_BUFFER_SIZE;
-    int remainder = count % UPDATE_BUFFER_SIZE;
-
-    for (int i = 0; i < times; ++i) {
-      int written = mCipher.update(buffer, offset, UPDATE_BUFFER_SIZE, mUpdateBuffer);
-      mCipherDelegate.write(mUpdateBuffer, 0, written);
-      offset += UPDATE_BUFFER_SIZE;
-    }
-
-    if (remainder > 0) {
-      int written = mCipher.update(buffer, offset, remainder, mUpdateBuffer);
+    while (count > 0) {
+      int chunk = Math.min(count, mUpdateBuffer.length);
+      int written = mCipher.update(buffer, offset, chunk, mUpdateBuffer, 0);
       mCipherDelegate.write(mUpdateBuffer, 0, written);
+      offset += chunk;
+      count -= chunk;
     }
   }
 
   @Override
   public void write(int oneByte) throws IOException {
-    byte[] data = new byte[1];
-    data[0] = (byte) oneByte;
-    write(data, 0, 1);
+    mSingleByte[0] = (byte) oneByte;
+    write(mSingleByte, 0, 1);
   }
 }
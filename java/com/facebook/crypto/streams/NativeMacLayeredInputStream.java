@@ -10,15 +10,26 @@
 
 package com.facebook.crypto.streams;
 
-import com.facebook.crypto.mac.NativeMac;
+import com.facebook.crypto.mac.KeyedMac;
 
 import java.io.IOException;
 import java.io.InputStream;
 
+/**
+ * Reads data from another stream and checks the mac which follows it once the end is reached.
+ * Small reads, such as those of a {@link java.io.DataInputStream} reading field by field, are
+ * served from a buffer which is filled and handed to the mac in one call, so neither the mac
+ * nor the delegate are called per byte. Reads at least as large as the buffer bypass it.
+ */
 public class NativeMacLayeredInputStream extends InputStream {
 
-  private final NativeMac mMac;
+  private static final int BUFFER_SIZE = 4096;
+
+  private final KeyedMac mMac;
   private final TailInputStream mInputDelegate;
+  private final byte[] mBuffer = new byte[BUFFER_SIZE];
+  private int mPosition;
+  private int mCount;
 
   private boolean mMacChecked = false;
 
@@ -30,20 +41,24 @@ public class NativeMacLayeredInputStream extends InputStream {
    * @param mac The object used to compute the mac.
    * @param inputDelegate The stream to read the data from.
    */
-  public NativeMacLayeredInputStream(NativeMac mac, InputStream inputDelegate) {
+  public NativeMacLayeredInputStream(KeyedMac mac, InputStream inputDelegate) {
     mMac = mac;
     mInputDelegate = new TailInputStream(inputDelegate, mac.getMacLength());
   }
 
   @Override
   public int available() throws IOException {
-    return mInputDelegate.available();
+    return (mCount - mPosition) + mInputDelegate.available();
   }
 
   @Override
   public void close() throws IOException {
     try {
       ensureMacValid();
+      // The buffer may have read ahead up to the mac, but the caller has not seen all the data.
+      if (mPosition < mCount) {
+        throw new IOException(MAC_DOES_NOT_MATCH);
+      }
     } finally {
       mInputDelegate.close();
     }
@@ -61,17 +76,12 @@ public class NativeMacLayeredInputStream extends InputStream {
 
   @Override
   public int read() throws IOException {
-    byte[] buffer = new byte[1];
-    int read = read(buffer, 0, 1);
-    while (read == 0) {
-      read = read(buffer, 0, 1);
-    }
-
-    if (read == -1) {
-      return -1;
-    } else {
-      return buffer[0] & 0xFF;
+    while (mPosition == mCount) {
+      if (fillBuffer() == -1) {
+        return -1;
+      }
     }
+    return mBuffer[mPosition++] & 0xFF;
   }
 
   @Override
@@ -81,16 +91,50 @@ public class NativeMacLayeredInputStream extends InputStream {
 
   @Override
   public int read(byte[] buffer, int offset, int length) throws IOException {
-    int read = mInputDelegate.read(buffer, offset, length);
+    if (mPosition < mCount) {
+      int count = Math.min(length, mCount - mPosition);
+      System.arraycopy(mBuffer, mPosition, buffer, offset, count);
+      mPosition += count;
+      return count;
+    }
+
+    if (length >= mBuffer.length) {
+      int read = mInputDelegate.read(buffer, offset, length);
+      if (read == -1) {
+        ensureMacValid();
+        return -1;
+      }
+      if (read > 0) {
+        mMac.update(buffer, offset, read);
+      }
+      return read;
+    }
+
+    int read = fillBuffer();
+    if (read <= 0) {
+      return read;
+    }
+    int count = Math.min(length, read);
+    System.arraycopy(mBuffer, 0, buffer, offset, count);
+    mPosition = count;
+    return count;
+  }
+
+  /**
+   * Refills the empty buffer from the delegate and adds the bytes to the mac.
+   */
+  private int fillBuffer() throws IOException {
+    mPosition = 0;
+    mCount = 0;
+    int read = mInputDelegate.read(mBuffer, 0, mBuffer.length);
     if (read == -1) {
       ensureMacValid();
       return -1;
     }
-
     if (read > 0) {
-      mMac.update(buffer, offset, read);
+      mMac.update(mBuffer, 0, read);
+      mCount = read;
     }
-
     return read;
   }
 
@@ -101,8 +145,15 @@ public class NativeMacLayeredInputStream extends InputStream {
 
     mMacChecked = true;
     try {
-      byte[] mac = mMac.doFinal();
-      if (!constantTimeEquals(mInputDelegate.getTail(), mac)) {
+      byte[] tail;
+      try {
+        tail = mInputDelegate.getTail();
+      } catch (IOException e) {
+        // Finalizes the mac, so that it can be destroyed.
+        mMac.doFinal(new byte[mMac.getMacLength()], 0);
+        throw e;
+      }
+      if (!mMac.verify(tail, 0)) {
         throw new IOException(MAC_DOES_NOT_MATCH);
       }
     } finally {
@@ -119,18 +170,4 @@ public class NativeMacLayeredInputStream extends InputStream {
   public long skip(long byteCount) throws IOException {
     throw new UnsupportedOperationException();
   }
-
-  private boolean constantTimeEquals(byte[] a, byte[] b) {
-    if (a.length != b.length) {
-      return false;
-    }
-    int compare = 0;
-    for (int i = 0; i < a.length; ++i) {
-      compare |= a[i] ^ b[i];
-    }
-    if (compare == 0) {
-      return true;
-    }
-    return false;
-  }
 }
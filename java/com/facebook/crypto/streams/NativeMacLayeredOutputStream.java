@@ -10,15 +10,25 @@
 
 package com.facebook.crypto.streams;
 
-import com.facebook.crypto.mac.NativeMac;
+import com.facebook.crypto.mac.KeyedMac;
 
 import java.io.IOException;
 import java.io.OutputStream;
 
+/**
+ * Writes data through to another stream followed by its mac. Small writes, such as those of a
+ * {@link java.io.DataOutputStream} writing field by field, are collected in a buffer which is
+ * handed to the mac in one call once full, so the mac is not updated with one native call per
+ * byte. The data itself is written to the delegate straight away.
+ */
 public class NativeMacLayeredOutputStream extends OutputStream {
 
-  private final NativeMac mMac;
+  private static final int BUFFER_SIZE = 4096;
+
+  private final KeyedMac mMac;
   private final OutputStream mOutputDelegate;
+  private final byte[] mMacBuffer = new byte[BUFFER_SIZE];
+  private int mCount;
 
   /**
    * Creates a new output stream to write to.
@@ -26,7 +36,7 @@ public class NativeMacLayeredOutputStream extends OutputStream {
    * @param mac The object used to compute the mac.
    * @param outputDelegate The stream to write data to.
    */
-  public NativeMacLayeredOutputStream(NativeMac mac, OutputStream outputDelegate) {
+  public NativeMacLayeredOutputStream(KeyedMac mac, OutputStream outputDelegate) {
     mMac = mac;
     mOutputDelegate = outputDelegate;
   }
@@ -34,6 +44,7 @@ public class NativeMacLayeredOutputStream extends OutputStream {
   @Override
   public void close() throws IOException {
     try {
+      updateMac();
       byte[] mac = mMac.doFinal();
       mOutputDelegate.write(mac);
     } finally {
@@ -57,13 +68,38 @@ public class NativeMacLayeredOutputStream extends OutputStream {
 
   @Override
   public void write(byte[] buffer, int offset, int count) throws IOException {
-    mMac.update(buffer, offset, count);
+    if (buffer.length < offset + count) {
+      throw new ArrayIndexOutOfBoundsException(offset + count);
+    }
+    // Small writes are collected in the mac buffer, which goes into the mac when it would
+    // overflow and on close. It is flushed before a large write is macced directly, so the mac
+    // sees the bytes in the order they were written. The bytes are taken before they are passed
+    // on, as the delegate may write some and then fail.
+    if (count > mMacBuffer.length - mCount) {
+      updateMac();
+    }
+    if (count >= mMacBuffer.length) {
+      mMac.update(buffer, offset, count);
+    } else {
+      System.arraycopy(buffer, offset, mMacBuffer, mCount, count);
+      mCount += count;
+    }
     mOutputDelegate.write(buffer, offset, count);
   }
 
   @Override
   public void write(int oneByte) throws IOException {
-    mMac.update((byte) oneByte);
+    if (mCount == mMacBuffer.length) {
+      updateMac();
+    }
+    mMacBuffer[mCount++] = (byte) oneByte;
     mOutputDelegate.write(oneByte);
   }
+
+  private void updateMac() throws IOException {
+    if (mCount > 0) {
+      mMac.update(mMacBuffer, 0, mCount);
+      mCount = 0;
+    }
+  }
 }
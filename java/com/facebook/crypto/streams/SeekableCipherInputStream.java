@@ -0,0 +1,247 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.streams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import com.facebook.crypto.cipher.CipherEngine;
+
+/**
+ * Decrypts a file in the segmented format, see {@link SegmentCodec}, with random access. Since
+ * every segment is authenticated on its own, the stream can {@link #seek(long)} to any position
+ * and only decrypts the segment holding it. The segment that was read last is kept, so reading
+ * sequentially decrypts every segment once.
+ * </p>
+ * The last segment is authenticated when the stream is created, so {@link #size()} can be
+ * trusted and a truncated file is detected before anything is read. Bytes are only returned from
+ * segments that have been authenticated.
+ * </p>
+ * The stream is also a {@link ReadableByteChannel} with {@link #position()} and {@link #size()}.
+ * It is not thread safe.
+ */
+public class SeekableCipherInputStream extends InputStream implements ReadableByteChannel {
+
+  private final FileChannel mCipherChannel;
+  private final long mSegmentsOffset;
+  private final SegmentCodec mCodec;
+  private final int mCipherSegmentLength;
+  private final long mSegmentCount;
+  private final long mSize;
+  private final byte[] mCipherSegment;
+  private final byte[] mSegment;
+  private final byte[] mSingleByte = new byte[1];
+
+  // The index of the segment held by mSegment, or -1.
+  private long mSegmentIndex = -1;
+  private int mSegmentLength;
+  private long mPosition;
+  private long mMark;
+  private boolean mClosed;
+
+  /**
+   * @param cipherChannel The file to read. Segments are read with absolute reads, so the position
+   *     of the channel is not used.
+   * @param segmentsOffset The offset of the first segment in the file, after the header and iv.
+   * @param engine The engine decrypting each segment.
+   * @param iv The stream iv, from which the nonce of each segment is derived.
+   * @param aad The additional data authenticated by every segment.
+   */
+  public SeekableCipherInputStream(
+      FileChannel cipherChannel,
+      long segmentsOffset,
+      CipherEngine engine,
+      byte[] key,
+      byte[] iv,
+      byte[] aad) throws IOException {
+    mCipherChannel = cipherChannel;
+    mSegmentsOffset = segmentsOffset;
+    mCodec = new SegmentCodec(engine, key, iv, aad);
+    mCipherSegmentLength = SegmentCodec.SEGMENT_LENGTH + mCodec.getTagLength();
+    mCipherSegment = new byte[mCipherSegmentLength];
+    mSegment = new byte[SegmentCodec.SEGMENT_LENGTH];
+
+    // There is always at least one segment, and only the last one may be shorter.
+    long cipherLength = cipherChannel.size() - segmentsOffset;
+    if (cipherLength < mCodec.getTagLength()) {
+      throw new IOException("Truncated segment 0");
+    }
+    mSegmentCount = (cipherLength + mCipherSegmentLength - 1) / mCipherSegmentLength;
+    mSize = cipherLength - mSegmentCount * mCodec.getTagLength();
+    loadSegment(mSegmentCount - 1);
+  }
+
+  /**
+   * @return the length of the plain text.
+   */
+  public long size() {
+    return mSize;
+  }
+
+  public long position() {
+    return mPosition;
+  }
+
+  /**
+   * Moves to the given position of the plain text. The position may be beyond the end, in which
+   * case reads return -1. Nothing is decrypted until the next read.
+   */
+  public SeekableCipherInputStream position(long position) throws IOException {
+    ensureOpen();
+    if (position < 0) {
+      throw new IllegalArgumentException("Negative position: " + position);
+    }
+    mPosition = position;
+    return this;
+  }
+
+  public void seek(long position) throws IOException {
+    position(position);
+  }
+
+  @Override
+  public int read() throws IOException {
+    int read = read(mSingleByte, 0, 1);
+    return read == -1 ? -1 : mSingleByte[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] buffer) throws IOException {
+    return read(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int count) throws IOException {
+    ensureOpen();
+    if (offset < 0 || count < 0 || buffer.length - offset < count) {
+      throw new ArrayIndexOutOfBoundsException(offset + count);
+    }
+    if (count == 0) {
+      return 0;
+    }
+    int segmentPosition = seekSegment();
+    if (segmentPosition == -1) {
+      return -1;
+    }
+    int read = Math.min(count, mSegmentLength - segmentPosition);
+    System.arraycopy(mSegment, segmentPosition, buffer, offset, read);
+    mPosition += read;
+    return read;
+  }
+
+  @Override
+  public int read(ByteBuffer buffer) throws IOException {
+    ensureOpen();
+    if (!buffer.hasRemaining()) {
+      return 0;
+    }
+    int segmentPosition = seekSegment();
+    if (segmentPosition == -1) {
+      return -1;
+    }
+    int read = Math.min(buffer.remaining(), mSegmentLength - segmentPosition);
+    buffer.put(mSegment, segmentPosition, read);
+    mPosition += read;
+    return read;
+  }
+
+  /**
+   * Skips without decrypting the skipped bytes.
+   */
+  @Override
+  public long skip(long byteCount) throws IOException {
+    ensureOpen();
+    if (byteCount <= 0 || mPosition >= mSize) {
+      return 0;
+    }
+    long skipped = Math.min(byteCount, mSize - mPosition);
+    mPosition += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    if (mClosed || mSegmentIndex != mPosition / SegmentCodec.SEGMENT_LENGTH) {
+      return 0;
+    }
+    return Math.max(0, mSegmentLength - (int) (mPosition % SegmentCodec.SEGMENT_LENGTH));
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public void mark(int readlimit) {
+    mMark = mPosition;
+  }
+
+  @Override
+  public void reset() throws IOException {
+    position(mMark);
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !mClosed;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    mCipherChannel.close();
+  }
+
+  /**
+   * Makes the segment holding the current position current.
+   * @return the offset of the position in the segment, or -1 at the end of the stream.
+   */
+  private int seekSegment() throws IOException {
+    if (mPosition >= mSize) {
+      return -1;
+    }
+    long index = mPosition / SegmentCodec.SEGMENT_LENGTH;
+    if (index != mSegmentIndex) {
+      loadSegment(index);
+    }
+    return (int) (mPosition % SegmentCodec.SEGMENT_LENGTH);
+  }
+
+  private void loadSegment(long index) throws IOException {
+    mSegmentIndex = -1;
+    long offset = mSegmentsOffset + index * mCipherSegmentLength;
+    int length = (int) Math.min(mCipherSegmentLength, mCipherChannel.size() - offset);
+    ByteBuffer cipherSegment = ByteBuffer.wrap(mCipherSegment, 0, length);
+    while (cipherSegment.hasRemaining()) {
+      int read = mCipherChannel.read(cipherSegment, offset + cipherSegment.position());
+      if (read == -1) {
+        throw new IOException("Truncated segment " + index);
+      }
+    }
+    mCodec.decrypt(index, index == mSegmentCount - 1, mCipherSegment, length, mSegment);
+    mSegmentLength = length - mCodec.getTagLength();
+    mSegmentIndex = index;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (mClosed) {
+      throw new ClosedChannelException();
+    }
+  }
+}
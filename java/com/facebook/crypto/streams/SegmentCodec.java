@@ -0,0 +1,133 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.streams;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.facebook.crypto.cipher.CipherEngine;
+import com.facebook.crypto.exception.CryptoInitializationException;
+
+/**
+ * Encrypts and decrypts the segments of the segmented format, which splits the plain text into
+ * segments of {@link #SEGMENT_LENGTH} bytes that are each encrypted as a message of their own and
+ * carry their own tag. Only the last segment may be shorter, and it may be empty.
+ * </p>
+ * The nonce of a segment is the stream iv with the segment index xored into bytes 7 to 10 and a
+ * final segment flag xored into byte 11. Segments therefore can't be reordered, and a stream
+ * can't be truncated at a segment boundary, since its new last segment would not verify as the
+ * final one. Every segment authenticates the same additional data as the whole message would.
+ * </p>
+ * Segments are independent, so they can be encrypted and decrypted concurrently. This class is
+ * thread safe if the engine is.
+ */
+/* package */ class SegmentCodec {
+
+  public static final int SEGMENT_LENGTH = 64 * 1024;
+
+  // The index is a 32 bit big endian integer.
+  private static final long MAX_SEGMENTS = 1L << 32;
+  private static final int INDEX_OFFSET = 7;
+  private static final int FINAL_FLAG_OFFSET = 11;
+
+  private final CipherEngine mEngine;
+  private final byte[] mKey;
+  private final byte[] mIv;
+  private final byte[] mAad;
+
+  public SegmentCodec(CipherEngine engine, byte[] key, byte[] iv, byte[] aad) {
+    mEngine = engine;
+    mKey = key;
+    mIv = iv;
+    mAad = aad;
+  }
+
+  public int getTagLength() {
+    return mEngine.getTagLength();
+  }
+
+  /**
+   * Encrypts length bytes of data and writes the cipher text followed by the tag to output.
+   */
+  public void encrypt(long index, boolean last, byte[] data, int length, byte[] output)
+      throws IOException {
+    try {
+      mEngine.encrypt(mKey, getNonce(index, last), mAad, data, 0, length, output, 0);
+    } catch (CryptoInitializationException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Decrypts a segment of length bytes, including the tag, and writes the plain text to output.
+   */
+  public void decrypt(long index, boolean last, byte[] data, int length, byte[] output)
+      throws IOException {
+    int tagLength = getTagLength();
+    if (length < tagLength) {
+      throw new IOException("Truncated segment " + index);
+    }
+    try {
+      mEngine.decrypt(mKey, getNonce(index, last), mAad, data, 0, length - tagLength, output, 0);
+    } catch (CryptoInitializationException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Waits for a segment processed by an executor and rethrows its failure.
+   */
+  public static byte[] await(Future<byte[]> segment) throws IOException {
+    try {
+      return segment.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a segment");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Gives up on segments that are still queued, e.g. after a failure.
+   */
+  public static void cancel(Queue<Future<byte[]>> segments) {
+    Future<byte[]> segment;
+    while ((segment = segments.poll()) != null) {
+      segment.cancel(false);
+    }
+  }
+
+  private byte[] getNonce(long index, boolean last) throws IOException {
+    if (index < 0 || index >= MAX_SEGMENTS) {
+      throw new IOException("Too many segments");
+    }
+    byte[] nonce = mIv.clone();
+    nonce[INDEX_OFFSET] ^= (byte) (index >>> 24);
+    nonce[INDEX_OFFSET + 1] ^= (byte) (index >>> 16);
+    nonce[INDEX_OFFSET + 2] ^= (byte) (index >>> 8);
+    nonce[INDEX_OFFSET + 3] ^= (byte) index;
+    if (last) {
+      nonce[FINAL_FLAG_OFFSET] ^= 1;
+    }
+    return nonce;
+  }
+}
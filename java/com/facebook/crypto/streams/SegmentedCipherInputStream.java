@@ -0,0 +1,198 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.streams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.facebook.crypto.cipher.CipherEngine;
+
+/**
+ * Decrypts a stream in the segmented format, see {@link SegmentCodec}. Unlike
+ * {@link NativeGCMCipherInputStream}, bytes of a segment are only returned once the segment has
+ * been authenticated, and the stream fails if it was truncated.
+ * </p>
+ * If an executor is supplied, the stream reads ahead and decrypts a few segments per processor
+ * concurrently.
+ */
+public class SegmentedCipherInputStream extends InputStream {
+
+  private final InputStream mCipherDelegate;
+  private final SegmentCodec mCodec;
+  private final ExecutorService mExecutor;
+  private final int mMaxPendingSegments;
+  private final ArrayDeque<Future<byte[]>> mPendingSegments;
+  private final byte[] mSingleByte = new byte[1];
+
+  // The plain text of the current segment.
+  private byte[] mSegment;
+  private int mSegmentPosition;
+  private int mSegmentLength;
+
+  // Only used without an executor.
+  private byte[] mCipherSegment;
+
+  private long mSegmentIndex;
+  private boolean mLastSegmentRead;
+  // A byte read ahead to find out whether a full segment is the last one, or -1.
+  private int mLookAhead = -1;
+
+  /**
+   * @param cipherDelegate The stream to read encrypted segments from, positioned after the
+   *     header and iv.
+   * @param engine The engine decrypting each segment.
+   * @param iv The stream iv, from which the nonce of each segment is derived.
+   * @param aad The additional data authenticated by every segment.
+   * @param executor The executor to decrypt segments on, or null to decrypt them on the calling
+   *     thread.
+   */
+  public SegmentedCipherInputStream(
+      InputStream cipherDelegate,
+      CipherEngine engine,
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      ExecutorService executor) {
+    mCipherDelegate = cipherDelegate;
+    mCodec = new SegmentCodec(engine, key, iv, aad);
+    mExecutor = executor;
+    mMaxPendingSegments = 2 * Runtime.getRuntime().availableProcessors();
+    mPendingSegments = new ArrayDeque<Future<byte[]>>(mMaxPendingSegments);
+    if (executor == null) {
+      mCipherSegment = new byte[SegmentCodec.SEGMENT_LENGTH + mCodec.getTagLength()];
+      mSegment = new byte[SegmentCodec.SEGMENT_LENGTH];
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    int read = read(mSingleByte, 0, 1);
+    return read == -1 ? -1 : mSingleByte[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] buffer) throws IOException {
+    return read(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int count) throws IOException {
+    if (offset < 0 || count < 0 || buffer.length - offset < count) {
+      throw new ArrayIndexOutOfBoundsException(offset + count);
+    }
+    if (count == 0) {
+      return 0;
+    }
+    while (mSegmentPosition == mSegmentLength) {
+      if (!nextSegment()) {
+        return -1;
+      }
+    }
+    int read = Math.min(count, mSegmentLength - mSegmentPosition);
+    System.arraycopy(mSegment, mSegmentPosition, buffer, offset, read);
+    mSegmentPosition += read;
+    return read;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return mSegmentLength - mSegmentPosition;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      SegmentCodec.cancel(mPendingSegments);
+    } finally {
+      mCipherDelegate.close();
+    }
+  }
+
+  /**
+   * Makes the next segment current.
+   * @return false at the end of the stream.
+   */
+  private boolean nextSegment() throws IOException {
+    if (mExecutor == null) {
+      if (mLastSegmentRead) {
+        return false;
+      }
+      long index = mSegmentIndex++;
+      int length = readCipherSegment(mCipherSegment);
+      mCodec.decrypt(index, mLastSegmentRead, mCipherSegment, length, mSegment);
+      mSegmentLength = length - mCodec.getTagLength();
+    } else {
+      try {
+        while (!mLastSegmentRead && mPendingSegments.size() < mMaxPendingSegments) {
+          submitSegment();
+        }
+      } catch (IOException e) {
+        SegmentCodec.cancel(mPendingSegments);
+        throw e;
+      }
+      if (mPendingSegments.isEmpty()) {
+        return false;
+      }
+      mSegment = SegmentCodec.await(mPendingSegments.poll());
+      mSegmentLength = mSegment.length;
+    }
+    mSegmentPosition = 0;
+    return true;
+  }
+
+  private void submitSegment() throws IOException {
+    final long index = mSegmentIndex++;
+    final byte[] cipherSegment = new byte[SegmentCodec.SEGMENT_LENGTH + mCodec.getTagLength()];
+    final int length = readCipherSegment(cipherSegment);
+    final boolean last = mLastSegmentRead;
+    mPendingSegments.add(mExecutor.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        if (length < mCodec.getTagLength()) {
+          throw new IOException("Truncated segment " + index);
+        }
+        byte[] segment = new byte[length - mCodec.getTagLength()];
+        mCodec.decrypt(index, last, cipherSegment, length, segment);
+        return segment;
+      }
+    }));
+  }
+
+  /**
+   * Reads the next encrypted segment, setting mLastSegmentRead if the stream ends after it.
+   * @return the length of the segment including its tag.
+   */
+  private int readCipherSegment(byte[] cipherSegment) throws IOException {
+    int length = 0;
+    if (mLookAhead != -1) {
+      cipherSegment[length++] = (byte) mLookAhead;
+      mLookAhead = -1;
+    }
+    while (length < cipherSegment.length) {
+      int read = mCipherDelegate.read(cipherSegment, length, cipherSegment.length - length);
+      if (read == -1) {
+        break;
+      }
+      length += read;
+    }
+    if (length < cipherSegment.length) {
+      mLastSegmentRead = true;
+    } else {
+      mLookAhead = mCipherDelegate.read();
+      mLastSegmentRead = mLookAhead == -1;
+    }
+    return length;
+  }
+}
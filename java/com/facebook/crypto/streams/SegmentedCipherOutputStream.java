@@ -0,0 +1,167 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.streams;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.facebook.crypto.cipher.CipherEngine;
+
+/**
+ * Encrypts the bytes written to it in the segmented format, see {@link SegmentCodec}. Each
+ * segment is written to the delegate stream as soon as it is full and the next byte arrives, so
+ * that the last segment can be marked as such when the stream is closed.
+ * </p>
+ * If an executor is supplied, segments are encrypted on it concurrently while the caller keeps
+ * writing, and written out in order. At most a few segments per processor are in flight, which
+ * bounds the memory used.
+ */
+public class SegmentedCipherOutputStream extends OutputStream {
+
+  private final OutputStream mCipherDelegate;
+  private final SegmentCodec mCodec;
+  private final ExecutorService mExecutor;
+  private final int mMaxPendingSegments;
+  private final ArrayDeque<Future<byte[]>> mPendingSegments;
+  private final byte[] mSingleByte = new byte[1];
+
+  private byte[] mSegment;
+  private int mSegmentLength;
+  // Only used without an executor.
+  private byte[] mCipherSegment;
+  private long mSegmentIndex;
+  private boolean mClosed;
+
+  /**
+   * @param cipherDelegate The stream to write encrypted segments to. The header must already
+   *     have been written.
+   * @param engine The engine encrypting each segment.
+   * @param iv The stream iv, from which the nonce of each segment is derived.
+   * @param aad The additional data authenticated by every segment.
+   * @param executor The executor to encrypt segments on, or null to encrypt them on the calling
+   *     thread.
+   */
+  public SegmentedCipherOutputStream(
+      OutputStream cipherDelegate,
+      CipherEngine engine,
+      byte[] key,
+      byte[] iv,
+      byte[] aad,
+      ExecutorService executor) {
+    mCipherDelegate = cipherDelegate;
+    mCodec = new SegmentCodec(engine, key, iv, aad);
+    mExecutor = executor;
+    mMaxPendingSegments = 2 * Runtime.getRuntime().availableProcessors();
+    mPendingSegments = new ArrayDeque<Future<byte[]>>(mMaxPendingSegments);
+    mSegment = new byte[SegmentCodec.SEGMENT_LENGTH];
+    if (executor == null) {
+      mCipherSegment = new byte[SegmentCodec.SEGMENT_LENGTH + mCodec.getTagLength()];
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    mSingleByte[0] = (byte) b;
+    write(mSingleByte, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] buffer) throws IOException {
+    write(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int count) throws IOException {
+    if (mClosed) {
+      throw new IOException("Stream is closed");
+    }
+    if (offset < 0 || count < 0 || buffer.length - offset < count) {
+      throw new ArrayIndexOutOfBoundsException(offset + count);
+    }
+    while (count > 0) {
+      if (mSegmentLength == mSegment.length) {
+        // More data follows, so the full segment is not the last one.
+        writeSegment(false);
+      }
+      int copied = Math.min(count, mSegment.length - mSegmentLength);
+      System.arraycopy(buffer, offset, mSegment, mSegmentLength, copied);
+      mSegmentLength += copied;
+      offset += copied;
+      count -= copied;
+    }
+  }
+
+  /**
+   * Writes out the segments that have been encrypted so far and flushes the delegate. Buffered
+   * bytes of an incomplete segment are only written once the segment is complete.
+   */
+  @Override
+  public void flush() throws IOException {
+    while (!mPendingSegments.isEmpty()) {
+      writeOldestSegment();
+    }
+    mCipherDelegate.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    try {
+      writeSegment(true);
+      while (!mPendingSegments.isEmpty()) {
+        writeOldestSegment();
+      }
+    } finally {
+      SegmentCodec.cancel(mPendingSegments);
+      mCipherDelegate.close();
+    }
+  }
+
+  private void writeSegment(boolean last) throws IOException {
+    final long index = mSegmentIndex++;
+    final byte[] segment = mSegment;
+    final int length = mSegmentLength;
+    mSegmentLength = 0;
+
+    if (mExecutor == null) {
+      mCodec.encrypt(index, last, segment, length, mCipherSegment);
+      mCipherDelegate.write(mCipherSegment, 0, length + mCodec.getTagLength());
+      return;
+    }
+
+    if (mPendingSegments.size() >= mMaxPendingSegments) {
+      writeOldestSegment();
+    }
+    final boolean isLast = last;
+    mPendingSegments.add(mExecutor.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        byte[] cipherSegment = new byte[length + mCodec.getTagLength()];
+        mCodec.encrypt(index, isLast, segment, length, cipherSegment);
+        return cipherSegment;
+      }
+    }));
+    // The submitted segment is owned by its task now.
+    mSegment = new byte[SegmentCodec.SEGMENT_LENGTH];
+  }
+
+  private void writeOldestSegment() throws IOException {
+    byte[] cipherSegment = SegmentCodec.await(mPendingSegments.poll());
+    mCipherDelegate.write(cipherSegment);
+  }
+}
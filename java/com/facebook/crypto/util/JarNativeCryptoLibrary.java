@@ -0,0 +1,144 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+import com.facebook.crypto.exception.CryptoInitializationException;
+
+/**
+ * An implementation of {@link NativeCryptoLibrary} for desktop and server JVMs. It loads the
+ * library built by native/host/Makefile for the current platform from the class path, e.g. from
+ * the jar built by its jar target, by extracting it to a temporary file. If the class path has no
+ * library for the platform, it falls back to {@link System#loadLibrary(String)}, which searches
+ * java.library.path.
+ * </p>
+ * Libraries are looked up as com/facebook/crypto/native/&lt;os&gt;-&lt;arch&gt;/libconceal.so,
+ * e.g. com/facebook/crypto/native/linux-x86_64/libconceal.so.
+ */
+public class JarNativeCryptoLibrary implements NativeCryptoLibrary {
+
+  private static final String LIB = "conceal";
+  private static final String RESOURCE_ROOT = "/com/facebook/crypto/native/";
+
+  private final String mResourceRoot;
+  private final boolean mSearchLibraryPath;
+
+  private boolean mLoadLibraries;
+  private boolean mLibrariesLoaded;
+  private volatile Throwable mLoadError;
+
+  public JarNativeCryptoLibrary() {
+    this(RESOURCE_ROOT, true);
+  }
+
+  /**
+   * @param searchLibraryPath Whether to fall back to java.library.path when the class path has
+   *     no library for the platform.
+   */
+  /* package */ JarNativeCryptoLibrary(String resourceRoot, boolean searchLibraryPath) {
+    mResourceRoot = resourceRoot;
+    mSearchLibraryPath = searchLibraryPath;
+    mLoadLibraries = true;
+    mLibrariesLoaded = false;
+    mLoadError = null;
+  }
+
+  @Override
+  public synchronized void ensureCryptoLoaded() throws CryptoInitializationException {
+    if (!loadLibraries()) {
+      throw new CryptoInitializationException(mLoadError);
+    }
+  }
+
+  private synchronized boolean loadLibraries() {
+    if (!mLoadLibraries) {
+      return mLibrariesLoaded;
+    }
+    try {
+      String resource = mResourceRoot + getPlatform(
+          System.getProperty("os.name"),
+          System.getProperty("os.arch")) + "/" + System.mapLibraryName(LIB);
+      InputStream in = JarNativeCryptoLibrary.class.getResourceAsStream(resource);
+      if (in == null) {
+        if (!mSearchLibraryPath) {
+          throw new UnsatisfiedLinkError("No " + resource + " on the class path");
+        }
+        System.loadLibrary(LIB);
+      } else {
+        System.load(extract(in).getAbsolutePath());
+      }
+      mLibrariesLoaded = true;
+    } catch (UnsatisfiedLinkError error) {
+      mLoadError = error;
+      mLibrariesLoaded = false;
+    } catch (IOException e) {
+      mLoadError = e;
+      mLibrariesLoaded = false;
+    }
+    mLoadLibraries = false;
+    return mLibrariesLoaded;
+  }
+
+  /**
+   * Copies the library to a temporary file, since it can't be loaded from inside a jar. The file
+   * is deleted when the JVM exits.
+   */
+  private static File extract(InputStream in) throws IOException {
+    OutputStream out = null;
+    try {
+      File file = File.createTempFile("lib" + LIB, ".so");
+      file.deleteOnExit();
+      out = new FileOutputStream(file);
+      byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return file;
+    } finally {
+      in.close();
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Maps the os.name and os.arch system properties to the platform directory, using the
+   * architecture names of uname -m so that they match native/host/Makefile.
+   */
+  /* package */ static String getPlatform(String osName, String osArch) {
+    String os = osName.toLowerCase(Locale.US);
+    if (os.startsWith("linux")) {
+      os = "linux";
+    } else if (os.startsWith("mac") || os.startsWith("darwin")) {
+      os = "darwin";
+    } else {
+      os = os.replaceAll("[^a-z0-9]", "");
+    }
+
+    String arch = osArch.toLowerCase(Locale.US);
+    if (arch.equals("amd64") || arch.equals("x86_64")) {
+      arch = "x86_64";
+    } else if (arch.equals("arm64") || arch.equals("aarch64")) {
+      arch = "aarch64";
+    } else if (arch.matches("i[3-6]86|x86")) {
+      arch = "x86";
+    }
+    return os + "-" + arch;
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.facebook.crypto.CryptoTestHelper.TestKeyChain;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncCryptoTest {
+
+  private static final Entity ENTITY = new Entity("entity");
+
+  private Crypto mCrypto;
+  private ThreadPoolExecutor mExecutor;
+  private AsyncCrypto mAsyncCrypto;
+  private byte[] mData;
+
+  @Before
+  public void setUp() throws Exception {
+    mCrypto = CryptoTestHelper.newJavaCrypto(new TestKeyChain());
+    mExecutor = AsyncCrypto.newCryptoExecutor(1, 1);
+    mAsyncCrypto = new AsyncCrypto(mCrypto, mExecutor);
+    mData = new byte[5000];
+    new Random(7).nextBytes(mData);
+  }
+
+  @After
+  public void tearDown() {
+    mExecutor.shutdownNow();
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    byte[] cipherText = mAsyncCrypto.encryptAsync(mData, ENTITY, null).get();
+    Assert.assertArrayEquals(mData, mCrypto.decrypt(cipherText, ENTITY));
+    Assert.assertArrayEquals(mData, mAsyncCrypto.decryptAsync(cipherText, ENTITY, null).get());
+  }
+
+  @Test
+  public void testCallbacks() throws Exception {
+    RecordingCallback success = new RecordingCallback();
+    mAsyncCrypto.encryptAsync(mData, ENTITY, success);
+    success.await();
+    Assert.assertNull(success.mFailure.get());
+    byte[] cipherText = success.mResult.get();
+    Assert.assertArrayEquals(mData, mCrypto.decrypt(cipherText, ENTITY));
+
+    cipherText[cipherText.length - 1] ^= 1;
+    RecordingCallback failure = new RecordingCallback();
+    try {
+      mAsyncCrypto.decryptAsync(cipherText, ENTITY, failure).get();
+      Assert.fail();
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof IOException);
+    }
+    failure.await();
+    Assert.assertTrue(failure.mFailure.get() instanceof IOException);
+    Assert.assertNull(failure.mResult.get());
+  }
+
+  @Test
+  public void testRejectsWhenSaturated() throws Exception {
+    final CountDownLatch running = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    mExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        running.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    running.await();
+
+    mAsyncCrypto.encryptAsync(mData, ENTITY, null);
+    Assert.assertEquals(1, mAsyncCrypto.getQueueDepth());
+    Assert.assertEquals(0, mAsyncCrypto.getRemainingCapacity());
+    Assert.assertEquals(1, mAsyncCrypto.getActiveCount());
+    try {
+      mAsyncCrypto.encryptAsync(mData, ENTITY, null);
+      Assert.fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    release.countDown();
+  }
+
+  private static class RecordingCallback implements AsyncCrypto.Callback<byte[]> {
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private final AtomicReference<byte[]> mResult = new AtomicReference<byte[]>();
+    private final AtomicReference<Exception> mFailure = new AtomicReference<Exception>();
+
+    @Override
+    public void onSuccess(byte[] result) {
+      mResult.set(result);
+      mDone.countDown();
+    }
+
+    @Override
+    public void onFailure(Exception e) {
+      mFailure.set(e);
+      mDone.countDown();
+    }
+
+    private void await() throws InterruptedException {
+      Assert.assertTrue(mDone.await(10, TimeUnit.SECONDS));
+    }
+  }
+}
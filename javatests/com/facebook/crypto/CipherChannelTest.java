@@ -0,0 +1,114 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import com.facebook.crypto.CryptoTestHelper.TestKeyChain;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CipherChannelTest {
+
+  private static final Entity ENTITY = new Entity("entity");
+
+  private Crypto mCrypto;
+  private byte[] mData;
+
+  @Before
+  public void setUp() throws Exception {
+    mCrypto = CryptoTestHelper.newJavaCrypto(new TestKeyChain(true));
+    mData = CryptoTestHelper.newTestData();
+  }
+
+  @Test
+  public void testChannelsMatchStreams() throws Exception {
+    byte[] cipherText = mCrypto.encrypt(mData, ENTITY);
+    for (boolean direct : new boolean[] {false, true}) {
+      ByteArrayOutputStream cipherStream = new ByteArrayOutputStream();
+      WritableByteChannel channel =
+          mCrypto.getCipherWritableChannel(Channels.newChannel(cipherStream), ENTITY);
+      ByteBuffer first = allocate(direct, 1000);
+      first.put(mData, 0, 1000).flip();
+      ByteBuffer rest = allocate(direct, mData.length - 1000);
+      rest.put(mData, 1000, mData.length - 1000).flip();
+      Assert.assertEquals(mData.length, ((GatheringByteChannel) channel).write(
+          new ByteBuffer[] {first, rest}));
+      channel.close();
+      Assert.assertArrayEquals(cipherText, cipherStream.toByteArray());
+
+      ReadableByteChannel input = mCrypto.getCipherReadableChannel(
+          Channels.newChannel(new ByteArrayInputStream(cipherText)), ENTITY);
+      ByteBuffer plainText = allocate(direct, mData.length + 10);
+      ByteBuffer small = allocate(direct, 7);
+      Assert.assertEquals(7, ((ScatteringByteChannel) input).read(
+          new ByteBuffer[] {small, plainText}, 0, 1));
+      while (input.read(plainText) != -1) {
+        // reads to the end, which checks the tag.
+      }
+      input.close();
+      small.flip();
+      plainText.flip();
+      byte[] read = new byte[mData.length];
+      small.get(read, 0, 7);
+      plainText.get(read, 7, mData.length - 7);
+      Assert.assertArrayEquals(mData, read);
+    }
+  }
+
+  @Test
+  public void testReadableChannelTamperingFails() throws Exception {
+    byte[] cipherText = mCrypto.encrypt(mData, ENTITY);
+    cipherText[cipherText.length - 1] ^= 1;
+    ReadableByteChannel input = mCrypto.getCipherReadableChannel(
+        Channels.newChannel(new ByteArrayInputStream(cipherText)), ENTITY);
+    // One byte more than needed, so that reads don't stop at a full buffer.
+    ByteBuffer plainText = ByteBuffer.allocateDirect(mData.length + 1);
+    try {
+      while (input.read(plainText) != -1) {
+        // keeps reading.
+      }
+      Assert.fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testReadableChannelRejectsNonBlockingChannel() throws Exception {
+    Pipe pipe = Pipe.open();
+    try {
+      pipe.source().configureBlocking(false);
+      mCrypto.getCipherReadableChannel(pipe.source(), ENTITY);
+      Assert.fail();
+    } catch (IllegalBlockingModeException e) {
+      // expected
+    } finally {
+      pipe.source().close();
+      pipe.sink().close();
+    }
+  }
+
+  private static ByteBuffer allocate(boolean direct, int capacity) {
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+}
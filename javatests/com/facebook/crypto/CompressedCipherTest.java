@@ -0,0 +1,93 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.facebook.crypto.CryptoTestHelper.TestKeyChain;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompressedCipherTest {
+
+  private static final Entity ENTITY = new Entity("entity");
+
+  private Crypto mCrypto;
+  private byte[] mData;
+
+  @Before
+  public void setUp() throws Exception {
+    mCrypto = CryptoTestHelper.newJavaCrypto(new TestKeyChain());
+    mData = CryptoTestHelper.newTestData();
+  }
+
+  @Test
+  public void testCompressedRoundTrip() throws Exception {
+    StringBuilder json = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      json.append("{\"id\":").append(i).append(",\"name\":\"entry\"},");
+    }
+    byte[] compressible = json.toString().getBytes("UTF-8");
+    for (byte[] data : new byte[][] {new byte[0], mData, compressible}) {
+      byte[] cipherText = encryptCompressed(data);
+      Assert.assertArrayEquals(data, mCrypto.decrypt(cipherText, ENTITY));
+
+      InputStream inputStream =
+          mCrypto.getCipherInputStream(new ByteArrayInputStream(cipherText), ENTITY);
+      ByteArrayOutputStream plainText = new ByteArrayOutputStream();
+      int read;
+      while ((read = inputStream.read()) != -1) {
+        plainText.write(read);
+      }
+      inputStream.close();
+      Assert.assertArrayEquals(data, plainText.toByteArray());
+    }
+    Assert.assertTrue(encryptCompressed(compressible).length < compressible.length / 5);
+  }
+
+  @Test
+  public void testCompressedTamperingFails() throws Exception {
+    byte[] cipherText = encryptCompressed(mData);
+    // The codec, a cipher text byte and the tag.
+    for (int index : new int[] {2, 20, cipherText.length - 1}) {
+      byte[] tampered = cipherText.clone();
+      tampered[index] ^= 1;
+      assertDecryptFails(tampered);
+    }
+    assertDecryptFails(Arrays.copyOf(cipherText, cipherText.length - 1));
+    assertDecryptFails(Arrays.copyOf(cipherText, cipherText.length - 100));
+  }
+
+  private byte[] encryptCompressed(byte[] data) throws Exception {
+    ByteArrayOutputStream cipherStream = new ByteArrayOutputStream();
+    OutputStream outputStream = mCrypto.getCompressedCipherOutputStream(cipherStream, ENTITY);
+    for (int offset = 0; offset < data.length; offset += 1000) {
+      outputStream.write(data, offset, Math.min(1000, data.length - offset));
+    }
+    outputStream.close();
+    return cipherStream.toByteArray();
+  }
+
+  private void assertDecryptFails(byte[] cipherText) throws Exception {
+    try {
+      mCrypto.decrypt(cipherText, ENTITY);
+      Assert.fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
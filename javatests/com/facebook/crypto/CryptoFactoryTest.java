@@ -0,0 +1,162 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+import com.facebook.crypto.CryptoFactory.Benchmark;
+import com.facebook.crypto.CryptoTestHelper.TestKeyChain;
+import com.facebook.crypto.exception.CryptoInitializationException;
+import com.facebook.crypto.util.NativeCryptoLibrary;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CryptoFactoryTest {
+
+  private File mCacheFile;
+  private NativeCryptoLibrary mMissingLibrary;
+
+  @Before
+  public void setUp() throws Exception {
+    mCacheFile = CryptoTestHelper.newTempPath("calibration", ".properties");
+    mMissingLibrary = new NativeCryptoLibrary() {
+      @Override
+      public void ensureCryptoLoaded() throws CryptoInitializationException {
+        throw new CryptoInitializationException(new UnsatisfiedLinkError());
+      }
+    };
+  }
+
+  @After
+  public void tearDown() {
+    mCacheFile.delete();
+  }
+
+  @Test
+  public void testPicksJavaEnginesWithoutNativeLibrary() throws Exception {
+    CryptoFactory factory = new CryptoFactory(mMissingLibrary, mCacheFile);
+    Properties selection = factory.getSelection();
+    Assert.assertEquals(CryptoFactory.ENGINE_JAVA, selection.getProperty(CryptoFactory.KEY_SMALL_MESSAGE_CIPHER));
+    Assert.assertEquals(CryptoFactory.ENGINE_JAVA, selection.getProperty(CryptoFactory.KEY_BULK_CIPHER));
+    Assert.assertEquals(CryptoFactory.ENGINE_JAVA, selection.getProperty(CryptoFactory.KEY_MAC));
+
+    Crypto crypto = factory.create(new TestKeyChain(true));
+    Assert.assertTrue(crypto.isAvailable());
+    byte[] data = new byte[100];
+    Assert.assertArrayEquals(data, crypto.decrypt(crypto.encrypt(data, new Entity("e")), new Entity("e")));
+  }
+
+  @Test
+  public void testReusesCachedCalibration() throws Exception {
+    new CryptoFactory(mMissingLibrary, mCacheFile).getSelection();
+    Assert.assertTrue(mCacheFile.exists());
+
+    // Results written for this device are trusted without measuring again.
+    Properties cached = new CryptoFactory(mMissingLibrary, mCacheFile).getSelection();
+    cached.setProperty(CryptoFactory.KEY_MAC, "cached");
+    writeCache(cached);
+    Assert.assertEquals(
+        "cached",
+        new CryptoFactory(mMissingLibrary, mCacheFile).getSelection().getProperty(CryptoFactory.KEY_MAC));
+  }
+
+  @Test
+  public void testIgnoresCalibrationFromOtherDevice() throws Exception {
+    Properties cached = new CryptoFactory(mMissingLibrary, mCacheFile).getSelection();
+    cached.setProperty(CryptoFactory.KEY_FINGERPRINT, "other device");
+    cached.setProperty(CryptoFactory.KEY_MAC, "cached");
+    writeCache(cached);
+
+    Properties selection = new CryptoFactory(mMissingLibrary, mCacheFile).getSelection();
+    Assert.assertEquals(CryptoFactory.ENGINE_JAVA, selection.getProperty(CryptoFactory.KEY_MAC));
+  }
+
+  @Test
+  public void testCreateDoesNotWaitForCalibration() throws Exception {
+    final List<Runnable> calibrations = new ArrayList<Runnable>();
+    Executor executor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        calibrations.add(command);
+      }
+    };
+    CryptoFactory factory = new CryptoFactory(mMissingLibrary, mCacheFile, executor);
+    Crypto crypto = factory.create(new TestKeyChain(true));
+    factory.create(new TestKeyChain(true));
+    // The defaults work before the calibration has run, and it only starts once.
+    byte[] data = new byte[100];
+    Assert.assertArrayEquals(data, crypto.decrypt(crypto.encrypt(data, new Entity("e")), new Entity("e")));
+    Assert.assertEquals(1, calibrations.size());
+    Assert.assertFalse(mCacheFile.exists());
+
+    calibrations.get(0).run();
+    Assert.assertTrue(mCacheFile.exists());
+    Assert.assertEquals(
+        CryptoFactory.ENGINE_JAVA,
+        factory.getSelection().getProperty(CryptoFactory.KEY_BULK_CIPHER));
+  }
+
+  @Test
+  public void testPicksLowestMedian() throws Exception {
+    // One fast outlier doesn't beat a consistently faster candidate.
+    Assert.assertEquals(1, CryptoFactory.pickFastest(new FakeBenchmark(100, 1), new FakeBenchmark(50, 50)));
+    Assert.assertEquals(0, CryptoFactory.pickFastest(new FakeBenchmark(40, 1000), new FakeBenchmark(50, 50)));
+  }
+
+  @Test
+  public void testNeverPicksFailingCandidate() throws Exception {
+    Benchmark failing = new Benchmark() {
+      @Override
+      public long run() throws Exception {
+        throw new CryptoInitializationException(new UnsatisfiedLinkError());
+      }
+    };
+    Assert.assertEquals(1, CryptoFactory.pickFastest(failing, new FakeBenchmark(50, 50)));
+    Assert.assertEquals(0, CryptoFactory.pickFastest(failing, failing));
+  }
+
+  private void writeCache(Properties properties) throws Exception {
+    OutputStream out = new FileOutputStream(mCacheFile);
+    try {
+      properties.store(out, null);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Takes the usual time, except every fourth run.
+   */
+  private static class FakeBenchmark implements Benchmark {
+
+    private final long mUsualTime;
+    private final long mOutlierTime;
+    private int mRuns;
+
+    private FakeBenchmark(long usualTime, long outlierTime) {
+      mUsualTime = usualTime;
+      mOutlierTime = outlierTime;
+    }
+
+    @Override
+    public long run() {
+      return ++mRuns % 4 == 0 ? mOutlierTime : mUsualTime;
+    }
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import com.facebook.crypto.CryptoTestHelper.TestKeyChain;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CryptoFileTest {
+
+  private static final Entity ENTITY = new Entity("entity");
+
+  private Crypto mCrypto;
+  private byte[] mData;
+
+  @Before
+  public void setUp() throws Exception {
+    mCrypto = CryptoTestHelper.newJavaCrypto(new TestKeyChain(true));
+    mData = CryptoTestHelper.newTestData();
+  }
+
+  @Test
+  public void testFileRoundTrip() throws Exception {
+    File plainFile = File.createTempFile("plain", null);
+    File cipherFile = File.createTempFile("cipher", null);
+    try {
+      for (byte[] data : new byte[][] {new byte[0], mData}) {
+        CryptoTestHelper.writeFile(plainFile, data);
+        // Leftovers from a longer file must not survive.
+        CryptoTestHelper.writeFile(cipherFile, new byte[10000]);
+        mCrypto.encryptFile(plainFile, cipherFile, ENTITY);
+        byte[] cipherText = CryptoTestHelper.readFile(cipherFile);
+        Assert.assertArrayEquals(mCrypto.encrypt(data, ENTITY), cipherText);
+
+        CryptoTestHelper.writeFile(plainFile, new byte[10000]);
+        mCrypto.decryptFile(cipherFile, plainFile, ENTITY);
+        Assert.assertArrayEquals(data, CryptoTestHelper.readFile(plainFile));
+      }
+    } finally {
+      plainFile.delete();
+      cipherFile.delete();
+    }
+  }
+
+  @Test
+  public void testDecryptFileFailureLeavesNoPlainText() throws Exception {
+    File plainFile = File.createTempFile("plain", null);
+    File cipherFile = File.createTempFile("cipher", null);
+    try {
+      byte[] previous = new byte[] {1, 2, 3};
+      CryptoTestHelper.writeFile(plainFile, previous);
+      byte[] cipherText = mCrypto.encrypt(mData, ENTITY);
+      cipherText[100] ^= 1;
+      CryptoTestHelper.writeFile(cipherFile, cipherText);
+      try {
+        mCrypto.decryptFile(cipherFile, plainFile, ENTITY);
+        Assert.fail();
+      } catch (IOException e) {
+        // expected
+      }
+      Assert.assertArrayEquals(previous, CryptoTestHelper.readFile(plainFile));
+      // Nor is the temporary file left behind.
+      String[] names = plainFile.getParentFile().list();
+      for (String name : names) {
+        Assert.assertFalse(
+            name,
+            name.startsWith(plainFile.getName()) && !name.equals(plainFile.getName()));
+      }
+    } finally {
+      plainFile.delete();
+      cipherFile.delete();
+    }
+  }
+
+  @Test
+  public void testLargeFileRoundTrip() throws Exception {
+    File plainFile = File.createTempFile("plain", null);
+    File cipherFile = File.createTempFile("cipher", null);
+    try {
+      // Too long to be mapped, and not a multiple of the transfer buffer.
+      byte[] data = new byte[CipherHelper.MAX_MAPPED_LENGTH + 1001];
+      new Random(2).nextBytes(data);
+      CryptoTestHelper.writeFile(plainFile, data);
+      mCrypto.encryptFile(plainFile, cipherFile, ENTITY);
+      Assert.assertArrayEquals(mCrypto.encrypt(data, ENTITY), CryptoTestHelper.readFile(cipherFile));
+
+      mCrypto.decryptFile(cipherFile, plainFile, ENTITY);
+      Assert.assertArrayEquals(data, CryptoTestHelper.readFile(plainFile));
+    } finally {
+      plainFile.delete();
+      cipherFile.delete();
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.facebook.crypto.cipher.JavaGCMCipherEngine;
+import com.facebook.crypto.keychain.KeyChain;
+import com.facebook.crypto.mac.JavaMacEngine;
+
+public class CryptoTestHelper {
+
+  /**
+   * Creates a crypto object backed by the javax.crypto engines, so that no native library is
+   * needed.
+   */
+  public static Crypto newJavaCrypto(KeyChain keyChain) {
+    return new Crypto(keyChain, new JavaGCMCipherEngine(), new JavaMacEngine());
+  }
+
+  /**
+   * Returns the data the crypto tests encrypt and mac, which is the same in every test.
+   */
+  public static byte[] newTestData() {
+    byte[] data = new byte[5000];
+    new Random(7).nextBytes(data);
+    return data;
+  }
+
+  /**
+   * Returns a new temporary path, which doesn't exist yet, for a test file or directory.
+   */
+  public static File newTempPath(String prefix, String suffix) throws IOException {
+    File file = File.createTempFile(prefix, suffix);
+    file.delete();
+    return file;
+  }
+
+  /**
+   * Deletes the file, or the directory and the files in it.
+   */
+  public static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        child.delete();
+      }
+    }
+    file.delete();
+  }
+
+  public static byte[] readFile(File file) throws IOException {
+    InputStream inputStream = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = inputStream.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, read);
+      }
+      return outputStream.toByteArray();
+    } finally {
+      inputStream.close();
+    }
+  }
+
+  public static void writeFile(File file, byte[] data) throws IOException {
+    OutputStream outputStream = new FileOutputStream(file);
+    try {
+      outputStream.write(data);
+    } finally {
+      outputStream.close();
+    }
+  }
+
+  /**
+   * A key chain whose keys are the same in every test.
+   */
+  public static class TestKeyChain implements KeyChain {
+
+    private final Random mRandom = new Random(1);
+    private final byte[] mCipherKey = new byte[16];
+    private final byte[] mMacKey = new byte[64];
+    private final boolean mFixedIv;
+
+    /**
+     * Creates a key chain which returns a random iv each time.
+     */
+    public TestKeyChain() {
+      this(false);
+    }
+
+    /**
+     * @param fixedIv Whether to always return the same iv, which keeps the stream and one shot
+     *     outputs comparable.
+     */
+    public TestKeyChain(boolean fixedIv) {
+      mFixedIv = fixedIv;
+      mRandom.nextBytes(mCipherKey);
+      mRandom.nextBytes(mMacKey);
+    }
+
+    @Override
+    public byte[] getCipherKey() {
+      return mCipherKey;
+    }
+
+    @Override
+    public byte[] getMacKey() {
+      return mMacKey;
+    }
+
+    @Override
+    public synchronized byte[] getNewIV() {
+      byte[] iv = new byte[12];
+      if (!mFixedIv) {
+        mRandom.nextBytes(iv);
+      }
+      return iv;
+    }
+
+    @Override
+    public void destroyKeys() {
+      Arrays.fill(mCipherKey, (byte) 0);
+      Arrays.fill(mMacKey, (byte) 0);
+    }
+  }
+}
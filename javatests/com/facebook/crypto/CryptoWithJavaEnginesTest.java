@@ -0,0 +1,331 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.facebook.crypto.CryptoTestHelper.TestKeyChain;
+import com.facebook.crypto.cipher.JavaGCMCipherEngine;
+import com.facebook.crypto.exception.CryptoInitializationException;
+import com.facebook.crypto.mac.JavaMacEngine;
+import com.facebook.crypto.mac.KeyedMac;
+import com.facebook.crypto.mac.MacEngine;
+import com.google.common.io.ByteStreams;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CryptoWithJavaEnginesTest {
+
+  private static final Entity ENTITY = new Entity("entity");
+
+  private Crypto mCrypto;
+  private byte[] mData;
+
+  @Before
+  public void setUp() throws Exception {
+    mCrypto = CryptoTestHelper.newJavaCrypto(new TestKeyChain(true));
+    mData = CryptoTestHelper.newTestData();
+  }
+
+  @Test
+  public void testIsAvailable() {
+    Assert.assertTrue(mCrypto.isAvailable());
+  }
+
+  @Test
+  public void testStreamMatchesOneShot() throws Exception {
+    ByteArrayOutputStream cipherStream = new ByteArrayOutputStream();
+    OutputStream outputStream = mCrypto.getCipherOutputStream(cipherStream, ENTITY);
+    outputStream.write(mData);
+    outputStream.close();
+    byte[] cipherText = cipherStream.toByteArray();
+    Assert.assertArrayEquals(mCrypto.encrypt(mData, ENTITY), cipherText);
+    Assert.assertEquals(mData.length + mCrypto.getCipherMetaDataLength(), cipherText.length);
+
+    InputStream inputStream =
+        mCrypto.getCipherInputStream(new ByteArrayInputStream(cipherText), ENTITY);
+    Assert.assertArrayEquals(mData, ByteStreams.toByteArray(inputStream));
+    inputStream.close();
+    Assert.assertArrayEquals(mData, mCrypto.decrypt(cipherText, ENTITY));
+  }
+
+  @Test
+  public void testDecryptFailsForOtherEntity() throws Exception {
+    byte[] cipherText = mCrypto.encrypt(mData, ENTITY);
+    try {
+      mCrypto.decrypt(cipherText, new Entity("other"));
+      Assert.fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testMacRoundTrip() throws Exception {
+    ByteArrayOutputStream macStream = new ByteArrayOutputStream();
+    OutputStream outputStream = mCrypto.getMacOutputStream(macStream, ENTITY);
+    outputStream.write(mData);
+    outputStream.close();
+
+    byte[] macced = macStream.toByteArray();
+    InputStream inputStream =
+        mCrypto.getMacInputStream(new ByteArrayInputStream(macced), ENTITY);
+    Assert.assertArrayEquals(mData, ByteStreams.toByteArray(inputStream));
+    inputStream.close();
+
+    macced[10] ^= 1;
+    inputStream = mCrypto.getMacInputStream(new ByteArrayInputStream(macced), ENTITY);
+    try {
+      ByteStreams.toByteArray(inputStream);
+      Assert.fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testMacStreamsFieldByField() throws Exception {
+    ByteArrayOutputStream bulkStream = new ByteArrayOutputStream();
+    OutputStream outputStream = mCrypto.getMacOutputStream(bulkStream, ENTITY);
+    outputStream.write(mData);
+    outputStream.close();
+
+    // Single bytes, small writes and a write larger than the mac buffer.
+    ByteArrayOutputStream fieldStream = new ByteArrayOutputStream();
+    DataOutputStream dataStream =
+        new DataOutputStream(mCrypto.getMacOutputStream(fieldStream, ENTITY));
+    for (int i = 0; i < 1000; i++) {
+      dataStream.writeByte(mData[i]);
+    }
+    dataStream.write(mData, 1000, 7);
+    dataStream.write(mData, 1007, mData.length - 1007);
+    dataStream.close();
+    Assert.assertArrayEquals(bulkStream.toByteArray(), fieldStream.toByteArray());
+
+    DataInputStream inputStream = new DataInputStream(
+        mCrypto.getMacInputStream(new ByteArrayInputStream(fieldStream.toByteArray()), ENTITY));
+    byte[] read = new byte[mData.length];
+    for (int i = 0; i < 1000; i++) {
+      read[i] = inputStream.readByte();
+    }
+    inputStream.readFully(read, 1000, 7);
+    inputStream.readFully(read, 1007, mData.length - 1007);
+    Assert.assertEquals(-1, inputStream.read());
+    inputStream.close();
+    Assert.assertArrayEquals(mData, read);
+  }
+
+  @Test(expected = IOException.class)
+  public void testMacStreamCloseFailsWhenDataIsUnread() throws Exception {
+    ByteArrayOutputStream macStream = new ByteArrayOutputStream();
+    OutputStream outputStream = mCrypto.getMacOutputStream(macStream, ENTITY);
+    outputStream.write(mData, 0, 1000);
+    outputStream.close();
+
+    // The small read fills the buffer up to the mac, but most of the data is never read.
+    InputStream inputStream =
+        mCrypto.getMacInputStream(new ByteArrayInputStream(macStream.toByteArray()), ENTITY);
+    inputStream.read(new byte[10]);
+    inputStream.close();
+  }
+
+  @Test
+  public void testMacDoFinalIntoBufferAndVerify() throws Exception {
+    byte[] key = new byte[64];
+    KeyedMac mac = new JavaMacEngine().newMac(key);
+    mac.update(mData, 0, mData.length);
+    byte[] expected = mac.doFinal();
+
+    byte[] output = new byte[expected.length + 10];
+    mac = new JavaMacEngine().newMac(key);
+    mac.update(mData, 0, mData.length);
+    mac.doFinal(output, 5);
+    Assert.assertArrayEquals(expected, Arrays.copyOfRange(output, 5, 5 + expected.length));
+
+    mac = new JavaMacEngine().newMac(key);
+    mac.update(mData, 0, mData.length);
+    Assert.assertTrue(mac.verify(output, 5));
+    output[5 + expected.length - 1] ^= 1;
+    mac = new JavaMacEngine().newMac(key);
+    mac.update(mData, 0, mData.length);
+    Assert.assertFalse(mac.verify(output, 5));
+
+    // A tampered mac at the end of a stream fails the read.
+    ByteArrayOutputStream macStream = new ByteArrayOutputStream();
+    OutputStream outputStream = mCrypto.getMacOutputStream(macStream, ENTITY);
+    outputStream.write(mData);
+    outputStream.close();
+    byte[] macced = macStream.toByteArray();
+    macced[macced.length - 1] ^= 1;
+    InputStream inputStream = mCrypto.getMacInputStream(new ByteArrayInputStream(macced), ENTITY);
+    try {
+      ByteStreams.toByteArray(inputStream);
+      Assert.fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testHmacSha256Macs() throws Exception {
+    Crypto sha256Crypto = new Crypto(
+        new TestKeyChain(),
+        new JavaGCMCipherEngine(),
+        new JavaMacEngine(MacEngine.HMAC_SHA256_MAC_ID));
+    ByteArrayOutputStream macStream = new ByteArrayOutputStream();
+    OutputStream outputStream = sha256Crypto.getMacOutputStream(macStream, ENTITY);
+    outputStream.write(mData);
+    outputStream.close();
+    byte[] macced = macStream.toByteArray();
+    Assert.assertEquals(MacEngine.HMAC_SHA256_MAC_ID, macced[1]);
+    Assert.assertEquals(mData.length + 2 + 32, macced.length);
+
+    // Either crypto reads macs of either algorithm.
+    for (Crypto crypto : new Crypto[] {mCrypto, sha256Crypto}) {
+      InputStream inputStream =
+          crypto.getMacInputStream(new ByteArrayInputStream(macced), ENTITY);
+      Assert.assertArrayEquals(mData, ByteStreams.toByteArray(inputStream));
+    }
+
+    // The ID is authenticated, so the mac can't be passed off as another algorithm.
+    macced[1] = MacEngine.HMAC_SHA1_MAC_ID;
+    try {
+      ByteStreams.toByteArray(mCrypto.getMacInputStream(new ByteArrayInputStream(macced), ENTITY));
+      Assert.fail();
+    } catch (IOException e) {
+      // expected
+    }
+
+    // Search tokens don't depend on the mac the engine writes.
+    Assert.assertArrayEquals(
+        mCrypto.getSearchToken(mData, ENTITY),
+        sha256Crypto.getSearchToken(mData, ENTITY));
+  }
+
+  @Test
+  public void testSearchTokens() throws Exception {
+    byte[] token = mCrypto.getSearchToken(mData, ENTITY);
+    Assert.assertEquals(20, token.length);
+    Assert.assertArrayEquals(token, mCrypto.getSearchToken(mData.clone(), ENTITY));
+
+    byte[] otherData = mData.clone();
+    otherData[0] ^= 1;
+    Assert.assertFalse(Arrays.equals(token, mCrypto.getSearchToken(otherData, ENTITY)));
+    Assert.assertFalse(
+        Arrays.equals(token, mCrypto.getSearchToken(mData, new Entity("other"))));
+
+    // The token is not the mac of the same data.
+    ByteArrayOutputStream macStream = new ByteArrayOutputStream();
+    OutputStream outputStream = mCrypto.getMacOutputStream(macStream, ENTITY);
+    outputStream.write(mData);
+    outputStream.close();
+    byte[] macced = macStream.toByteArray();
+    byte[] mac = Arrays.copyOfRange(macced, macced.length - token.length, macced.length);
+    Assert.assertFalse(Arrays.equals(token, mac));
+  }
+
+  @Test
+  public void testSearchTokenDestroysMacWhenUpdateFails() throws Exception {
+    FailingMacEngine macEngine = new FailingMacEngine();
+    Crypto crypto = new Crypto(new TestKeyChain(), new JavaGCMCipherEngine(), macEngine);
+    try {
+      crypto.getSearchToken(mData, ENTITY);
+      Assert.fail("Expected the mac update to fail");
+    } catch (IOException e) {
+      // expected
+    }
+    Assert.assertEquals(1, macEngine.mCreated);
+    Assert.assertEquals(1, macEngine.mDestroyed);
+  }
+
+  /**
+   * Hands out macs which fail on every update and counts how many are destroyed.
+   */
+  private static class FailingMacEngine implements MacEngine {
+
+    private final MacEngine mDelegate = new JavaMacEngine();
+    private int mCreated;
+    private int mDestroyed;
+
+    @Override
+    public void ensureAvailable() throws CryptoInitializationException {
+      mDelegate.ensureAvailable();
+    }
+
+    @Override
+    public byte getMacId() {
+      return mDelegate.getMacId();
+    }
+
+    @Override
+    public KeyedMac newMac(byte[] key) throws IOException, CryptoInitializationException {
+      return newMac(getMacId(), key);
+    }
+
+    @Override
+    public KeyedMac newMac(byte macId, byte[] key)
+        throws IOException, CryptoInitializationException {
+      final KeyedMac mac = mDelegate.newMac(macId, key);
+      mCreated++;
+      return new KeyedMac() {
+        @Override
+        public void update(byte read) throws IOException {
+          throw new IOException("update");
+        }
+
+        @Override
+        public void update(byte[] buffer, int offset, int len) throws IOException {
+          throw new IOException("update");
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) throws IOException {
+          throw new IOException("update");
+        }
+
+        @Override
+        public byte[] doFinal() throws IOException {
+          return mac.doFinal();
+        }
+
+        @Override
+        public void doFinal(byte[] output, int offset) throws IOException {
+          mac.doFinal(output, offset);
+        }
+
+        @Override
+        public boolean verify(byte[] expected, int offset) throws IOException {
+          return mac.verify(expected, offset);
+        }
+
+        @Override
+        public void destroy() throws IOException {
+          mac.destroy();
+          mDestroyed++;
+        }
+
+        @Override
+        public int getMacLength() {
+          return mac.getMacLength();
+        }
+      };
+    }
+  }
+}
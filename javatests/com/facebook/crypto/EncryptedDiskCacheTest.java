@@ -0,0 +1,198 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.facebook.crypto.CryptoTestHelper.TestKeyChain;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EncryptedDiskCacheTest {
+
+  private static final int VALUE_LENGTH = 1000;
+  // The encrypted length of a value: version, cipher id, iv and tag.
+  private static final int ENTRY_LENGTH = VALUE_LENGTH + 2 + 12 + 16;
+
+  private Crypto mCrypto;
+  private File mDirectory;
+
+  @Before
+  public void setUp() throws Exception {
+    mCrypto = CryptoTestHelper.newJavaCrypto(new TestKeyChain());
+    mDirectory = CryptoTestHelper.newTempPath("cache", "");
+  }
+
+  @After
+  public void tearDown() {
+    CryptoTestHelper.delete(mDirectory);
+  }
+
+  @Test
+  public void testPutGetRemove() throws Exception {
+    EncryptedDiskCache cache = new EncryptedDiskCache(mCrypto, mDirectory, 100 * ENTRY_LENGTH);
+    Assert.assertNull(cache.getBytes("a"));
+    cache.put("a", value(1));
+    cache.put("a", value(2));
+    Assert.assertArrayEquals(value(2), cache.getBytes("a"));
+    Assert.assertEquals(ENTRY_LENGTH, cache.size());
+    Assert.assertEquals(1, cache.getHitCount());
+    Assert.assertEquals(1, cache.getMissCount());
+    Assert.assertEquals(2, cache.getPutCount());
+
+    Assert.assertTrue(cache.remove("a"));
+    Assert.assertFalse(cache.remove("a"));
+    Assert.assertNull(cache.getBytes("a"));
+    Assert.assertEquals(0, cache.size());
+    // Only the journal is left.
+    Assert.assertEquals(1, mDirectory.list().length);
+    cache.close();
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    List<String> keys = getKeysOfOneStripe(4);
+    EncryptedDiskCache cache = new EncryptedDiskCache(mCrypto, mDirectory, 3 * ENTRY_LENGTH);
+    cache.put(keys.get(0), value(0));
+    cache.put(keys.get(1), value(1));
+    cache.put(keys.get(2), value(2));
+    Assert.assertNotNull(cache.getBytes(keys.get(0)));
+
+    cache.put(keys.get(3), value(3));
+    Assert.assertEquals(1, cache.getEvictionCount());
+    Assert.assertEquals(3 * ENTRY_LENGTH, cache.size());
+    Assert.assertNull(cache.getBytes(keys.get(1)));
+    Assert.assertArrayEquals(value(0), cache.getBytes(keys.get(0)));
+    cache.close();
+  }
+
+  @Test
+  public void testSizeIsBoundedAcrossStripes() throws Exception {
+    EncryptedDiskCache cache = new EncryptedDiskCache(mCrypto, mDirectory, 10 * ENTRY_LENGTH);
+    for (int i = 0; i < 100; i++) {
+      cache.put("key" + i, value(i));
+      Assert.assertTrue(cache.size() <= 10 * ENTRY_LENGTH);
+    }
+    Assert.assertEquals(90, cache.getEvictionCount());
+    Assert.assertArrayEquals(value(99), cache.getBytes("key99"));
+    cache.close();
+  }
+
+  @Test
+  public void testReopenReplaysJournal() throws Exception {
+    EncryptedDiskCache cache = new EncryptedDiskCache(mCrypto, mDirectory, 100 * ENTRY_LENGTH);
+    cache.put("a", value(1));
+    cache.put("b", value(2));
+    cache.put("c", value(3));
+    cache.remove("b");
+    cache.close();
+    // A write which was interrupted before it was renamed into place.
+    new File(mDirectory, "d.99.tmp").createNewFile();
+
+    cache = new EncryptedDiskCache(mCrypto, mDirectory, 100 * ENTRY_LENGTH);
+    Assert.assertArrayEquals(value(1), cache.getBytes("a"));
+    Assert.assertNull(cache.getBytes("b"));
+    Assert.assertArrayEquals(value(3), cache.getBytes("c"));
+    Assert.assertEquals(2 * ENTRY_LENGTH, cache.size());
+    Assert.assertFalse(new File(mDirectory, "d.99.tmp").exists());
+    cache.put("d", value(4));
+    cache.close();
+
+    cache = new EncryptedDiskCache(mCrypto, mDirectory, 100 * ENTRY_LENGTH);
+    Assert.assertArrayEquals(value(4), cache.getBytes("d"));
+    cache.close();
+  }
+
+  @Test
+  public void testValueIsBoundToKey() throws Exception {
+    EncryptedDiskCache cache = new EncryptedDiskCache(mCrypto, mDirectory, 100 * ENTRY_LENGTH);
+    cache.put("a", value(1));
+    cache.put("b", value(2));
+    cache.close();
+
+    // Puts the file of a in place of the file of b.
+    File a = new File(mDirectory, "a.0");
+    File b = new File(mDirectory, "b.1");
+    Assert.assertTrue(b.delete());
+    Assert.assertTrue(a.renameTo(b));
+
+    cache = new EncryptedDiskCache(mCrypto, mDirectory, 100 * ENTRY_LENGTH);
+    try {
+      cache.getBytes("b");
+      Assert.fail();
+    } catch (IOException e) {
+      // expected
+    }
+    cache.close();
+  }
+
+  @Test
+  public void testConcurrentReadersAndWriters() throws Exception {
+    final EncryptedDiskCache cache =
+        new EncryptedDiskCache(mCrypto, mDirectory, 20 * ENTRY_LENGTH);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int thread = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 50; i++) {
+              String key = "key" + ((thread * 7 + i) % 30);
+              if (i % 2 == 0) {
+                cache.put(key, value(key.hashCode()));
+              } else {
+                byte[] value = cache.getBytes(key);
+                // Values are never partly written.
+                Assert.assertTrue(value == null || Arrays.equals(value(key.hashCode()), value));
+              }
+            }
+          } catch (Throwable e) {
+            failure.set(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertNull(failure.get());
+    Assert.assertTrue(cache.size() <= 20 * ENTRY_LENGTH);
+    Assert.assertEquals(100, cache.getHitCount() + cache.getMissCount());
+    cache.close();
+  }
+
+  private static List<String> getKeysOfOneStripe(int count) {
+    List<String> keys = new ArrayList<String>();
+    for (int i = 0; keys.size() < count; i++) {
+      if (EncryptedDiskCache.getStripeIndex("key" + i) == 0) {
+        keys.add("key" + i);
+      }
+    }
+    return keys;
+  }
+
+  private static byte[] value(int seed) {
+    byte[] value = new byte[VALUE_LENGTH];
+    new Random(seed).nextBytes(value);
+    return value;
+  }
+}
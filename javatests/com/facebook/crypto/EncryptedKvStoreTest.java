@@ -0,0 +1,258 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import com.facebook.crypto.CryptoTestHelper.TestKeyChain;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EncryptedKvStoreTest {
+
+  // Runs compactions on the calling thread, so that tests can check their results.
+  private static final Executor DIRECT_EXECUTOR = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  private Crypto mCrypto;
+  private File mDirectory;
+
+  @Before
+  public void setUp() throws Exception {
+    mCrypto = CryptoTestHelper.newJavaCrypto(new TestKeyChain());
+    mDirectory = CryptoTestHelper.newTempPath("store", "");
+  }
+
+  @After
+  public void tearDown() {
+    CryptoTestHelper.delete(mDirectory);
+  }
+
+  @Test
+  public void testPutGetDelete() throws Exception {
+    EncryptedKvStore store = new EncryptedKvStore(mCrypto, mDirectory, "store");
+    Assert.assertNull(store.get("a"));
+    store.put("a", value("a", 1));
+    store.put("b", value("b", 1));
+    store.put("a", value("a", 2));
+    Assert.assertArrayEquals(value("a", 2), store.get("a"));
+    Assert.assertArrayEquals(value("b", 1), store.get("b"));
+    Assert.assertEquals(2, store.size());
+
+    Assert.assertTrue(store.delete("a"));
+    Assert.assertFalse(store.delete("a"));
+    Assert.assertNull(store.get("a"));
+    Assert.assertFalse(store.contains("a"));
+    Assert.assertEquals(1, store.size());
+    store.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNameWithNulIsRejected() throws Exception {
+    new EncryptedKvStore(mCrypto, mDirectory, "store\u0000a");
+  }
+
+  @Test
+  public void testScanByPrefix() throws Exception {
+    EncryptedKvStore store = new EncryptedKvStore(mCrypto, mDirectory, "store");
+    for (String key : new String[] {"user/2", "photo/1", "user/1", "user/3"}) {
+      store.put(key, value(key, 0));
+    }
+    store.delete("user/3");
+
+    final List<String> keys = new ArrayList<String>();
+    store.scan("user/", new EncryptedKvStore.ScanHandler() {
+      @Override
+      public void onEntry(String key, byte[] value) {
+        Assert.assertArrayEquals(value(key, 0), value);
+        keys.add(key);
+      }
+    });
+    Assert.assertEquals(Arrays.asList("user/1", "user/2"), keys);
+    store.close();
+  }
+
+  @Test
+  public void testReopenRecoversIndex() throws Exception {
+    EncryptedKvStore store = new EncryptedKvStore(mCrypto, mDirectory, "store", null, 1024);
+    for (int i = 0; i < 100; i++) {
+      store.put("key" + (i % 30), value("key", i));
+    }
+    store.delete("key0");
+    Assert.assertTrue(store.getSegmentCount() > 1);
+    store.close();
+
+    store = new EncryptedKvStore(mCrypto, mDirectory, "store", null, 1024);
+    Assert.assertEquals(29, store.size());
+    Assert.assertNull(store.get("key0"));
+    for (int i = 70; i < 100; i++) {
+      if (i % 30 != 0) {
+        Assert.assertArrayEquals(value("key", i), store.get("key" + (i % 30)));
+      }
+    }
+    store.close();
+  }
+
+  @Test
+  public void testTornTailIsTruncated() throws Exception {
+    EncryptedKvStore store = new EncryptedKvStore(mCrypto, mDirectory, "store");
+    store.put("a", value("a", 0));
+    store.close();
+    File segment = new File(mDirectory, "segment-0.kv");
+    long length = segment.length();
+
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    file.seek(length);
+    file.write(new byte[] {0, 0, 0, 40, 0, 0, 0, 40, 1, 2, 3});
+    file.close();
+
+    store = new EncryptedKvStore(mCrypto, mDirectory, "store");
+    Assert.assertEquals(length, segment.length());
+    Assert.assertArrayEquals(value("a", 0), store.get("a"));
+    store.put("b", value("b", 0));
+    store.close();
+
+    store = new EncryptedKvStore(mCrypto, mDirectory, "store");
+    Assert.assertArrayEquals(value("b", 0), store.get("b"));
+    store.close();
+  }
+
+  @Test
+  public void testCompactionReclaimsSpace() throws Exception {
+    EncryptedKvStore store =
+        new EncryptedKvStore(mCrypto, mDirectory, "store", DIRECT_EXECUTOR, 1024);
+    for (int i = 0; i < 500; i++) {
+      store.put("key" + (i % 5), value("key", i));
+    }
+    store.put("deleted", value("deleted", 0));
+    store.delete("deleted");
+    // Without compaction every put would still be on disk.
+    Assert.assertTrue(store.getDiskLength() < 10 * 1024);
+
+    store.compact();
+    Assert.assertEquals(1, store.getSegmentCount());
+    for (int i = 495; i < 500; i++) {
+      Assert.assertArrayEquals(value("key", i), store.get("key" + (i % 5)));
+    }
+    Assert.assertNull(store.get("deleted"));
+    store.close();
+
+    store = new EncryptedKvStore(mCrypto, mDirectory, "store", DIRECT_EXECUTOR, 1024);
+    Assert.assertEquals(5, store.size());
+    Assert.assertArrayEquals(value("key", 499), store.get("key4"));
+    store.close();
+  }
+
+  @Test
+  public void testUndeletedSegmentKeepsLaterDeletes() throws Exception {
+    EncryptedKvStore store =
+        new EncryptedKvStore(mCrypto, mDirectory, "store", DIRECT_EXECUTOR, 1024) {
+          @Override
+          /* package */ boolean deleteSegmentFile(File file) {
+            return false;
+          }
+        };
+    store.put("deleted", value("deleted", 0));
+    for (int i = 0; i < 20; i++) {
+      store.put("key" + (i % 5), value("key", i));
+    }
+    // The delete goes to a later segment than the value it hides.
+    store.delete("deleted");
+    for (int i = 20; i < 500; i++) {
+      store.put("key" + (i % 5), value("key", i));
+    }
+    try {
+      store.sync();
+      Assert.fail();
+    } catch (IOException e) {
+      // The background compactions could not delete the first segment.
+    }
+    try {
+      store.compact();
+      Assert.fail();
+    } catch (IOException e) {
+      // expected
+    }
+    Assert.assertTrue(store.getSegmentCount() > 1);
+    store.close();
+
+    store = new EncryptedKvStore(mCrypto, mDirectory, "store", DIRECT_EXECUTOR, 1024);
+    Assert.assertNull(store.get("deleted"));
+    Assert.assertArrayEquals(value("key", 499), store.get("key4"));
+    store.compact();
+    Assert.assertEquals(1, store.getSegmentCount());
+    Assert.assertNull(store.get("deleted"));
+    store.close();
+  }
+
+  @Test
+  public void testValueIsBoundToKey() throws Exception {
+    EncryptedKvStore store = new EncryptedKvStore(mCrypto, mDirectory, "store");
+    store.put("a", value("x", 0));
+    store.put("b", value("x", 1));
+    store.close();
+
+    // Swaps the values of the two entries, which have the same length.
+    File segment = new File(mDirectory, "segment-0.kv");
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    int entryLength = (int) (file.length() / 2);
+    file.seek(4);
+    int valueLength = file.readInt();
+    byte[] first = new byte[valueLength];
+    byte[] second = new byte[valueLength];
+    file.seek(entryLength - valueLength);
+    file.readFully(first);
+    file.seek(2 * entryLength - valueLength);
+    file.readFully(second);
+    file.seek(entryLength - valueLength);
+    file.write(second);
+    file.seek(2 * entryLength - valueLength);
+    file.write(first);
+    file.close();
+
+    store = new EncryptedKvStore(mCrypto, mDirectory, "store");
+    try {
+      store.get("a");
+      Assert.fail();
+    } catch (IOException e) {
+      // expected
+    }
+    store.close();
+
+    // Nor does the store open under another name.
+    try {
+      new EncryptedKvStore(mCrypto, mDirectory, "other");
+      Assert.fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private static byte[] value(String key, int version) {
+    try {
+      return (key + ":" + version).getBytes("UTF-8");
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,195 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.facebook.crypto.CryptoTestHelper.TestKeyChain;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EncryptedRecordLogTest {
+
+  private static final Entity ENTITY = new Entity("log");
+
+  private Crypto mCrypto;
+  private File mFile;
+
+  @Before
+  public void setUp() throws Exception {
+    mCrypto = CryptoTestHelper.newJavaCrypto(new TestKeyChain());
+    mFile = CryptoTestHelper.newTempPath("records", ".log");
+  }
+
+  @After
+  public void tearDown() {
+    mFile.delete();
+  }
+
+  @Test
+  public void testAppendAndReplay() throws Exception {
+    EncryptedRecordLog log = mCrypto.openRecordLog(mFile, ENTITY);
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals(i, log.append(record(i)));
+    }
+    Assert.assertEquals(10, log.getRecordCount());
+    assertRecords(log, 0, 10);
+    assertRecords(log, 7, 10);
+    log.close();
+
+    // 2 bytes of file header, a session entry and 21 bytes over each record.
+    Assert.assertEquals(2 + 5 + 12 + 10 * 21 + recordBytes(0, 10), mFile.length());
+  }
+
+  @Test
+  public void testReopenContinuesLog() throws Exception {
+    EncryptedRecordLog log = mCrypto.openRecordLog(mFile, ENTITY);
+    log.append(record(0));
+    log.append(record(1));
+    log.close();
+
+    log = mCrypto.openRecordLog(mFile, ENTITY);
+    Assert.assertEquals(2, log.getRecordCount());
+    Assert.assertEquals(2, log.append(record(2)));
+    assertRecords(log, 0, 3);
+    log.close();
+  }
+
+  @Test
+  public void testConcurrentAppends() throws Exception {
+    final EncryptedRecordLog log = mCrypto.openRecordLog(mFile, ENTITY);
+    final List<Long> indexes = Collections.synchronizedList(new ArrayList<Long>());
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      final int thread = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 25; i++) {
+              indexes.add(log.append(record(thread * 1000 + i)));
+            }
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(200, indexes.size());
+    Assert.assertEquals(200, log.getRecordCount());
+
+    final List<byte[]> records = new ArrayList<byte[]>();
+    log.replay(new EncryptedRecordLog.RecordHandler() {
+      @Override
+      public void onRecord(long index, byte[] record) {
+        Assert.assertEquals(records.size(), index);
+        records.add(record);
+      }
+    });
+    Assert.assertEquals(200, records.size());
+    int[] next = new int[threads.length];
+    for (byte[] record : records) {
+      int id = Integer.parseInt(new String(record, "UTF-8").split(":")[0]);
+      // Each thread's records are in the order it appended them.
+      Assert.assertEquals(next[id / 1000]++, id % 1000);
+    }
+    log.close();
+  }
+
+  @Test
+  public void testTornTailIsTruncated() throws Exception {
+    EncryptedRecordLog log = mCrypto.openRecordLog(mFile, ENTITY);
+    log.append(record(0));
+    log.append(record(1));
+    log.close();
+    long length = mFile.length();
+
+    RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+    file.seek(length);
+    file.write(new byte[] {1, 0, 0, 0, 40, 1, 2, 3});
+    file.close();
+
+    log = mCrypto.openRecordLog(mFile, ENTITY);
+    Assert.assertEquals(length, mFile.length());
+    Assert.assertEquals(2, log.append(record(2)));
+    assertRecords(log, 0, 3);
+    log.close();
+  }
+
+  @Test
+  public void testTamperingFails() throws Exception {
+    EncryptedRecordLog log = mCrypto.openRecordLog(mFile, ENTITY);
+    log.append(record(0));
+    log.append(record(1));
+    log.close();
+
+    // Flips the last tag byte of the first record.
+    RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+    long offset = 2 + 5 + 12 + 5 + record(0).length + 16 - 1;
+    file.seek(offset);
+    byte last = file.readByte();
+    file.seek(offset);
+    file.write(last ^ 1);
+    file.close();
+
+    log = mCrypto.openRecordLog(mFile, ENTITY);
+    // Records are authenticated independently.
+    assertRecords(log, 1, 2);
+    try {
+      assertRecords(log, 0, 2);
+      Assert.fail();
+    } catch (IOException e) {
+      // expected
+    }
+    log.close();
+  }
+
+  private static void assertRecords(EncryptedRecordLog log, final long from, long to)
+      throws IOException {
+    final long[] next = new long[] {from};
+    log.replay(from, new EncryptedRecordLog.RecordHandler() {
+      @Override
+      public void onRecord(long index, byte[] record) {
+        Assert.assertEquals(next[0], index);
+        Assert.assertArrayEquals(record((int) index), record);
+        next[0]++;
+      }
+    });
+    Assert.assertEquals(to, next[0]);
+  }
+
+  private static byte[] record(int id) {
+    try {
+      return (id + ":event").getBytes("UTF-8");
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static int recordBytes(int from, int to) {
+    int bytes = 0;
+    for (int i = from; i < to; i++) {
+      bytes += record(i).length;
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.facebook.crypto.CryptoTestHelper.TestKeyChain;
+import com.google.common.io.ByteStreams;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentedCipherTest {
+
+  private static final Entity ENTITY = new Entity("entity");
+
+  private Crypto mCrypto;
+
+  @Before
+  public void setUp() throws Exception {
+    mCrypto = CryptoTestHelper.newJavaCrypto(new TestKeyChain(true));
+  }
+
+  @Test
+  public void testSegmentedRoundTrip() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      for (int length : new int[] {0, 1, 65535, 65536, 65537, 200000}) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        byte[] cipherText = encryptSegmented(data, null);
+        Assert.assertArrayEquals(cipherText, encryptSegmented(data, executor));
+
+        Assert.assertArrayEquals(data, decryptSegmented(cipherText, null));
+        Assert.assertArrayEquals(data, decryptSegmented(cipherText, executor));
+        Assert.assertArrayEquals(data, mCrypto.decrypt(cipherText, ENTITY));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testSegmentedTruncationFails() throws Exception {
+    byte[] data = new byte[200000];
+    new Random(3).nextBytes(data);
+    byte[] cipherText = encryptSegmented(data, null);
+    int header = 2 + 12;
+    int segment = 65536 + 16;
+    // Drops the last segment, leaving only complete segments.
+    byte[] truncated = Arrays.copyOf(cipherText, header + 3 * segment);
+    assertSegmentedFails(truncated);
+    assertSegmentedFails(Arrays.copyOf(cipherText, header + segment + 10));
+  }
+
+  @Test
+  public void testSegmentedTamperingFails() throws Exception {
+    byte[] data = new byte[100000];
+    new Random(4).nextBytes(data);
+    byte[] cipherText = encryptSegmented(data, null);
+    cipherText[cipherText.length - 20] ^= 1;
+    assertSegmentedFails(cipherText);
+  }
+
+  private byte[] encryptSegmented(byte[] data, ExecutorService executor) throws Exception {
+    ByteArrayOutputStream cipherStream = new ByteArrayOutputStream();
+    OutputStream outputStream =
+        mCrypto.getSegmentedCipherOutputStream(cipherStream, ENTITY, executor);
+    // Writes in odd sized chunks to cross segment boundaries.
+    for (int offset = 0; offset < data.length; offset += 10007) {
+      outputStream.write(data, offset, Math.min(10007, data.length - offset));
+    }
+    outputStream.close();
+    return cipherStream.toByteArray();
+  }
+
+  private byte[] decryptSegmented(byte[] cipherText, ExecutorService executor) throws Exception {
+    InputStream inputStream =
+        mCrypto.getCipherInputStream(new ByteArrayInputStream(cipherText), ENTITY, executor);
+    byte[] data = ByteStreams.toByteArray(inputStream);
+    inputStream.close();
+    return data;
+  }
+
+  private void assertSegmentedFails(byte[] cipherText) throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      for (ExecutorService e : new ExecutorService[] {null, executor}) {
+        try {
+          decryptSegmented(cipherText, e);
+          Assert.fail();
+        } catch (IOException expected) {
+          // expected
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.cipher;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JavaGCMCipherEngineTest {
+
+  private JavaGCMCipherEngine mEngine;
+  private byte[] mKey;
+  private byte[] mIV;
+  private byte[] mAad;
+  private byte[] mData;
+  private byte[] mExpected;
+
+  @Before
+  public void setUp() throws Exception {
+    Random random = new Random(42);
+    mKey = new byte[JavaGCMCipherEngine.KEY_LENGTH];
+    mIV = new byte[JavaGCMCipherEngine.IV_LENGTH];
+    mAad = new byte[13];
+    mData = new byte[10000];
+    random.nextBytes(mKey);
+    random.nextBytes(mIV);
+    random.nextBytes(mAad);
+    random.nextBytes(mData);
+
+    Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(mKey, "AES"), new GCMParameterSpec(128, mIV));
+    cipher.updateAAD(mAad);
+    mExpected = cipher.doFinal(mData);
+    mEngine = new JavaGCMCipherEngine();
+  }
+
+  @Test
+  public void testOneShotEncryptMatchesGCM() throws Exception {
+    byte[] output = new byte[mData.length + JavaGCMCipherEngine.TAG_LENGTH];
+    mEngine.encrypt(mKey, mIV, mAad, mData, 0, mData.length, output, 0);
+    Assert.assertArrayEquals(mExpected, output);
+
+    // Encrypting again on the same thread must not be refused by the provider.
+    mEngine.encrypt(mKey, mIV, mAad, mData, 0, mData.length, output, 0);
+    Assert.assertArrayEquals(mExpected, output);
+  }
+
+  @Test
+  public void testStreamingEncryptMatchesGCM() throws Exception {
+    AuthenticatedCipher cipher = mEngine.newEncryptCipher(mKey, mIV);
+    cipher.updateAad(mAad, mAad.length);
+    byte[] output = new byte[mExpected.length];
+    int offset = 0;
+    // Odd sized chunks, so that the counter does not line up with block boundaries.
+    int[] chunks = { 1, 15, 17, 33, 1000 };
+    for (int i = 0; offset < mData.length; ++i) {
+      int chunk = Math.min(chunks[i % chunks.length], mData.length - offset);
+      Assert.assertEquals(chunk, cipher.update(mData, offset, chunk, output, offset));
+      offset += chunk;
+    }
+    byte[] tag = new byte[JavaGCMCipherEngine.TAG_LENGTH];
+    cipher.encryptFinal(tag, tag.length);
+    cipher.destroy();
+    System.arraycopy(tag, 0, output, mData.length, tag.length);
+    Assert.assertArrayEquals(mExpected, output);
+  }
+
+  @Test
+  public void testStreamingDecryptInPlace() throws Exception {
+    AuthenticatedCipher cipher = mEngine.newDecryptCipher(mKey, mIV);
+    cipher.updateAad(mAad, mAad.length);
+    byte[] buffer = Arrays.copyOf(mExpected, mData.length);
+    Assert.assertEquals(100, cipher.update(buffer, 0, 100, buffer, 0));
+    Assert.assertEquals(mData.length - 100, cipher.update(buffer, 100, mData.length - 100, buffer, 100));
+    cipher.decryptFinal(Arrays.copyOfRange(mExpected, mData.length, mExpected.length), 16);
+    cipher.destroy();
+    Assert.assertArrayEquals(mData, buffer);
+  }
+
+  @Test
+  public void testDirectByteBuffers() throws Exception {
+    AuthenticatedCipher cipher = mEngine.newDecryptCipher(mKey, mIV);
+    cipher.updateAad(mAad, mAad.length);
+    ByteBuffer input = ByteBuffer.allocateDirect(mData.length);
+    input.put(mExpected, 0, mData.length);
+    input.flip();
+    ByteBuffer output = ByteBuffer.allocateDirect(mData.length);
+    Assert.assertEquals(mData.length, cipher.update(input, output));
+    cipher.decryptFinal(Arrays.copyOfRange(mExpected, mData.length, mExpected.length), 16);
+
+    byte[] plainText = new byte[mData.length];
+    output.flip();
+    output.get(plainText);
+    Assert.assertArrayEquals(mData, plainText);
+  }
+
+  @Test
+  public void testStreamingDecryptFailsOnTamperedData() throws Exception {
+    AuthenticatedCipher cipher = mEngine.newDecryptCipher(mKey, mIV);
+    cipher.updateAad(mAad, mAad.length);
+    byte[] buffer = Arrays.copyOf(mExpected, mData.length);
+    buffer[7] ^= 1;
+    cipher.update(buffer, 0, buffer.length, buffer, 0);
+    try {
+      cipher.decryptFinal(Arrays.copyOfRange(mExpected, mData.length, mExpected.length), 16);
+      Assert.fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testOneShotDecryptZeroesOutputOnFailure() throws Exception {
+    byte[] output = new byte[mData.length];
+    mEngine.decrypt(mKey, mIV, mAad, mExpected, 0, mData.length, output, 0);
+    Assert.assertArrayEquals(mData, output);
+
+    byte[] tampered = mExpected.clone();
+    tampered[tampered.length - 1] ^= 1;
+    try {
+      mEngine.decrypt(mKey, mIV, mAad, tampered, 0, mData.length, output, 0);
+      Assert.fail();
+    } catch (IOException e) {
+      Assert.assertArrayEquals(new byte[mData.length], output);
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.cipher;
+
+import com.facebook.crypto.util.NativeCryptoLibrary;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NativeGCMCipherPoolTest {
+
+  private NativeGCMCipherPool mPool;
+
+  @Before
+  public void setUp() {
+    // Ciphers which were never initialized have no native context, so none of these tests load
+    // the library.
+    mPool = new NativeGCMCipherPool(new UnavailableCryptoLibrary(), 2);
+  }
+
+  @Test
+  public void testDestroyedCipherIsReused() throws Exception {
+    NativeGCMCipher cipher = mPool.acquire();
+    Assert.assertEquals(0, mPool.size());
+    cipher.destroy();
+    Assert.assertEquals(1, mPool.size());
+    Assert.assertSame(cipher, mPool.acquire());
+    Assert.assertEquals(0, mPool.size());
+  }
+
+  @Test
+  public void testPoolIsBounded() throws Exception {
+    NativeGCMCipher first = mPool.acquire();
+    NativeGCMCipher second = mPool.acquire();
+    NativeGCMCipher third = mPool.acquire();
+    Assert.assertNotSame(first, second);
+    first.destroy();
+    second.destroy();
+    third.destroy();
+    Assert.assertEquals(2, mPool.size());
+  }
+
+  @Test
+  public void testCipherIsOnlyPooledOnce() throws Exception {
+    NativeGCMCipher cipher = mPool.acquire();
+    cipher.destroy();
+    cipher.destroy();
+    Assert.assertEquals(1, mPool.size());
+  }
+
+  @Test
+  public void testClearEmptiesPool() throws Exception {
+    mPool.acquire().destroy();
+    mPool.clear();
+    Assert.assertEquals(0, mPool.size());
+  }
+
+  private static class UnavailableCryptoLibrary implements NativeCryptoLibrary {
+
+    @Override
+    public void ensureCryptoLoaded() {
+      throw new AssertionError("The native library must not be needed");
+    }
+  }
+}
@@ -0,0 +1,256 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.streams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.facebook.crypto.cipher.AuthenticatedCipher;
+import com.facebook.crypto.cipher.JavaGCMCipherEngine;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CipherProcessorTest {
+
+  private static final byte[] KEY = new byte[16];
+  private static final byte[] IV = new byte[12];
+  private static final byte[] AAD = new byte[] {1, 1, 'e'};
+  private static final byte[] HEADER = new byte[] {1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+  private static final int TAG_LENGTH = 16;
+
+  private JavaGCMCipherEngine mEngine;
+  private byte[] mData;
+  private byte[] mCipherText;
+
+  @Before
+  public void setUp() throws Exception {
+    mEngine = new JavaGCMCipherEngine();
+    mData = new byte[3000];
+    new Random(9).nextBytes(mData);
+    byte[] body = new byte[mData.length + TAG_LENGTH];
+    mEngine.encrypt(KEY, IV, AAD, mData, 0, mData.length, body, 0);
+    mCipherText = concat(HEADER, body);
+  }
+
+  @Test
+  public void testEncryptEmitsHeaderDataAndTag() throws Exception {
+    for (boolean direct : new boolean[] {false, true}) {
+      ListPublisher publisher = new ListPublisher(split(mData, 1000, direct));
+      RecordingSubscriber subscriber = new RecordingSubscriber(1);
+      Flow.Processor<ByteBuffer, ByteBuffer> processor = newEncryptProcessor();
+      publisher.subscribe(processor);
+      processor.subscribe(subscriber);
+
+      // Only one buffer is emitted at a time, and only one is pulled from the publisher for it.
+      while (!subscriber.mCompleted) {
+        Assert.assertEquals(subscriber.mItems.size(), publisher.mEmitted);
+        subscriber.request(1);
+      }
+      Assert.assertNull(subscriber.mError);
+      Assert.assertEquals(4, subscriber.mItems.size());
+      Assert.assertEquals(HEADER.length + 1000, subscriber.mItems.get(0).length);
+      Assert.assertEquals(TAG_LENGTH, subscriber.mItems.get(3).length);
+      Assert.assertArrayEquals(mCipherText, subscriber.getBytes());
+      Assert.assertEquals(mData[0], publisher.mBuffers.get(0).get(0));
+    }
+  }
+
+  @Test
+  public void testEncryptEmpty() throws Exception {
+    RecordingSubscriber subscriber = run(newEncryptProcessor(), new ArrayList<ByteBuffer>());
+    byte[] body = new byte[TAG_LENGTH];
+    mEngine.encrypt(KEY, IV, AAD, new byte[0], 0, 0, body, 0);
+    Assert.assertArrayEquals(concat(HEADER, body), subscriber.getBytes());
+  }
+
+  @Test
+  public void testDecryptAnySplit() throws Exception {
+    for (int chunk : new int[] {1, 7, 16, 100, mCipherText.length}) {
+      RecordingSubscriber subscriber =
+          run(newDecryptProcessor(), split(mCipherText, chunk, chunk % 2 == 0));
+      Assert.assertTrue(subscriber.mCompleted);
+      Assert.assertNull(subscriber.mError);
+      Assert.assertArrayEquals(mData, subscriber.getBytes());
+    }
+  }
+
+  @Test
+  public void testDecryptTamperingFails() throws Exception {
+    byte[] tampered = mCipherText.clone();
+    tampered[tampered.length - 1] ^= 1;
+    RecordingSubscriber subscriber = run(newDecryptProcessor(), split(tampered, 100, false));
+    Assert.assertFalse(subscriber.mCompleted);
+    Assert.assertTrue(subscriber.mError instanceof IOException);
+
+    byte[] truncated = Arrays.copyOf(mCipherText, mCipherText.length - 1);
+    subscriber = run(newDecryptProcessor(), split(truncated, 100, false));
+    Assert.assertTrue(subscriber.mError instanceof IOException);
+  }
+
+  @Test
+  public void testCancelCancelsPublisher() throws Exception {
+    ListPublisher publisher = new ListPublisher(split(mData, 100, false));
+    RecordingSubscriber subscriber = new RecordingSubscriber(2);
+    Flow.Processor<ByteBuffer, ByteBuffer> processor = newEncryptProcessor();
+    publisher.subscribe(processor);
+    processor.subscribe(subscriber);
+    subscriber.mSubscription.cancel();
+    Assert.assertTrue(publisher.mCancelled);
+    Assert.assertEquals(2, subscriber.mItems.size());
+    Assert.assertFalse(subscriber.mCompleted);
+  }
+
+  private Flow.Processor<ByteBuffer, ByteBuffer> newEncryptProcessor() throws Exception {
+    AuthenticatedCipher cipher = mEngine.newEncryptCipher(KEY, IV);
+    cipher.updateAad(AAD, AAD.length);
+    return new CipherEncryptProcessor(cipher, HEADER);
+  }
+
+  private Flow.Processor<ByteBuffer, ByteBuffer> newDecryptProcessor() {
+    return new CipherDecryptProcessor(HEADER.length, new CipherDecryptProcessor.CipherFactory() {
+      @Override
+      public AuthenticatedCipher newDecryptCipher(byte[] header) throws IOException {
+        Assert.assertArrayEquals(HEADER, header);
+        try {
+          AuthenticatedCipher cipher = mEngine.newDecryptCipher(KEY, IV);
+          cipher.updateAad(AAD, AAD.length);
+          return cipher;
+        } catch (Exception e) {
+          throw new IOException(e);
+        }
+      }
+    });
+  }
+
+  private static RecordingSubscriber run(
+      Flow.Processor<ByteBuffer, ByteBuffer> processor,
+      List<ByteBuffer> buffers) {
+    RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+    new ListPublisher(buffers).subscribe(processor);
+    processor.subscribe(subscriber);
+    return subscriber;
+  }
+
+  private static List<ByteBuffer> split(byte[] data, int chunk, boolean direct) {
+    List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    for (int offset = 0; offset < data.length; offset += chunk) {
+      int length = Math.min(chunk, data.length - offset);
+      ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+      buffer.put(data, offset, length).flip();
+      buffers.add(buffer);
+    }
+    return buffers;
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    byte[] result = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, result, a.length, b.length);
+    return result;
+  }
+
+  /**
+   * Emits the buffers synchronously as they are requested.
+   */
+  private static class ListPublisher implements Flow.Publisher<ByteBuffer> {
+
+    private final List<ByteBuffer> mBuffers;
+    private int mEmitted;
+    private long mRequested;
+    private boolean mCancelled;
+    private boolean mEmitting;
+
+    private ListPublisher(List<ByteBuffer> buffers) {
+      mBuffers = buffers;
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super ByteBuffer> subscriber) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+          mRequested += n;
+          if (mEmitting) {
+            return;
+          }
+          mEmitting = true;
+          while (!mCancelled && mRequested > 0 && mEmitted < mBuffers.size()) {
+            mRequested--;
+            subscriber.onNext(mBuffers.get(mEmitted++));
+          }
+          mEmitting = false;
+          if (!mCancelled && mEmitted == mBuffers.size()) {
+            mCancelled = true;
+            subscriber.onComplete();
+          }
+        }
+
+        @Override
+        public void cancel() {
+          mCancelled = true;
+        }
+      });
+    }
+  }
+
+  private static class RecordingSubscriber implements Flow.Subscriber<ByteBuffer> {
+
+    private final long mInitialRequest;
+    private final List<byte[]> mItems = new ArrayList<byte[]>();
+    private Flow.Subscription mSubscription;
+    private boolean mCompleted;
+    private Throwable mError;
+
+    private RecordingSubscriber(long initialRequest) {
+      mInitialRequest = initialRequest;
+    }
+
+    private void request(long n) {
+      mSubscription.request(n);
+    }
+
+    private byte[] getBytes() {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      for (byte[] item : mItems) {
+        bytes.write(item, 0, item.length);
+      }
+      return bytes.toByteArray();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      mSubscription = subscription;
+      subscription.request(mInitialRequest);
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+      byte[] bytes = new byte[item.remaining()];
+      item.get(bytes);
+      mItems.add(bytes);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      mError = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+      mCompleted = true;
+    }
+  }
+}
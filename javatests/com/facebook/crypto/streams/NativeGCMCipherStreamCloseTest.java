@@ -0,0 +1,132 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.streams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.facebook.crypto.cipher.AuthenticatedCipher;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NativeGCMCipherStreamCloseTest {
+
+  private static final int TAG_LENGTH = 16;
+
+  private CountingCipher mCipher;
+
+  @Before
+  public void setUp() {
+    mCipher = new CountingCipher();
+  }
+
+  @Test
+  public void testOutputStreamClosesOnce() throws Exception {
+    NativeGCMCipherOutputStream outputStream =
+        new NativeGCMCipherOutputStream(new ByteArrayOutputStream(), mCipher);
+    outputStream.write(new byte[100]);
+    outputStream.close();
+    outputStream.close();
+    Assert.assertEquals(1, mCipher.mFinals);
+    Assert.assertEquals(1, mCipher.mDestroys);
+  }
+
+  @Test(expected = IOException.class)
+  public void testOutputStreamRejectsWriteAfterClose() throws Exception {
+    NativeGCMCipherOutputStream outputStream =
+        new NativeGCMCipherOutputStream(new ByteArrayOutputStream(), mCipher);
+    outputStream.close();
+    outputStream.write(1);
+  }
+
+  @Test
+  public void testInputStreamClosesOnce() throws Exception {
+    NativeGCMCipherInputStream inputStream = newInputStream();
+    inputStream.read(new byte[10]);
+    inputStream.close();
+    inputStream.close();
+    Assert.assertEquals(1, mCipher.mFinals);
+    Assert.assertEquals(1, mCipher.mDestroys);
+  }
+
+  @Test
+  public void testInputStreamReadToEndThenClosesOnce() throws Exception {
+    NativeGCMCipherInputStream inputStream = newInputStream();
+    byte[] buffer = new byte[200];
+    while (inputStream.read(buffer) != -1) {
+    }
+    inputStream.close();
+    inputStream.close();
+    Assert.assertEquals(1, mCipher.mFinals);
+    Assert.assertEquals(1, mCipher.mDestroys);
+  }
+
+  @Test(expected = IOException.class)
+  public void testInputStreamRejectsReadAfterClose() throws Exception {
+    NativeGCMCipherInputStream inputStream = newInputStream();
+    inputStream.close();
+    inputStream.read(new byte[10]);
+  }
+
+  private NativeGCMCipherInputStream newInputStream() {
+    byte[] cipherText = new byte[100 + TAG_LENGTH];
+    return new NativeGCMCipherInputStream(new ByteArrayInputStream(cipherText), mCipher);
+  }
+
+  /**
+   * Copies its input and counts how often it is finalized and destroyed.
+   */
+  private static class CountingCipher implements AuthenticatedCipher {
+
+    private int mFinals;
+    private int mDestroys;
+
+    @Override
+    public void updateAad(byte[] data, int dataLength) {
+    }
+
+    @Override
+    public int update(byte[] data, int offset, int dataLen, byte[] output, int outputOffset) {
+      System.arraycopy(data, offset, output, outputOffset, dataLen);
+      return dataLen;
+    }
+
+    @Override
+    public int update(ByteBuffer input, ByteBuffer output) {
+      int length = input.remaining();
+      output.put(input);
+      return length;
+    }
+
+    @Override
+    public void encryptFinal(byte[] tag, int tagLen) {
+      mFinals++;
+    }
+
+    @Override
+    public void decryptFinal(byte[] expectedTag, int tagLen) {
+      mFinals++;
+    }
+
+    @Override
+    public void destroy() {
+      mDestroys++;
+    }
+
+    @Override
+    public int getTagLength() {
+      return TAG_LENGTH;
+    }
+  }
+}
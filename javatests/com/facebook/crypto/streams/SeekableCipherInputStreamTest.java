@@ -0,0 +1,185 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.streams;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.facebook.crypto.cipher.JavaGCMCipherEngine;
+import com.facebook.crypto.exception.CryptoInitializationException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SeekableCipherInputStreamTest {
+
+  private static final int SEGMENT_LENGTH = SegmentCodec.SEGMENT_LENGTH;
+  private static final byte[] KEY = new byte[16];
+  private static final byte[] IV = new byte[12];
+  private static final byte[] AAD = new byte[] {1, 3, 'e'};
+
+  private CountingEngine mEngine;
+  private File mFile;
+  private byte[] mData;
+
+  @Before
+  public void setUp() throws Exception {
+    mEngine = new CountingEngine();
+    mFile = File.createTempFile("seekable", ".enc");
+    mData = new byte[3 * SEGMENT_LENGTH + 1000];
+    new Random(5).nextBytes(mData);
+    writeFile(mData);
+  }
+
+  @After
+  public void tearDown() {
+    mFile.delete();
+  }
+
+  @Test
+  public void testReadsEverything() throws Exception {
+    SeekableCipherInputStream stream = open(mFile);
+    Assert.assertEquals(mData.length, stream.size());
+    byte[] read = new byte[mData.length];
+    int offset = 0;
+    int count;
+    while ((count = stream.read(read, offset, Math.min(9999, read.length - offset))) > 0) {
+      offset += count;
+    }
+    Assert.assertEquals(mData.length, offset);
+    Assert.assertEquals(-1, stream.read());
+    Assert.assertArrayEquals(mData, read);
+    // The last segment is checked when opening and again when read.
+    Assert.assertEquals(5, mEngine.mDecryptCount);
+    stream.close();
+  }
+
+  @Test
+  public void testSeekDecryptsOnlyTouchedSegments() throws Exception {
+    SeekableCipherInputStream stream = open(mFile);
+    int opened = mEngine.mDecryptCount;
+
+    long position = 2 * SEGMENT_LENGTH + 123;
+    stream.seek(position);
+    byte[] read = new byte[100];
+    Assert.assertEquals(100, stream.read(read));
+    Assert.assertArrayEquals(Arrays.copyOfRange(mData, (int) position, (int) position + 100), read);
+    Assert.assertEquals(opened + 1, mEngine.mDecryptCount);
+
+    // Reading on within the segment and skipping back into it decrypts nothing.
+    Assert.assertEquals(mData[(int) position + 100] & 0xFF, stream.read());
+    stream.mark(0);
+    Assert.assertEquals(SEGMENT_LENGTH, stream.skip(SEGMENT_LENGTH));
+    stream.reset();
+    Assert.assertEquals(mData[(int) position + 101] & 0xFF, stream.read());
+    Assert.assertEquals(opened + 1, mEngine.mDecryptCount);
+
+    ByteBuffer buffer = ByteBuffer.allocate(10);
+    stream.position(5);
+    Assert.assertEquals(10, stream.read(buffer));
+    Assert.assertArrayEquals(Arrays.copyOfRange(mData, 5, 15), buffer.array());
+    Assert.assertEquals(15, stream.position());
+
+    stream.seek(mData.length + 10);
+    Assert.assertEquals(-1, stream.read());
+    stream.close();
+    Assert.assertFalse(stream.isOpen());
+  }
+
+  @Test
+  public void testEmptyAndFullSegments() throws Exception {
+    for (int length : new int[] {0, 1, SEGMENT_LENGTH, 2 * SEGMENT_LENGTH}) {
+      byte[] data = Arrays.copyOf(mData, length);
+      writeFile(data);
+      SeekableCipherInputStream stream = open(mFile);
+      Assert.assertEquals(length, stream.size());
+      if (length > 0) {
+        stream.seek(length - 1);
+        Assert.assertEquals(data[length - 1] & 0xFF, stream.read());
+      }
+      Assert.assertEquals(-1, stream.read());
+      stream.close();
+    }
+  }
+
+  @Test
+  public void testTruncationFailsOnOpen() throws Exception {
+    RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+    file.setLength(file.length() - 1000 - 16);
+    file.close();
+    try {
+      open(mFile);
+      Assert.fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testTamperingFailsOnRead() throws Exception {
+    RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+    file.seek(SEGMENT_LENGTH + 16 + 50);
+    file.write(0);
+    file.close();
+
+    SeekableCipherInputStream stream = open(mFile);
+    stream.seek(2 * SEGMENT_LENGTH);
+    Assert.assertEquals(mData[2 * SEGMENT_LENGTH] & 0xFF, stream.read());
+    stream.seek(SEGMENT_LENGTH + 1);
+    try {
+      stream.read();
+      Assert.fail();
+    } catch (IOException e) {
+      // expected
+    }
+    stream.close();
+  }
+
+  private void writeFile(byte[] data) throws IOException {
+    OutputStream stream = new SegmentedCipherOutputStream(
+        new FileOutputStream(mFile), mEngine, KEY, IV, AAD, null);
+    stream.write(data);
+    stream.close();
+    mEngine.mDecryptCount = 0;
+  }
+
+  private SeekableCipherInputStream open(File file) throws IOException {
+    return new SeekableCipherInputStream(
+        new RandomAccessFile(file, "r").getChannel(), 0, mEngine, KEY, IV, AAD);
+  }
+
+  private static class CountingEngine extends JavaGCMCipherEngine {
+
+    private int mDecryptCount;
+
+    @Override
+    public void decrypt(
+        byte[] key,
+        byte[] iv,
+        byte[] aad,
+        byte[] data,
+        int offset,
+        int dataLen,
+        byte[] output,
+        int outputOffset)
+        throws IOException, CryptoInitializationException {
+      mDecryptCount++;
+      super.decrypt(key, iv, aad, data, offset, dataLen, output, outputOffset);
+    }
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+package com.facebook.crypto.util;
+
+import com.facebook.crypto.exception.CryptoInitializationException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JarNativeCryptoLibraryTest {
+
+  @Test
+  public void testPlatformNamesMatchHostBuild() {
+    Assert.assertEquals("linux-x86_64", JarNativeCryptoLibrary.getPlatform("Linux", "amd64"));
+    Assert.assertEquals("linux-x86_64", JarNativeCryptoLibrary.getPlatform("Linux", "x86_64"));
+    Assert.assertEquals("linux-aarch64", JarNativeCryptoLibrary.getPlatform("Linux", "aarch64"));
+    Assert.assertEquals("linux-x86", JarNativeCryptoLibrary.getPlatform("Linux", "i386"));
+    Assert.assertEquals("darwin-aarch64", JarNativeCryptoLibrary.getPlatform("Mac OS X", "arm64"));
+  }
+
+  @Test
+  public void testMissingLibraryFailsEveryTime() throws Exception {
+    // No library is packaged under this root, and java.library.path is not searched, since it may
+    // hold a host build.
+    JarNativeCryptoLibrary library =
+        new JarNativeCryptoLibrary("/com/facebook/crypto/missing/", false);
+    for (int i = 0; i < 2; ++i) {
+      try {
+        library.ensureCryptoLoaded();
+        Assert.fail("Expected the library to be missing");
+      } catch (CryptoInitializationException e) {
+        Assert.assertTrue(e.getCause() instanceof UnsatisfiedLinkError);
+      }
+    }
+  }
+}
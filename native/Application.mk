@@ -1,4 +1,12 @@
 # Copyright 2004-present Facebook. All Rights Reserved.
 
 APP_ABI := armeabi armeabi-v7a x86
-NDK_TOOLCHAIN_VERSION := 4.8
+
+# The 64-bit ABIs are built once their OpenSSL archives have been added to
+# third-party/openssl, see third-party/patches/README.md. Their OpenSSL builds use the ARMv8
+# Crypto Extensions and AES-NI for AES-GCM.
+APP_MK_DIR := $(dir $(lastword $(MAKEFILE_LIST)))
+APP_ABI += $(foreach abi,arm64-v8a x86_64,$(if $(wildcard $(APP_MK_DIR)third-party/openssl/$(abi)/libcrypto.a),$(abi)))
+
+# 64-bit ABIs need GCC 4.9.
+NDK_TOOLCHAIN_VERSION := 4.9
@@ -4,7 +4,7 @@ include $(CLEAR_VARS)
 
 LOCAL_MODULE    := conceal
 LOCAL_CFLAGS    := -fvisibility=hidden -Os
-LOCAL_SRC_FILES := gcm.c gcm_util.c hmac.c hmac_util.c init.c util.c
+LOCAL_SRC_FILES := chacha20_poly1305.c chacha20_poly1305_util.c gcm.c gcm_util.c hmac.c hmac_util.c init.c key_handle.c mac_key_handle.c sha256_util.c util.c
 LOCAL_LDLIBS    := -llog
 
 LOCAL_SHARED_LIBRARIES += crypto
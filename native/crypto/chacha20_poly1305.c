@@ -0,0 +1,229 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+#include <chacha20_poly1305_util.h>
+#include <jni.h>
+#include <openssl/crypto.h>
+#include <util.h>
+
+static int ChaCha20_Poly1305_Init_JNI(
+  JNIEnv* env,
+  jobject obj,
+  jbyteArray key,
+  jbyteArray nonce,
+  jint mode) {
+
+  jbyte keyBytes[CHACHA20_POLY1305_INPUT_KEY_LENGTH_IN_BYTES];
+  jbyte nonceBytes[CHACHA20_POLY1305_NONCE_LENGTH_IN_BYTES];
+  (*env)->GetByteArrayRegion(env, key, 0, CHACHA20_POLY1305_INPUT_KEY_LENGTH_IN_BYTES, keyBytes);
+  (*env)->GetByteArrayRegion(env, nonce, 0, CHACHA20_POLY1305_NONCE_LENGTH_IN_BYTES, nonceBytes);
+  if ((*env)->ExceptionCheck(env)) {
+    OPENSSL_cleanse(keyBytes, sizeof(keyBytes));
+    return CRYPTO_FAILURE;
+  }
+
+  CHACHA20_POLY1305_JNI_CTX* ctx = Get_Or_Create_ChaCha20_Poly1305_JNI_CTX(env, obj);
+  if (!ctx) {
+    OPENSSL_cleanse(keyBytes, sizeof(keyBytes));
+    return CRYPTO_FAILURE;
+  }
+
+  int retCode = ChaCha20_Poly1305_Init(ctx, keyBytes, nonceBytes, mode);
+  OPENSSL_cleanse(keyBytes, sizeof(keyBytes));
+  return retCode;
+}
+
+JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeChaCha20Poly1305Cipher_nativeEncryptInit(
+  JNIEnv* env,
+  jobject obj,
+  jbyteArray key,
+  jbyteArray nonce) {
+
+  return ChaCha20_Poly1305_Init_JNI(env, obj, key, nonce, CHACHA20_POLY1305_ENCRYPT_MODE);
+}
+
+JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeChaCha20Poly1305Cipher_nativeDecryptInit(
+  JNIEnv* env,
+  jobject obj,
+  jbyteArray key,
+  jbyteArray nonce) {
+
+  return ChaCha20_Poly1305_Init_JNI(env, obj, key, nonce, CHACHA20_POLY1305_DECRYPT_MODE);
+}
+
+JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeChaCha20Poly1305Cipher_nativeUpdateAad(
+  JNIEnv* env,
+  jobject obj,
+  jbyteArray data,
+  jint dataLength) {
+
+  CHACHA20_POLY1305_JNI_CTX* ctx = Get_ChaCha20_Poly1305_JNI_CTX(env, obj);
+  if (!ctx) {
+    return CRYPTO_NO_BYTES_WRITTEN;
+  }
+
+  jbyte* dataBytes = (*env)->GetByteArrayElements(env, data, NULL);
+  if (!dataBytes) {
+    return CRYPTO_NO_BYTES_WRITTEN;
+  }
+
+  int bytesWritten = dataLength;
+  if (!ChaCha20_Poly1305_Update_Aad(ctx, (uint8_t*) dataBytes, dataLength)) {
+    bytesWritten = CRYPTO_NO_BYTES_WRITTEN;
+  }
+
+  (*env)->ReleaseByteArrayElements(env, data, dataBytes, JNI_ABORT);
+  return bytesWritten;
+}
+
+JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeChaCha20Poly1305Cipher_nativeUpdate(
+  JNIEnv* env,
+  jobject obj,
+  jbyteArray data,
+  jint offset,
+  jint dataLength,
+  jbyteArray output,
+  jint outputOffset) {
+
+  CHACHA20_POLY1305_JNI_CTX* ctx = Get_ChaCha20_Poly1305_JNI_CTX(env, obj);
+  if (!ctx) {
+    return CRYPTO_NO_BYTES_WRITTEN;
+  }
+
+  // When decrypting in place the input and output are the same array.
+  int inPlace = (*env)->IsSameObject(env, data, output);
+
+  // No other JNI calls may be made until both arrays are released.
+  jbyte* dataBytes = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, data, NULL);
+  if (!dataBytes) {
+    return CRYPTO_NO_BYTES_WRITTEN;
+  }
+
+  jbyte* outputBytes = dataBytes;
+  if (!inPlace) {
+    outputBytes = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, output, NULL);
+    if (!outputBytes) {
+      (*env)->ReleasePrimitiveArrayCritical(env, data, dataBytes, JNI_ABORT);
+      return CRYPTO_NO_BYTES_WRITTEN;
+    }
+  }
+
+  int bytesWritten = dataLength;
+  if (!ChaCha20_Poly1305_Update(
+      ctx,
+      (uint8_t*) outputBytes + outputOffset,
+      (uint8_t*) dataBytes + offset,
+      dataLength)) {
+    bytesWritten = CRYPTO_NO_BYTES_WRITTEN;
+  }
+
+  if (inPlace) {
+    (*env)->ReleasePrimitiveArrayCritical(env, data, dataBytes, 0);
+  } else {
+    (*env)->ReleasePrimitiveArrayCritical(env, output, outputBytes, 0);
+    (*env)->ReleasePrimitiveArrayCritical(env, data, dataBytes, JNI_ABORT);
+  }
+
+  return bytesWritten;
+}
+
+JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeChaCha20Poly1305Cipher_nativeUpdateDirect(
+  JNIEnv* env,
+  jobject obj,
+  jobject data,
+  jint offset,
+  jint dataLength,
+  jobject output,
+  jint outputOffset) {
+
+  CHACHA20_POLY1305_JNI_CTX* ctx = Get_ChaCha20_Poly1305_JNI_CTX(env, obj);
+  if (!ctx) {
+    return CRYPTO_NO_BYTES_WRITTEN;
+  }
+
+  jbyte* dataBytes = (jbyte*) (*env)->GetDirectBufferAddress(env, data);
+  if (!dataBytes) {
+    return CRYPTO_NO_BYTES_WRITTEN;
+  }
+
+  jbyte* outputBytes = (jbyte*) (*env)->GetDirectBufferAddress(env, output);
+  if (!outputBytes) {
+    return CRYPTO_NO_BYTES_WRITTEN;
+  }
+
+  if (!ChaCha20_Poly1305_Update(
+      ctx,
+      (uint8_t*) outputBytes + outputOffset,
+      (uint8_t*) dataBytes + offset,
+      dataLength)) {
+    return CRYPTO_NO_BYTES_WRITTEN;
+  }
+  return dataLength;
+}
+
+JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeChaCha20Poly1305Cipher_nativeEncryptFinal(
+  JNIEnv* env,
+  jobject obj,
+  jbyteArray tag,
+  jint tagLength) {
+
+  CHACHA20_POLY1305_JNI_CTX* ctx = Get_ChaCha20_Poly1305_JNI_CTX(env, obj);
+  if (!ctx || tagLength != CHACHA20_POLY1305_TAG_LENGTH_IN_BYTES) {
+    return CRYPTO_FAILURE;
+  }
+
+  jbyte tagBytes[CHACHA20_POLY1305_TAG_LENGTH_IN_BYTES];
+  ChaCha20_Poly1305_Final(ctx, (uint8_t*) tagBytes);
+  (*env)->SetByteArrayRegion(env, tag, 0, CHACHA20_POLY1305_TAG_LENGTH_IN_BYTES, tagBytes);
+  if ((*env)->ExceptionCheck(env)) {
+    return CRYPTO_FAILURE;
+  }
+  return CRYPTO_SUCCESS;
+}
+
+JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeChaCha20Poly1305Cipher_nativeDecryptFinal(
+  JNIEnv* env,
+  jobject obj,
+  jbyteArray expectedTag,
+  jint tagLength) {
+
+  CHACHA20_POLY1305_JNI_CTX* ctx = Get_ChaCha20_Poly1305_JNI_CTX(env, obj);
+  if (!ctx || tagLength != CHACHA20_POLY1305_TAG_LENGTH_IN_BYTES) {
+    return CRYPTO_FAILURE;
+  }
+
+  jbyte tagBytes[CHACHA20_POLY1305_TAG_LENGTH_IN_BYTES];
+  (*env)->GetByteArrayRegion(env, expectedTag, 0, CHACHA20_POLY1305_TAG_LENGTH_IN_BYTES, tagBytes);
+  if ((*env)->ExceptionCheck(env)) {
+    return CRYPTO_FAILURE;
+  }
+  return ChaCha20_Poly1305_Verify(ctx, (uint8_t*) tagBytes);
+}
+
+JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeChaCha20Poly1305Cipher_nativeDestroy(
+  JNIEnv* env,
+  jobject obj) {
+
+  CHACHA20_POLY1305_JNI_CTX* ctx = Get_ChaCha20_Poly1305_JNI_CTX(env, obj);
+  if (!ctx) {
+    return CRYPTO_FAILURE;
+  }
+
+  Destroy_ChaCha20_Poly1305_JNI_CTX(ctx);
+  Set_ChaCha20_Poly1305_JNI_CTX(env, obj, 0);
+  return CRYPTO_SUCCESS;
+}
+
+// Give the java layer access to C constants.
+JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeChaCha20Poly1305Cipher_nativeFailure(
+  JNIEnv* env,
+  jobject obj) {
+
+  return CRYPTO_FAILURE;
+}
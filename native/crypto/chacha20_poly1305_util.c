@@ -0,0 +1,485 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+// ChaCha20-Poly1305 as specified in RFC 8439. OpenSSL 1.0.2 does not provide it, and unlike
+// AES it is fast in portable code on devices without crypto instructions.
+
+#include <chacha20_poly1305_util.h>
+#include <openssl/crypto.h>
+#include <openssl/evp.h>
+#include <openssl/hmac.h>
+#include <openssl/sha.h>
+#include <stdlib.h>
+#include <string.h>
+#include <util.h>
+
+const int CHACHA20_POLY1305_ENCRYPT_MODE = 1;
+const int CHACHA20_POLY1305_DECRYPT_MODE = 0;
+
+static const char* JAVA_CHACHA20_POLY1305_CLASS =
+  "com/facebook/crypto/cipher/NativeChaCha20Poly1305Cipher";
+
+// Separates the ChaCha20 key from other uses of the cipher key.
+static const char KEY_DERIVATION_LABEL[] = "conceal chacha20-poly1305 key";
+
+// Cache field id.
+static jfieldID fieldId = NULL;
+
+#define ROTL32(v, n) (((v) << (n)) | ((v) >> (32 - (n))))
+
+#define QUARTER_ROUND(x, a, b, c, d) \
+  x[a] += x[b]; x[d] = ROTL32(x[d] ^ x[a], 16); \
+  x[c] += x[d]; x[b] = ROTL32(x[b] ^ x[c], 12); \
+  x[a] += x[b]; x[d] = ROTL32(x[d] ^ x[a], 8); \
+  x[c] += x[d]; x[b] = ROTL32(x[b] ^ x[c], 7);
+
+static uint32_t Load32_LE(const uint8_t* p) {
+  return ((uint32_t) p[0]) |
+    ((uint32_t) p[1] << 8) |
+    ((uint32_t) p[2] << 16) |
+    ((uint32_t) p[3] << 24);
+}
+
+static void Store32_LE(uint8_t* p, uint32_t v) {
+  p[0] = (uint8_t) v;
+  p[1] = (uint8_t) (v >> 8);
+  p[2] = (uint8_t) (v >> 16);
+  p[3] = (uint8_t) (v >> 24);
+}
+
+static void Store64_LE(uint8_t* p, uint64_t v) {
+  Store32_LE(p, (uint32_t) v);
+  Store32_LE(p + 4, (uint32_t) (v >> 32));
+}
+
+static void ChaCha20_Block(const uint32_t state[16], uint8_t output[CHACHA20_BLOCK_LENGTH_IN_BYTES]) {
+  uint32_t x[16];
+  int i;
+  memcpy(x, state, sizeof(x));
+  for (i = 0; i < 10; ++i) {
+    QUARTER_ROUND(x, 0, 4, 8, 12)
+    QUARTER_ROUND(x, 1, 5, 9, 13)
+    QUARTER_ROUND(x, 2, 6, 10, 14)
+    QUARTER_ROUND(x, 3, 7, 11, 15)
+    QUARTER_ROUND(x, 0, 5, 10, 15)
+    QUARTER_ROUND(x, 1, 6, 11, 12)
+    QUARTER_ROUND(x, 2, 7, 8, 13)
+    QUARTER_ROUND(x, 3, 4, 9, 14)
+  }
+  for (i = 0; i < 16; ++i) {
+    Store32_LE(output + 4 * i, x[i] + state[i]);
+  }
+  OPENSSL_cleanse(x, sizeof(x));
+}
+
+// Produces the next block of key stream and advances the block counter.
+static int Next_Key_Stream_Block(CHACHA20_POLY1305_JNI_CTX* ctx) {
+  if (ctx->counterExhausted) {
+    return CRYPTO_FAILURE;
+  }
+  ChaCha20_Block(ctx->state, ctx->keyStream);
+  ctx->keyStreamUsed = 0;
+  if (++ctx->state[12] == 0) {
+    ctx->counterExhausted = 1;
+  }
+  return CRYPTO_SUCCESS;
+}
+
+// Poly1305 with 26 bit limbs, which only needs 32x32 bit multiplies.
+
+static void Poly1305_Init(POLY1305_CTX* poly, const uint8_t key[32]) {
+  // r is clamped as the specification requires.
+  poly->r[0] = (Load32_LE(key + 0)) & 0x3ffffff;
+  poly->r[1] = (Load32_LE(key + 3) >> 2) & 0x3ffff03;
+  poly->r[2] = (Load32_LE(key + 6) >> 4) & 0x3ffc0ff;
+  poly->r[3] = (Load32_LE(key + 9) >> 6) & 0x3f03fff;
+  poly->r[4] = (Load32_LE(key + 12) >> 8) & 0x00fffff;
+
+  memset(poly->h, 0, sizeof(poly->h));
+
+  poly->pad[0] = Load32_LE(key + 16);
+  poly->pad[1] = Load32_LE(key + 20);
+  poly->pad[2] = Load32_LE(key + 24);
+  poly->pad[3] = Load32_LE(key + 28);
+
+  poly->leftover = 0;
+  poly->final = 0;
+}
+
+static void Poly1305_Blocks(POLY1305_CTX* poly, const uint8_t* m, size_t bytes) {
+  const uint32_t hibit = poly->final ? 0 : (1UL << 24);
+  uint32_t r0 = poly->r[0], r1 = poly->r[1], r2 = poly->r[2], r3 = poly->r[3], r4 = poly->r[4];
+  uint32_t s1 = r1 * 5, s2 = r2 * 5, s3 = r3 * 5, s4 = r4 * 5;
+  uint32_t h0 = poly->h[0], h1 = poly->h[1], h2 = poly->h[2], h3 = poly->h[3], h4 = poly->h[4];
+  uint64_t d0, d1, d2, d3, d4;
+  uint32_t c;
+
+  while (bytes >= 16) {
+    h0 += (Load32_LE(m + 0)) & 0x3ffffff;
+    h1 += (Load32_LE(m + 3) >> 2) & 0x3ffffff;
+    h2 += (Load32_LE(m + 6) >> 4) & 0x3ffffff;
+    h3 += (Load32_LE(m + 9) >> 6) & 0x3ffffff;
+    h4 += (Load32_LE(m + 12) >> 8) | hibit;
+
+    d0 = ((uint64_t) h0 * r0) + ((uint64_t) h1 * s4) + ((uint64_t) h2 * s3) +
+      ((uint64_t) h3 * s2) + ((uint64_t) h4 * s1);
+    d1 = ((uint64_t) h0 * r1) + ((uint64_t) h1 * r0) + ((uint64_t) h2 * s4) +
+      ((uint64_t) h3 * s3) + ((uint64_t) h4 * s2);
+    d2 = ((uint64_t) h0 * r2) + ((uint64_t) h1 * r1) + ((uint64_t) h2 * r0) +
+      ((uint64_t) h3 * s4) + ((uint64_t) h4 * s3);
+    d3 = ((uint64_t) h0 * r3) + ((uint64_t) h1 * r2) + ((uint64_t) h2 * r1) +
+      ((uint64_t) h3 * r0) + ((uint64_t) h4 * s4);
+    d4 = ((uint64_t) h0 * r4) + ((uint64_t) h1 * r3) + ((uint64_t) h2 * r2) +
+      ((uint64_t) h3 * r1) + ((uint64_t) h4 * r0);
+
+    c = (uint32_t) (d0 >> 26); h0 = (uint32_t) d0 & 0x3ffffff;
+    d1 += c; c = (uint32_t) (d1 >> 26); h1 = (uint32_t) d1 & 0x3ffffff;
+    d2 += c; c = (uint32_t) (d2 >> 26); h2 = (uint32_t) d2 & 0x3ffffff;
+    d3 += c; c = (uint32_t) (d3 >> 26); h3 = (uint32_t) d3 & 0x3ffffff;
+    d4 += c; c = (uint32_t) (d4 >> 26); h4 = (uint32_t) d4 & 0x3ffffff;
+    h0 += c * 5; c = h0 >> 26; h0 = h0 & 0x3ffffff;
+    h1 += c;
+
+    m += 16;
+    bytes -= 16;
+  }
+
+  poly->h[0] = h0;
+  poly->h[1] = h1;
+  poly->h[2] = h2;
+  poly->h[3] = h3;
+  poly->h[4] = h4;
+}
+
+static void Poly1305_Update(POLY1305_CTX* poly, const uint8_t* m, size_t bytes) {
+  size_t i;
+  if (poly->leftover) {
+    size_t want = 16 - poly->leftover;
+    if (want > bytes) {
+      want = bytes;
+    }
+    for (i = 0; i < want; ++i) {
+      poly->buffer[poly->leftover + i] = m[i];
+    }
+    bytes -= want;
+    m += want;
+    poly->leftover += want;
+    if (poly->leftover < 16) {
+      return;
+    }
+    Poly1305_Blocks(poly, poly->buffer, 16);
+    poly->leftover = 0;
+  }
+
+  if (bytes >= 16) {
+    size_t want = bytes & ~((size_t) 15);
+    Poly1305_Blocks(poly, m, want);
+    m += want;
+    bytes -= want;
+  }
+
+  for (i = 0; i < bytes; ++i) {
+    poly->buffer[poly->leftover + i] = m[i];
+  }
+  poly->leftover += bytes;
+}
+
+static void Poly1305_Finish(POLY1305_CTX* poly, uint8_t mac[16]) {
+  uint32_t h0, h1, h2, h3, h4, c;
+  uint32_t g0, g1, g2, g3, g4;
+  uint64_t f;
+  uint32_t mask;
+
+  if (poly->leftover) {
+    size_t i = poly->leftover;
+    poly->buffer[i++] = 1;
+    for (; i < 16; ++i) {
+      poly->buffer[i] = 0;
+    }
+    poly->final = 1;
+    Poly1305_Blocks(poly, poly->buffer, 16);
+  }
+
+  h0 = poly->h[0];
+  h1 = poly->h[1];
+  h2 = poly->h[2];
+  h3 = poly->h[3];
+  h4 = poly->h[4];
+
+  c = h1 >> 26; h1 = h1 & 0x3ffffff;
+  h2 += c; c = h2 >> 26; h2 = h2 & 0x3ffffff;
+  h3 += c; c = h3 >> 26; h3 = h3 & 0x3ffffff;
+  h4 += c; c = h4 >> 26; h4 = h4 & 0x3ffffff;
+  h0 += c * 5; c = h0 >> 26; h0 = h0 & 0x3ffffff;
+  h1 += c;
+
+  // Compute h - p and keep it if it did not underflow, without branching on secret data.
+  g0 = h0 + 5; c = g0 >> 26; g0 &= 0x3ffffff;
+  g1 = h1 + c; c = g1 >> 26; g1 &= 0x3ffffff;
+  g2 = h2 + c; c = g2 >> 26; g2 &= 0x3ffffff;
+  g3 = h3 + c; c = g3 >> 26; g3 &= 0x3ffffff;
+  g4 = h4 + c - (1UL << 26);
+
+  mask = (g4 >> 31) - 1;
+  g0 &= mask;
+  g1 &= mask;
+  g2 &= mask;
+  g3 &= mask;
+  g4 &= mask;
+  mask = ~mask;
+  h0 = (h0 & mask) | g0;
+  h1 = (h1 & mask) | g1;
+  h2 = (h2 & mask) | g2;
+  h3 = (h3 & mask) | g3;
+  h4 = (h4 & mask) | g4;
+
+  h0 = ((h0) | (h1 << 26)) & 0xffffffff;
+  h1 = ((h1 >> 6) | (h2 << 20)) & 0xffffffff;
+  h2 = ((h2 >> 12) | (h3 << 14)) & 0xffffffff;
+  h3 = ((h3 >> 18) | (h4 << 8)) & 0xffffffff;
+
+  f = (uint64_t) h0 + poly->pad[0]; h0 = (uint32_t) f;
+  f = (uint64_t) h1 + poly->pad[1] + (f >> 32); h1 = (uint32_t) f;
+  f = (uint64_t) h2 + poly->pad[2] + (f >> 32); h2 = (uint32_t) f;
+  f = (uint64_t) h3 + poly->pad[3] + (f >> 32); h3 = (uint32_t) f;
+
+  Store32_LE(mac + 0, h0);
+  Store32_LE(mac + 4, h1);
+  Store32_LE(mac + 8, h2);
+  Store32_LE(mac + 12, h3);
+
+  OPENSSL_cleanse(poly, sizeof(POLY1305_CTX));
+}
+
+// Pads the authenticated data so far to a multiple of 16 bytes, as the construction requires.
+static void Poly1305_Pad(POLY1305_CTX* poly, uint64_t length) {
+  static const uint8_t zeros[16] = { 0 };
+  size_t remainder = (size_t) (length % 16);
+  if (remainder) {
+    Poly1305_Update(poly, zeros, 16 - remainder);
+  }
+}
+
+static int Is_Same_Input_Key(jbyte* key, jbyte* otherKey) {
+  // Compare in constant time so that the check does not leak how much of the key matched.
+  jbyte diff = 0;
+  int i;
+  for (i = 0; i < CHACHA20_POLY1305_INPUT_KEY_LENGTH_IN_BYTES; ++i) {
+    diff |= key[i] ^ otherKey[i];
+  }
+  return diff == 0;
+}
+
+// Expands the input key to a ChaCha20 key with HKDF-Expand (RFC 5869) over HMAC-SHA1, the only
+// HMAC digest our OpenSSL build keeps: T(i) = HMAC(inputKey, T(i - 1) | label | i).
+static int Derive_Key(jbyte* inputKey, uint8_t key[CHACHA20_KEY_LENGTH_IN_BYTES]) {
+  uint8_t block[SHA_DIGEST_LENGTH + sizeof(KEY_DERIVATION_LABEL)];
+  uint8_t digest[SHA_DIGEST_LENGTH];
+  size_t labelLength = sizeof(KEY_DERIVATION_LABEL) - 1;
+  size_t previousLength = 0;
+  size_t written = 0;
+  unsigned char counter = 1;
+  int retCode = CRYPTO_SUCCESS;
+
+  while (written < CHACHA20_KEY_LENGTH_IN_BYTES) {
+    unsigned int digestLength = 0;
+    size_t copyLength;
+    memcpy(block + previousLength, KEY_DERIVATION_LABEL, labelLength);
+    block[previousLength + labelLength] = counter++;
+    if (!HMAC(
+        EVP_sha1(),
+        inputKey,
+        CHACHA20_POLY1305_INPUT_KEY_LENGTH_IN_BYTES,
+        block,
+        previousLength + labelLength + 1,
+        digest,
+        &digestLength) || digestLength != SHA_DIGEST_LENGTH) {
+      retCode = CRYPTO_FAILURE;
+      break;
+    }
+    copyLength = CHACHA20_KEY_LENGTH_IN_BYTES - written;
+    if (copyLength > SHA_DIGEST_LENGTH) {
+      copyLength = SHA_DIGEST_LENGTH;
+    }
+    memcpy(key + written, digest, copyLength);
+    written += copyLength;
+    memcpy(block, digest, SHA_DIGEST_LENGTH);
+    previousLength = SHA_DIGEST_LENGTH;
+  }
+
+  OPENSSL_cleanse(block, sizeof(block));
+  OPENSSL_cleanse(digest, sizeof(digest));
+  return retCode;
+}
+
+int ChaCha20_Poly1305_Init(
+  CHACHA20_POLY1305_JNI_CTX* ctx,
+  jbyte* keyBytes,
+  jbyte* nonceBytes,
+  jint mode) {
+
+  if (mode != CHACHA20_POLY1305_ENCRYPT_MODE && mode != CHACHA20_POLY1305_DECRYPT_MODE) {
+    return CRYPTO_FAILURE;
+  }
+
+  if (!ctx->keySet || !Is_Same_Input_Key(ctx->inputKey, keyBytes)) {
+    uint8_t key[CHACHA20_KEY_LENGTH_IN_BYTES];
+    int i;
+    ctx->keySet = 0;
+    if (!Derive_Key(keyBytes, key)) {
+      OPENSSL_cleanse(key, sizeof(key));
+      return CRYPTO_FAILURE;
+    }
+    ctx->state[0] = 0x61707865;
+    ctx->state[1] = 0x3320646e;
+    ctx->state[2] = 0x79622d32;
+    ctx->state[3] = 0x6b206574;
+    for (i = 0; i < 8; ++i) {
+      ctx->state[4 + i] = Load32_LE(key + 4 * i);
+    }
+    OPENSSL_cleanse(key, sizeof(key));
+    memcpy(ctx->inputKey, keyBytes, CHACHA20_POLY1305_INPUT_KEY_LENGTH_IN_BYTES);
+    ctx->keySet = 1;
+  }
+
+  const uint8_t* nonce = (const uint8_t*) nonceBytes;
+  ctx->state[12] = 0;
+  ctx->state[13] = Load32_LE(nonce);
+  ctx->state[14] = Load32_LE(nonce + 4);
+  ctx->state[15] = Load32_LE(nonce + 8);
+  ctx->counterExhausted = 0;
+
+  // The first block keys Poly1305 and the data is encrypted from block 1 on.
+  uint8_t polyKey[CHACHA20_BLOCK_LENGTH_IN_BYTES];
+  ChaCha20_Block(ctx->state, polyKey);
+  Poly1305_Init(&ctx->poly, polyKey);
+  OPENSSL_cleanse(polyKey, sizeof(polyKey));
+  ctx->state[12] = 1;
+  ctx->keyStreamUsed = CHACHA20_BLOCK_LENGTH_IN_BYTES;
+
+  ctx->aadLength = 0;
+  ctx->dataLength = 0;
+  ctx->dataStarted = 0;
+  ctx->mode = mode;
+  return CRYPTO_SUCCESS;
+}
+
+int ChaCha20_Poly1305_Update_Aad(CHACHA20_POLY1305_JNI_CTX* ctx, const uint8_t* aad, size_t length) {
+  if (ctx->dataStarted) {
+    return CRYPTO_FAILURE;
+  }
+  Poly1305_Update(&ctx->poly, aad, length);
+  ctx->aadLength += length;
+  return CRYPTO_SUCCESS;
+}
+
+static void Start_Data(CHACHA20_POLY1305_JNI_CTX* ctx) {
+  if (!ctx->dataStarted) {
+    Poly1305_Pad(&ctx->poly, ctx->aadLength);
+    ctx->dataStarted = 1;
+  }
+}
+
+int ChaCha20_Poly1305_Update(
+  CHACHA20_POLY1305_JNI_CTX* ctx,
+  uint8_t* output,
+  const uint8_t* input,
+  size_t length) {
+
+  Start_Data(ctx);
+
+  // The tag is computed over the cipher text, so it is taken from the input when decrypting and
+  // from the output when encrypting. Data is processed in pieces of at most one block so that
+  // this also works in place.
+  while (length > 0) {
+    if (ctx->keyStreamUsed == CHACHA20_BLOCK_LENGTH_IN_BYTES && !Next_Key_Stream_Block(ctx)) {
+      return CRYPTO_FAILURE;
+    }
+    size_t chunk = CHACHA20_BLOCK_LENGTH_IN_BYTES - ctx->keyStreamUsed;
+    if (chunk > length) {
+      chunk = length;
+    }
+    size_t i;
+    if (ctx->mode == CHACHA20_POLY1305_DECRYPT_MODE) {
+      Poly1305_Update(&ctx->poly, input, chunk);
+    }
+    for (i = 0; i < chunk; ++i) {
+      output[i] = input[i] ^ ctx->keyStream[ctx->keyStreamUsed + i];
+    }
+    if (ctx->mode == CHACHA20_POLY1305_ENCRYPT_MODE) {
+      Poly1305_Update(&ctx->poly, output, chunk);
+    }
+    ctx->keyStreamUsed += chunk;
+    ctx->dataLength += chunk;
+    input += chunk;
+    output += chunk;
+    length -= chunk;
+  }
+  return CRYPTO_SUCCESS;
+}
+
+void ChaCha20_Poly1305_Final(CHACHA20_POLY1305_JNI_CTX* ctx, uint8_t* tag) {
+  uint8_t lengths[16];
+  Start_Data(ctx);
+  Poly1305_Pad(&ctx->poly, ctx->dataLength);
+  Store64_LE(lengths, ctx->aadLength);
+  Store64_LE(lengths + 8, ctx->dataLength);
+  Poly1305_Update(&ctx->poly, lengths, sizeof(lengths));
+  Poly1305_Finish(&ctx->poly, tag);
+  OPENSSL_cleanse(ctx->keyStream, sizeof(ctx->keyStream));
+}
+
+int ChaCha20_Poly1305_Verify(CHACHA20_POLY1305_JNI_CTX* ctx, const uint8_t* expectedTag) {
+  uint8_t tag[CHACHA20_POLY1305_TAG_LENGTH_IN_BYTES];
+  uint8_t diff = 0;
+  int i;
+  ChaCha20_Poly1305_Final(ctx, tag);
+
+  // Compare in constant time so that the check does not leak how much of the tag matched.
+  for (i = 0; i < CHACHA20_POLY1305_TAG_LENGTH_IN_BYTES; ++i) {
+    diff |= tag[i] ^ expectedTag[i];
+  }
+  return diff == 0 ? CRYPTO_SUCCESS : CRYPTO_FAILURE;
+}
+
+void Init_ChaCha20_Poly1305_CTX_Ptr_Field(JNIEnv* env) {
+  if (!fieldId) {
+    jclass cipherClass = (*env)->FindClass(env, JAVA_CHACHA20_POLY1305_CLASS);
+    fieldId = (*env)->GetFieldID(env, cipherClass, "mCtxPtr", "J");
+  }
+}
+
+CHACHA20_POLY1305_JNI_CTX* Get_Or_Create_ChaCha20_Poly1305_JNI_CTX(JNIEnv* env, jobject obj) {
+  CHACHA20_POLY1305_JNI_CTX* ctx = Get_ChaCha20_Poly1305_JNI_CTX(env, obj);
+  if (ctx) {
+    return ctx;
+  }
+
+  ctx = (CHACHA20_POLY1305_JNI_CTX*) malloc(sizeof(CHACHA20_POLY1305_JNI_CTX));
+  if (!ctx) {
+    return NULL;
+  }
+  ctx->keySet = 0;
+  Set_ChaCha20_Poly1305_JNI_CTX(env, obj, ctx);
+  return ctx;
+}
+
+CHACHA20_POLY1305_JNI_CTX* Get_ChaCha20_Poly1305_JNI_CTX(JNIEnv* env, jobject obj) {
+  return (CHACHA20_POLY1305_JNI_CTX*) Get_JNI_CTX(env, obj, fieldId);
+}
+
+void Set_ChaCha20_Poly1305_JNI_CTX(JNIEnv* env, jobject obj, CHACHA20_POLY1305_JNI_CTX* ctx) {
+  Set_JNI_CTX(env, obj, fieldId, ctx);
+}
+
+void Destroy_ChaCha20_Poly1305_JNI_CTX(CHACHA20_POLY1305_JNI_CTX* ctx) {
+  OPENSSL_cleanse(ctx, sizeof(CHACHA20_POLY1305_JNI_CTX));
+  free(ctx);
+}
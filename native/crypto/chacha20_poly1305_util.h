@@ -0,0 +1,74 @@
+#ifndef _JAVA_COM_FACEBOOK_CRYPTO_CHACHA20_POLY1305_UTIL_
+#define _JAVA_COM_FACEBOOK_CRYPTO_CHACHA20_POLY1305_UTIL_
+
+#include <jni.h>
+#include <stddef.h>
+#include <stdint.h>
+
+// The cipher key handed in from java. The ChaCha20 key is derived from it.
+#define CHACHA20_POLY1305_INPUT_KEY_LENGTH_IN_BYTES 16
+#define CHACHA20_KEY_LENGTH_IN_BYTES 32
+#define CHACHA20_POLY1305_NONCE_LENGTH_IN_BYTES 12
+#define CHACHA20_POLY1305_TAG_LENGTH_IN_BYTES 16
+#define CHACHA20_BLOCK_LENGTH_IN_BYTES 64
+
+typedef struct POLY1305_CTX {
+  uint32_t r[5];
+  uint32_t h[5];
+  uint32_t pad[4];
+  size_t leftover;
+  uint8_t buffer[16];
+  int final;
+} POLY1305_CTX;
+
+typedef struct CHACHA20_POLY1305_JNI_CTX {
+  // The input key the ChaCha20 key was last derived from, so that the derivation can be skipped
+  // while the key stays the same.
+  jbyte inputKey[CHACHA20_POLY1305_INPUT_KEY_LENGTH_IN_BYTES];
+  int keySet;
+
+  uint32_t state[16];
+  uint8_t keyStream[CHACHA20_BLOCK_LENGTH_IN_BYTES];
+  size_t keyStreamUsed;
+  // Set once the 32 bit block counter has run out.
+  int counterExhausted;
+
+  POLY1305_CTX poly;
+  uint64_t aadLength;
+  uint64_t dataLength;
+  int dataStarted;
+  int mode;
+} CHACHA20_POLY1305_JNI_CTX;
+
+extern const int CHACHA20_POLY1305_ENCRYPT_MODE;
+extern const int CHACHA20_POLY1305_DECRYPT_MODE;
+
+void Init_ChaCha20_Poly1305_CTX_Ptr_Field(JNIEnv* env);
+
+CHACHA20_POLY1305_JNI_CTX* Get_Or_Create_ChaCha20_Poly1305_JNI_CTX(JNIEnv* env, jobject obj);
+
+CHACHA20_POLY1305_JNI_CTX* Get_ChaCha20_Poly1305_JNI_CTX(JNIEnv* env, jobject obj);
+
+void Set_ChaCha20_Poly1305_JNI_CTX(JNIEnv* env, jobject obj, CHACHA20_POLY1305_JNI_CTX* ctx);
+
+void Destroy_ChaCha20_Poly1305_JNI_CTX(CHACHA20_POLY1305_JNI_CTX* ctx);
+
+int ChaCha20_Poly1305_Init(
+  CHACHA20_POLY1305_JNI_CTX* ctx,
+  jbyte* keyBytes,
+  jbyte* nonceBytes,
+  jint mode);
+
+int ChaCha20_Poly1305_Update_Aad(CHACHA20_POLY1305_JNI_CTX* ctx, const uint8_t* aad, size_t length);
+
+int ChaCha20_Poly1305_Update(
+  CHACHA20_POLY1305_JNI_CTX* ctx,
+  uint8_t* output,
+  const uint8_t* input,
+  size_t length);
+
+void ChaCha20_Poly1305_Final(CHACHA20_POLY1305_JNI_CTX* ctx, uint8_t* tag);
+
+int ChaCha20_Poly1305_Verify(CHACHA20_POLY1305_JNI_CTX* ctx, const uint8_t* expectedTag);
+
+#endif // _JAVA_COM_FACEBOOK_CRYPTO_CHACHA20_POLY1305_UTIL_
@@ -10,6 +10,7 @@
 #include <gcm_util.h>
 #include <jni.h>
 #include <openssl/evp.h>
+#include <string.h>
 #include <util.h>
 
 static const int GCM_CIPHER_BLOCK_SIZE_BYTES = 16;
@@ -61,10 +62,12 @@ JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeGCMCipher_nativeDest
 JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeGCMCipher_nativeEncryptInit(
   JNIEnv* env,
   jobject obj,
+  jobject keyHandle,
   jbyteArray key,
   jbyteArray iv) {
 
-  if (!Init_GCM(env, obj, key, iv, GCM_ENCRYPT_MODE)) {
+  int retCode = Init_GCM(env, obj, keyHandle, key, iv, GCM_ENCRYPT_MODE);
+  if (!retCode) {
     return CRYPTO_FAILURE;
   }
 
@@ -73,20 +76,17 @@ JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeGCMCipher_nativeEncr
     return CRYPTO_FAILURE;
   }
 
-  return CRYPTO_SUCCESS;
+  return retCode;
 }
 
 JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeGCMCipher_nativeDecryptInit(
   JNIEnv* env,
   jobject obj,
+  jobject keyHandle,
   jbyteArray key,
   jbyteArray iv) {
 
-  if (!Init_GCM(env, obj, key, iv, GCM_DECRYPT_MODE)) {
-    return CRYPTO_FAILURE;
-  }
-
-  return CRYPTO_SUCCESS;
+  return Init_GCM(env, obj, keyHandle, key, iv, GCM_DECRYPT_MODE);
 }
 
 JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeGCMCipher_nativeUpdate(
@@ -95,7 +95,8 @@ JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeGCMCipher_nativeUpda
   jbyteArray data,
   jint offset,
   jint dataLength,
-  jbyteArray output) {
+  jbyteArray output,
+  jint outputOffset) {
 
   int bytesWritten = 0;
   EVP_CIPHER_CTX* ctx = Get_Cipher_CTX(env, obj);
@@ -103,23 +104,68 @@ JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeGCMCipher_nativeUpda
     return CRYPTO_NO_BYTES_WRITTEN;
   }
 
-  jbyte* outputBytes = (*env)->GetByteArrayElements(env, output, NULL);
-  if (!outputBytes) {
+  // When decrypting in place the input and output are the same array.
+  int inPlace = (*env)->IsSameObject(env, data, output);
+
+  // Critical access avoids copying large chunks in and out of the java heap. No other JNI
+  // calls may be made until both arrays are released.
+  jbyte* dataBytes = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, data, NULL);
+  if (!dataBytes) {
     return CRYPTO_NO_BYTES_WRITTEN;
   }
 
-  jbyte* dataBytes = (*env)->GetByteArrayElements(env, data, NULL);
+  jbyte* outputBytes = dataBytes;
+  if (!inPlace) {
+    outputBytes = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, output, NULL);
+    if (!outputBytes) {
+      (*env)->ReleasePrimitiveArrayCritical(env, data, dataBytes, JNI_ABORT);
+      return CRYPTO_NO_BYTES_WRITTEN;
+    }
+  }
+
+  if (!EVP_CipherUpdate(ctx, outputBytes + outputOffset, &bytesWritten, dataBytes + offset, dataLength)) {
+    bytesWritten = CRYPTO_NO_BYTES_WRITTEN;
+  }
+
+  if (inPlace) {
+    (*env)->ReleasePrimitiveArrayCritical(env, data, dataBytes, 0);
+  } else {
+    (*env)->ReleasePrimitiveArrayCritical(env, output, outputBytes, 0);
+    (*env)->ReleasePrimitiveArrayCritical(env, data, dataBytes, JNI_ABORT);
+  }
+
+  return bytesWritten;
+}
+
+JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeGCMCipher_nativeUpdateDirect(
+  JNIEnv* env,
+  jobject obj,
+  jobject data,
+  jint offset,
+  jint dataLength,
+  jobject output,
+  jint outputOffset) {
+
+  int bytesWritten = 0;
+  EVP_CIPHER_CTX* ctx = Get_Cipher_CTX(env, obj);
+  if (!ctx) {
+    return CRYPTO_NO_BYTES_WRITTEN;
+  }
+
+  // Direct buffers are already in native memory, so there is nothing to pin or copy.
+  jbyte* dataBytes = (jbyte*) (*env)->GetDirectBufferAddress(env, data);
   if (!dataBytes) {
-    (*env)->ReleaseByteArrayElements(env, output, outputBytes, 0);
     return CRYPTO_NO_BYTES_WRITTEN;
   }
 
-  if (!EVP_CipherUpdate(ctx, outputBytes, &bytesWritten, dataBytes + offset, dataLength)) {
-    bytesWritten = CRYPTO_NO_BYTES_WRITTEN;
+  jbyte* outputBytes = (jbyte*) (*env)->GetDirectBufferAddress(env, output);
+  if (!outputBytes) {
+    return CRYPTO_NO_BYTES_WRITTEN;
   }
 
-  (*env)->ReleaseByteArrayElements(env, data, dataBytes, JNI_ABORT);
-  (*env)->ReleaseByteArrayElements(env, output, outputBytes, 0);
+  if (!EVP_CipherUpdate(ctx, outputBytes + outputOffset, &bytesWritten, dataBytes + offset, dataLength)) {
+    bytesWritten = CRYPTO_NO_BYTES_WRITTEN;
+  }
 
   return bytesWritten;
 }
@@ -182,6 +228,142 @@ JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeGCMCipher_nativeDecr
   return retCode;
 }
 
+// Runs a complete GCM operation over data[offset, offset + dataLength) and writes the result to
+// output. The arrays are accessed critically, so no JNI calls may be made while they are held.
+static int GCM_One_Shot(
+  EVP_CIPHER_CTX* ctx,
+  jint mode,
+  jbyte* aadBytes,
+  jint aadLength,
+  jbyte* dataBytes,
+  jint dataLength,
+  jbyte* outputBytes,
+  jbyte* tagBytes) {
+
+  int bytesWritten = 0;
+  if (aadLength > 0 && !EVP_CipherUpdate(ctx, NULL, &bytesWritten, aadBytes, aadLength)) {
+    return CRYPTO_FAILURE;
+  }
+
+  if (dataLength > 0 && !EVP_CipherUpdate(ctx, outputBytes, &bytesWritten, dataBytes, dataLength)) {
+    return CRYPTO_FAILURE;
+  }
+
+  if (mode == GCM_ENCRYPT_MODE) {
+    if (!EVP_EncryptFinal_ex(ctx, outputBytes + dataLength, &bytesWritten)) {
+      return CRYPTO_FAILURE;
+    }
+    if (!EVP_CIPHER_CTX_ctrl(ctx, EVP_CTRL_GCM_GET_TAG, GCM_TAG_LENGTH_IN_BYTES, tagBytes)) {
+      return CRYPTO_FAILURE;
+    }
+  } else {
+    if (!EVP_CIPHER_CTX_ctrl(ctx, EVP_CTRL_GCM_SET_TAG, GCM_TAG_LENGTH_IN_BYTES, tagBytes)) {
+      return CRYPTO_FAILURE;
+    }
+    if (!EVP_DecryptFinal_ex(ctx, outputBytes + dataLength, &bytesWritten)) {
+      return CRYPTO_FAILURE;
+    }
+  }
+  return CRYPTO_SUCCESS;
+}
+
+static int GCM_One_Shot_JNI(
+  JNIEnv* env,
+  jobject obj,
+  jint mode,
+  jobject keyHandle,
+  jbyteArray key,
+  jbyteArray iv,
+  jbyteArray aad,
+  jbyteArray data,
+  jint offset,
+  jint dataLength,
+  jbyteArray output,
+  jint outputOffset) {
+
+  // The context is kept on the java object, so repeated messages under the same key only pay
+  // for setting a new iv.
+  int initCode = Init_GCM(env, obj, keyHandle, key, iv, mode);
+  if (!initCode) {
+    return CRYPTO_FAILURE;
+  }
+
+  GCM_JNI_CTX* jniCtx = Get_GCM_JNI_CTX(env, obj);
+  jint aadLength = (*env)->GetArrayLength(env, aad);
+
+  int retCode = CRYPTO_FAILURE;
+  jbyte* aadBytes = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, aad, NULL);
+  jbyte* dataBytes = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, data, NULL);
+  jbyte* outputBytes = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, output, NULL);
+
+  if (aadBytes && dataBytes && outputBytes) {
+    // The tag follows the cipher text in the output when encrypting and in the data when
+    // decrypting.
+    jbyte* tagBytes = mode == GCM_ENCRYPT_MODE ?
+      outputBytes + outputOffset + dataLength :
+      dataBytes + offset + dataLength;
+    retCode = GCM_One_Shot(
+      jniCtx->cipherCtx,
+      mode,
+      aadBytes,
+      aadLength,
+      dataBytes + offset,
+      dataLength,
+      outputBytes + outputOffset,
+      tagBytes);
+
+    if (!retCode && mode == GCM_DECRYPT_MODE) {
+      // Don't hand unauthenticated plain text back to the caller.
+      memset(outputBytes + outputOffset, 0, dataLength);
+    }
+  }
+
+  if (outputBytes) {
+    (*env)->ReleasePrimitiveArrayCritical(env, output, outputBytes, 0);
+  }
+  if (dataBytes) {
+    (*env)->ReleasePrimitiveArrayCritical(env, data, dataBytes, JNI_ABORT);
+  }
+  if (aadBytes) {
+    (*env)->ReleasePrimitiveArrayCritical(env, aad, aadBytes, JNI_ABORT);
+  }
+  return retCode == CRYPTO_SUCCESS ? initCode : retCode;
+}
+
+JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeGCMCipher_nativeEncrypt(
+  JNIEnv* env,
+  jobject obj,
+  jobject keyHandle,
+  jbyteArray key,
+  jbyteArray iv,
+  jbyteArray aad,
+  jbyteArray data,
+  jint offset,
+  jint dataLength,
+  jbyteArray output,
+  jint outputOffset) {
+
+  return GCM_One_Shot_JNI(
+    env, obj, GCM_ENCRYPT_MODE, keyHandle, key, iv, aad, data, offset, dataLength, output, outputOffset);
+}
+
+JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeGCMCipher_nativeDecrypt(
+  JNIEnv* env,
+  jobject obj,
+  jobject keyHandle,
+  jbyteArray key,
+  jbyteArray iv,
+  jbyteArray aad,
+  jbyteArray data,
+  jint offset,
+  jint dataLength,
+  jbyteArray output,
+  jint outputOffset) {
+
+  return GCM_One_Shot_JNI(
+    env, obj, GCM_DECRYPT_MODE, keyHandle, key, iv, aad, data, offset, dataLength, output, outputOffset);
+}
+
 JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeGCMCipher_nativeGetCipherBlockSize(
   JNIEnv* env) {
 
@@ -195,3 +377,10 @@ JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeGCMCipher_nativeFail
 
   return CRYPTO_FAILURE;
 }
+
+JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_NativeGCMCipher_nativeKeyHandleMismatch(
+  JNIEnv* env,
+  jobject obj) {
+
+  return GCM_KEY_HANDLE_MISMATCH;
+}
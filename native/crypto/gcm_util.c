@@ -8,88 +8,156 @@
  *
  */
 #include <gcm_util.h>
+#include <openssl/crypto.h>
+#include <string.h>
 #include <util.h>
 
 // Used globally.
 const int GCM_ENCRYPT_MODE = 1;
 const int GCM_DECRYPT_MODE = 0;
 
-static const char* JAVA_GCM_CLASS = "com/facebook/crypto/cipher/NativeGCMCipher";
+// Returned instead of CRYPTO_SUCCESS when a key handle did not hold the key it was passed with.
+const int GCM_KEY_HANDLE_MISMATCH = 2;
 
-static const int GCM_KEY_LENGTH_IN_BYTES = 16;
-static const int GCM_IV_LENGTH_IN_BYTES = 16;
+static const char* JAVA_GCM_CLASS = "com/facebook/crypto/cipher/NativeGCMCipher";
+static const char* JAVA_KEY_HANDLE_CLASS = "com/facebook/crypto/cipher/KeyHandle";
 
-// Cache field id.
+// Cache field ids.
 static jfieldID fieldId = NULL;
+static jfieldID keyHandleFieldId = NULL;
 
 void Init_GCM_CTX_Ptr_Field(JNIEnv* env) {
   if (!fieldId) {
     jclass gcmClass = (*env)->FindClass(env, JAVA_GCM_CLASS);
-    fieldId = (*env)->GetFieldID(env, gcmClass, "mCtxPtr", "I");
+    fieldId = (*env)->GetFieldID(env, gcmClass, "mCtxPtr", "J");
+  }
+}
+
+void Init_Key_Handle_Ptr_Field(JNIEnv* env) {
+  if (!keyHandleFieldId) {
+    jclass keyHandleClass = (*env)->FindClass(env, JAVA_KEY_HANDLE_CLASS);
+    keyHandleFieldId = (*env)->GetFieldID(env, keyHandleClass, "mCtxPtr", "J");
   }
 }
 
-int Init_GCM(JNIEnv* env, jobject obj, jbyteArray key, jbyteArray iv, jint mode) {
-  jbyte* keyBytes = (*env)->GetByteArrayElements(env, key, NULL);
-  if (!keyBytes) {
+int Init_GCM(JNIEnv* env, jobject obj, jobject keyHandle, jbyteArray key, jbyteArray iv, jint mode) {
+  jbyte keyBytes[GCM_KEY_LENGTH_IN_BYTES];
+  jbyte ivBytes[GCM_IV_LENGTH_IN_BYTES];
+  GCM_KEY_HANDLE* handle = NULL;
+  if (keyHandle) {
+    handle = Get_GCM_Key_Handle(env, keyHandle);
+    if (!handle) {
+      return CRYPTO_FAILURE;
+    }
+  }
+  if (key) {
+    (*env)->GetByteArrayRegion(env, key, 0, GCM_KEY_LENGTH_IN_BYTES, keyBytes);
+  }
+  (*env)->GetByteArrayRegion(env, iv, 0, GCM_IV_LENGTH_IN_BYTES, ivBytes);
+  if ((*env)->ExceptionCheck(env)) {
+    OPENSSL_cleanse(keyBytes, sizeof(keyBytes));
     return CRYPTO_FAILURE;
   }
 
-  jbyte* ivBytes = (*env)->GetByteArrayElements(env, iv, NULL);
-  if (!ivBytes) {
-    (*env)->ReleaseByteArrayElements(env, key, keyBytes, JNI_ABORT);
+  GCM_JNI_CTX* ctx = Get_Or_Create_GCM_JNI_CTX(env, obj);
+  if (!ctx) {
+    OPENSSL_cleanse(keyBytes, sizeof(keyBytes));
     return CRYPTO_FAILURE;
   }
 
-  GCM_JNI_CTX* ctx = Create_GCM_JNI_CTX(keyBytes, ivBytes);
-  Set_GCM_JNI_CTX(env, obj, ctx);
+  int retCode;
+  if (handle && (!key || Is_Same_Key(handle->key, keyBytes))) {
+    retCode = Init_GCM_CTX_From_Key_Handle(ctx, handle, ivBytes, mode);
+  } else {
+    // The key has changed since the handle was imported, so the caller should import it again.
+    retCode = Init_GCM_CTX(ctx, keyBytes, ivBytes, mode);
+    if (retCode == CRYPTO_SUCCESS && handle) {
+      retCode = GCM_KEY_HANDLE_MISMATCH;
+    }
+  }
+  OPENSSL_cleanse(keyBytes, sizeof(keyBytes));
+  return retCode;
+}
+
+int Is_Same_Key(jbyte* key, jbyte* otherKey) {
+  // Compare in constant time so that the check does not leak how much of the key matched.
+  jbyte diff = 0;
+  int i;
+  for (i = 0; i < GCM_KEY_LENGTH_IN_BYTES; ++i) {
+    diff |= key[i] ^ otherKey[i];
+  }
+  return diff == 0;
+}
+
+static int Init_GCM_CTX_IV(GCM_JNI_CTX* ctx, jbyte* ivBytes, jint mode) {
+  // Keep the key schedule and only start a new message with the new iv.
+  if (!EVP_CipherInit_ex(ctx->cipherCtx, NULL, NULL, NULL, ivBytes, mode)) {
+    return CRYPTO_FAILURE;
+  }
+  return CRYPTO_SUCCESS;
+}
 
-  (*env)->ReleaseByteArrayElements(env, key, keyBytes, JNI_ABORT);
-  (*env)->ReleaseByteArrayElements(env, iv, ivBytes, JNI_ABORT);
+int Init_GCM_CTX_From_Key_Handle(GCM_JNI_CTX* ctx, GCM_KEY_HANDLE* handle, jbyte* ivBytes, jint mode) {
+  if (mode != GCM_ENCRYPT_MODE && mode != GCM_DECRYPT_MODE) {
+    return CRYPTO_FAILURE;
+  }
 
-  if (mode == GCM_ENCRYPT_MODE) {
-    if (!EVP_EncryptInit(ctx->cipherCtx, EVP_aes_128_gcm(), ctx->key, ctx->iv)) {
+  if (!ctx->keySet || !Is_Same_Key(ctx->key, handle->key)) {
+    // Copying the already expanded key is much cheaper than keying the context again.
+    ctx->keySet = 0;
+    if (!EVP_CIPHER_CTX_copy(ctx->cipherCtx, handle->cipherCtx)) {
       return CRYPTO_FAILURE;
     }
-  } else if (mode == GCM_DECRYPT_MODE) {
-    if (!EVP_DecryptInit(ctx->cipherCtx, EVP_aes_128_gcm(), ctx->key, ctx->iv)) {
-      return CRYPTO_FAILURE;
-    }
-  } else {
+    memcpy(ctx->key, handle->key, GCM_KEY_LENGTH_IN_BYTES);
+    ctx->keySet = 1;
+  }
+  return Init_GCM_CTX_IV(ctx, ivBytes, mode);
+}
+
+int Init_GCM_CTX(GCM_JNI_CTX* ctx, jbyte* keyBytes, jbyte* ivBytes, jint mode) {
+  if (mode != GCM_ENCRYPT_MODE && mode != GCM_DECRYPT_MODE) {
     return CRYPTO_FAILURE;
   }
+
+  if (ctx->keySet && Is_Same_Key(ctx->key, keyBytes)) {
+    return Init_GCM_CTX_IV(ctx, ivBytes, mode);
+  }
+
+  ctx->keySet = 0;
+  if (!EVP_CipherInit_ex(ctx->cipherCtx, EVP_aes_128_gcm(), NULL, keyBytes, ivBytes, mode)) {
+    return CRYPTO_FAILURE;
+  }
+  memcpy(ctx->key, keyBytes, GCM_KEY_LENGTH_IN_BYTES);
+  ctx->keySet = 1;
   return CRYPTO_SUCCESS;
 }
 
-GCM_JNI_CTX* Create_GCM_JNI_CTX(jbyte* keyBytes, jbyte* ivBytes) {
-  GCM_JNI_CTX* ctx = (GCM_JNI_CTX*) malloc(sizeof(GCM_JNI_CTX));
-  if (!ctx) {
-    return NULL;
+GCM_JNI_CTX* Get_Or_Create_GCM_JNI_CTX(JNIEnv* env, jobject obj) {
+  GCM_JNI_CTX* ctx = Get_GCM_JNI_CTX(env, obj);
+  if (ctx) {
+    return ctx;
   }
 
-  ctx->key = (jbyte*) malloc(sizeof(jbyte) * GCM_KEY_LENGTH_IN_BYTES);
-  if (!ctx->key) {
-    free(ctx);
-    return NULL;
+  ctx = Create_GCM_JNI_CTX();
+  if (ctx) {
+    Set_GCM_JNI_CTX(env, obj, ctx);
   }
+  return ctx;
+}
 
-  ctx->iv = (jbyte*) malloc(sizeof(jbyte) * GCM_IV_LENGTH_IN_BYTES);
-  if (!ctx->iv) {
-    free(ctx->key);
-    free(ctx);
+GCM_JNI_CTX* Create_GCM_JNI_CTX() {
+  GCM_JNI_CTX* ctx = (GCM_JNI_CTX*) malloc(sizeof(GCM_JNI_CTX));
+  if (!ctx) {
     return NULL;
   }
 
   ctx->cipherCtx = EVP_CIPHER_CTX_new();
   if (!ctx->cipherCtx) {
-    free(ctx->iv);
-    free(ctx->key);
     free(ctx);
     return NULL;
   }
 
-  memcpy(ctx->key, keyBytes, GCM_KEY_LENGTH_IN_BYTES);
-  memcpy(ctx->iv, ivBytes, GCM_IV_LENGTH_IN_BYTES);
+  ctx->keySet = 0;
   return ctx;
 }
 
@@ -107,13 +175,48 @@ EVP_CIPHER_CTX* Get_Cipher_CTX(JNIEnv* env, jobject obj) {
 }
 
 void Set_GCM_JNI_CTX(JNIEnv* env, jobject obj, GCM_JNI_CTX* ctx) {
-  Set_JNI_CTX(env, obj, fieldId, (jint) ctx);
+  Set_JNI_CTX(env, obj, fieldId, ctx);
 }
 
 void Destroy_GCM_JNI_CTX(GCM_JNI_CTX* ctx) {
   EVP_CIPHER_CTX_free(ctx->cipherCtx);
-  free(ctx->key);
-  free(ctx->iv);
+  OPENSSL_cleanse(ctx->key, GCM_KEY_LENGTH_IN_BYTES);
   free(ctx);
 }
 
+GCM_KEY_HANDLE* Create_GCM_Key_Handle(jbyte* keyBytes) {
+  GCM_KEY_HANDLE* handle = (GCM_KEY_HANDLE*) malloc(sizeof(GCM_KEY_HANDLE));
+  if (!handle) {
+    return NULL;
+  }
+
+  handle->cipherCtx = EVP_CIPHER_CTX_new();
+  if (!handle->cipherCtx) {
+    free(handle);
+    return NULL;
+  }
+
+  // Expands the key without an iv. Contexts copy this state and only set their iv.
+  if (!EVP_EncryptInit_ex(handle->cipherCtx, EVP_aes_128_gcm(), NULL, keyBytes, NULL)) {
+    EVP_CIPHER_CTX_free(handle->cipherCtx);
+    free(handle);
+    return NULL;
+  }
+
+  memcpy(handle->key, keyBytes, GCM_KEY_LENGTH_IN_BYTES);
+  return handle;
+}
+
+GCM_KEY_HANDLE* Get_GCM_Key_Handle(JNIEnv* env, jobject obj) {
+  return (GCM_KEY_HANDLE*) Get_JNI_CTX(env, obj, keyHandleFieldId);
+}
+
+void Set_GCM_Key_Handle(JNIEnv* env, jobject obj, GCM_KEY_HANDLE* handle) {
+  Set_JNI_CTX(env, obj, keyHandleFieldId, handle);
+}
+
+void Destroy_GCM_Key_Handle(GCM_KEY_HANDLE* handle) {
+  EVP_CIPHER_CTX_free(handle->cipherCtx);
+  OPENSSL_cleanse(handle->key, GCM_KEY_LENGTH_IN_BYTES);
+  free(handle);
+}
@@ -4,20 +4,43 @@
 #include <jni.h>
 #include <openssl/evp.h>
 
+#define GCM_KEY_LENGTH_IN_BYTES 16
+#define GCM_IV_LENGTH_IN_BYTES 12
+#define GCM_TAG_LENGTH_IN_BYTES 16
+
 typedef struct GCM_JNI_CTX {
-  jbyte* key;
-  jbyte* iv;
+  // The key the cipher context was last initialized with. While it stays the same, only the
+  // iv needs to be reset between messages and the expanded key schedule is kept.
+  jbyte key[GCM_KEY_LENGTH_IN_BYTES];
+  int keySet;
   EVP_CIPHER_CTX* cipherCtx;
 } GCM_JNI_CTX;
 
+// A key imported once and kept expanded, so that contexts can be keyed by copying it.
+typedef struct GCM_KEY_HANDLE {
+  jbyte key[GCM_KEY_LENGTH_IN_BYTES];
+  EVP_CIPHER_CTX* cipherCtx;
+} GCM_KEY_HANDLE;
+
 extern const int GCM_ENCRYPT_MODE;
 extern const int GCM_DECRYPT_MODE;
+extern const int GCM_KEY_HANDLE_MISMATCH;
 
 void Init_GCM_CTX_Ptr_Field(JNIEnv* env);
 
-int Init_GCM(JNIEnv* env, jobject obj, jbyteArray key, jbyteArray iv, jint mode);
+void Init_Key_Handle_Ptr_Field(JNIEnv* env);
+
+// At least one of keyHandle and key is set. If both are, the handle is used when it holds the key
+// and GCM_KEY_HANDLE_MISMATCH is returned on success when it does not.
+int Init_GCM(JNIEnv* env, jobject obj, jobject keyHandle, jbyteArray key, jbyteArray iv, jint mode);
+
+int Init_GCM_CTX(GCM_JNI_CTX* ctx, jbyte* keyBytes, jbyte* ivBytes, jint mode);
+
+int Init_GCM_CTX_From_Key_Handle(GCM_JNI_CTX* ctx, GCM_KEY_HANDLE* handle, jbyte* ivBytes, jint mode);
+
+GCM_JNI_CTX* Get_Or_Create_GCM_JNI_CTX(JNIEnv* env, jobject obj);
 
-GCM_JNI_CTX* Create_GCM_JNI_CTX(jbyte* keyBytes, jbyte* ivBytes);
+GCM_JNI_CTX* Create_GCM_JNI_CTX();
 
 GCM_JNI_CTX* Get_GCM_JNI_CTX(JNIEnv* env, jobject obj);
 
@@ -27,5 +50,14 @@ void Set_GCM_JNI_CTX(JNIEnv* env, jobject obj, GCM_JNI_CTX* ctx);
 
 void Destroy_GCM_JNI_CTX(GCM_JNI_CTX* ctx);
 
-#endif // _JAVA_COM_FACEBOOK_CRYPTO_GCM_UTIL_
+GCM_KEY_HANDLE* Create_GCM_Key_Handle(jbyte* keyBytes);
+
+GCM_KEY_HANDLE* Get_GCM_Key_Handle(JNIEnv* env, jobject obj);
+
+void Set_GCM_Key_Handle(JNIEnv* env, jobject obj, GCM_KEY_HANDLE* handle);
 
+int Is_Same_Key(jbyte* key, jbyte* otherKey);
+
+void Destroy_GCM_Key_Handle(GCM_KEY_HANDLE* handle);
+
+#endif // _JAVA_COM_FACEBOOK_CRYPTO_GCM_UTIL_
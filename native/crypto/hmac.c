@@ -9,16 +9,15 @@
  */
 #include <hmac_util.h>
 #include <jni.h>
-#include <openssl/hmac.h>
+#include <openssl/crypto.h>
 #include <util.h>
 
-static const int HMAC_LENGTH = 20;
-
 JNIEXPORT int JNICALL Java_com_facebook_crypto_mac_NativeMac_nativeInit(
   JNIEnv* env,
   jobject obj,
   jbyteArray key,
-  jint keyLength) {
+  jint keyLength,
+  jint digest) {
 
   jbyte* keyBytes = (*env)->GetByteArrayElements(env, key, NULL);
 
@@ -27,7 +26,7 @@ JNIEXPORT int JNICALL Java_com_facebook_crypto_mac_NativeMac_nativeInit(
   }
 
   int retCode = CRYPTO_SUCCESS;
-  HMAC_JNI_CTX* ctx = Create_HMAC_JNI_CTX(keyBytes, keyLength);
+  HMAC_JNI_CTX* ctx = Create_HMAC_JNI_CTX(keyBytes, keyLength, digest);
   if (!ctx) {
     retCode = CRYPTO_FAILURE;
   } else {
@@ -38,6 +37,25 @@ JNIEXPORT int JNICALL Java_com_facebook_crypto_mac_NativeMac_nativeInit(
   return retCode;
 }
 
+JNIEXPORT int JNICALL Java_com_facebook_crypto_mac_NativeMac_nativeInitFromKeyHandle(
+  JNIEnv* env,
+  jobject obj,
+  jobject keyHandle) {
+
+  HMAC_KEY_HANDLE* handle = Get_HMAC_Key_Handle(env, keyHandle);
+  if (!handle) {
+    return CRYPTO_FAILURE;
+  }
+
+  HMAC_JNI_CTX* ctx = Create_HMAC_JNI_CTX_From_Key_Handle(handle);
+  if (!ctx) {
+    return CRYPTO_FAILURE;
+  }
+
+  Set_HMAC_JNI_CTX(env, obj, ctx);
+  return CRYPTO_SUCCESS;
+}
+
 JNIEXPORT int JNICALL Java_com_facebook_crypto_mac_NativeMac_nativeDestroy(
   JNIEnv* env,
   jobject obj) {
@@ -57,12 +75,12 @@ JNIEXPORT int JNICALL Java_com_facebook_crypto_mac_NativeMac_nativeUpdate__B(
   jobject obj,
   jbyte data) {
 
-  HMAC_CTX* ctx = Get_HMAC_CTX(env, obj);
+  HMAC_JNI_CTX* ctx = Get_HMAC_JNI_CTX(env, obj);
   if (!ctx) {
     return CRYPTO_FAILURE;
   }
 
-  if (!HMAC_Update(ctx, (unsigned char*)&data, sizeof(jbyte))) {
+  if (!Hmac_Update(ctx, (uint8_t*)&data, sizeof(jbyte))) {
     return CRYPTO_FAILURE;
   }
   return CRYPTO_SUCCESS;
@@ -75,45 +93,123 @@ JNIEXPORT int JNICALL Java_com_facebook_crypto_mac_NativeMac_nativeUpdate___3BII
   jint offset,
   jint len) {
 
-  HMAC_CTX* ctx = Get_HMAC_CTX(env, obj);
+  HMAC_JNI_CTX* ctx = Get_HMAC_JNI_CTX(env, obj);
   if (!ctx) {
     return CRYPTO_FAILURE;
   }
 
-  jbyte* dataArray = (jbyte*) malloc(sizeof(jbyte) * len);
-  if (!dataArray) {
+  // Critical access hands the java array to Hmac_Update without allocating or copying. No other
+  // JNI calls may be made until the array is released.
+  jbyte* dataBytes = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, data, NULL);
+  if (!dataBytes) {
     return CRYPTO_FAILURE;
   }
 
   int retCode = CRYPTO_SUCCESS;
-  (*env)->GetByteArrayRegion(env, data, offset, len, dataArray);
-  if (!HMAC_Update(ctx, (unsigned char*)dataArray, len)) {
+  if (!Hmac_Update(ctx, (uint8_t*)dataBytes + offset, len)) {
     retCode = CRYPTO_FAILURE;
   }
 
-  free(dataArray);
+  (*env)->ReleasePrimitiveArrayCritical(env, data, dataBytes, JNI_ABORT);
   return retCode;
 }
 
+JNIEXPORT int JNICALL Java_com_facebook_crypto_mac_NativeMac_nativeUpdateDirect(
+  JNIEnv* env,
+  jobject obj,
+  jobject data,
+  jint offset,
+  jint len) {
+
+  HMAC_JNI_CTX* ctx = Get_HMAC_JNI_CTX(env, obj);
+  if (!ctx) {
+    return CRYPTO_FAILURE;
+  }
+
+  // Direct buffers are already in native memory, so there is nothing to pin or copy.
+  jbyte* dataBytes = (jbyte*) (*env)->GetDirectBufferAddress(env, data);
+  if (!dataBytes) {
+    return CRYPTO_FAILURE;
+  }
+
+  if (!Hmac_Update(ctx, (uint8_t*)dataBytes + offset, len)) {
+    return CRYPTO_FAILURE;
+  }
+  return CRYPTO_SUCCESS;
+}
+
 JNIEXPORT jbyteArray JNICALL Java_com_facebook_crypto_mac_NativeMac_nativeDoFinal(
   JNIEnv* env,
   jobject obj) {
 
-  int len = HMAC_LENGTH;
-  char result[len];
+  uint8_t result[HMAC_MAX_LENGTH_IN_BYTES];
+
+  HMAC_JNI_CTX* ctx = Get_HMAC_JNI_CTX(env, obj);
+  if (!ctx) {
+    return NULL;
+  }
 
-  HMAC_CTX* ctx = Get_HMAC_CTX(env, obj);
+  int len = Hmac_Length(ctx->key.digest);
   jbyteArray resultArray = (*env)->NewByteArray(env, len);
-  if (!ctx || !resultArray || !HMAC_Final(ctx, result, &len)) {
+  if (!resultArray || !Hmac_Final(ctx, result)) {
     return NULL;
   }
 
-  (*env)->SetByteArrayRegion(env, resultArray, 0, len, result);
+  (*env)->SetByteArrayRegion(env, resultArray, 0, len, (jbyte*)result);
+  OPENSSL_cleanse(result, sizeof(result));
   return resultArray;
 }
 
-JNIEXPORT int JNICALL Java_com_facebook_crypto_mac_NativeMac_nativeGetMacLength(JNIEnv* env) {
-  return HMAC_LENGTH;
+JNIEXPORT int JNICALL Java_com_facebook_crypto_mac_NativeMac_nativeDoFinalInto(
+  JNIEnv* env,
+  jobject obj,
+  jbyteArray output,
+  jint offset) {
+
+  uint8_t result[HMAC_MAX_LENGTH_IN_BYTES];
+
+  HMAC_JNI_CTX* ctx = Get_HMAC_JNI_CTX(env, obj);
+  if (!ctx || !Hmac_Final(ctx, result)) {
+    return CRYPTO_FAILURE;
+  }
+
+  (*env)->SetByteArrayRegion(env, output, offset, Hmac_Length(ctx->key.digest), (jbyte*)result);
+  OPENSSL_cleanse(result, sizeof(result));
+  return CRYPTO_SUCCESS;
+}
+
+// Finalizes the mac and compares it with expected[offset, offset + mac length) in constant
+// time, so the mac is never copied into java.
+JNIEXPORT int JNICALL Java_com_facebook_crypto_mac_NativeMac_nativeVerify(
+  JNIEnv* env,
+  jobject obj,
+  jbyteArray expected,
+  jint offset) {
+
+  uint8_t result[HMAC_MAX_LENGTH_IN_BYTES];
+  uint8_t expectedBytes[HMAC_MAX_LENGTH_IN_BYTES];
+
+  HMAC_JNI_CTX* ctx = Get_HMAC_JNI_CTX(env, obj);
+  if (!ctx || !Hmac_Final(ctx, result)) {
+    return CRYPTO_FAILURE;
+  }
+
+  int len = Hmac_Length(ctx->key.digest);
+  (*env)->GetByteArrayRegion(env, expected, offset, len, (jbyte*)expectedBytes);
+  int retCode = CRYPTO_memcmp(result, expectedBytes, len) == 0
+      ? CRYPTO_SUCCESS
+      : CRYPTO_FAILURE;
+  OPENSSL_cleanse(result, sizeof(result));
+  return retCode;
+}
+
+JNIEXPORT int JNICALL Java_com_facebook_crypto_mac_NativeMac_nativeGetMacLength(
+  JNIEnv* env,
+  jobject obj) {
+
+  // Macs which have not been initialized yet report the length of HMAC-SHA1, the default.
+  HMAC_JNI_CTX* ctx = Get_HMAC_JNI_CTX(env, obj);
+  return Hmac_Length(ctx ? ctx->key.digest : HMAC_DIGEST_SHA1);
 }
 
 // Give the java layer access to C constants.
@@ -7,51 +7,159 @@
  *  of patent rights can be found in the PATENTS file in the same directory.
  *
  */
+
+// HMAC as specified in RFC 2104. It is built on the digests directly rather than on OpenSSL's
+// HMAC_CTX, so that the keyed digest states can be precomputed once and copied for each message,
+// and so that it also covers SHA-256, which our OpenSSL build leaves out.
+
 #include <jni.h>
 #include <hmac_util.h>
+#include <openssl/crypto.h>
+#include <stdlib.h>
+#include <string.h>
 #include <util.h>
 
 static const char* JAVA_HMAC_CLASS = "com/facebook/crypto/mac/NativeMac";
+static const char* JAVA_HMAC_KEY_HANDLE_CLASS = "com/facebook/crypto/mac/MacKeyHandle";
 
-// Cache field id.
+// Cache field ids.
 static jfieldID fieldId = NULL;
+static jfieldID keyHandleFieldId = NULL;
 
 void Init_HMAC_CTX_Ptr_Field(JNIEnv* env) {
   if (!fieldId) {
     jclass hmacClass = (*env)->FindClass(env, JAVA_HMAC_CLASS);
-    fieldId = (*env)->GetFieldID(env, hmacClass, "mCtxPtr", "I");
+    fieldId = (*env)->GetFieldID(env, hmacClass, "mCtxPtr", "J");
   }
 }
 
-HMAC_JNI_CTX* Create_HMAC_JNI_CTX(jbyte* keyBytes, jint keyLength) {
-  HMAC_JNI_CTX* ctx = (HMAC_JNI_CTX*) malloc(sizeof(HMAC_JNI_CTX));
-  if (!ctx) {
-    return NULL;
+void Init_HMAC_Key_Handle_Ptr_Field(JNIEnv* env) {
+  if (!keyHandleFieldId) {
+    jclass keyHandleClass = (*env)->FindClass(env, JAVA_HMAC_KEY_HANDLE_CLASS);
+    keyHandleFieldId = (*env)->GetFieldID(env, keyHandleClass, "mCtxPtr", "J");
+  }
+}
+
+static int Digest_Init(int digest, HMAC_DIGEST_STATE* state) {
+  if (digest == HMAC_DIGEST_SHA256) {
+    Sha256_Init(&state->sha256);
+    return CRYPTO_SUCCESS;
+  }
+  return SHA1_Init(&state->sha1) ? CRYPTO_SUCCESS : CRYPTO_FAILURE;
+}
+
+static int Digest_Update(int digest, HMAC_DIGEST_STATE* state, const uint8_t* data, size_t length) {
+  if (digest == HMAC_DIGEST_SHA256) {
+    Sha256_Update(&state->sha256, data, length);
+    return CRYPTO_SUCCESS;
+  }
+  return SHA1_Update(&state->sha1, data, length) ? CRYPTO_SUCCESS : CRYPTO_FAILURE;
+}
+
+static int Digest_Final(int digest, HMAC_DIGEST_STATE* state, uint8_t* output) {
+  if (digest == HMAC_DIGEST_SHA256) {
+    Sha256_Final(&state->sha256, output);
+    return CRYPTO_SUCCESS;
+  }
+  return SHA1_Final(output, &state->sha1) ? CRYPTO_SUCCESS : CRYPTO_FAILURE;
+}
+
+int Hmac_Length(int digest) {
+  return digest == HMAC_DIGEST_SHA256 ? SHA256_DIGEST_LENGTH_IN_BYTES : SHA_DIGEST_LENGTH;
+}
+
+int Hmac_Key_Init(HMAC_KEY* key, int digest, const uint8_t* keyBytes, size_t keyLength) {
+  uint8_t block[HMAC_BLOCK_LENGTH_IN_BYTES];
+  uint8_t hashedKey[HMAC_MAX_LENGTH_IN_BYTES];
+  int retCode = CRYPTO_SUCCESS;
+  int i;
+
+  if (digest != HMAC_DIGEST_SHA1 && digest != HMAC_DIGEST_SHA256) {
+    return CRYPTO_FAILURE;
+  }
+  key->digest = digest;
+
+  // Keys longer than a block are hashed first.
+  if (keyLength > HMAC_BLOCK_LENGTH_IN_BYTES) {
+    if (!Digest_Init(digest, &key->inner) ||
+        !Digest_Update(digest, &key->inner, keyBytes, keyLength) ||
+        !Digest_Final(digest, &key->inner, hashedKey)) {
+      return CRYPTO_FAILURE;
+    }
+    keyBytes = hashedKey;
+    keyLength = Hmac_Length(digest);
+  }
+
+  memset(block, 0, sizeof(block));
+  memcpy(block, keyBytes, keyLength);
+  for (i = 0; i < HMAC_BLOCK_LENGTH_IN_BYTES; ++i) {
+    block[i] ^= 0x36;
+  }
+  if (!Digest_Init(digest, &key->inner) ||
+      !Digest_Update(digest, &key->inner, block, sizeof(block))) {
+    retCode = CRYPTO_FAILURE;
+  }
+  for (i = 0; i < HMAC_BLOCK_LENGTH_IN_BYTES; ++i) {
+    block[i] ^= 0x36 ^ 0x5c;
+  }
+  if (!Digest_Init(digest, &key->outer) ||
+      !Digest_Update(digest, &key->outer, block, sizeof(block))) {
+    retCode = CRYPTO_FAILURE;
+  }
+
+  OPENSSL_cleanse(block, sizeof(block));
+  OPENSSL_cleanse(hashedKey, sizeof(hashedKey));
+  return retCode;
+}
+
+void Hmac_Init(HMAC_JNI_CTX* ctx, const HMAC_KEY* key) {
+  ctx->key = *key;
+  ctx->state = key->inner;
+}
+
+int Hmac_Update(HMAC_JNI_CTX* ctx, const uint8_t* data, size_t length) {
+  return Digest_Update(ctx->key.digest, &ctx->state, data, length);
+}
+
+int Hmac_Final(HMAC_JNI_CTX* ctx, uint8_t* mac) {
+  uint8_t innerDigest[HMAC_MAX_LENGTH_IN_BYTES];
+  int digest = ctx->key.digest;
+  int retCode = CRYPTO_SUCCESS;
+
+  // The outer state is only needed once, so it is finished in place.
+  if (!Digest_Final(digest, &ctx->state, innerDigest) ||
+      !Digest_Update(digest, &ctx->key.outer, innerDigest, Hmac_Length(digest)) ||
+      !Digest_Final(digest, &ctx->key.outer, mac)) {
+    retCode = CRYPTO_FAILURE;
   }
 
-  ctx->key = (jbyte*) malloc(sizeof(jbyte) * keyLength);
-  if (!ctx->key) {
-    free(ctx);
+  OPENSSL_cleanse(innerDigest, sizeof(innerDigest));
+  return retCode;
+}
+
+HMAC_JNI_CTX* Create_HMAC_JNI_CTX(jbyte* keyBytes, jint keyLength, jint digest) {
+  HMAC_JNI_CTX* ctx = (HMAC_JNI_CTX*) malloc(sizeof(HMAC_JNI_CTX));
+  if (!ctx) {
     return NULL;
   }
 
-  ctx->hmacCtx = (HMAC_CTX*) malloc(sizeof(HMAC_CTX));
-  if (!ctx->hmacCtx) {
-    free(ctx->key);
-    free(ctx);
+  if (!Hmac_Key_Init(&ctx->key, digest, (uint8_t*) keyBytes, keyLength)) {
+    Destroy_HMAC_JNI_CTX(ctx);
     return NULL;
   }
 
-  memcpy(ctx->key, keyBytes, keyLength);
+  Hmac_Init(ctx, &ctx->key);
+  return ctx;
+}
 
-  HMAC_CTX_init(ctx->hmacCtx);
-  if (!HMAC_Init_ex(ctx->hmacCtx, ctx->key, keyLength, EVP_sha1(), NULL)) {
-    free(ctx->hmacCtx);
-    free(ctx->key);
-    free(ctx);
+HMAC_JNI_CTX* Create_HMAC_JNI_CTX_From_Key_Handle(HMAC_KEY_HANDLE* handle) {
+  HMAC_JNI_CTX* ctx = (HMAC_JNI_CTX*) malloc(sizeof(HMAC_JNI_CTX));
+  if (!ctx) {
     return NULL;
   }
 
+  // Copying the precomputed states replaces hashing the padded key twice.
+  Hmac_Init(ctx, &handle->key);
   return ctx;
 }
 
@@ -59,23 +167,56 @@ HMAC_JNI_CTX* Get_HMAC_JNI_CTX(JNIEnv* env, jobject obj) {
   return (HMAC_JNI_CTX*) Get_JNI_CTX(env, obj, fieldId);
 }
 
-HMAC_CTX* Get_HMAC_CTX(JNIEnv* env, jobject obj) {
-  HMAC_JNI_CTX* ctx = Get_HMAC_JNI_CTX(env, obj);
-  if (!ctx) {
+void Set_HMAC_JNI_CTX(JNIEnv* env, jobject obj, HMAC_JNI_CTX* ctx) {
+  Set_JNI_CTX(env, obj, fieldId, ctx);
+}
+
+void Destroy_HMAC_JNI_CTX(HMAC_JNI_CTX* ctx) {
+  OPENSSL_cleanse(ctx, sizeof(HMAC_JNI_CTX));
+  free(ctx);
+}
+
+HMAC_KEY_HANDLE* Create_HMAC_Key_Handle(jbyte* keyBytes, jint keyLength, jint digest) {
+  HMAC_KEY_HANDLE* handle = (HMAC_KEY_HANDLE*) malloc(sizeof(HMAC_KEY_HANDLE));
+  if (!handle) {
+    return NULL;
+  }
+
+  // Keep a copy of the key, which is only compared with the keys of later requests.
+  handle->keyBytes = (jbyte*) malloc(keyLength > 0 ? keyLength : 1);
+  if (!handle->keyBytes) {
+    free(handle);
+    return NULL;
+  }
+  memcpy(handle->keyBytes, keyBytes, keyLength);
+  handle->keyLength = keyLength;
+
+  if (!Hmac_Key_Init(&handle->key, digest, (uint8_t*) keyBytes, keyLength)) {
+    Destroy_HMAC_Key_Handle(handle);
     return NULL;
   }
+  return handle;
+}
 
-  return (HMAC_CTX*) (ctx->hmacCtx);
+HMAC_KEY_HANDLE* Get_HMAC_Key_Handle(JNIEnv* env, jobject obj) {
+  return (HMAC_KEY_HANDLE*) Get_JNI_CTX(env, obj, keyHandleFieldId);
 }
 
-void Set_HMAC_JNI_CTX(JNIEnv* env, jobject obj, HMAC_JNI_CTX* ctx) {
-  Set_JNI_CTX(env, obj, fieldId, (jint) ctx);
+void Set_HMAC_Key_Handle(JNIEnv* env, jobject obj, HMAC_KEY_HANDLE* handle) {
+  Set_JNI_CTX(env, obj, keyHandleFieldId, handle);
 }
 
-void Destroy_HMAC_JNI_CTX(HMAC_JNI_CTX* ctx) {
-  HMAC_CTX_cleanup(ctx->hmacCtx);
-  free(ctx->hmacCtx);
-  free(ctx->key);
-  free(ctx);
+int Is_Same_HMAC_Key(HMAC_KEY_HANDLE* handle, jbyte* keyBytes, jint keyLength) {
+  // The length is not secret, but the contents are compared in constant time.
+  if (handle->keyLength != keyLength) {
+    return 0;
+  }
+  return CRYPTO_memcmp(handle->keyBytes, keyBytes, keyLength) == 0;
 }
 
+void Destroy_HMAC_Key_Handle(HMAC_KEY_HANDLE* handle) {
+  OPENSSL_cleanse(handle->keyBytes, handle->keyLength);
+  free(handle->keyBytes);
+  OPENSSL_cleanse(handle, sizeof(HMAC_KEY_HANDLE));
+  free(handle);
+}
@@ -2,26 +2,77 @@
 #define _JAVA_COM_FACEBOOK_CRYPTO_HMAC_UTIL_
 
 #include <jni.h>
-#include <openssl/evp.h>
-#include <openssl/hmac.h>
+#include <openssl/sha.h>
+#include <sha256_util.h>
+#include <stddef.h>
+#include <stdint.h>
+
+// The digests, matching NativeMac.HMAC_SHA1 and NativeMac.HMAC_SHA256.
+#define HMAC_DIGEST_SHA1 1
+#define HMAC_DIGEST_SHA256 2
+
+// Both digests work on 64 byte blocks.
+#define HMAC_BLOCK_LENGTH_IN_BYTES 64
+#define HMAC_MAX_LENGTH_IN_BYTES SHA256_DIGEST_LENGTH_IN_BYTES
+
+typedef union HMAC_DIGEST_STATE {
+  SHA_CTX sha1;
+  SHA256_STATE sha256;
+} HMAC_DIGEST_STATE;
+
+// The inner and outer digest states once the padded key has been hashed. Every message starts
+// from a copy of them, so the key is only hashed once however many messages are macced.
+typedef struct HMAC_KEY {
+  int digest;
+  HMAC_DIGEST_STATE inner;
+  HMAC_DIGEST_STATE outer;
+} HMAC_KEY;
 
 typedef struct HMAC_JNI_CTX {
-  jbyte* key;
-  HMAC_CTX* hmacCtx;
+  HMAC_KEY key;
+  // The inner digest of the message so far.
+  HMAC_DIGEST_STATE state;
 } HMAC_JNI_CTX;
 
+// A key imported once with its digest states precomputed, see MacKeyHandle.
+typedef struct HMAC_KEY_HANDLE {
+  jbyte* keyBytes;
+  jint keyLength;
+  HMAC_KEY key;
+} HMAC_KEY_HANDLE;
 
 void Init_HMAC_CTX_Ptr_Field(JNIEnv* env);
 
-HMAC_JNI_CTX* Create_HMAC_JNI_CTX(jbyte* keyBytes, jint keyLength);
+void Init_HMAC_Key_Handle_Ptr_Field(JNIEnv* env);
 
-HMAC_JNI_CTX* Get_HMAC_JNI_CTX(JNIEnv* env, jobject obj);
+int Hmac_Length(int digest);
+
+int Hmac_Key_Init(HMAC_KEY* key, int digest, const uint8_t* keyBytes, size_t keyLength);
+
+void Hmac_Init(HMAC_JNI_CTX* ctx, const HMAC_KEY* key);
+
+int Hmac_Update(HMAC_JNI_CTX* ctx, const uint8_t* data, size_t length);
+
+int Hmac_Final(HMAC_JNI_CTX* ctx, uint8_t* mac);
 
-HMAC_CTX* Get_HMAC_CTX(JNIEnv* env, jobject obj);
+HMAC_JNI_CTX* Create_HMAC_JNI_CTX(jbyte* keyBytes, jint keyLength, jint digest);
+
+HMAC_JNI_CTX* Create_HMAC_JNI_CTX_From_Key_Handle(HMAC_KEY_HANDLE* handle);
+
+HMAC_JNI_CTX* Get_HMAC_JNI_CTX(JNIEnv* env, jobject obj);
 
 void Set_HMAC_JNI_CTX(JNIEnv* env, jobject obj, HMAC_JNI_CTX* ctx);
 
 void Destroy_HMAC_JNI_CTX(HMAC_JNI_CTX* ctx);
 
-#endif // _JAVA_COM_FACEBOOK_CRYPTO_HMAC_UTIL_
+HMAC_KEY_HANDLE* Create_HMAC_Key_Handle(jbyte* keyBytes, jint keyLength, jint digest);
+
+HMAC_KEY_HANDLE* Get_HMAC_Key_Handle(JNIEnv* env, jobject obj);
 
+void Set_HMAC_Key_Handle(JNIEnv* env, jobject obj, HMAC_KEY_HANDLE* handle);
+
+int Is_Same_HMAC_Key(HMAC_KEY_HANDLE* handle, jbyte* keyBytes, jint keyLength);
+
+void Destroy_HMAC_Key_Handle(HMAC_KEY_HANDLE* handle);
+
+#endif // _JAVA_COM_FACEBOOK_CRYPTO_HMAC_UTIL_
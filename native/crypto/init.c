@@ -8,6 +8,7 @@
  *
  */
 #include <jni.h>
+#include <chacha20_poly1305_util.h>
 #include <gcm_util.h>
 #include <hmac_util.h>
 
@@ -18,6 +19,9 @@ JNIEXPORT jint JNI_OnLoad(JavaVM* vm, void* reserved) {
   }
 
   Init_GCM_CTX_Ptr_Field(env);
+  Init_Key_Handle_Ptr_Field(env);
   Init_HMAC_CTX_Ptr_Field(env);
+  Init_HMAC_Key_Handle_Ptr_Field(env);
+  Init_ChaCha20_Poly1305_CTX_Ptr_Field(env);
   return JNI_VERSION_1_4;
 }
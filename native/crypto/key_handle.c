@@ -0,0 +1,80 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+#include <gcm_util.h>
+#include <jni.h>
+#include <openssl/crypto.h>
+#include <string.h>
+#include <util.h>
+
+JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_KeyHandle_nativeCreate(
+  JNIEnv* env,
+  jobject obj,
+  jbyteArray key) {
+
+  jbyte keyBytes[GCM_KEY_LENGTH_IN_BYTES];
+  (*env)->GetByteArrayRegion(env, key, 0, GCM_KEY_LENGTH_IN_BYTES, keyBytes);
+  if ((*env)->ExceptionCheck(env)) {
+    OPENSSL_cleanse(keyBytes, GCM_KEY_LENGTH_IN_BYTES);
+    return CRYPTO_FAILURE;
+  }
+
+  GCM_KEY_HANDLE* handle = Create_GCM_Key_Handle(keyBytes);
+  OPENSSL_cleanse(keyBytes, GCM_KEY_LENGTH_IN_BYTES);
+  if (!handle) {
+    return CRYPTO_FAILURE;
+  }
+
+  Set_GCM_Key_Handle(env, obj, handle);
+  return CRYPTO_SUCCESS;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_facebook_crypto_cipher_KeyHandle_nativeMatches(
+  JNIEnv* env,
+  jobject obj,
+  jbyteArray key) {
+
+  GCM_KEY_HANDLE* handle = Get_GCM_Key_Handle(env, obj);
+  if (!handle) {
+    return JNI_FALSE;
+  }
+
+  jbyte keyBytes[GCM_KEY_LENGTH_IN_BYTES];
+  (*env)->GetByteArrayRegion(env, key, 0, GCM_KEY_LENGTH_IN_BYTES, keyBytes);
+  if ((*env)->ExceptionCheck(env)) {
+    OPENSSL_cleanse(keyBytes, GCM_KEY_LENGTH_IN_BYTES);
+    return JNI_FALSE;
+  }
+
+  int matches = Is_Same_Key(handle->key, keyBytes);
+  OPENSSL_cleanse(keyBytes, GCM_KEY_LENGTH_IN_BYTES);
+  return matches ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_KeyHandle_nativeDestroy(
+  JNIEnv* env,
+  jobject obj) {
+
+  GCM_KEY_HANDLE* handle = Get_GCM_Key_Handle(env, obj);
+  if (!handle) {
+    return CRYPTO_FAILURE;
+  }
+
+  Destroy_GCM_Key_Handle(handle);
+  Set_GCM_Key_Handle(env, obj, 0);
+  return CRYPTO_SUCCESS;
+}
+
+// Give the java layer access to C constants.
+JNIEXPORT int JNICALL Java_com_facebook_crypto_cipher_KeyHandle_nativeFailure(
+  JNIEnv* env,
+  jobject obj) {
+
+  return CRYPTO_FAILURE;
+}
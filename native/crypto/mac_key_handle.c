@@ -0,0 +1,78 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+#include <hmac_util.h>
+#include <jni.h>
+#include <util.h>
+
+JNIEXPORT int JNICALL Java_com_facebook_crypto_mac_MacKeyHandle_nativeCreate(
+  JNIEnv* env,
+  jobject obj,
+  jbyteArray key,
+  jint digest) {
+
+  jint keyLength = (*env)->GetArrayLength(env, key);
+  jbyte* keyBytes = (*env)->GetByteArrayElements(env, key, NULL);
+  if (!keyBytes) {
+    return CRYPTO_FAILURE;
+  }
+
+  HMAC_KEY_HANDLE* handle = Create_HMAC_Key_Handle(keyBytes, keyLength, digest);
+  (*env)->ReleaseByteArrayElements(env, key, keyBytes, JNI_ABORT);
+  if (!handle) {
+    return CRYPTO_FAILURE;
+  }
+
+  Set_HMAC_Key_Handle(env, obj, handle);
+  return CRYPTO_SUCCESS;
+}
+
+JNIEXPORT jboolean JNICALL Java_com_facebook_crypto_mac_MacKeyHandle_nativeMatches(
+  JNIEnv* env,
+  jobject obj,
+  jbyteArray key) {
+
+  HMAC_KEY_HANDLE* handle = Get_HMAC_Key_Handle(env, obj);
+  if (!handle) {
+    return JNI_FALSE;
+  }
+
+  // This runs for every mac, so the key is compared in place rather than copied out of java.
+  jint keyLength = (*env)->GetArrayLength(env, key);
+  jbyte* keyBytes = (jbyte*) (*env)->GetPrimitiveArrayCritical(env, key, NULL);
+  if (!keyBytes) {
+    return JNI_FALSE;
+  }
+
+  int matches = Is_Same_HMAC_Key(handle, keyBytes, keyLength);
+  (*env)->ReleasePrimitiveArrayCritical(env, key, keyBytes, JNI_ABORT);
+  return matches ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT int JNICALL Java_com_facebook_crypto_mac_MacKeyHandle_nativeDestroy(
+  JNIEnv* env,
+  jobject obj) {
+
+  HMAC_KEY_HANDLE* handle = Get_HMAC_Key_Handle(env, obj);
+  if (!handle) {
+    return CRYPTO_FAILURE;
+  }
+
+  Destroy_HMAC_Key_Handle(handle);
+  Set_HMAC_Key_Handle(env, obj, 0);
+  return CRYPTO_SUCCESS;
+}
+
+// Give the java layer access to C constants.
+JNIEXPORT int JNICALL Java_com_facebook_crypto_mac_MacKeyHandle_nativeFailure(
+  JNIEnv* env,
+  jobject obj) {
+
+  return CRYPTO_FAILURE;
+}
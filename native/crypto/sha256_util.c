@@ -0,0 +1,160 @@
+/*
+ *  Copyright (c) 2014, Facebook, Inc.
+ *  All rights reserved.
+ *
+ *  This source code is licensed under the BSD-style license found in the
+ *  LICENSE file in the root directory of this source tree. An additional grant
+ *  of patent rights can be found in the PATENTS file in the same directory.
+ *
+ */
+
+// SHA-256 as specified in FIPS 180-4. Our OpenSSL build leaves SHA-256 out, so HMAC-SHA256 is
+// computed over this portable implementation.
+
+#include <sha256_util.h>
+#include <string.h>
+
+#define ROTR32(v, n) (((v) >> (n)) | ((v) << (32 - (n))))
+
+#define CH(x, y, z) (((x) & (y)) ^ (~(x) & (z)))
+#define MAJ(x, y, z) (((x) & (y)) ^ ((x) & (z)) ^ ((y) & (z)))
+#define SIGMA0(x) (ROTR32(x, 2) ^ ROTR32(x, 13) ^ ROTR32(x, 22))
+#define SIGMA1(x) (ROTR32(x, 6) ^ ROTR32(x, 11) ^ ROTR32(x, 25))
+#define GAMMA0(x) (ROTR32(x, 7) ^ ROTR32(x, 18) ^ ((x) >> 3))
+#define GAMMA1(x) (ROTR32(x, 17) ^ ROTR32(x, 19) ^ ((x) >> 10))
+
+static const uint32_t K[64] = {
+  0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+  0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+  0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+  0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+  0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+  0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+  0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+  0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2,
+};
+
+static uint32_t Load32_BE(const uint8_t* p) {
+  return ((uint32_t) p[0] << 24) | ((uint32_t) p[1] << 16) | ((uint32_t) p[2] << 8) | p[3];
+}
+
+static void Store32_BE(uint8_t* p, uint32_t v) {
+  p[0] = (uint8_t) (v >> 24);
+  p[1] = (uint8_t) (v >> 16);
+  p[2] = (uint8_t) (v >> 8);
+  p[3] = (uint8_t) v;
+}
+
+static void Sha256_Block(SHA256_STATE* state, const uint8_t* block) {
+  uint32_t w[64];
+  uint32_t a, b, c, d, e, f, g, h, t1, t2;
+  int i;
+
+  for (i = 0; i < 16; ++i) {
+    w[i] = Load32_BE(block + 4 * i);
+  }
+  for (i = 16; i < 64; ++i) {
+    w[i] = GAMMA1(w[i - 2]) + w[i - 7] + GAMMA0(w[i - 15]) + w[i - 16];
+  }
+
+  a = state->h[0];
+  b = state->h[1];
+  c = state->h[2];
+  d = state->h[3];
+  e = state->h[4];
+  f = state->h[5];
+  g = state->h[6];
+  h = state->h[7];
+  for (i = 0; i < 64; ++i) {
+    t1 = h + SIGMA1(e) + CH(e, f, g) + K[i] + w[i];
+    t2 = SIGMA0(a) + MAJ(a, b, c);
+    h = g;
+    g = f;
+    f = e;
+    e = d + t1;
+    d = c;
+    c = b;
+    b = a;
+    a = t1 + t2;
+  }
+  state->h[0] += a;
+  state->h[1] += b;
+  state->h[2] += c;
+  state->h[3] += d;
+  state->h[4] += e;
+  state->h[5] += f;
+  state->h[6] += g;
+  state->h[7] += h;
+}
+
+void Sha256_Init(SHA256_STATE* state) {
+  state->h[0] = 0x6a09e667;
+  state->h[1] = 0xbb67ae85;
+  state->h[2] = 0x3c6ef372;
+  state->h[3] = 0xa54ff53a;
+  state->h[4] = 0x510e527f;
+  state->h[5] = 0x9b05688c;
+  state->h[6] = 0x1f83d9ab;
+  state->h[7] = 0x5be0cd19;
+  state->length = 0;
+  state->bufferLength = 0;
+}
+
+void Sha256_Update(SHA256_STATE* state, const uint8_t* data, size_t length) {
+  state->length += length;
+
+  if (state->bufferLength > 0) {
+    size_t toCopy = SHA256_BLOCK_LENGTH_IN_BYTES - state->bufferLength;
+    if (toCopy > length) {
+      toCopy = length;
+    }
+    memcpy(state->buffer + state->bufferLength, data, toCopy);
+    state->bufferLength += toCopy;
+    data += toCopy;
+    length -= toCopy;
+    if (state->bufferLength < SHA256_BLOCK_LENGTH_IN_BYTES) {
+      return;
+    }
+    Sha256_Block(state, state->buffer);
+    state->bufferLength = 0;
+  }
+
+  // Whole blocks are hashed straight from the input.
+  while (length >= SHA256_BLOCK_LENGTH_IN_BYTES) {
+    Sha256_Block(state, data);
+    data += SHA256_BLOCK_LENGTH_IN_BYTES;
+    length -= SHA256_BLOCK_LENGTH_IN_BYTES;
+  }
+
+  if (length > 0) {
+    memcpy(state->buffer, data, length);
+    state->bufferLength = length;
+  }
+}
+
+void Sha256_Final(SHA256_STATE* state, uint8_t* digest) {
+  uint64_t bitLength = state->length * 8;
+  int i;
+
+  // Pad with a one bit, zeros and the message length in bits, big endian.
+  state->buffer[state->bufferLength++] = 0x80;
+  if (state->bufferLength > SHA256_BLOCK_LENGTH_IN_BYTES - 8) {
+    memset(
+        state->buffer + state->bufferLength,
+        0,
+        SHA256_BLOCK_LENGTH_IN_BYTES - state->bufferLength);
+    Sha256_Block(state, state->buffer);
+    state->bufferLength = 0;
+  }
+  memset(
+      state->buffer + state->bufferLength,
+      0,
+      SHA256_BLOCK_LENGTH_IN_BYTES - 8 - state->bufferLength);
+  Store32_BE(state->buffer + SHA256_BLOCK_LENGTH_IN_BYTES - 8, (uint32_t) (bitLength >> 32));
+  Store32_BE(state->buffer + SHA256_BLOCK_LENGTH_IN_BYTES - 4, (uint32_t) bitLength);
+  Sha256_Block(state, state->buffer);
+
+  for (i = 0; i < 8; ++i) {
+    Store32_BE(digest + 4 * i, state->h[i]);
+  }
+}
@@ -0,0 +1,24 @@
+#ifndef _JAVA_COM_FACEBOOK_CRYPTO_SHA256_UTIL_
+#define _JAVA_COM_FACEBOOK_CRYPTO_SHA256_UTIL_
+
+#include <stddef.h>
+#include <stdint.h>
+
+#define SHA256_BLOCK_LENGTH_IN_BYTES 64
+#define SHA256_DIGEST_LENGTH_IN_BYTES 32
+
+typedef struct SHA256_STATE {
+  uint32_t h[8];
+  // The number of bytes hashed so far.
+  uint64_t length;
+  uint8_t buffer[SHA256_BLOCK_LENGTH_IN_BYTES];
+  size_t bufferLength;
+} SHA256_STATE;
+
+void Sha256_Init(SHA256_STATE* state);
+
+void Sha256_Update(SHA256_STATE* state, const uint8_t* data, size_t length);
+
+void Sha256_Final(SHA256_STATE* state, uint8_t* digest);
+
+#endif // _JAVA_COM_FACEBOOK_CRYPTO_SHA256_UTIL_
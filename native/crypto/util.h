@@ -2,15 +2,17 @@
 #define _JAVA_COM_FACEBOOK_CRYPTO_UTIL_
 
 #include <jni.h>
+#include <stdint.h>
 
 extern const int CRYPTO_SUCCESS;
 extern const int CRYPTO_FAILURE;
 
 extern const int CRYPTO_NO_BYTES_WRITTEN;
 
-jint Get_JNI_CTX(JNIEnv* env, jobject obj, jfieldID fieldId);
+// Native contexts are stored in java long fields, which can hold a pointer on every ABI.
+void* Get_JNI_CTX(JNIEnv* env, jobject obj, jfieldID fieldId);
 
-void Set_JNI_CTX(JNIEnv* env, jobject obj, jfieldID fieldId, jint ctx);
+void Set_JNI_CTX(JNIEnv* env, jobject obj, jfieldID fieldId, void* ctx);
 
 #endif // _JAVA_COM_FACEBOOK_CRYPTO_UTIL_
 